@@ -0,0 +1,212 @@
+package com.winterwell.bob.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.winterwell.utils.FailureException;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * The bits of a .class file that incremental compilation needs: which classes it refers to,
+ * which source file it came from, and its compile-time constants (which javac inlines into other classes,
+ * so they don't show up as references).
+ * <p>
+ * Reads the constant pool directly -- no bytecode library needed.
+ *
+ * @author daniel
+ * @testedby  CompileTaskTest}
+ */
+final class ClassFileInfo {
+
+	/**
+	 * Object types within descriptors and generic signatures, e.g. "(Lcom/foo/Bar;)V"
+	 */
+	private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([\\w/$]+)[;<]");
+
+	/**
+	 * Internal name, e.g. "com/foo/Bar$Inner"
+	 */
+	final String name;
+
+	/**
+	 * From the SourceFile attribute, e.g. "Bar.java". Can be null (if compiled with -g:none)
+	 */
+	final String sourceFile;
+
+	/**
+	 * Internal names of every class referenced. Includes some JDK classes -- callers filter.
+	 */
+	final Set<String> deps = new TreeSet();
+
+	/**
+	 * "name=value;" for each field with a ConstantValue, in name order. "" if none.
+	 */
+	final String constants;
+
+	private ClassFileInfo(String name, String sourceFile, String constants) {
+		this.name = name;
+		this.sourceFile = sourceFile;
+		this.constants = constants;
+	}
+
+	/**
+	 * @return e.g. "com/foo/Bar.java" -- the path of the source relative to its source root.
+	 */
+	String getSourcePath() {
+		int slash = name.lastIndexOf('/');
+		String pkg = slash==-1? "" : name.substring(0, slash+1);
+		String sf = sourceFile;
+		if (sf==null) {
+			// guess from the top-level class name
+			String top = name.substring(slash+1);
+			int dollar = top.indexOf('$');
+			if (dollar > 0) top = top.substring(0, dollar);
+			sf = top+".java";
+		}
+		return pkg+sf;
+	}
+
+	static ClassFileInfo read(File classFile) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(classFile)));
+			return read2(in);
+		} catch (IOException e) {
+			throw new FailureException("Cannot read class file "+classFile+": "+e);
+		} finally {
+			FileUtils.close(in);
+		}
+	}
+
+	private static ClassFileInfo read2(DataInputStream in) throws IOException {
+		if (in.readInt() != 0xCAFEBABE) {
+			throw new IOException("not a class file");
+		}
+		in.readUnsignedShort(); // minor
+		in.readUnsignedShort(); // major
+		int n = in.readUnsignedShort();
+		String[] utf8 = new String[n];
+		// pool index -> utf8 index, for Class and String entries
+		int[] classRefs = new int[n];
+		int[] stringRefs = new int[n];
+		Object[] values = new Object[n];
+		for(int i=1; i<n; i++) {
+			int tag = in.readUnsignedByte();
+			switch(tag) {
+			case 1: utf8[i] = in.readUTF(); break;
+			case 3: values[i] = in.readInt(); break;
+			case 4: values[i] = in.readFloat(); break;
+			case 5: values[i] = in.readLong(); i++; break;
+			case 6: values[i] = in.readDouble(); i++; break;
+			case 7: classRefs[i] = in.readUnsignedShort(); break;
+			case 8: stringRefs[i] = in.readUnsignedShort(); break;
+			case 9: case 10: case 11: case 12: case 17: case 18: in.readInt(); break;
+			case 15: in.readUnsignedByte(); in.readUnsignedShort(); break;
+			case 16: case 19: case 20: in.readUnsignedShort(); break;
+			default:
+				throw new IOException("Unknown constant pool tag "+tag+" at "+i);
+			}
+		}
+		in.readUnsignedShort(); // access
+		String thisClass = utf8[classRefs[in.readUnsignedShort()]];
+		in.readUnsignedShort(); // super -- it's in the constant pool anyway
+		int interfaces = in.readUnsignedShort();
+		for(int i=0; i<interfaces; i++) in.readUnsignedShort();
+		// fields: collect the constants
+		TreeMap<String,String> constants = new TreeMap();
+		int fields = in.readUnsignedShort();
+		for(int f=0; f<fields; f++) {
+			in.readUnsignedShort(); // access
+			String fname = utf8[in.readUnsignedShort()];
+			in.readUnsignedShort(); // descriptor
+			int attrs = in.readUnsignedShort();
+			for(int a=0; a<attrs; a++) {
+				String aname = utf8[in.readUnsignedShort()];
+				int len = in.readInt();
+				if ("ConstantValue".equals(aname)) {
+					int vi = in.readUnsignedShort();
+					Object v = stringRefs[vi] != 0? utf8[stringRefs[vi]] : values[vi];
+					constants.put(fname, String.valueOf(v));
+				} else {
+					skip(in, len);
+				}
+			}
+		}
+		int methods = in.readUnsignedShort();
+		for(int m=0; m<methods; m++) {
+			skip(in, 6);
+			skipAttributes(in);
+		}
+		String sourceFile = null;
+		int attrs = in.readUnsignedShort();
+		for(int a=0; a<attrs; a++) {
+			String aname = utf8[in.readUnsignedShort()];
+			int len = in.readInt();
+			if ("SourceFile".equals(aname)) {
+				sourceFile = utf8[in.readUnsignedShort()];
+			} else {
+				skip(in, len);
+			}
+		}
+		StringBuilder cs = new StringBuilder();
+		for (String k : constants.keySet()) {
+			cs.append(k).append('=').append(constants.get(k)).append(';');
+		}
+		ClassFileInfo info = new ClassFileInfo(thisClass, sourceFile, cs.toString());
+		// deps: class constants...
+		for(int c=1; c<n; c++) {
+			if (classRefs[c] == 0) continue;
+			String cn = utf8[classRefs[c]];
+			if (cn.startsWith("[")) {
+				// array type, e.g. "[Lcom/foo/Bar;"
+				addDescriptorDeps(cn, info.deps);
+			} else {
+				info.deps.add(cn);
+			}
+		}
+		// ...and types which only appear in field / method signatures
+		for (String u : utf8) {
+			if (u != null && u.indexOf(';') != -1) {
+				addDescriptorDeps(u, info.deps);
+			}
+		}
+		info.deps.remove(thisClass);
+		return info;
+	}
+
+	private static void addDescriptorDeps(String descriptor, Set<String> deps) {
+		Matcher m = DESCRIPTOR_CLASS.matcher(descriptor);
+		while(m.find()) {
+			deps.add(m.group(1));
+		}
+	}
+
+	private static void skipAttributes(DataInputStream in) throws IOException {
+		int attrs = in.readUnsignedShort();
+		for(int a=0; a<attrs; a++) {
+			in.readUnsignedShort();
+			skip(in, in.readInt());
+		}
+	}
+
+	/**
+	 * skipBytes() can stop short on a buffered stream, so read instead
+	 */
+	private static void skip(DataInputStream in, int len) throws IOException {
+		in.readFully(new byte[len]);
+	}
+
+	@Override
+	public String toString() {
+		return "ClassFileInfo["+name+" from "+sourceFile+" deps: "+StrUtils.join(deps, " ")+"]";
+	}
+}
@@ -0,0 +1,154 @@
+package com.winterwell.bob.tasks;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.winterwell.bob.tasks.CompileState.SourceRecord;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+
+/**
+ * A local, content-addressed store of compiler outputs, so that going back to a set of sources
+ * you've built before (e.g. switching git branch and back) is a copy rather than a compile.
+ * <p>
+ * Layout:<br>
+ * dir/blobs/[md5] -- .class files, stored once however many builds use them<br>
+ * dir/builds/[key] -- a {@link CompileState}, which lists the blobs for a build (key = hash of options + classpath + sources)<br>
+ * dir/state/[hash of output dir] -- the current state of each output dir
+ *
+ * @author daniel
+ * @testedby  CompileTaskTest}
+ */
+final class CompileCache {
+
+	private static final String LOGTAG = "CompileTask";
+
+	/**
+	 * Keep this many builds. Least-recently-used are dropped first.
+	 */
+	static final int MAX_BUILDS = 32;
+
+	private final File dir;
+
+	CompileCache(File dir) {
+		this.dir = dir;
+	}
+
+	File getStateFile(File outputDir) {
+		return new File(dir, "state/"+StrUtils.md5(outputDir.getAbsolutePath()));
+	}
+
+	private File getBlob(String md5) {
+		return new File(dir, "blobs/"+md5);
+	}
+
+	private File getManifest(String key) {
+		return new File(dir, "builds/"+key);
+	}
+
+	/**
+	 * If this build is in the cache, put its .class files into outputDir.
+	 * @param current The current contents of outputDir (can be null). Its .class files get removed.
+	 * @return the restored state, or null if not cached
+	 */
+	CompileState restore(String key, File outputDir, CompileState current) {
+		File manifest = getManifest(key);
+		CompileState cached = CompileState.load(manifest);
+		if (cached == null) return null;
+		for (SourceRecord rec : cached.sources.values()) {
+			for (String md5 : rec.classes.values()) {
+				if ( ! getBlob(md5).isFile()) {
+					Log.w(LOGTAG, "Compile cache "+key+" is missing "+md5+" - ignoring it");
+					return null;
+				}
+			}
+		}
+		Map<String,String> cachedClasses = new HashMap();
+		for (SourceRecord rec : cached.sources.values()) {
+			cachedClasses.putAll(rec.classes);
+		}
+		// remove outputs that aren't in the cached build
+		if (current != null) {
+			for (SourceRecord rec : current.sources.values()) {
+				for (String klass : rec.classes.keySet()) {
+					if ( ! rec.classes.get(klass).equals(cachedClasses.get(klass))) {
+						FileUtils.delete(CompileState.getClassFile(outputDir, klass));
+					}
+				}
+			}
+		}
+		// copy in the rest (leaving identical files untouched)
+		for (String klass : cachedClasses.keySet()) {
+			String md5 = cachedClasses.get(klass);
+			File out = CompileState.getClassFile(outputDir, klass);
+			if (out.isFile() && md5.equals(CompileState.hashFile(out))) continue;
+			out.getParentFile().mkdirs();
+			FileUtils.copy(getBlob(md5), out, true);
+		}
+		// mark as recently used
+		manifest.setLastModified(System.currentTimeMillis());
+		return cached;
+	}
+
+	/**
+	 * Store the outputs of a build.
+	 */
+	void put(CompileState state, File outputDir) {
+		for (SourceRecord rec : state.sources.values()) {
+			for (String klass : rec.classes.keySet()) {
+				File blob = getBlob(rec.classes.get(klass));
+				if (blob.isFile()) continue;
+				blob.getParentFile().mkdirs();
+				// copy then move, so a half-written blob never has a valid name
+				File tmp = new File(blob.getPath()+"."+Thread.currentThread().getId()+".tmp");
+				FileUtils.copy(CompileState.getClassFile(outputDir, klass), tmp, true);
+				FileUtils.move(tmp, blob);
+			}
+		}
+		File manifest = getManifest(state.key);
+		manifest.getParentFile().mkdirs();
+		state.save(manifest);
+		prune();
+	}
+
+	/**
+	 * Drop the least-recently-used builds beyond {@link #MAX_BUILDS}, and any blobs they alone used.
+	 */
+	void prune() {
+		File[] builds = new File(dir, "builds").listFiles();
+		if (builds==null || builds.length <= MAX_BUILDS) return;
+		Arrays.sort(builds, Comparator.comparingLong(File::lastModified));
+		for(int i=0; i<builds.length - MAX_BUILDS; i++) {
+			FileUtils.delete(builds[i]);
+		}
+		// what's still in use?
+		Set<String> live = new HashSet();
+		for(int i=builds.length - MAX_BUILDS; i<builds.length; i++) {
+			CompileState state = CompileState.load(builds[i]);
+			if (state == null) continue;
+			for (SourceRecord rec : state.sources.values()) {
+				live.addAll(rec.classes.values());
+			}
+		}
+		File[] blobs = new File(dir, "blobs").listFiles();
+		if (blobs==null) return;
+		int cnt = 0;
+		for (File blob : blobs) {
+			if (live.contains(blob.getName()) || blob.getName().endsWith(".tmp")) continue;
+			FileUtils.delete(blob);
+			cnt++;
+		}
+		Log.d(LOGTAG, "Pruned compile cache "+dir+": "+(builds.length - MAX_BUILDS)+" builds, "+cnt+" blobs");
+	}
+
+	@Override
+	public String toString() {
+		return "CompileCache[" + dir + "]";
+	}
+}
@@ -0,0 +1,287 @@
+package com.winterwell.bob.tasks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+
+/**
+ * What {@link CompileTask} knows about the last compile into an output dir: a content hash per source,
+ * the .class files each source produced (with their hashes, so the {@link CompileCache} can store them),
+ * and which other sources' classes each one refers to.
+ * <p>
+ * Saved as plain tab-separated text.
+ *
+ * @author daniel
+ * @testedby  CompileTaskTest}
+ */
+final class CompileState {
+
+	private static final String LOGTAG = "CompileTask";
+
+	private static final String HEADER = "bob-compile-state\t1";
+
+	/**
+	 * "path:length:modified" -> md5, so classpath jars are not re-hashed on every build
+	 */
+	private static final Map<String,String> hashMemo = new ConcurrentHashMap();
+
+	static final class SourceRecord {
+		/**
+		 * md5 of the source file
+		 */
+		final String hash;
+		/**
+		 * md5 of the compile-time constants in its classes. These get inlined elsewhere, so a change
+		 * here cannot be tracked via dependencies.
+		 */
+		String constants = "";
+		/**
+		 * class internal name (e.g. "com/foo/Bar$1") -> md5 of the .class file
+		 */
+		final Map<String,String> classes = new TreeMap();
+		/**
+		 * Internal names of classes (from other sources in this compile) which this source uses
+		 */
+		final Set<String> deps = new TreeSet();
+
+		SourceRecord(String hash) {
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Hash of the compiler options and classpath. If this changes, everything is recompiled.
+	 */
+	final String config;
+
+	/**
+	 * Hash of config + every source -- identifies the whole build, for {@link CompileCache}
+	 */
+	final String key;
+
+	/**
+	 * absolute source path -> record
+	 */
+	final Map<String,SourceRecord> sources = new HashMap();
+
+	CompileState(String config, String key) {
+		this.config = config;
+		this.key = key;
+	}
+
+	/**
+	 * @param sourceHashes absolute path -> md5
+	 * @return the key for this build
+	 */
+	static String getKey(String config, Map<String,String> sourceHashes) {
+		StringBuilder sb = new StringBuilder(config);
+		for (String path : new TreeSet<>(sourceHashes.keySet())) {
+			sb.append('\n').append(path).append('\t').append(sourceHashes.get(path));
+		}
+		return StrUtils.md5(sb.toString());
+	}
+
+	/**
+	 * Content hash of classpath jars and class directories.
+	 * @param entries As in {@link Classpath} -- can include "dir/*" for all the jars in dir.
+	 */
+	static String hashClasspath(List<String> entries) {
+		StringBuilder sb = new StringBuilder();
+		for (String entry : entries) {
+			sb.append(entry).append('\n');
+			List<File> files = new ArrayList();
+			if (entry.endsWith("*")) {
+				File dir = new File(entry.substring(0, entry.length()-1));
+				if (dir.isDirectory()) files.addAll(FileUtils.find(dir, ".*\\.jar"));
+			} else {
+				File f = new File(entry);
+				if (f.isDirectory()) {
+					files.addAll(FileUtils.find(f, ".*"));
+				} else if (f.isFile()) {
+					files.add(f);
+				}
+			}
+			files.sort(null);
+			for (File f : files) {
+				if (f.isDirectory()) continue;
+				sb.append(f.getPath()).append('\t').append(hashFile(f)).append('\n');
+			}
+		}
+		return StrUtils.md5(sb.toString());
+	}
+
+	/**
+	 * md5 of the file contents, remembered while the file is unmodified.
+	 */
+	static String hashFile(File f) {
+		String memoKey = f.getAbsolutePath()+":"+f.length()+":"+f.lastModified();
+		return hashMemo.computeIfAbsent(memoKey, k -> FileUtils.getMD5HashString(f));
+	}
+
+	/**
+	 * @return class internal name -> the source which makes it
+	 */
+	Map<String,String> getOwners() {
+		Map<String,String> owners = new HashMap();
+		for (String path : sources.keySet()) {
+			for (String klass : sources.get(path).classes.keySet()) {
+				owners.put(klass, path);
+			}
+		}
+		return owners;
+	}
+
+	/**
+	 * Which sources need recompiling?
+	 * @param sourceHashes The current sources, absolute path -> md5
+	 * @return sources that are new, edited, deleted, or missing outputs -- plus everything that
+	 * depends on those, directly or indirectly. Deleted sources are included (so their outputs can be cleaned up).
+	 */
+	Set<String> getDirty(Map<String,String> sourceHashes, File outputDir) {
+		Set<String> dirty = new HashSet();
+		Set<String> newDirs = new HashSet();
+		for (String path : sourceHashes.keySet()) {
+			SourceRecord rec = sources.get(path);
+			if (rec == null) {
+				dirty.add(path);
+				newDirs.add(new File(path).getParent());
+			} else if ( ! rec.hash.equals(sourceHashes.get(path)) || ! hasOutputs(rec, outputDir)) {
+				dirty.add(path);
+			}
+		}
+		for (String path : sources.keySet()) {
+			if ( ! sourceHashes.containsKey(path)) dirty.add(path);
+			// A new class can shadow an import for its package-mates, so recompile those too
+			else if (newDirs.contains(new File(path).getParent())) dirty.add(path);
+		}
+		// add the dependents
+		Map<String,String> owners = getOwners();
+		Map<String,Set<String>> dependents = new HashMap();
+		for (String path : sources.keySet()) {
+			for (String dep : sources.get(path).deps) {
+				String owner = owners.get(dep);
+				if (owner == null) continue;
+				dependents.computeIfAbsent(owner, k -> new HashSet()).add(path);
+			}
+		}
+		List<String> todo = new ArrayList(dirty);
+		while( ! todo.isEmpty()) {
+			String path = todo.remove(todo.size()-1);
+			Set<String> ds = dependents.get(path);
+			if (ds == null) continue;
+			for (String d : ds) {
+				if (dirty.add(d)) todo.add(d);
+			}
+		}
+		return dirty;
+	}
+
+	boolean hasOutputs(File outputDir) {
+		for (SourceRecord rec : sources.values()) {
+			if ( ! hasOutputs(rec, outputDir)) return false;
+		}
+		return true;
+	}
+
+	private static boolean hasOutputs(SourceRecord rec, File outputDir) {
+		for (String klass : rec.classes.keySet()) {
+			if ( ! getClassFile(outputDir, klass).isFile()) return false;
+		}
+		return true;
+	}
+
+	static File getClassFile(File outputDir, String klass) {
+		return new File(outputDir, klass+".class");
+	}
+
+	/**
+	 * Delete the .class files made by these sources.
+	 */
+	void deleteOutputs(Collection<String> paths, File outputDir) {
+		for (String path : paths) {
+			SourceRecord rec = sources.get(path);
+			if (rec == null) continue;
+			for (String klass : rec.classes.keySet()) {
+				FileUtils.delete(getClassFile(outputDir, klass));
+			}
+		}
+	}
+
+	/**
+	 * Drop deps on classes outside this compile (e.g. java/lang/String) -- they're covered by the config hash.
+	 */
+	void trimDeps() {
+		Map<String,String> owners = getOwners();
+		for (SourceRecord rec : sources.values()) {
+			rec.deps.retainAll(owners.keySet());
+			rec.deps.removeAll(rec.classes.keySet());
+		}
+	}
+
+	void save(File file) {
+		StringBuilder sb = new StringBuilder(HEADER).append('\n');
+		sb.append("config\t").append(config).append('\n');
+		sb.append("key\t").append(key).append('\n');
+		for (String path : new TreeSet<>(sources.keySet())) {
+			SourceRecord rec = sources.get(path);
+			sb.append("src\t").append(path).append('\t').append(rec.hash).append('\t').append(rec.constants).append('\n');
+			for (String klass : rec.classes.keySet()) {
+				sb.append("cls\t").append(klass).append('\t').append(rec.classes.get(klass)).append('\n');
+			}
+			for (String dep : rec.deps) {
+				sb.append("dep\t").append(dep).append('\n');
+			}
+		}
+		// write then move, so a crash can't leave a half-written state
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath()+".tmp");
+		FileUtils.write(tmp, sb);
+		FileUtils.move(tmp, file);
+	}
+
+	/**
+	 * @return null if there is no (readable) state
+	 */
+	static CompileState load(File file) {
+		if ( ! file.isFile()) return null;
+		try {
+			String[] lines = StrUtils.splitLines(FileUtils.read(file));
+			if ( ! HEADER.equals(lines[0])) return null;
+			CompileState state = new CompileState(lines[1].split("\t")[1], lines[2].split("\t")[1]);
+			SourceRecord rec = null;
+			for(int i=3; i<lines.length; i++) {
+				String[] bits = lines[i].split("\t", -1);
+				switch(bits[0]) {
+				case "src":
+					rec = new SourceRecord(bits[2]);
+					rec.constants = bits[3];
+					state.sources.put(bits[1], rec);
+					break;
+				case "cls": rec.classes.put(bits[1], bits[2]); break;
+				case "dep": rec.deps.add(bits[1]); break;
+				}
+			}
+			return state;
+		} catch(Exception ex) {
+			Log.w(LOGTAG, "Ignoring unreadable compile state "+file+": "+ex);
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CompileState[key=" + key + " sources=" + sources.size() + "]";
+	}
+}
@@ -5,13 +5,21 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.tools.Diagnostic;
 import javax.tools.Diagnostic.Kind;
 import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
@@ -19,6 +27,7 @@ import javax.tools.ToolProvider;
 import com.winterwell.bob.Bob;
 import com.winterwell.bob.BobConfig;
 import com.winterwell.bob.BuildTask;
+import com.winterwell.bob.tasks.CompileState.SourceRecord;
 import com.winterwell.utils.Dep;
 import com.winterwell.utils.FailureException;
 import com.winterwell.utils.Printer;
@@ -34,9 +43,13 @@ import com.winterwell.utils.log.Log;
 /**
  * Compile Java code. ??Ignores non-Java files! You may wish to use a
  * {@link CopyTask} for these. Uses Java 6's {@link JavaCompiler} class.
+ * <p>
+ * Incremental by default: only sources which changed (and the sources that use them) get recompiled,
+ * and outputs are kept in a content-addressed {@link CompileCache}, so rebuilding something you've built
+ * before (e.g. after switching git branch) is just a copy. See {@link #setIncremental(boolean)}.
  * 
  * @author daniel
- * 
+ * @testedby  CompileTaskTest}
  */
 public class CompileTask extends BuildTask {
 
@@ -55,6 +68,40 @@ public class CompileTask extends BuildTask {
 	public void setCleanOutputDir(boolean cleanOutputDir) {
 		this.cleanOutputDir = cleanOutputDir;
 	}
+	
+	/**
+	 * True by default. See {@link #setIncremental(boolean)}
+	 */
+	boolean incremental = true;
+	
+	/**
+	 * null = the default, bobwarehouse/compilecache
+	 */
+	private File cacheDir;
+	
+	/**
+	 * @param incremental If true (the default), recompile only the sources which changed, plus
+	 * whatever depends on them (worked out from the .class files), and reuse cached outputs where the
+	 * options, classpath and sources all match a previous build.
+	 * Falls back to a full compile if the options or classpath change, or if a compile-time constant changes
+	 * (these get inlined, so the dependency is not always visible in the .class files).
+	 * <p>
+	 * If false, every compile is a full compile, as in older versions of Bob.
+	 * @return this
+	 */
+	public CompileTask setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+	
+	/**
+	 * @param cacheDir Where to keep compile state and cached outputs. Can be shared between projects.
+	 * @return this
+	 */
+	public CompileTask setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+		return this;
+	}
 
 	/**
 	 * HACK: Can also contain single files!
@@ -113,7 +160,12 @@ public class CompileTask extends BuildTask {
 		this.srcJavaVersion = srcJavaVersion;
 	}
 	
-	private void doJava6compile() throws IOException {
+	/**
+	 * @param files
+	 * @param outputOnClasspath true for an incremental compile, where the unchanged classes are in outputDir
+	 * @param written If not null, the names of the classes written are added to this
+	 */
+	private void doJava6compile(Collection<File> files, boolean outputOnClasspath, Set<String> written) throws IOException {
 		JavaCompiler jc = getJavaCompiler();
 		Log.d(LOGTAG, "compiler: "+jc.getClass());
 		// TODO There is a bug in Java on Windows Vista - this call throws a
@@ -121,22 +173,10 @@ public class CompileTask extends BuildTask {
 		StandardJavaFileManager sjfm = jc.getStandardFileManager(null, null,
 				null);
 		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
-		// quiet
-		if ( ! debug) options.add("-nowarn");
-		// Java version: 8
-		options.add("-source"); options.add(srcJavaVersion);
-		options.add("-target"); options.add(outputJavaVersion);
-		
-		// ??Does lombok need anything??
-		
-		// What a lousy way to set the output dir
-		options.add("-d");
-		options.add(outputDir.getAbsolutePath());
-		// classpath
-		addClasspathToOptions();
+		List<String> options = getCompilerOptions(outputOnClasspath);
 		// Run it!
 		Log.d(LOGTAG, "javac " //+StrUtils.join(options, " ")+" "
-				+Containers.first(javaFiles)+"   ("+javaFiles.size()+" java files)"
+				+Containers.first(files)+"   ("+files.size()+" java files)"
 //				+StrUtils.join(javaFiles, " ") // This can be a big list! But its the only way to make a valid javac command
 				);
 		// save a linux command
@@ -152,7 +192,7 @@ public class CompileTask extends BuildTask {
 			File cmdfile = new File(bs.logDir, "CompileTask."+sname+".sh");
 			FileUtils.write(cmdfile, 
 					"# "+StrUtils.compactWhitespace(getDesc().getId())+"\n"+
-					"javac "+StrUtils.join(options, " ")+" "+StrUtils.join(javaFiles, " ")
+					"javac "+StrUtils.join(options, " ")+" "+StrUtils.join(files, " ")
 //					+"\n\n\n"
 //					+XStreamUtils.serialiseToXml(this) // for debug - what are the diffs??
 					);
@@ -162,8 +202,23 @@ public class CompileTask extends BuildTask {
 			Log.i(LOGTAG, ex);
 		}
 		
-		Iterable fileObjects = sjfm.getJavaFileObjectsFromFiles(javaFiles);
-		CompilationTask ctask = jc.getTask(null, sjfm, diagnostics, options, null, fileObjects);
+		Iterable fileObjects = sjfm.getJavaFileObjectsFromFiles(files);
+		JavaFileManager fm = sjfm;
+		if (written != null) {
+			// note the outputs, for incremental compiles
+			fm = new ForwardingJavaFileManager<StandardJavaFileManager>(sjfm) {
+				@Override
+				public JavaFileObject getJavaFileForOutput(Location location, String className,
+						JavaFileObject.Kind kind, FileObject sibling) throws IOException 
+				{
+					if (kind == JavaFileObject.Kind.CLASS) {
+						written.add(className.replace('.', '/'));
+					}
+					return super.getJavaFileForOutput(location, className, kind, sibling);
+				}
+			};
+		}
+		CompilationTask ctask = jc.getTask(null, fm, diagnostics, options, null, fileObjects);
 		Boolean ok = ctask.call();
 		sjfm.close();
 		// Diagnostic output
@@ -183,6 +238,38 @@ public class CompileTask extends BuildTask {
 		}
 	}
 
+	/**
+	 * @param outputOnClasspath
+	 * @return javac options, including the output dir and classpath (but not the files) 
+	 */
+	private List<String> getCompilerOptions(boolean outputOnClasspath) {
+		// copy, so repeat compiles don't pile up options
+		List<String> opts = new ArrayList(options);
+		// quiet
+		if ( ! debug) opts.add("-nowarn");
+		// Java version: 8
+		opts.add("-source"); opts.add(srcJavaVersion);
+		opts.add("-target"); opts.add(outputJavaVersion);
+		
+		// ??Does lombok need anything??
+		
+		// What a lousy way to set the output dir
+		opts.add("-d");
+		opts.add(outputDir.getAbsolutePath());
+		// classpath
+		Classpath cp = classpath;
+		if (outputOnClasspath) {
+			cp = new Classpath();
+			cp.add(outputDir.getAbsolutePath());
+			if (classpath != null) cp.files.addAll(classpath.files);
+		}
+		if (cp != null && ! cp.isEmpty()) {
+			opts.add("-classpath");
+			opts.add(cp.toString());
+		}
+		return opts;
+	}
+
 	/**
 	 * Prefer the Eclipse compiler, if ecj.jar is on the classpath
 	 * @return
@@ -202,18 +289,16 @@ public class CompileTask extends BuildTask {
 	 * 
 	 * @throws InterruptedException
 	 */
-	private void doJavacProcessCompile() throws InterruptedException {
+	private void doJavacProcessCompile(Collection<File> files, boolean outputOnClasspath) throws InterruptedException {
+		// Setup options
+		List<String> options = getCompilerOptions(outputOnClasspath);
+		for (File f : files) {
+			options.add(f.getAbsolutePath());
+		}
 		try {
 			// Try javac via a shell process
-			// Setup options
-//			options.add("-d");
-//			options.add(outputDir.getAbsolutePath());
-//			addClasspathToOptions();
-			for (File f : javaFiles) {
-				options.add(f.getAbsolutePath());
-			}
 			// Run javac
-			doJavacProcessCompile2("javac");
+			doJavacProcessCompile2("javac", options);
 		} catch (WrappedException e) {
 			if (!e.getMessage().contains("Cannot run program"))
 				throw e;
@@ -228,18 +313,11 @@ public class CompileTask extends BuildTask {
 			if (os.contains("windows"))
 				binJavac += ".exe";
 			File javacFile = new File(path, binJavac);
-			doJavacProcessCompile2(javacFile.getAbsolutePath());
-		}
-	}
-
-	private void addClasspathToOptions() {
-		if (classpath != null && ! classpath.isEmpty()) {
-			options.add("-classpath");
-			options.add(classpath.toString());
+			doJavacProcessCompile2(javacFile.getAbsolutePath(), options);
 		}
 	}
 
-	private void doJavacProcessCompile2(String javacCmd)
+	private void doJavacProcessCompile2(String javacCmd, List<String> options)
 			throws InterruptedException {
 		ArrayList<String> cmd = new ArrayList<String>();
 		cmd.add(javacCmd);
@@ -272,19 +350,179 @@ public class CompileTask extends BuildTask {
 				outputDir.mkdir();
 			}			
 		}
+		if (incremental) {
+			doIncrementalCompile();
+			return;
+		}
+		doCompile(javaFiles, false, null);
+		// ??Copy the non-Java files
+		// copyNonJavaFiles();
+	}
+
+	/**
+	 * @param written If not null, the names of the classes written are added to this. 
+	 * Left empty if the compile had to fall back to a javac process.
+	 */
+	private void doCompile(Collection<File> files, boolean outputOnClasspath, Set<String> written) throws Exception {
 		// Try Java 6
 		try {
-			doJava6compile();
+			doJava6compile(files, outputOnClasspath, written);
 		} catch (IOException e) {
 			throw e;
 		} catch (FailureException e) {
 			throw e;
 		} catch (Exception e) {
 			// Try something else!
-			doJavacProcessCompile();
+			if (written != null) written.clear();
+			doJavacProcessCompile(files, outputOnClasspath);
 		}
-		// ??Copy the non-Java files
-		// copyNonJavaFiles();
+	}
+
+	/**
+	 * Compile only what has changed (and its dependents) -- or restore a previous build from the cache.
+	 */
+	private void doIncrementalCompile() throws Exception {
+		CompileCache cache = new CompileCache(getCacheDir());
+		File stateFile = cache.getStateFile(outputDir);
+		CompileState old = CompileState.load(stateFile);
+		// hash the inputs
+		Map<String,String> hashes = new HashMap();
+		for (File f : javaFiles) {
+			hashes.put(f.getAbsolutePath(), CompileState.hashFile(f));
+		}
+		String config = getConfigHash();
+		String key = CompileState.getKey(config, hashes);
+		if (old != null && key.equals(old.key) && old.hasOutputs(outputDir)) {
+			Log.d(LOGTAG, "Up to date: "+outputDir+" ("+javaFiles.size()+" java files)");
+			report.put("compiled", 0);
+			return;
+		}
+		// built this before? e.g. on another git branch
+		CompileState cached = cache.restore(key, outputDir, old);
+		if (cached != null) {
+			Log.d(LOGTAG, "Restored "+outputDir+" from the compile cache");
+			cached.save(stateFile);
+			report.put("compiled", 0);
+			return;
+		}
+		CompileState state = new CompileState(config, key);
+		boolean full = old == null || ! config.equals(old.config);
+		if ( ! full) {
+			Set<String> dirty = old.getDirty(hashes, outputDir);
+			old.deleteOutputs(dirty, outputDir);
+			List<File> recompile = new ArrayList();
+			for (File f : javaFiles) {
+				String path = f.getAbsolutePath();
+				if (dirty.contains(path)) recompile.add(f);
+				else state.sources.put(path, old.sources.get(path));
+			}
+			Log.d(LOGTAG, "Incremental compile: "+recompile.size()+" of "+javaFiles.size()+" java files");
+			if ( ! recompile.isEmpty()) {
+				long start = System.currentTimeMillis();
+				Set<String> written = new HashSet();
+				doCompile(recompile, true, written);
+				recordOutputs(state, recompile, hashes, written, start);
+			}
+			// Did a compile-time constant change? Other classes may have inlined it.
+			for (File f : recompile) {
+				String path = f.getAbsolutePath();
+				SourceRecord was = old.sources.get(path);
+				if (was != null && ! was.constants.equals(state.sources.get(path).constants)) {
+					Log.d(LOGTAG, "Constants changed in "+f+" - full recompile");
+					full = true;
+					break;
+				}
+			}
+			if (full) {
+				state.deleteOutputs(state.sources.keySet(), outputDir);
+				state.sources.clear();
+			}
+			report.put("compiled", recompile.size());
+		} else if (old != null) {
+			old.deleteOutputs(old.sources.keySet(), outputDir);
+		}
+		if (full) {
+			long start = System.currentTimeMillis();
+			Set<String> written = new HashSet();
+			doCompile(javaFiles, false, written);
+			recordOutputs(state, javaFiles, hashes, written, start);
+			report.put("compiled", javaFiles.size());
+		}
+		state.trimDeps();
+		state.save(stateFile);
+		cache.put(state, outputDir);
+	}
+
+	/**
+	 * Work out which classes came from which of the compiled files, and what they depend on.
+	 * @param written From the compiler. If empty, look for class files modified since start instead.
+	 */
+	private void recordOutputs(CompileState state, Collection<File> compiled, Map<String,String> hashes, Set<String> written, long start) {
+		if (written.isEmpty()) {
+			// NB: allow for coarse file-system timestamps
+			for (File cf : FileUtils.find(outputDir, ".*\\.class")) {
+				if (cf.lastModified() < start - 2000) continue;
+				String rel = FileUtils.getRelativePath(cf, outputDir).replace(File.separatorChar, '/');
+				written.add(rel.substring(0, rel.length() - ".class".length()));
+			}
+		}
+		// file name -> compiled files with that name
+		Map<String,List<String>> byName = new HashMap();
+		for (File f : compiled) {
+			String path = f.getAbsolutePath();
+			byName.computeIfAbsent(f.getName(), k -> new ArrayList()).add(path);
+			state.sources.put(path, new SourceRecord(hashes.get(path)));
+		}
+		Map<String,StringBuilder> constants = new HashMap();
+		// NB: sorted, so the constants hash is stable
+		for (String klass : new TreeSet<>(written)) {
+			File cf = CompileState.getClassFile(outputDir, klass);
+			if ( ! cf.isFile()) continue;
+			ClassFileInfo info = ClassFileInfo.read(cf);
+			String owner = getOwner(info.getSourcePath(), byName);
+			if (owner == null) {
+				Log.d(LOGTAG, "No source for "+klass+" in this compile");
+				continue;
+			}
+			SourceRecord rec = state.sources.get(owner);
+			rec.classes.put(info.name, CompileState.hashFile(cf));
+			rec.deps.addAll(info.deps);
+			if ( ! info.constants.isEmpty()) {
+				constants.computeIfAbsent(owner, k -> new StringBuilder())
+					.append(info.name).append(':').append(info.constants);
+			}
+		}
+		for (String owner : constants.keySet()) {
+			state.sources.get(owner).constants = StrUtils.md5(constants.get(owner).toString());
+		}
+	}
+
+	private static String getOwner(String sourcePath, Map<String,List<String>> byName) {
+		String name = sourcePath.substring(sourcePath.lastIndexOf('/')+1);
+		List<String> paths = byName.get(name);
+		if (paths == null) return null;
+		String suffix = File.separator + sourcePath.replace('/', File.separatorChar);
+		for (String path : paths) {
+			if (path.endsWith(suffix)) return path;
+		}
+		// default package, or a source dir that doesn't match the package
+		return paths.size()==1? paths.get(0) : null;
+	}
+
+	/**
+	 * @return hash of everything other than the sources that affects the output
+	 */
+	private String getConfigHash() {
+		String cp = CompileState.hashClasspath(classpath==null? new ArrayList() : classpath.files);
+		return StrUtils.md5(StrUtils.join(options, " ")
+				+"\n"+srcJavaVersion+" "+outputJavaVersion+" "+debug
+				+"\n"+getJavaCompiler().getClass().getName()
+				+"\n"+cp);
+	}
+
+	private File getCacheDir() {
+		if (cacheDir != null) return cacheDir;
+		return new File(getConfig().getGitBobDir(), "compilecache");
 	}
 
 	/**
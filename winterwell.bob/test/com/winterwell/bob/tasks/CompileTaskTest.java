@@ -0,0 +1,163 @@
+package com.winterwell.bob.tasks;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * @tested {@link CompileTask}
+ * @author daniel
+ *
+ */
+public class CompileTaskTest {
+
+	File base = FileUtils.createTempDir();
+	File src = new File(base, "src");
+	File out = new File(base, "bin");
+	File cache = new File(base, "cache");
+
+	private void write(String path, String java) {
+		File f = new File(src, path);
+		f.getParentFile().mkdirs();
+		FileUtils.write(f, java);
+	}
+
+	private CompileTask compile() throws Exception {
+		CompileTask ct = new CompileTask(src, out);
+		ct.setCacheDir(cache);
+		ct.doTask();
+		return ct;
+	}
+
+	private File classFile(String klass) {
+		return new File(out, klass+".class");
+	}
+
+	/**
+	 * Mark all the outputs as old, so we can see which get rewritten
+	 */
+	private void ageOutputs() {
+		for (File f : FileUtils.find(out, ".*\\.class")) {
+			f.setLastModified(0);
+		}
+	}
+
+	private boolean rewritten(String klass) {
+		return classFile(klass).lastModified() != 0;
+	}
+
+	private void setup() {
+		write("p/A.java", "package p; public class A { public static final int X = 1; public static int f() { return 1; } }");
+		write("p/B.java", "package p; public class B { int g() { return A.f(); } class Inner {} }");
+		write("q/C.java", "package q; public class C { }");
+		// only uses a constant, which gets inlined
+		write("q/D.java", "package q; public class D { int x() { return p.A.X; } }");
+	}
+
+	@Test
+	public void testClassFileInfo() throws Exception {
+		setup();
+		compile();
+		ClassFileInfo b = ClassFileInfo.read(classFile("p/B"));
+		assert b.name.equals("p/B") : b;
+		assert b.sourceFile.equals("B.java") : b;
+		assert b.getSourcePath().equals("p/B.java") : b;
+		assert b.deps.contains("p/A") : b;
+		assert b.deps.contains("p/B$Inner") : b;
+		ClassFileInfo a = ClassFileInfo.read(classFile("p/A"));
+		assert a.constants.equals("X=1;") : a.constants;
+	}
+
+	@Test
+	public void testRecompileChangedAndDependents() throws Exception {
+		setup();
+		CompileTask ct = compile();
+		assert ct.getReport().get("compiled").equals(4) : ct.getReport();
+		ageOutputs();
+
+		write("p/A.java", "package p; public class A { public static final int X = 1; public static int f() { return 2; } }");
+		ct = compile();
+		// A, and B and D which use it
+		assert ct.getReport().get("compiled").equals(3) : ct.getReport();
+		assert rewritten("p/A");
+		assert rewritten("p/B");
+		assert rewritten("p/B$Inner");
+		assert ! rewritten("q/C");
+
+		// nothing changed
+		ageOutputs();
+		ct = compile();
+		assert ct.getReport().get("compiled").equals(0) : ct.getReport();
+		assert ! rewritten("p/A");
+	}
+
+	@Test
+	public void testConstantChangeIsFullRebuild() throws Exception {
+		setup();
+		compile();
+		ageOutputs();
+		write("p/A.java", "package p; public class A { public static final int X = 7; public static int f() { return 1; } }");
+		compile();
+		assert rewritten("q/D");
+		assert rewritten("q/C");
+	}
+
+	@Test
+	public void testDeletedSource() throws Exception {
+		setup();
+		compile();
+		assert classFile("q/C").isFile();
+		ageOutputs();
+		FileUtils.delete(new File(src, "q/C.java"));
+		CompileTask ct = compile();
+		assert ! classFile("q/C").exists();
+		assert ct.getReport().get("compiled").equals(0) : ct.getReport();
+		assert ! rewritten("p/A");
+	}
+
+	@Test
+	public void testDeletedOutput() throws Exception {
+		setup();
+		compile();
+		ageOutputs();
+		FileUtils.delete(classFile("q/C"));
+		compile();
+		assert classFile("q/C").isFile();
+		assert ! rewritten("p/A");
+	}
+
+	@Test
+	public void testSwitchBranchUsesCache() throws Exception {
+		setup();
+		compile();
+		String v1 = FileUtils.getMD5HashString(classFile("p/A"));
+		// "switch branch"
+		write("p/A.java", "package p; public class A { public static final int X = 1; public static int f() { return 2; } }");
+		write("q/E.java", "package q; public class E { }");
+		compile();
+		assert classFile("q/E").isFile();
+		assert ! v1.equals(FileUtils.getMD5HashString(classFile("p/A")));
+		// and back again
+		write("p/A.java", "package p; public class A { public static final int X = 1; public static int f() { return 1; } }");
+		FileUtils.delete(new File(src, "q/E.java"));
+		CompileTask ct = compile();
+		assert ct.getReport().get("compiled").equals(0) : ct.getReport();
+		assert v1.equals(FileUtils.getMD5HashString(classFile("p/A")));
+		assert ! classFile("q/E").exists();
+		assert classFile("p/B$Inner").isFile();
+	}
+
+	@Test
+	public void testNotIncremental() throws Exception {
+		setup();
+		compile();
+		ageOutputs();
+		CompileTask ct = new CompileTask(src, out);
+		ct.setCacheDir(cache);
+		ct.setIncremental(false);
+		ct.doTask();
+		assert rewritten("q/C");
+	}
+}
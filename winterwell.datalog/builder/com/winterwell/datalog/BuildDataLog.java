@@ -26,6 +26,9 @@ public class BuildDataLog extends BuildWinterwellProject {
 		// snakeyaml is needed by ua_parser -- see LGServletTest.testBrowserType()
 		// https://mvnrepository.com/artifact/org.yaml/snakeyaml 
 		mdt.addDependency("org.yaml", "snakeyaml", "1.26");
+		// NB: SQLStorageTest.testThroughputH2 uses the H2 embedded db -- but only the test, so it's not shipped.
+		// Put h2 on the classpath to run that test.
+//		mdt.addDependency("com.h2database", "h2", "2.2.224");
 		deps.add(mdt);
 		
 		return deps;
@@ -6,6 +6,12 @@ public class Callback {
 	public final String evt;
 	public final String url;
 
+	/**
+	 * If true, the endpoint accepts a json array of events in one POST.
+	 * Otherwise each event is POSTed on its own.
+	 */
+	public boolean batch;
+
 	public Callback(String dataspace, String eventType, String url) {
 		this.dataspace= dataspace;
 		this.evt = eventType;
@@ -14,7 +20,7 @@ public class Callback {
 
 	@Override
 	public String toString() {
-		return "Callback [dataspace=" + dataspace + ", evt=" + evt + ", url=" + url + "]";
+		return "Callback [dataspace=" + dataspace + ", evt=" + evt + ", url=" + url + (batch? ", batch" : "") + "]";
 	}
 
 }
@@ -0,0 +1,253 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.Actor;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.RateCounter;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.web.WebEx;
+
+/**
+ * Delivery queue for one callback url. So a slow endpoint only holds up its own events.
+ * <p>
+ * - Up to {@link #parallelism} POSTs in flight at a time.<br>
+ * - Micro-batching (if the Callback allows it): events which queue up while POSTs are in flight go together in the next POST.
+ * So batches form naturally under load, and a quiet endpoint gets its events one at a time, straight away.<br>
+ * - Failed POSTs are retried with exponential backoff. Events which fail too often (or get a 4xx) go to the dead-letter actor.<br>
+ * - Metrics: queue size, lag (queued to delivered), throughput, failures.
+ *
+ * @author daniel
+ * @testedby  CallbackManagerTest}
+ */
+public final class CallbackEndpoint {
+
+	private static final String LOGTAG = CallbackManager.LOGTAG;
+
+	static final class Pending {
+		final DataLogEvent event;
+		final long queued;
+		int attempts;
+
+		Pending(DataLogEvent event) {
+			this.event = event;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
+	final String url;
+
+	final boolean batch;
+
+	int parallelism = 4;
+	int maxBatch = 100;
+	int maxRetries = 5;
+	int maxQ = 10000;
+	Dt backoff = new Dt(1, TUnit.SECOND);
+
+	private final ConcurrentLinkedQueue<Pending> q = new ConcurrentLinkedQueue();
+	private final AtomicInteger qSize = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * POSTs a list of events, returning a future which fails if the POST does
+	 */
+	private final Function<List<DataLogEvent>, CompletableFuture<?>> poster;
+	/**
+	 * Schedules retries, and runs POST completions
+	 */
+	private final ScheduledExecutorService timer;
+	private final Actor<DataLogEvent> deadLetters;
+
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder posts = new LongAdder();
+	private final LongAdder failedPosts = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder dead = new LongAdder();
+	private final AtomicLong lastLag = new AtomicLong();
+	private final AtomicLong maxLag = new AtomicLong();
+	private final RateCounter throughput = new RateCounter(TUnit.MINUTE.dt);
+
+	CallbackEndpoint(String url, boolean batch, Function<List<DataLogEvent>, CompletableFuture<?>> poster,
+			ScheduledExecutorService timer, Actor<DataLogEvent> deadLetters)
+	{
+		this.url = url;
+		this.batch = batch;
+		this.poster = poster;
+		this.timer = timer;
+		this.deadLetters = deadLetters;
+	}
+
+	/**
+	 * Queue an event for delivery. Never blocks.
+	 */
+	void add(DataLogEvent event) {
+		add2(new Pending(event));
+	}
+
+	private void add2(Pending p) {
+		if (qSize.get() >= maxQ) {
+			Log.w(LOGTAG, "Queue full ("+maxQ+") for "+url+" - dropping "+p.event);
+			deadLetter(p);
+			return;
+		}
+		q.add(p);
+		qSize.incrementAndGet();
+		pump();
+	}
+
+	/**
+	 * Start as many POSTs as we're allowed. Called after each add and each completed POST.
+	 */
+	private void pump() {
+		while(true) {
+			int n = inFlight.get();
+			if (n >= parallelism || q.isEmpty()) return;
+			if ( ! inFlight.compareAndSet(n, n+1)) continue;
+			List<Pending> todo = new ArrayList();
+			int max = batch? maxBatch : 1;
+			Pending p;
+			while(todo.size() < max && (p = q.poll()) != null) {
+				todo.add(p);
+			}
+			qSize.addAndGet(- todo.size());
+			if (todo.isEmpty()) {
+				inFlight.decrementAndGet();
+				continue;
+			}
+			pump2_post(todo);
+		}
+	}
+
+	private void pump2_post(List<Pending> todo) {
+		posts.increment();
+		List<DataLogEvent> events = new ArrayList(todo.size());
+		for (Pending p : todo) events.add(p.event);
+		CompletableFuture<?> f;
+		try {
+			f = poster.apply(events);
+		} catch(Throwable ex) {
+			f = new CompletableFuture();
+			f.completeExceptionally(ex);
+		}
+		// NB: async, so a run of instant failures can't recurse through pump()
+		f.whenCompleteAsync((ok, ex) -> {
+			inFlight.decrementAndGet();
+			if (ex == null) {
+				pump3_done(todo);
+			} else {
+				pump3_failed(todo, ex);
+			}
+			pump();
+		}, timer);
+	}
+
+	private void pump3_done(List<Pending> todo) {
+		long now = System.currentTimeMillis();
+		long lag = now - todo.get(0).queued;
+		lastLag.set(lag);
+		maxLag.accumulateAndGet(lag, Math::max);
+		delivered.add(todo.size());
+		throughput.plus(todo.size());
+	}
+
+	private void pump3_failed(List<Pending> todo, Throwable ex) {
+		failedPosts.increment();
+		Throwable cause = ex instanceof CompletionException && ex.getCause() != null? ex.getCause() : ex;
+		// a 4xx means the request is bad -- trying again won't help (except for a timeout or rate limit)
+		boolean retryable = ! (cause instanceof WebEx.E40X)
+				|| ((WebEx.E40X) cause).code == 408 || ((WebEx.E40X) cause).code == 429;
+		Log.w(LOGTAG, url+" failed for "+todo.size()+" events: "+cause);
+		for (Pending p : todo) {
+			p.attempts++;
+			if ( ! retryable || p.attempts > maxRetries) {
+				deadLetter(p);
+				continue;
+			}
+			retries.increment();
+			long delay = backoff.getMillisecs() << Math.min(p.attempts - 1, 20);
+			timer.schedule(() -> add2(p), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void deadLetter(Pending p) {
+		dead.increment();
+		deadLetters.send(p.event, null);
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return events waiting to be sent (not including retries which are waiting for their backoff)
+	 */
+	public int getQueueSize() {
+		return qSize.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	/**
+	 * @return number of POSTs. Less than delivered if batching is working.
+	 */
+	public long getPosts() {
+		return posts.sum();
+	}
+
+	public long getFailedPosts() {
+		return failedPosts.sum();
+	}
+
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	/**
+	 * @return events which were given up on
+	 */
+	public long getDead() {
+		return dead.sum();
+	}
+
+	/**
+	 * @return queued-to-delivered time of the most recent POST, in milliseconds
+	 */
+	public long getLastLag() {
+		return lastLag.get();
+	}
+
+	public long getMaxLag() {
+		return maxLag.get();
+	}
+
+	/**
+	 * @return events delivered per minute (recent)
+	 */
+	public double getThroughput() {
+		return throughput.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CallbackEndpoint[" + url + " q=" + getQueueSize() + " inFlight=" + getInFlight() + " delivered=" + getDelivered()
+			+ " posts=" + getPosts() + " failed=" + getFailedPosts() + " dead=" + getDead() + " lag=" + getLastLag() + "ms]";
+	}
+}
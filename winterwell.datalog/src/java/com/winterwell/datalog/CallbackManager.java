@@ -1,6 +1,12 @@
 package com.winterwell.datalog;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.winterwell.depot.IInit;
 import com.winterwell.gson.Gson;
@@ -8,24 +14,52 @@ import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.containers.ListMap;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.Actor;
+import com.winterwell.utils.threads.DeadLetterActor;
+import com.winterwell.utils.web.WebUtils;
 import com.winterwell.web.FakeBrowser;
 import com.winterwell.web.app.AppUtils;
 import com.winterwell.web.app.KServerType;
 
 /**
- * Using an Actor model here for high-throughput low-latency
+ * Using an Actor model here for high-throughput low-latency.
+ * <p>
+ * The actor just routes events to a {@link CallbackEndpoint} per url, which does the delivery (async, in parallel,
+ * batched where allowed, with retries). So a slow webhook only holds up its own events.
+ * 
  * @author daniel
- *
+ * @testedby  CallbackManagerTest}
  */
 public class CallbackManager extends Actor<DataLogEvent> implements IInit {
 
-	private static final String LOGTAG = "CallbackManager";
+	static final String LOGTAG = "CallbackManager";
 	
 	ListMap<String,Callback> callbacksForDataspace = new ListMap();
+
+	private final Map<String, CallbackEndpoint> endpoints = new ConcurrentHashMap();
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "CallbackManager.timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Where events go when delivery is given up on. The default just drops them (after a Log.w).
+	 */
+	private Actor<DataLogEvent> deadLetters = DeadLetterActor.dflt;
 	
 	public CallbackManager() {		
 	}	
 	
+	/**
+	 * @param deadLetters Receives events which could not be delivered (e.g. to store them for a later re-try)
+	 * @return this
+	 */
+	public CallbackManager setDeadLetters(Actor<DataLogEvent> deadLetters) {
+		this.deadLetters = deadLetters;
+		return this;
+	}
+	
 	@Override
 	public void init() {
 		if (DataLog.getImplementation().getConfig().noCallbacks) {
@@ -58,26 +92,51 @@ public class CallbackManager extends Actor<DataLogEvent> implements IInit {
 			if ( ! matches(msg, callback)) {
 				continue;
 			}
-			try {
-				consume2_doCallback(msg, callback);
-			} catch(Exception ex) {
-				// retry once
-				if (sender != this) {
-					send(msg, this);
-					return;
-				}
-				throw ex;
-			}
+			consume2_doCallback(msg, callback);
 		}
 	}
 
+	/**
+	 * Queue the event for delivery to this callback. Does not block.
+	 */
 	protected void consume2_doCallback(DataLogEvent msg, Callback callback) {
-		String json = Gson.toJSON(msg);
-		Log.d(LOGTAG, callback.url+" for "+msg+" Posting "+json);
+		getEndpoint(callback).add(msg);
+	}
+
+	CallbackEndpoint getEndpoint(Callback callback) {
+		return endpoints.computeIfAbsent(callback.url, url -> {
+			CallbackEndpoint ep = new CallbackEndpoint(url, callback.batch, events -> post(url, events), timer, deadLetters);
+			DataLogConfig config = DataLog.getImplementation().getConfig();
+			ep.parallelism = config.callbackParallelism;
+			ep.maxBatch = config.callbackMaxBatch;
+			ep.maxRetries = config.callbackMaxRetries;
+			return ep;
+		});
+	}
+
+	/**
+	 * POST the events: as a single json object if there's one, a json array if several.
+	 * NB: the body is sent url-encoded, as it always has been (adserver expects that).
+	 * NB: Unlike the old sync post, this checks the endpoint's SSL certificate.
+	 */
+	protected CompletableFuture<?> post(String url, List<DataLogEvent> events) {
+		String json = events.size()==1? Gson.toJSON(events.get(0)) : Gson.toJSON(events);
+		Log.d(LOGTAG, url+" Posting "+events.size()+" events");
 		FakeBrowser fb = new FakeBrowser();
 		fb.setUserAgent(FakeBrowser.HONEST_USER_AGENT);
-		fb.setDebug(true);		
-		String ok = fb.post(callback.url, json);
+		return fb.postAsync(url, FakeBrowser.MIME_TYPE_URLENCODED_FORM, WebUtils.urlEncode(json));
+	}
+
+	/**
+	 * @return delivery stats per callback url
+	 */
+	public Map<String, CallbackEndpoint> getEndpoints() {
+		return Collections.unmodifiableMap(endpoints);
+	}
+
+	@Override
+	protected void shutdown() throws Exception {
+		timer.shutdown();
 	}
 
 	private boolean matches(DataLogEvent msg, Callback callback) {
@@ -188,7 +188,12 @@ public class DataLogImpl implements Closeable, IDataLog {
 	/**
 	 * What's happening now?
 	 */
-	ConcurrentMap<String,Double> tag2count = newMap();
+	TagCounts tag2count = new TagCounts();
+
+	/**
+	 * Cache of tag-bits to escaped tags
+	 */
+	final TagTrie tagTrie = new TagTrie(100000);
 
 	ConcurrentMap<String, IDistribution1D> tag2dist = newMap();
 
@@ -288,7 +293,8 @@ public class DataLogImpl implements Closeable, IDataLog {
 	}
 
 	protected synchronized void doSave() {		
-		Map<String, Double> old = tag2count;		
+		// NB: swap() returns a fresh map, so it is safe to add to
+		Map<String, Double> old = tag2count.swap();		
 		Map<String, IDistribution1D> oldMean = tag2dist;
 		Map<String, DataLogEvent> oldid2event = id2event;
 		Map<Pair2<String, Time>, Double> oldTagTimeCount = tagTime2count;
@@ -302,8 +308,7 @@ public class DataLogImpl implements Closeable, IDataLog {
 		
 		Period period = getCurrentBucket();
 
-		// new buckets
-		tag2count = newMap();
+		// new buckets (tag2count was swapped above)
 		tag2dist = newMap();
 		id2event =  newMap();
 		tagTime2count = newMap();
@@ -373,7 +378,7 @@ public class DataLogImpl implements Closeable, IDataLog {
 		if (closed) throw new ClosedException();
 //		init();
 		String tag = DataLog.tag(tagBits);
-		tag2count.put(tag, x);
+		tag2count.set(tag, x);
 
 		// track our own size
 		if ( ! tag.startsWith("Stat")) {
@@ -387,19 +392,21 @@ public class DataLogImpl implements Closeable, IDataLog {
 		assert tagBits.length != 0 : dx;
 		if (dx==0) return;
 		// loop over tag.heiriarchy
-		StringBuilder tag = new StringBuilder();
+		TagTrie.Node tag = null;
 		for(Object tg : tagBits) {
 			if (tg == null) throw new IllegalArgumentException(Printer.toString(tagBits));
 
-			String stag = parseTag(tg, tag);
+			tag = tagTrie.child(tag, tg);
+			String stag = tag.tag;
 			assert tag2count != null : stag;
 
-			double x = Containers.plus(tag2count, stag, dx);
+			tag2count.add(stag, dx);
 			// alerts?
 			IListenDataLog listener = listeners.get(stag);
 			if (listener!=null) {
 				try {
-					listener.handleCount(x, dx, stag);
+					Double x = tag2count.get(stag);
+					listener.handleCount(x==null? dx : x, dx, stag);
 				} catch(Throwable ex) {
 					// don't throw an exception here
 					Log.e(DataLog.LOGTAG, ex);
@@ -418,10 +425,11 @@ public class DataLogImpl implements Closeable, IDataLog {
 //		init();
 		assert ! closed;
 		// loop over tag.hieriarchy
-		StringBuilder tag = new StringBuilder();
+		TagTrie.Node tag = null;
 		String topTag = null;
 		for(Object tg : tagBits) {
-			String stag = parseTag(tg, tag);			
+			tag = tagTrie.child(tag, tg);
+			String stag = tag.tag;			
 			if (topTag==null) topTag = stag;
 			IDistribution1D dist = tag2dist.get(stag);
 			if (dist==null) {
@@ -486,6 +494,8 @@ public class DataLogImpl implements Closeable, IDataLog {
 		tag2count = null;
 		saveThread.cancel();
 		saveThread = null;
+		// e.g. send the last batch of bulk-saved events
+		storage.close();
 	}
 
 	@Override
@@ -544,11 +554,12 @@ public class DataLogImpl implements Closeable, IDataLog {
 		if (dx == 0) return;
 
 		// loop over tag.hierarchy
-		StringBuilder tag = new StringBuilder();
+		TagTrie.Node tag = null;
 		for(Object tg : tags) {
 			if (tg == null) throw new IllegalArgumentException(Printer.toString(tags));
 
-			String stag = parseTag(tg, tag);
+			tag = tagTrie.child(tag, tg);
+			String stag = tag.tag;
 
 			assert tagTime2count != null : stag;
 
@@ -557,32 +568,6 @@ public class DataLogImpl implements Closeable, IDataLog {
 		}
 	}
 
-	/**
-	 * Helper method to construct tag based on tag hierarchy convention
-	 * @param tg
-	 * @param tag
-	 * @return tag.toString(), after appending tg
-	 */
-	private String parseTag(Object tg, StringBuilder tag) {
-		if (tag.length() != 0) {
-			tag.append(DataLog.HIERARCHY_CHAR);
-		}
-		
-		// TODO Defence against likely bug after v14c branches off
-//		if (tg instanceof String[]) {
-//			TODO throw new IllegalArgumentException(Printer.toString(tg)+" onto "+tag);
-//		}
-		
-		tg = DataLog.tag2_escape(tg.toString());
-		tag.append(tg);
-
-		String stag = tag.toString();
-		assert ! stag.isEmpty();
-
-		return stag;
-	}
-	
-
 	class SaveAndSystemStatsTask extends TimerTask {
 		@Override
 		public void run() {
@@ -616,8 +601,9 @@ public class DataLogImpl implements Closeable, IDataLog {
 	public void count(DataLogEvent event) {
 		// HACK just save it to ES? Yes, unless it looks like a very simple stat.
 		// Tracker events are unlikely to duplicate, so there's no advantage to batching them -- and there is a memory issue.
+		// NB: this goes via a bulk-save queue, which can block if ES is struggling (backpressure)
 		if (storage instanceof ESStorage && event.props!=null && event.props.size() > 1) {
-			storage.saveEvent(new Dataspace(event.dataspace), event, getCurrentBucket());
+			((ESStorage) storage).saveEventBulk(new Dataspace(event.dataspace), event, getCurrentBucket());
 			// callback
 			CallbackManager cbman = Dep.get(CallbackManager.class);
 			cbman.send(event);		
@@ -0,0 +1,359 @@
+package com.winterwell.datalog;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * One immutable file of {@link SegmentStorage} data: the points for a set of tags.
+ * <p>
+ * Layout: "WWDS" + version, then one block per tag (sorted by tag), then the index, then a fixed-size trailer.
+ * A block is the tag's points as columns: delta-encoded times, then the values -- deflated if there are enough of them.
+ * The index is the tag dictionary, with each tag's offset, point count, min/max time and sum. The trailer has the
+ * index offset and the segment's min/max time.
+ * <p>
+ * So a reader loads the index once (they're cached by SegmentStorage), then seeks straight to a tag's block --
+ * or, for totals over a whole block, doesn't read the block at all.
+ *
+ * @author daniel
+ * @testedby  SegmentStorageTest}
+ */
+final class DataSegment {
+
+	static final byte[] MAGIC = {'W','W','D','S'};
+	static final byte VERSION = 1;
+	/**
+	 * index offset, min time, max time, magic
+	 */
+	private static final int TRAILER = 8 + 8 + 8 + 4;
+	/**
+	 * Blocks with fewer points than this aren't worth deflating
+	 */
+	private static final int DEFLATE_MIN = 16;
+
+	/**
+	 * A tag's points, sorted by time
+	 */
+	static final class Points {
+		long[] times;
+		double[] values;
+		int n;
+
+		Points() {
+			this(4);
+		}
+
+		Points(int capacity) {
+			times = new long[capacity];
+			values = new double[capacity];
+		}
+
+		void add(long t, double v) {
+			if (n == times.length) {
+				times = Arrays.copyOf(times, n*2);
+				values = Arrays.copyOf(values, n*2);
+			}
+			times[n] = t;
+			values[n] = v;
+			n++;
+		}
+
+		void addAll(Points p) {
+			for (int i = 0; i < p.n; i++) {
+				add(p.times[i], p.values[i]);
+			}
+		}
+
+		/**
+		 * Sort by time (stable -- usually it's already sorted)
+		 */
+		void sort() {
+			boolean sorted = true;
+			for (int i = 1; i < n; i++) {
+				if (times[i] < times[i-1]) {
+					sorted = false;
+					break;
+				}
+			}
+			if (sorted) return;
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+			long[] t2 = new long[n];
+			double[] v2 = new double[n];
+			for (int i = 0; i < n; i++) {
+				t2[i] = times[order[i]];
+				v2[i] = values[order[i]];
+			}
+			times = t2;
+			values = v2;
+		}
+	}
+
+	final File file;
+	/**
+	 * The tag dictionary, sorted
+	 */
+	final String[] tags;
+	final long[] offsets;
+	final int[] lengths;
+	final int[] counts;
+	final long[] minTimes;
+	final long[] maxTimes;
+	final double[] sums;
+	final long minTime;
+	final long maxTime;
+
+	private DataSegment(File file, int n, long minTime, long maxTime) {
+		this.file = file;
+		tags = new String[n];
+		offsets = new long[n];
+		lengths = new int[n];
+		counts = new int[n];
+		minTimes = new long[n];
+		maxTimes = new long[n];
+		sums = new double[n];
+		this.minTime = minTime;
+		this.maxTime = maxTime;
+	}
+
+	/**
+	 * @param tag
+	 * @return index of the tag, or -1
+	 */
+	int indexOf(String tag) {
+		int i = Arrays.binarySearch(tags, tag);
+		return i < 0? -1 : i;
+	}
+
+	/**
+	 * @return true if this segment might have points in [start, end)
+	 */
+	boolean overlaps(long start, long end) {
+		return maxTime >= start && minTime < end;
+	}
+
+	/**
+	 * Read the index (not the data).
+	 * @param f
+	 */
+	static DataSegment open(File f) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			long len = raf.length();
+			if (len < MAGIC.length + 1 + TRAILER) throw new IOException("Not a datalog segment: "+f);
+			raf.seek(len - TRAILER);
+			long indexOffset = raf.readLong();
+			long minTime = raf.readLong();
+			long maxTime = raf.readLong();
+			byte[] magic = new byte[4];
+			raf.readFully(magic);
+			if ( ! Arrays.equals(magic, MAGIC)) throw new IOException("Not a datalog segment (bad trailer): "+f);
+			byte[] index = new byte[(int) (len - TRAILER - indexOffset)];
+			raf.seek(indexOffset);
+			raf.readFully(index);
+			ByteBuffer bb = ByteBuffer.wrap(index);
+			int n = readVar(bb);
+			DataSegment seg = new DataSegment(f, n, minTime, maxTime);
+			for (int i = 0; i < n; i++) {
+				byte[] tb = new byte[readVar(bb)];
+				bb.get(tb);
+				seg.tags[i] = new String(tb, StandardCharsets.UTF_8);
+				seg.offsets[i] = bb.getLong();
+				seg.lengths[i] = bb.getInt();
+				seg.counts[i] = bb.getInt();
+				seg.minTimes[i] = bb.getLong();
+				seg.maxTimes[i] = bb.getLong();
+				seg.sums[i] = bb.getDouble();
+			}
+			return seg;
+		}
+	}
+
+	/**
+	 * Read one tag's block
+	 * @param raf An open handle on {@link #file}
+	 * @param i The tag's index
+	 */
+	Points read(RandomAccessFile raf, int i) throws IOException {
+		byte[] block = new byte[lengths[i]];
+		raf.seek(offsets[i]);
+		raf.readFully(block);
+		ByteBuffer bb = ByteBuffer.wrap(block);
+		if (bb.get() == 1) {
+			// deflated
+			byte[] raw = new byte[readVar(bb)];
+			Inflater inf = new Inflater();
+			try {
+				inf.setInput(block, bb.position(), block.length - bb.position());
+				inf.inflate(raw);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt block for "+tags[i]+" in "+file, e);
+			} finally {
+				inf.end();
+			}
+			bb = ByteBuffer.wrap(raw);
+		}
+		int n = counts[i];
+		Points p = new Points(Math.max(1, n));
+		long t = 0;
+		for (int j = 0; j < n; j++) {
+			t += unzigzag(readVarLong(bb));
+			p.times[j] = t;
+		}
+		for (int j = 0; j < n; j++) {
+			p.values[j] = bb.getDouble();
+		}
+		p.n = n;
+		return p;
+	}
+
+	/**
+	 * Write a new segment. This writes to a temp file, then renames, so readers never see a half-written segment.
+	 * @param f
+	 * @param tag2points Each Points will be sorted
+	 */
+	static void write(File f, SortedMap<String, Points> tag2points) throws IOException {
+		File tmp = new File(f.getPath()+".tmp");
+		long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+		int n = tag2points.size();
+		long[] offsets = new long[n];
+		int[] lengths = new int[n];
+		ByteArrayOutputStream index = new ByteArrayOutputStream(n*48);
+		DataOutputStream iout = new DataOutputStream(index);
+		writeVar(iout, n);
+		try (FileOutputStream fout = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 65536));
+			out.write(MAGIC);
+			out.write(VERSION);
+			long pos = MAGIC.length + 1;
+			ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+			Deflater def = new Deflater(Deflater.BEST_SPEED);
+			byte[] dbuf = new byte[8192];
+			int i = 0;
+			for (Map.Entry<String, Points> e : tag2points.entrySet()) {
+				Points p = e.getValue();
+				p.sort();
+				// the block: times as zig-zag deltas, then values
+				blockBytes.reset();
+				DataOutputStream bout = new DataOutputStream(blockBytes);
+				long prev = 0;
+				double sum = 0;
+				for (int j = 0; j < p.n; j++) {
+					writeVarLong(bout, zigzag(p.times[j] - prev));
+					prev = p.times[j];
+				}
+				for (int j = 0; j < p.n; j++) {
+					bout.writeDouble(p.values[j]);
+					sum += p.values[j];
+				}
+				bout.flush();
+				byte[] raw = blockBytes.toByteArray();
+				int blen;
+				if (p.n >= DEFLATE_MIN) {
+					def.reset();
+					def.setInput(raw);
+					def.finish();
+					ByteArrayOutputStream comp = new ByteArrayOutputStream(raw.length / 2 + 16);
+					while( ! def.finished()) {
+						int m = def.deflate(dbuf);
+						comp.write(dbuf, 0, m);
+					}
+					out.writeByte(1);
+					ByteArrayOutputStream hdr = new ByteArrayOutputStream(5);
+					writeVar(new DataOutputStream(hdr), raw.length);
+					out.write(hdr.toByteArray());
+					comp.writeTo(out);
+					blen = 1 + hdr.size() + comp.size();
+				} else {
+					out.writeByte(0);
+					out.write(raw);
+					blen = 1 + raw.length;
+				}
+				offsets[i] = pos;
+				lengths[i] = blen;
+				pos += blen;
+				// index entry
+				byte[] tb = e.getKey().getBytes(StandardCharsets.UTF_8);
+				writeVar(iout, tb.length);
+				iout.write(tb);
+				iout.writeLong(offsets[i]);
+				iout.writeInt(blen);
+				iout.writeInt(p.n);
+				long tmin = p.n==0? 0 : p.times[0];
+				long tmax = p.n==0? 0 : p.times[p.n - 1];
+				iout.writeLong(tmin);
+				iout.writeLong(tmax);
+				iout.writeDouble(sum);
+				if (p.n > 0) {
+					minTime = Math.min(minTime, tmin);
+					maxTime = Math.max(maxTime, tmax);
+				}
+				i++;
+			}
+			def.end();
+			iout.flush();
+			index.writeTo(out);
+			// trailer
+			out.writeLong(pos);
+			out.writeLong(minTime);
+			out.writeLong(maxTime);
+			out.write(MAGIC);
+			out.flush();
+			// make sure it's on disk before it becomes visible
+			fout.getFD().sync();
+		}
+		FileUtils.move(tmp, f);
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVar(DataOutputStream out, int v) throws IOException {
+		writeVarLong(out, v);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	private static int readVar(ByteBuffer bb) {
+		return (int) readVarLong(bb);
+	}
+
+	private static long readVarLong(ByteBuffer bb) {
+		long v = 0;
+		for(int shift = 0; ; shift += 7) {
+			byte b = bb.get();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DataSegment[" + file.getName() + " tags=" + tags.length + "]";
+	}
+}
@@ -0,0 +1,338 @@
+package com.winterwell.datalog;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.winterwell.es.ESPath;
+import com.winterwell.es.client.BulkRequest;
+import com.winterwell.es.client.BulkResponse;
+import com.winterwell.es.client.ESHttpClient;
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+
+/**
+ * Batches up DataLog events per dataspace and writes them to ES as _bulk requests.
+ * A batch is sent when it reaches {@link DataLogConfig#bulkSize} events, or when
+ * it is {@link DataLogConfig#bulkMaxAge} old -- whichever comes first.
+ * <p>
+ * Backpressure: at most {@link DataLogConfig#bulkMaxInFlight} bulk requests run at once.
+ * If ES falls behind, {@link #add(Dataspace, DataLogEvent, Period)} blocks the caller
+ * (i.e. DataLogImpl) until a slot frees up.
+ * <p>
+ * Per-item failures which are worth retrying (429 "too many requests" rejections, and 5xx errors)
+ * are put back in the queue, up to {@link DataLogConfig#bulkMaxRetries} times.
+ * <p>
+ * Metrics are recorded in DataLog under "datalog_bulk".
+ */
+public class ESBulkWriter implements Flushable, Closeable {
+
+	private static final String LOGTAG = "DataLog.ES.bulk";
+
+	static final String STAT = "datalog_bulk";
+
+	/**
+	 * An event waiting to be saved
+	 */
+	static final class Item {
+		final Dataspace dataspace;
+		final DataLogEvent event;
+		final Period period;
+		/**
+		 * How many times has this failed already?
+		 */
+		int retries;
+
+		Item(Dataspace dataspace, DataLogEvent event, Period period) {
+			this.dataspace = dataspace;
+			this.event = event;
+			this.period = period;
+		}
+
+		@Override
+		public String toString() {
+			return "Item[" + dataspace + " " + event + " retries=" + retries + "]";
+		}
+	}
+
+	final ESStorage storage;
+
+	final int bulkSize;
+
+	final int maxInFlight;
+
+	final int maxRetries;
+
+	/**
+	 * Holds a permit for each running bulk request.
+	 */
+	private final Semaphore inFlight;
+
+	private final ExecutorService exec;
+
+	/**
+	 * dataspace -> events waiting to be sent.
+	 * Guarded by synchronized(this)
+	 */
+	private final Map<Dataspace, List<Item>> pending = new HashMap();
+
+	private final Timer timer;
+
+	private volatile boolean closed;
+
+	public ESBulkWriter(ESStorage storage, DataLogConfig config) {
+		this.storage = storage;
+		this.bulkSize = Math.max(1, config.bulkSize);
+		this.maxInFlight = Math.max(1, config.bulkMaxInFlight);
+		this.maxRetries = config.bulkMaxRetries;
+		inFlight = new Semaphore(maxInFlight);
+		exec = Executors.newFixedThreadPool(maxInFlight, r -> {
+			Thread t = new Thread(r, "DataLog.ES.bulk");
+			t.setDaemon(true);
+			return t;
+		});
+		// age based flush
+		Dt maxAge = config.bulkMaxAge;
+		long ms = Math.max(10, maxAge.getMillisecs());
+		timer = new Timer("DataLog.ES.bulk.flush", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					sendAll();
+				} catch(Throwable ex) {
+					Log.e(LOGTAG, ex);
+				}
+			}
+		}, ms, ms);
+	}
+
+	/**
+	 * Queue an event for saving. Usually returns at once -- but can block if
+	 * ES has too many bulk requests in flight.
+	 *
+	 * @param dataspace
+	 * @param event
+	 * @param bucketPeriod
+	 */
+	public void add(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		if (closed) throw new IllegalStateException("closed "+this);
+		Item item = new Item(dataspace, event, bucketPeriod);
+		List<Item> batch;
+		synchronized (this) {
+			List<Item> items = pending.computeIfAbsent(dataspace, k -> new ArrayList());
+			items.add(item);
+			if (items.size() < bulkSize) {
+				return;
+			}
+			batch = pending.remove(dataspace);
+		}
+		send(dataspace, batch);
+	}
+
+	/**
+	 * Put failed items back in the queue. They will go out with the next flush.
+	 * This does not block or send, as it is called from the bulk worker threads.
+	 * @param items
+	 */
+	void requeue(List<Item> items) {
+		if (items.isEmpty()) return;
+		// STATID: datalog_bulk/retried Events which we re-try after an ES failure
+		DataLog.count(items.size(), STAT, "retried");
+		synchronized (this) {
+			for (Item item : items) {
+				pending.computeIfAbsent(item.dataspace, k -> new ArrayList()).add(item);
+			}
+		}
+	}
+
+	/**
+	 * Send everything that is waiting. Does not wait for the requests to finish.
+	 */
+	void sendAll() {
+		Map<Dataspace, List<Item>> todo;
+		synchronized (this) {
+			if (pending.isEmpty()) return;
+			todo = new HashMap(pending);
+			pending.clear();
+		}
+		for (Map.Entry<Dataspace, List<Item>> e : todo.entrySet()) {
+			// chunk (retries can push a list over size)
+			List<Item> items = e.getValue();
+			for(int i=0; i<items.size(); i += bulkSize) {
+				List<Item> batch = items.subList(i, Math.min(items.size(), i+bulkSize));
+				send(e.getKey(), new ArrayList(batch));
+			}
+		}
+	}
+
+	/**
+	 * Hand a batch to a worker thread. Blocks if maxInFlight requests are already running.
+	 * @param dataspace
+	 * @param batch
+	 */
+	private void send(Dataspace dataspace, List<Item> batch) {
+		// backpressure
+		if ( ! inFlight.tryAcquire()) {
+			// STATID: datalog_bulk/blocked How often saving had to wait for ES
+			DataLog.count(1, STAT, "blocked");
+			inFlight.acquireUninterruptibly();
+		}
+		try {
+			exec.execute(() -> {
+				try {
+					doBulk(dataspace, batch);
+				} catch(Throwable ex) {
+					// the whole request failed (e.g. ES is down) -- retry everything
+					Log.w(LOGTAG, "bulk save of "+batch.size()+" events to "+dataspace+" failed: "+ex);
+					requeue(doBulk2_retryable(batch));
+				} finally {
+					inFlight.release();
+				}
+			});
+		} catch(RejectedExecutionException ex) {
+			inFlight.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Send one _bulk request (on a worker thread). Overridden in testing.
+	 */
+	void doBulk(Dataspace dataspace, List<Item> batch) {
+		// init? (fast if already done)
+		storage.registerDataspace(dataspace);
+		ESHttpClient client = storage.client(dataspace);
+		BulkResponse br;
+		long dt;
+		try {
+			BulkRequest bulk = client.prepareBulk();
+			for (Item item : batch) {
+				ESPath path = storage.saveEvent2_path(dataspace, item.event, item.period);
+				if (item.event.groupById != null) {
+					bulk.add(storage.saveEvent3_update(client, path, item.event));
+				} else {
+					bulk.add(storage.saveEvent3_index(client, path, item.event));
+				}
+			}
+			long t = System.currentTimeMillis();
+			br = bulk.get();
+			dt = System.currentTimeMillis() - t;
+		} finally {
+			client.close();
+		}
+		// STATID: datalog_bulk/size Events per bulk request
+		DataLog.mean(batch.size(), STAT, "size");
+		// STATID: datalog_bulk/latency Milliseconds per bulk request
+		DataLog.mean(dt, STAT, "latency");
+		if ( ! br.hasErrors()) {
+			return;
+		}
+		// some items failed
+		List<Map> items = Containers.asList(br.getParsedJson().get("items"));
+		List<Item> retry = doBulk2_itemFailures(batch, items);
+		requeue(retry);
+	}
+
+	/**
+	 * @param batch
+	 * @param items The "items" from the _bulk response json
+	 * @return the items to retry
+	 */
+	List<Item> doBulk2_itemFailures(List<Item> batch, List<Map> items) {
+		List<Item> retry = new ArrayList();
+		// NB: ES returns one item per action, in the order sent
+		for(int i=0; i<items.size(); i++) {
+			Map action = (Map) Containers.first(items.get(i).values());
+			int status = (int) MathUtils.toNum(action.get("status"));
+			if (status < 300) continue;
+			Item item = batch.get(i);
+			if (status == 429) {
+				// STATID: datalog_bulk/rejected Events ES was too busy to take
+				DataLog.count(1, STAT, "rejected");
+			}
+			boolean retryable = status == 429 || status >= 500;
+			if (retryable && item.retries < maxRetries) {
+				item.retries++;
+				retry.add(item);
+				continue;
+			}
+			// STATID: datalog_bulk/failed Events which we gave up on
+			DataLog.count(1, STAT, "failed");
+			Log.e(LOGTAG, "bulk save failed ("+status+"): "+action.get("error")+" for "+item);
+		}
+		return retry;
+	}
+
+	List<Item> doBulk2_retryable(List<Item> batch) {
+		List<Item> retry = new ArrayList();
+		for (Item item : batch) {
+			if (item.retries < maxRetries) {
+				item.retries++;
+				retry.add(item);
+			} else {
+				DataLog.count(1, STAT, "failed");
+				Log.e(LOGTAG, "bulk save failed - giving up on "+item);
+			}
+		}
+		return retry;
+	}
+
+	/**
+	 * @return number of events waiting to be sent
+	 */
+	public synchronized int getPendingCount() {
+		int n = 0;
+		for (List<Item> items : pending.values()) {
+			n += items.size();
+		}
+		return n;
+	}
+
+	/**
+	 * Send everything, and wait for the in-flight requests to finish.
+	 * NB: Items which fail and get re-queued will wait for the next flush.
+	 */
+	@Override
+	public void flush() {
+		sendAll();
+		// wait for all the workers by grabbing every permit
+		try {
+			if ( ! inFlight.tryAcquire(maxInFlight, 5, TimeUnit.MINUTES)) {
+				Log.w(LOGTAG, "flush timed out waiting for ES");
+				return;
+			}
+		} catch (InterruptedException e) {
+			throw Utils.runtime(e);
+		}
+		inFlight.release(maxInFlight);
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		timer.cancel();
+		flush();
+		closed = true;
+		exec.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "ESBulkWriter[" + storage + "]";
+	}
+}
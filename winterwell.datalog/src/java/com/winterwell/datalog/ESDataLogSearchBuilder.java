@@ -47,6 +47,10 @@ public class ESDataLogSearchBuilder {
 	int numExamples; 
 	Time start;
 	Time end; 
+	/**
+	 * If true, the time filter is [start, end) rather than [start, end]
+	 */
+	boolean endExclusive;
 	SearchQuery query;
 	List<String> breakdown;
 	private boolean doneFlag;
@@ -72,7 +76,7 @@ public class ESDataLogSearchBuilder {
 	public SearchRequest prepareSearch() {
 		doneFlag = true;
 		com.winterwell.es.client.query.BoolQueryBuilder filter 
-			= AppUtils.makeESFilterFromSearchQuery(query, start, end);
+			= AppUtils.makeESFilterFromSearchQuery(query, start, end, endExclusive);
 		
 		String index = ESStorage.readIndexFromDataspace(dataspace);
 		
@@ -237,6 +241,15 @@ public class ESDataLogSearchBuilder {
 		return this;
 	}
 
+	/**
+	 * @param endExclusive If true, events at exactly end are not included. Default: false
+	 */
+	public ESDataLogSearchBuilder setEndExclusive(boolean endExclusive) {
+		assert ! doneFlag;
+		this.endExclusive = endExclusive;
+		return this;
+	}
+
 	Dt interval = TUnit.DAY.dt;
 	
 	public void setInterval(Dt interval) {
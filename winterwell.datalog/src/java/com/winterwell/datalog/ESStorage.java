@@ -10,6 +10,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
@@ -18,6 +20,8 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.winterwell.datalog.DataLog.KInterpolate;
 import com.winterwell.es.ESPath;
 import com.winterwell.es.ESType;
+import com.winterwell.es.client.BulkRequest;
+import com.winterwell.es.client.BulkResponse;
 import com.winterwell.es.client.ESConfig;
 import com.winterwell.es.client.ESHttpClient;
 import com.winterwell.es.client.ESHttpResponse;
@@ -46,6 +50,7 @@ import com.winterwell.maths.timeseries.IDataStream;
 import com.winterwell.maths.timeseries.ListDataStream;
 import com.winterwell.nlp.query.SearchQuery;
 import com.winterwell.utils.Dep;
+import com.winterwell.utils.FailureException;
 import com.winterwell.utils.MathUtils;
 import com.winterwell.utils.Null;
 import com.winterwell.utils.TodoException;
@@ -78,6 +83,20 @@ public class ESStorage implements IDataLogStorage {
 	private static final String LOGTAG = "DataLog.ES";
 	private ESConfig esConfig;
 	
+	private DataLogConfig config;
+	
+	/**
+	 * Batches events into _bulk requests. See {@link #getBulkWriter()}
+	 */
+	private ESBulkWriter bulkWriter;
+
+	/**
+	 * Pre-aggregates events for the dataspaces in {@link DataLogConfig#rollups}. null if off.
+	 */
+	private RollupEngine rollups;
+
+	private Timer rollupTimer;
+	
 	@Override
 	public void save(Period period, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2mean) {
 		Collection<DataLogEvent> events = new ArrayList();
@@ -203,7 +222,7 @@ public class ESStorage implements IDataLogStorage {
 	}
 
 	public IDataLogStorage init(DataLogConfig config) {
-//		this.config = config; only used here
+		this.config = config;
 		// ES config
 		if (esConfig == null) {
 			ConfigFactory cf = ConfigFactory.get();
@@ -247,11 +266,76 @@ public class ESStorage implements IDataLogStorage {
 		for (Dataspace d : dataspaces) {			
 			registerDataspace(d);
 		}
+		// rollups?
+		if (config.rollups!=null && ! config.rollups.isEmpty()) {
+			init2_rollups(config);
+		}
 		// share via Dep
 		Dep.setIfAbsent(ESStorage.class, this);
 		return this;
 	}
 
+	private void init2_rollups(DataLogConfig config) {
+		rollups = new RollupEngine(config);
+		// rollups go to the same ES as their dataspace
+		synchronized (config4dataspace) {
+			for (String n : config.rollups) {
+				ESConfig esc = config4dataspace.get(new Dataspace(n));
+				if (esc==null) continue;
+				for(TUnit unit : RollupEngine.UNITS) {
+					config4dataspace.put(RollupEngine.rollupDataspace(new Dataspace(n), unit), esc);
+				}
+			}
+		}
+		long gap = config.rollupFlush.getMillisecs();
+		rollupTimer = new Timer("DataLog.rollup", true);
+		rollupTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					rollups.flush(ESStorage.this::saveRollups);
+				} catch(Throwable ex) {
+					Log.e(LOGTAG, ex);
+				}
+			}
+		}, gap, gap);
+		Log.i(LOGTAG, "Rollups on: "+rollups);
+	}
+
+	/**
+	 * @return the rollup engine, or null if rollups are off
+	 */
+	public RollupEngine getRollups() {
+		return rollups;
+	}
+
+	/**
+	 * Index (i.e. overwrite) rollup docs. Each goes in the monthly index for its time, so a re-write always hits the same doc.
+	 * @param rollupDataspace e.g. gl_rollup_hour
+	 * @param id2doc
+	 * @throws FailureException if ES reports errors (the caller should try again later)
+	 */
+	void saveRollups(Dataspace rollupDataspace, Map<String, DataLogEvent> id2doc) {
+		ESHttpClient client = client(rollupDataspace);
+		BulkResponse br;
+		try {
+			BulkRequest bulk = client.prepareBulk();
+			for (Entry<String, DataLogEvent> e : id2doc.entrySet()) {
+				DataLogEvent doc = e.getValue();
+				// init? (fast if already done)
+				registerDataspace2(rollupDataspace, doc.time);
+				String index = baseIndexFromDataspace(rollupDataspace, doc.time);
+				bulk.add(saveEvent3_index(client, new ESPath(index, ESTYPE, e.getKey()), doc));
+			}
+			br = bulk.get();
+		} finally {
+			client.close();
+		}
+		if (br.hasErrors()) {
+			throw new FailureException("rollup save of "+id2doc.size()+" docs to "+rollupDataspace+" had errors");
+		}
+	}
+
 	
 	final Set<String> knownBaseIndexes = new HashSet();
 	
@@ -424,52 +508,20 @@ public class ESStorage implements IDataLogStorage {
 		}
 		// init?
 		registerDataspace(dataspace);
-		String type = ESTYPE;
-		
-		// ID
-		String id;
-		boolean grpById = event.groupById!=null; 
-		if (grpById) {
-			// HACK group by means no time bucketing
-			id = event.getId();
-		} else {
-			// put a time marker on it -- the end in seconds is enough
-			long secs = bucketPeriod.getEnd().getTime() % 1000;
-			id = event.getId()+"_"+secs;
-		}
-		
-		// always have a time
-		if (event.time==null) {
-			event.time = bucketPeriod.getEnd();
-		}
+		ESPath path = saveEvent2_path(dataspace, event, bucketPeriod);
 		
 		ESHttpClient client = client(dataspace);
 		
 //		client.debug = true;
 		
-		String index = writeIndexFromDataspace(dataspace);
 		// save -- update for grouped events, index otherwise
-		ESPath path = new ESPath(index, type, id);
 		Future<ESHttpResponse> f;
-		if (grpById) {
-			UpdateRequest saveReq = client.prepareUpdate(path);
+		if (event.groupById!=null) {
+			UpdateRequest saveReq = saveEvent3_update(client, path, event);
 			saveReq.setDebug(true); // Debugging Sep 2018 (this will be noisy)
-			// try x3 before failing
-			saveReq.setRetries(2);
-			// set doc
-			Map<String, Object> doc = event.toJson2();
-			PainlessScriptBuilder psb = PainlessScriptBuilder.fromJsonObject(doc);
-			saveReq.setScript(psb);
-			// upsert		
-			saveReq.setUpsert(doc);
-			saveReq.setDebug(true); 
 			f = saveReq.execute();
 		} else {
-			IndexRequest saveReq = client.prepareIndex(path);
-			if (event.time==null) event.time = bucketPeriod.getEnd();
-			// set doc
-			Map<String, Object> doc = event.toJson2();			
-			saveReq.setBodyMap(doc);
+			IndexRequest saveReq = saveEvent3_index(client, path, event);
 			f = saveReq.execute();
 		}		
 		client.close();
@@ -490,11 +542,109 @@ public class ESStorage implements IDataLogStorage {
 		return f;
 	}
 	
+	/**
+	 * Also sets event.time if it was null.
+	 * @param dataspace
+	 * @param event
+	 * @param bucketPeriod
+	 * @return where to save this event
+	 */
+	ESPath saveEvent2_path(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		// ID
+		String id;
+		if (event.groupById!=null) {
+			// HACK group by means no time bucketing
+			id = event.getId();
+		} else {
+			// put a time marker on it -- the end in seconds is enough
+			long secs = bucketPeriod.getEnd().getTime() % 1000;
+			id = event.getId()+"_"+secs;
+		}
+		
+		// always have a time
+		if (event.time==null) {
+			event.time = bucketPeriod.getEnd();
+		}
+		
+		String index = writeIndexFromDataspace(dataspace);
+		return new ESPath(index, ESTYPE, id);
+	}
+
+	/**
+	 * For grouped events: a scripted update with upsert.
+	 */
+	UpdateRequest saveEvent3_update(ESHttpClient client, ESPath path, DataLogEvent event) {
+		UpdateRequest saveReq = client.prepareUpdate(path);
+		// try x3 before failing
+		saveReq.setRetries(2);
+		// set doc
+		Map<String, Object> doc = event.toJson2();
+		PainlessScriptBuilder psb = PainlessScriptBuilder.fromJsonObject(doc);
+		saveReq.setScript(psb);
+		// upsert		
+		saveReq.setUpsert(doc);
+		return saveReq;
+	}
+
+	IndexRequest saveEvent3_index(ESHttpClient client, ESPath path, DataLogEvent event) {
+		IndexRequest saveReq = client.prepareIndex(path);
+		// set doc
+		Map<String, Object> doc = event.toJson2();			
+		saveReq.setBodyMap(doc);
+		return saveReq;
+	}
+	
+	/**
+	 * Queue an event for a bulk save. This normally returns at once, but it will block
+	 * if ES is falling behind (backpressure).
+	 * @see ESBulkWriter
+	 */
+	public void saveEventBulk(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		if (event.dataspace!=null && ! event.dataspace.equals(dataspace.name)) {
+			Log.e(LOGTAG, new WeirdException("(swallowing) Dataspace mismatch: "+dataspace+" vs "+event.dataspace+" in "+event));
+		}
+		getBulkWriter().add(dataspace, event, bucketPeriod);
+		if (rollups!=null) {
+			// NB: the bulk writer uses the same default time
+			rollups.add(dataspace, event, Utils.or(event.time, bucketPeriod.getEnd()));
+		}
+	}
+
+	/**
+	 * Lazily made, so that a bare new ESStorage() (as used in testing) doesn't start threads.
+	 */
+	synchronized ESBulkWriter getBulkWriter() {
+		if (bulkWriter==null) {
+			DataLogConfig dlc = Utils.or(config, Dep.has(DataLogConfig.class)? Dep.get(DataLogConfig.class) : null, new DataLogConfig());
+			bulkWriter = new ESBulkWriter(this, dlc);
+		}
+		return bulkWriter;
+	}
+	
 	@Override
 	public void flush() {
+		// send any batched events
+		ESBulkWriter bw = bulkWriter;
+		if (bw != null) bw.flush();
+		if (rollups != null) rollups.flush(this::saveRollups);
 		// wait a second
 		Utils.sleep(1000);
 	}
+	
+	/**
+	 * Send the last batches, and stop the background threads.
+	 */
+	@Override
+	public void close() {
+		ESBulkWriter bw;
+		synchronized (this) {
+			bw = bulkWriter;
+			bulkWriter = null;
+		}
+		if (bw != null) bw.close();
+		if (rollupTimer != null) rollupTimer.cancel();
+		if (rollups != null) rollups.flush(this::saveRollups);
+	}
 
 	@Override
 	public String toString() {
@@ -593,9 +743,8 @@ public class ESStorage implements IDataLogStorage {
 
 	@Override
 	public void saveEvents(Collection<DataLogEvent> events, Period period) {
-		// TODO use a batch-save for speed
 		for (DataLogEvent e : events) {
-			saveEvent(new Dataspace(e.dataspace), e, period);
+			saveEventBulk(new Dataspace(e.dataspace), e, period);
 		}
 	}
 
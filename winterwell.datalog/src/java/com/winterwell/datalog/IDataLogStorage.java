@@ -96,4 +96,9 @@ public interface IDataLogStorage {
 	 * NB: called after save - this is to do any storage-layer cleanup
 	 */
 	default void flush() {}	
+	
+	/**
+	 * Release any background threads or buffers. Called by {@link DataLogImpl#close()}, after a flush.
+	 */
+	default void close() {}
 }
\ No newline at end of file
@@ -0,0 +1,336 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Incrementally maintained rollups: per (dataspace, evt, {@link DataLogConfig#longterms} props, hour / day) sums
+ * of count (and {@link DataLogConfig#rollupSums}). This replaces the after-the-fact compression of CompressDataLogIndexMain
+ * for answering breakdowns.
+ * <p>
+ * - Rollup docs look like raw events (same fields, time = bucket start), so the same aggregations work on them.
+ * They live in their own dataspace per unit, e.g. gl_rollup_hour -- see {@link #rollupDataspace(Dataspace, TUnit)}.<br>
+ * - Each in-memory bucket is written (in full) under a fixed id, so re-writes overwrite, and a failed write can just be re-tried.<br>
+ * - Ids are unique per server instance (and per re-opened bucket), so several servers -- or a restart -- give several docs
+ * for one bucket, which sum correctly.<br>
+ * - Buckets are dropped from memory once written and closed (i.e. {@link #keepOpen} after their end).
+ * A late event for a dropped bucket starts a new doc.
+ * <p>
+ * NB: Grouped events (groupById) are summed here, as separate events.
+ *
+ * @author daniel
+ * @testedby  RollupEngineTest}
+ * @see RollupPlanner
+ */
+public class RollupEngine {
+
+	private static final String LOGTAG = "DataLog.rollup";
+
+	/**
+	 * The rollup granularities, fine to coarse
+	 */
+	public static final List<TUnit> UNITS = Collections.unmodifiableList(Arrays.asList(TUnit.HOUR, TUnit.DAY));
+
+	/**
+	 * @return e.g. gl_rollup_hour
+	 */
+	public static Dataspace rollupDataspace(Dataspace dataspace, TUnit unit) {
+		return new Dataspace(dataspace+"_rollup_"+unit.toString().toLowerCase());
+	}
+
+	/**
+	 * One bucket. Guarded by synchronized(this)
+	 */
+	static final class Acc {
+		final String id;
+		final double[] sums;
+		boolean dirty;
+		/**
+		 * Set when removed from the map -- adds must then go to a fresh Acc
+		 */
+		boolean dead;
+
+		Acc(String id, int n) {
+			this.id = id;
+			this.sums = new double[n];
+		}
+	}
+
+	/**
+	 * (dataspace, unit, bucket-start, evt, dimension values)
+	 */
+	static final class Key {
+		final Dataspace dataspace;
+		final TUnit unit;
+		final long start;
+		final List<String> evt;
+		final List<Object> dims;
+		private final int hash;
+
+		Key(Dataspace dataspace, TUnit unit, long start, List<String> evt, List<Object> dims) {
+			this.dataspace = dataspace;
+			this.unit = unit;
+			this.start = start;
+			this.evt = evt;
+			this.dims = dims;
+			hash = Arrays.hashCode(new Object[] {dataspace, unit, start, evt, dims});
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if ( ! (obj instanceof Key)) return false;
+			Key k = (Key) obj;
+			return start==k.start && unit==k.unit && dataspace.equals(k.dataspace)
+					&& evt.equals(k.evt) && dims.equals(k.dims);
+		}
+
+		@Override
+		public String toString() {
+			return "Key[" + dataspace + " " + unit + " " + new Time(start) + " " + evt + " " + dims + "]";
+		}
+	}
+
+	final Set<Dataspace> dataspaces = new HashSet();
+
+	/**
+	 * The props we break down by
+	 */
+	final List<String> dims;
+
+	/**
+	 * The props we sum. [0] is always count
+	 */
+	final List<String> sums;
+
+	/**
+	 * How long to keep a bucket in memory after it ends, for late-arriving events
+	 */
+	long keepOpen = TUnit.HOUR.getMillisecs();
+
+	/**
+	 * Rollups are complete from here on -- earlier data must come from raw events
+	 */
+	final Time since;
+
+	/**
+	 * Makes the doc ids unique to this engine
+	 */
+	private final String instance = Utils.getRandomString(6);
+
+	private final AtomicLong seq = new AtomicLong();
+
+	private final ConcurrentHashMap<Key, Acc> accs = new ConcurrentHashMap();
+
+	/**
+	 * Start (wall-clock) of the last successful flush. 0 = never
+	 */
+	private volatile long lastFlush;
+
+	private final LongAdder events = new LongAdder();
+	private final LongAdder docsWritten = new LongAdder();
+	private final LongAdder flushFails = new LongAdder();
+
+	public RollupEngine(DataLogConfig config) {
+		if (config.rollups!=null) {
+			for(String ds : config.rollups) {
+				dataspaces.add(new Dataspace(ds));
+			}
+		}
+		dims = new ArrayList(config.longterms);
+		dims.remove(DataLogEvent.EVT);
+		sums = new ArrayList();
+		sums.add(ESStorage.count);
+		if (config.rollupSums!=null) sums.addAll(config.rollupSums);
+		// NB: the first full hour after we start
+		since = config.rollupSince!=null? config.rollupSince : new Time(ceil(System.currentTimeMillis(), TUnit.HOUR));
+	}
+
+	static long floor(long t, TUnit unit) {
+		return Math.floorDiv(t, unit.getMillisecs()) * unit.getMillisecs();
+	}
+
+	static long ceil(long t, TUnit unit) {
+		return - floor(-t, unit);
+	}
+
+	/**
+	 * @return true if this dataspace is rolled up
+	 */
+	public boolean isRolledUp(Dataspace dataspace) {
+		return dataspaces.contains(dataspace);
+	}
+
+	/**
+	 * Add an event to the (in memory) rollups. Fast, and never blocks on IO.
+	 * @param time The event time (which may be null on the event itself)
+	 */
+	public void add(Dataspace dataspace, DataLogEvent event, Time time) {
+		if ( ! isRolledUp(dataspace)) return;
+		events.increment();
+		List<String> evt = Arrays.asList(event.getEventType());
+		List<Object> dimVals = new ArrayList(dims.size());
+		for (String d : dims) {
+			Object v = event.getProp(d);
+			dimVals.add(Utils.truthy(v)? v : null);
+		}
+		double[] x = new double[sums.size()];
+		x[0] = event.count;
+		for(int i=1; i<x.length; i++) {
+			Object v = event.getProp(sums.get(i));
+			if (v != null) x[i] = MathUtils.toNum(v);
+		}
+		for(TUnit unit : UNITS) {
+			Key key = new Key(dataspace, unit, floor(time.getTime(), unit), evt, dimVals);
+			add2(key, x);
+		}
+	}
+
+	private void add2(Key key, double[] x) {
+		while(true) {
+			Acc acc = accs.computeIfAbsent(key, k -> new Acc(instance+"_"+seq.incrementAndGet(), x.length));
+			synchronized (acc) {
+				// lost a race with flush()? Then try again with a fresh Acc
+				if (acc.dead) continue;
+				for(int i=0; i<x.length; i++) {
+					acc.sums[i] += x[i];
+				}
+				acc.dirty = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write out the changed buckets, and drop closed ones from memory.
+	 * @param writer Called once per rollup dataspace with doc-id -> rollup doc. Should throw if the write fails,
+	 * in which case the buckets will be written again next time.
+	 */
+	public void flush(BiConsumer<Dataspace, Map<String, DataLogEvent>> writer) {
+		long now = System.currentTimeMillis();
+		Map<Dataspace, Map<String, DataLogEvent>> docs = new HashMap();
+		Map<Dataspace, List<Acc>> flushed = new HashMap();
+		for (Map.Entry<Key, Acc> e : accs.entrySet()) {
+			Key key = e.getKey();
+			Acc acc = e.getValue();
+			DataLogEvent doc;
+			synchronized (acc) {
+				if ( ! acc.dirty) continue;
+				doc = toDoc(key, acc.sums);
+				acc.dirty = false;
+			}
+			Dataspace rds = rollupDataspace(key.dataspace, key.unit);
+			docs.computeIfAbsent(rds, k -> new HashMap()).put(acc.id, doc);
+			flushed.computeIfAbsent(rds, k -> new ArrayList()).add(acc);
+		}
+		boolean ok = true;
+		for (Dataspace rds : docs.keySet()) {
+			Map<String, DataLogEvent> id2doc = docs.get(rds);
+			try {
+				writer.accept(rds, id2doc);
+				docsWritten.add(id2doc.size());
+			} catch(Throwable ex) {
+				Log.w(LOGTAG, "flush of "+id2doc.size()+" rollups to "+rds+" failed: "+ex);
+				flushFails.increment();
+				ok = false;
+				// try again next time
+				for (Acc acc : flushed.get(rds)) {
+					synchronized (acc) {
+						acc.dirty = true;
+					}
+				}
+			}
+		}
+		// drop closed buckets (which are now safely written)
+		for (Map.Entry<Key, Acc> e : accs.entrySet()) {
+			Key key = e.getKey();
+			if (key.start + key.unit.getMillisecs() + keepOpen > now) continue;
+			Acc acc = e.getValue();
+			synchronized (acc) {
+				if (acc.dirty) continue;
+				acc.dead = true;
+			}
+			accs.remove(key, acc);
+		}
+		if (ok) lastFlush = now;
+	}
+
+	DataLogEvent toDoc(Key key, double[] x) {
+		Map<String,Object> props = new ArrayMap();
+		for(int i=0; i<dims.size(); i++) {
+			Object v = key.dims.get(i);
+			if (v != null) props.put(dims.get(i), v);
+		}
+		for(int i=1; i<x.length; i++) {
+			if (x[i] != 0) props.put(sums.get(i), x[i]);
+		}
+		DataLogEvent doc = new DataLogEvent(rollupDataspace(key.dataspace, key.unit), null, x[0],
+				key.evt.toArray(StrUtils.ARRAY), props);
+		doc.time = new Time(key.start);
+		return doc;
+	}
+
+	/**
+	 * @return Rollups in ES are complete (barring write failures) for events before this.
+	 * This allows one flush-gap of slack for other servers. null if we have not flushed yet.
+	 */
+	public Time getCompleteBefore(long flushGap) {
+		long lf = lastFlush;
+		if (lf == 0) return null;
+		return new Time(lf - flushGap);
+	}
+
+	public Time getSince() {
+		return since;
+	}
+
+	/**
+	 * @return The props which can be broken down by (as well as evt and time)
+	 */
+	public List<String> getDims() {
+		return Collections.unmodifiableList(dims);
+	}
+
+	/**
+	 * @return The props which are summed (including count)
+	 */
+	public List<String> getSums() {
+		return Collections.unmodifiableList(sums);
+	}
+
+	/**
+	 * @return number of buckets held in memory
+	 */
+	public int size() {
+		return accs.size();
+	}
+
+	@Override
+	public String toString() {
+		return "RollupEngine[" + dataspaces + " buckets=" + size() + " events=" + events.sum()
+			+ " written=" + docsWritten.sum() + " fails=" + flushFails.sum() + "]";
+	}
+}
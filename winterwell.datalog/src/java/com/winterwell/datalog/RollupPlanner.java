@@ -0,0 +1,315 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.winterwell.nlp.query.SearchQuery;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.web.WebUtils2;
+
+/**
+ * Query planner: should a DataServlet search read raw events, or rollups?
+ * <p>
+ * Rollups can answer a search if it only touches rolled-up fields (evt, time, the {@link RollupEngine#getDims()} props,
+ * and sums of the {@link RollupEngine#getSums()} props), and the time interval is whole hours.
+ * The window is then split into parts: raw events for the ragged ends (before the first full hour, and the recent data
+ * which may not be in the rollups yet), hourly rollups, and daily rollups for whole days where the interval allows.
+ * Run each part, then {@link #merge(Map, Map)} the results.
+ * <p>
+ * The parts share boundary instants, so each part's end is exclusive -- except the last (which is always raw),
+ * which keeps the search's own (inclusive) end. Otherwise an event stamped exactly on a boundary (e.g. a periodic stat, saved at the end of its bucket)
+ * would be counted twice. See {@link Part#endExclusive}.
+ * <p>
+ * NB: terms breakdowns are cut to the top numResults per part, so merged top-N lists can differ slightly at the tail.
+ *
+ * @author daniel
+ * @testedby  RollupEngineTest}
+ */
+public final class RollupPlanner {
+
+	/**
+	 * One search in a plan
+	 */
+	public static final class Part {
+		/**
+		 * null for raw events, otherwise the rollup granularity
+		 */
+		public final TUnit rollup;
+		/**
+		 * The dataspace to search (a rollup dataspace if rollup!=null)
+		 */
+		public final Dataspace dataspace;
+		/**
+		 * Inclusive
+		 */
+		public final Time start;
+		public final Time end;
+		/**
+		 * true for all but the last part: search start <= time < end.
+		 * NB: ES date ranges are inclusive by default, so this must be passed on -- see ESDataLogSearchBuilder#setEndExclusive()
+		 */
+		public final boolean endExclusive;
+
+		Part(TUnit rollup, Dataspace dataspace, long start, long end, boolean endExclusive) {
+			this.rollup = rollup;
+			this.dataspace = dataspace;
+			this.start = new Time(start);
+			this.end = new Time(end);
+			this.endExclusive = endExclusive;
+		}
+
+		@Override
+		public String toString() {
+			return (rollup==null? "raw" : rollup.toString().toLowerCase())+"["+start+" to "+end+(endExclusive? ")" : "]");
+		}
+	}
+
+	public static final class Plan {
+		public final List<Part> parts = new ArrayList();
+		/**
+		 * Why rollups were not used (null if they were)
+		 */
+		public String rawBecause;
+
+		public boolean isRaw() {
+			return parts.size()==1 && parts.get(0).rollup==null;
+		}
+
+		@Override
+		public String toString() {
+			return "Plan"+parts+(rawBecause==null? "" : " raw because: "+rawBecause);
+		}
+	}
+
+	private final RollupEngine engine;
+
+	/**
+	 * Allow for other servers flushing later than us
+	 */
+	private final long flushGap;
+
+	/**
+	 * @param engine Can be null (then all plans are raw)
+	 * @param flushGap How often rollups are flushed. See {@link DataLogConfig#rollupFlush}
+	 */
+	public RollupPlanner(RollupEngine engine, Dt flushGap) {
+		this.engine = engine;
+		this.flushGap = flushGap.getMillisecs();
+	}
+
+	public Plan plan(Dataspace dataspace, List<String> breakdown, SearchQuery query, Time start, Time end, Dt interval) {
+		Plan plan = new Plan();
+		plan.rawBecause = plan2_whyNot(dataspace, breakdown, query, interval);
+		if (plan.rawBecause != null) {
+			return plan3_raw(plan, dataspace, start, end);
+		}
+		Time completeBefore = engine.getCompleteBefore(flushGap);
+		if (completeBefore==null) {
+			plan.rawBecause = "rollups not flushed yet";
+			return plan3_raw(plan, dataspace, start, end);
+		}
+		long a = start.getTime(), b = end.getTime();
+		long lo = Math.max(a, engine.getSince().getTime());
+		long hi = Math.min(b, completeBefore.getTime());
+		long h0 = RollupEngine.ceil(lo, TUnit.HOUR), h1 = RollupEngine.floor(hi, TUnit.HOUR);
+		// The search end is inclusive. A rollup part can't do that (the doc at b covers the hour after b), 
+		// so always finish with raw events.
+		if (h1 == b) h1 -= TUnit.HOUR.getMillisecs();
+		if (h1 <= h0) {
+			plan.rawBecause = "no whole hours of rollups in the window";
+			return plan3_raw(plan, dataspace, start, end);
+		}
+		List<Part> parts = plan.parts;
+		if (a < h0) parts.add(new Part(null, dataspace, a, h0, true));
+		// whole days?
+		long d0 = RollupEngine.ceil(h0, TUnit.DAY), d1 = RollupEngine.floor(h1, TUnit.DAY);
+		boolean days = isUsable(TUnit.DAY, breakdown, interval) && d0 < d1;
+		if ( ! days) {
+			parts.add(plan4_rollup(dataspace, TUnit.HOUR, h0, h1));
+		} else {
+			if (h0 < d0) parts.add(plan4_rollup(dataspace, TUnit.HOUR, h0, d0));
+			parts.add(plan4_rollup(dataspace, TUnit.DAY, d0, d1));
+			if (d1 < h1) parts.add(plan4_rollup(dataspace, TUnit.HOUR, d1, h1));
+		}
+		assert h1 < b;
+		parts.add(new Part(null, dataspace, h1, b, false));
+		return plan;
+	}
+
+	private Part plan4_rollup(Dataspace dataspace, TUnit unit, long start, long end) {
+		return new Part(unit, RollupEngine.rollupDataspace(dataspace, unit), start, end, true);
+	}
+
+	private Plan plan3_raw(Plan plan, Dataspace dataspace, Time start, Time end) {
+		plan.parts.add(new Part(null, dataspace, start.getTime(), end.getTime(), false));
+		return plan;
+	}
+
+	/**
+	 * @return null if rollups can answer this, otherwise the reason why not
+	 */
+	String plan2_whyNot(Dataspace dataspace, List<String> breakdown, SearchQuery query, Dt interval) {
+		if (engine==null || ! engine.isRolledUp(dataspace)) {
+			return "no rollups for "+dataspace;
+		}
+		if ( ! isUsable(TUnit.HOUR, breakdown, interval)) {
+			return "interval "+interval+" is not whole hours";
+		}
+		for (String bd : breakdown) {
+			String why = plan3_whyNot4breakdown(bd);
+			if (why != null) return why;
+		}
+		if (query != null) {
+			return plan3_whyNot4query(query.getParseTree());
+		}
+		return null;
+	}
+
+	/**
+	 * See ESDataLogSearchBuilder for the breakdown format
+	 */
+	private String plan3_whyNot4breakdown(String bd) {
+		int i = bd.indexOf('{');
+		String bucketBy = i==-1? bd : bd.substring(0, i);
+		for (String field : bucketBy.trim().split("/")) {
+			if (Utils.isBlank(field)) continue;
+			if ( ! isRolledUpField(field) && ! "time".equals(field)) {
+				return "breakdown by "+field;
+			}
+		}
+		if (i == -1) return null;
+		Map<String,?> reportSpec;
+		try {
+			reportSpec = WebUtils2.parseJSON(bd.substring(i));
+		} catch(Exception ex) {
+			return "bad breakdown "+bd; // let the raw search report the error
+		}
+		// NB: the op is always sum (see ESDataLogSearchBuilder)
+		for(String k : reportSpec.keySet()) {
+			if ( ! engine.getSums().contains(k)) {
+				return "no rollup sum for "+k;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param node From {@link SearchQuery#getParseTree()}. key:value terms are Maps, free text is Strings.
+	 */
+	private String plan3_whyNot4query(Object node) {
+		if (node instanceof Map) {
+			for(Object k : ((Map) node).keySet()) {
+				if ( ! isRolledUpField((String) k)) return "query on "+k;
+			}
+			return null;
+		}
+		if (node instanceof List) {
+			List list = (List) node;
+			if (list.isEmpty()) return null;
+			Object op = list.get(0);
+			if (SearchQuery.KEYWORD_QUOTED.equals(op)) return "free-text query";
+			boolean isOp = SearchQuery.KEYWORD_AND.equals(op) || SearchQuery.KEYWORD_OR.equals(op) || SearchQuery.KEYWORD_NOT.equals(op);
+			for(int i = isOp? 1 : 0; i<list.size(); i++) {
+				String why = plan3_whyNot4query(list.get(i));
+				if (why != null) return why;
+			}
+			return null;
+		}
+		if (node instanceof String && ! Utils.isBlank((String) node)) {
+			return "free-text query";
+		}
+		return null;
+	}
+
+	private boolean isRolledUpField(String field) {
+		return DataLogEvent.EVT.equals(field) || engine.getDims().contains(field);
+	}
+
+	/**
+	 * @return true if rollups of this unit give correct time buckets for the interval
+	 */
+	static boolean isUsable(TUnit unit, List<String> breakdown, Dt interval) {
+		boolean byTime = false;
+		for (String bd : breakdown) {
+			String bucketBy = bd.split("\\{")[0];
+			for(String f : bucketBy.trim().split("/")) {
+				if ("time".equals(f)) byTime = true;
+			}
+		}
+		if ( ! byTime) return true;
+		long ms = interval.getMillisecs();
+		return ms >= unit.getMillisecs() && ms % unit.getMillisecs() == 0;
+	}
+
+	/**
+	 * Merge the (cleaned) aggregation results of two plan parts: numbers are summed, and buckets are matched by key.
+	 * @return a, modified
+	 */
+	public static Map merge(Map a, Map b) {
+		for(Object k : b.keySet()) {
+			Object vb = b.get(k);
+			Object va = a.get(k);
+			if (va==null) {
+				a.put(k, vb);
+			} else if (va instanceof Number && vb instanceof Number && ! isBucketKey(k)) {
+				a.put(k, ((Number) va).doubleValue() + ((Number) vb).doubleValue());
+			} else if (va instanceof Map && vb instanceof Map) {
+				merge((Map) va, (Map) vb);
+			} else if (va instanceof List && vb instanceof List) {
+				a.put(k, merge2_buckets((List) va, (List) vb));
+			}
+			// else keep a's (e.g. key_as_string)
+		}
+		return a;
+	}
+
+	private static boolean isBucketKey(Object k) {
+		return "key".equals(k) || "from".equals(k) || "to".equals(k);
+	}
+
+	private static List merge2_buckets(List a, List b) {
+		Map<Object, Map> a4key = new HashMap();
+		List merged = new ArrayList(a.size());
+		for(Object x : a) {
+			if (x instanceof Map && ((Map) x).containsKey("key")) {
+				a4key.put(((Map) x).get("key"), (Map) x);
+			}
+			merged.add(x);
+		}
+		for(Object y : b) {
+			Map ax = y instanceof Map? a4key.get(((Map) y).get("key")) : null;
+			if (ax != null) {
+				merge(ax, (Map) y);
+			} else {
+				merged.add(y);
+			}
+		}
+		// date buckets should stay in time order
+		if ( ! merged.isEmpty() && isDateBuckets(merged)) {
+			merged.sort((x, y) -> Double.compare(
+					((Number) ((Map) x).get("key")).doubleValue(), ((Number) ((Map) y).get("key")).doubleValue()));
+		}
+		return merged;
+	}
+
+	private static boolean isDateBuckets(Collection buckets) {
+		for (Object x : buckets) {
+			if ( ! (x instanceof Map)) return false;
+			Map m = (Map) x;
+			if ( ! (m.get("key") instanceof Number) || ! m.containsKey("key_as_string")) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "RollupPlanner[" + engine + "]";
+	}
+
+}
@@ -1,11 +1,15 @@
 package com.winterwell.datalog;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -44,7 +48,7 @@ public class SQLStorage implements IDataLogStorage {
 	public static String COLUMNS_COUNT = " timestamp, tag, count_mean ";
 	public static String COLUMNS_DISTR = " timestamp, tag, count_mean, variance, min, max ";
 	
-	private static int BATCH_SIZE = 100;
+	private static int BATCH_SIZE = 1000;
 	
 	private DataLogConfig config;
 
@@ -133,49 +137,140 @@ public class SQLStorage implements IDataLogStorage {
 			return;
 		}
 		assert initFlag;
-
-		String sqlPrefix = "insert into " + TABLE;
+		if (tag2count.isEmpty() && tag2mean.isEmpty()) return;
 
 		// Save as the middle of the period?!
-		Time mid = DataLogImpl.doSave3_time(period);
+		long mid = DataLogImpl.doSave3_time(period).getTime();
 
+		// One transaction for the whole bucket
 		Connection conn = null;
 		try {
-			conn = config.dbUrl!=null? SqlUtils.getConnection(config) : SqlUtils.getConnection();
-			for (String tag : tag2count.keySet()) {
-				Double value = tag2count.get(tag);				
-//				if (value!=null && value > 0) Log.d(Stat.LOGTAG, "saving " + tag + "=" + value + " to db");
-	
-				String values = " values (" + mid.getTime() + ", "+ SqlUtils.sqlEncode(tag) +", " + value + ");";
-				String sql = sqlPrefix + " ( " + COLUMNS_COUNT + " ) " + values;
-				SqlUtils.executeUpdate(sql, conn);
-			}
-	
-			for (String tag : tag2mean.keySet()) {
-				IDistribution1D value = tag2mean.get(tag);
-//				Log.v(Stat.LOGTAG, "saving " + tag + "=" + value + " to db");
-				double min = value.getSupport().low;
-				double max = value.getSupport().high;
-				// protect SQL from infinity
-				if ( ! MathUtils.isFinite(min)) min = 0;
-				if ( ! MathUtils.isFinite(max)) max = 0;
-				String values = "values (" 	+
-						mid.getTime() 			+ ", " +
-						SqlUtils.sqlEncode(tag)	+ ", " +
-						value.getMean() 		+ ", " +
-						value.getVariance() 	+ ", " +
-						min 			+ ", " +
-						max			
-//						value.getCount() TODO
-						+ ");";
-				String sql = sqlPrefix + " ( " + COLUMNS_DISTR + " ) " + values;
-
-				SqlUtils.executeUpdate(sql, conn);
+			conn = getConnection();
+			int rows = tag2count.size() + tag2mean.size();
+			boolean copied = config.sqlCopyAt > 0 && rows >= config.sqlCopyAt 
+								&& save2_copy(conn, mid, tag2count, tag2mean);
+			if ( ! copied) {
+				save2_batch(conn, mid, tag2count, tag2mean);
 			}
+			conn.commit();
+		} catch (Exception e) {
+			rollback(conn);
+			Log.e(DataLog.LOGTAG, Utils.getRootCause(e));
+			throw Utils.runtime(e);
 		} finally {
 			SqlUtils.close(conn);
 		}
 	}
+
+	private Connection getConnection() {
+		return config.dbUrl!=null? SqlUtils.getConnection(config) : SqlUtils.getConnection();
+	}
+
+	private static void rollback(Connection conn) {
+		if (conn==null) return;
+		try {
+			conn.rollback();
+		} catch (SQLException ex) {
+			Log.w(DataLog.LOGTAG, "rollback failed: "+ex);
+		}
+	}
+
+	/**
+	 * Prepared inserts, sent {@link #BATCH_SIZE} at a time. Does not commit.
+	 */
+	private void save2_batch(Connection conn, long mid, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2mean) 
+			throws SQLException 
+	{
+		try (PreparedStatement insert = conn.prepareStatement(
+				"insert into " + TABLE + " ( " + COLUMNS_COUNT + " ) values (?, ?, ?);")) 
+		{
+			int n = 0;
+			for (Map.Entry<String, Double> e : tag2count.entrySet()) {
+				if (e.getValue()==null) continue;
+				insert.setLong(1, mid);
+				insert.setString(2, e.getKey());
+				insert.setDouble(3, e.getValue());
+				insert.addBatch();
+				if (++n % BATCH_SIZE == 0) insert.executeBatch();
+			}
+			if (n % BATCH_SIZE != 0) insert.executeBatch();
+		}
+		if (tag2mean.isEmpty()) return;
+		try (PreparedStatement insert = conn.prepareStatement(
+				"insert into " + TABLE + " ( " + COLUMNS_DISTR + " ) values (?, ?, ?, ?, ?, ?);")) 
+		{
+			int n = 0;
+			for (Map.Entry<String, IDistribution1D> e : tag2mean.entrySet()) {
+				double[] mvmm = meanVarMinMax(e.getValue());
+				insert.setLong(1, mid);
+				insert.setString(2, e.getKey());
+				for(int i=0; i<4; i++) {
+					insert.setDouble(3+i, mvmm[i]);
+				}
+				insert.addBatch();
+				if (++n % BATCH_SIZE == 0) insert.executeBatch();
+			}
+			if (n % BATCH_SIZE != 0) insert.executeBatch();
+		}
+	}
+
+	/**
+	 * Postgres COPY FROM STDIN -- one round-trip for the whole bucket. Does not commit.
+	 * This uses reflection, so the Postgres driver is only needed at runtime.
+	 * @return false if this isn't a Postgres connection (nothing is written)
+	 */
+	private boolean save2_copy(Connection conn, long mid, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2mean) 
+			throws Exception 
+	{
+		Class pgConnClass;
+		try {
+			pgConnClass = Class.forName("org.postgresql.PGConnection");
+		} catch (ClassNotFoundException ex) {
+			return false;
+		}
+		if ( ! conn.isWrapperFor(pgConnClass)) return false;
+		Object pgConn = conn.unwrap(pgConnClass);
+		// csv: an empty unquoted field is null
+		StringBuilder csv = new StringBuilder(32*(tag2count.size() + tag2mean.size()));
+		for (Map.Entry<String, Double> e : tag2count.entrySet()) {
+			if (e.getValue()==null) continue;
+			csv.append(mid).append(',');
+			save3_csvQuote(e.getKey(), csv);
+			csv.append(',').append(e.getValue()).append(",,,\n");
+		}
+		for (Map.Entry<String, IDistribution1D> e : tag2mean.entrySet()) {
+			double[] mvmm = meanVarMinMax(e.getValue());
+			csv.append(mid).append(',');
+			save3_csvQuote(e.getKey(), csv);
+			for (double v : mvmm) {
+				csv.append(',').append(v);
+			}
+			csv.append('\n');
+		}
+		Object copyAPI = pgConnClass.getMethod("getCopyAPI").invoke(pgConn);
+		Method copyIn = Class.forName("org.postgresql.copy.CopyManager").getMethod("copyIn", String.class, Reader.class);
+		copyIn.invoke(copyAPI, 
+				"COPY " + TABLE + " ( " + COLUMNS_DISTR + " ) FROM STDIN WITH (FORMAT csv)", 
+				new StringReader(csv.toString()));
+		return true;
+	}
+
+	private static void save3_csvQuote(String tag, StringBuilder csv) {
+		csv.append('"').append(tag.replace("\"", "\"\"")).append('"');
+	}
+
+	/**
+	 * @return mean, variance, min, max -- with infinite min/max replaced by 0 to protect SQL
+	 */
+	private static double[] meanVarMinMax(IDistribution1D value) {
+		double min = value.getSupport().low;
+		double max = value.getSupport().high;
+		// protect SQL from infinity
+		if ( ! MathUtils.isFinite(min)) min = 0;
+		if ( ! MathUtils.isFinite(max)) max = 0;
+		// TODO value.getCount()
+		return new double[] {value.getMean(), value.getVariance(), min, max};
+	}
 	
 	@Override
 	public void saveHistory(Map<Pair2<String, Time>, Double> tag2time2count) {
@@ -206,61 +301,47 @@ public class SQLStorage implements IDataLogStorage {
 			Log.e(DataLog.LOGTAG, "Cannot save history! Database not initialised. Losing counts for: "+tag2time2count.keySet());
 			return;
 		}
-		if (tag2time2count.isEmpty()) return;
 	
-		int rowCount = 0;
+		// Upsert by (timestamp, tag), a batch at a time: update, and insert the ones which didn't match a row.
+		// (Not ON CONFLICT, as the table has no unique index on those columns.)
+		List<Map.Entry<Pair2<String, Time>, Double>> entries = new ArrayList(tag2time2count.entrySet());
+		int inserted = 0;
 		Connection conn = null;
 		try {
-			conn = config.dbUrl!=null? SqlUtils.getConnection(config) : SqlUtils.getConnection();
-			// Try first an update and if it doesn't succeed insert the row.
-			PreparedStatement select = conn.prepareStatement(
-					"SELECT count_mean FROM " + TABLE + " WHERE timestamp = ? AND tag = ?;");			
-			PreparedStatement update = conn.prepareStatement(
-					"UPDATE " + TABLE + " SET " + " count_mean = ? WHERE timestamp = ? AND tag = ?;");
-			PreparedStatement insert = conn.prepareStatement(
-					"INSERT INTO " + TABLE + " (timestamp, count_mean, tag) values (?, ?, ?);");
-			
-			for (Pair2<String, Time> key : tag2time2count.keySet()) {
-				long timestamp = key.second.getTime();
-				String tag = key.first;
-				Double value = tag2time2count.get(key);
-				
-				select.setDouble(1, timestamp);
-				select.setString(2, tag);
-				
-				ResultSet rs = select.executeQuery();
-				if (rs.next()) {
-					// It already exists: update
-					if ( ! setOrAdd) value += rs.getDouble(1);					
-					update.setDouble(1, value);
-					update.setLong(2, timestamp);
-					update.setString(3, tag);
-					update.addBatch();
-				} else {
-					// It doesn't exist: insert
-					insert.setLong(1, timestamp);
-					insert.setDouble(2, value);
-					insert.setString(3, tag);
-					insert.addBatch();
-				}
-								
-				if (++rowCount % BATCH_SIZE == 0) {
-					update.executeBatch();
-					update.clearBatch();
-					
-					insert.executeBatch();
-					insert.clearBatch();
-					
-					Log.d(DataLog.LOGTAG, "saving batch of " + BATCH_SIZE + " rows");
+			conn = getConnection();
+			try (PreparedStatement update = conn.prepareStatement(
+					"UPDATE " + TABLE + " SET count_mean = " + (setOrAdd? "?" : "count_mean + ?") + " WHERE timestamp = ? AND tag = ?;");
+				PreparedStatement insert = conn.prepareStatement(
+					"INSERT INTO " + TABLE + " (timestamp, count_mean, tag) values (?, ?, ?);")) 
+			{
+				for(int from=0; from<entries.size(); from += BATCH_SIZE) {
+					List<Map.Entry<Pair2<String, Time>, Double>> batch = entries.subList(from, Math.min(from+BATCH_SIZE, entries.size()));
+					for (Map.Entry<Pair2<String, Time>, Double> e : batch) {
+						update.setDouble(1, e.getValue());
+						update.setLong(2, e.getKey().second.getTime());
+						update.setString(3, e.getKey().first);
+						update.addBatch();
+					}
+					int[] updated = update.executeBatch();
+					boolean inserts = false;
+					for (int i = 0; i < updated.length; i++) {
+						// NB: a driver which says SUCCESS_NO_INFO (-2) is taken to have updated
+						if (updated[i] != 0) continue;
+						Map.Entry<Pair2<String, Time>, Double> e = batch.get(i);
+						insert.setLong(1, e.getKey().second.getTime());
+						insert.setDouble(2, e.getValue());
+						insert.setString(3, e.getKey().first);
+						insert.addBatch();
+						inserts = true;
+						inserted++;
+					}
+					if (inserts) insert.executeBatch();
 				}
 			}
-			
-			// Final batch
-			update.executeBatch();
-			insert.executeBatch();
 			conn.commit();
-			Log.d(DataLog.LOGTAG, "saveHistory " + rowCount + " rows "+tag2time2count);			
+			Log.d(DataLog.LOGTAG, "saveHistory " + entries.size() + " rows ("+inserted+" new)");			
 		} catch (SQLException e) {
+			rollback(conn);
 			Log.e(DataLog.LOGTAG, Utils.getRootCause(e));
 			throw Utils.runtime(e);
 		} finally {
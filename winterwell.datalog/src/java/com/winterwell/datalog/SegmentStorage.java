@@ -0,0 +1,536 @@
+package com.winterwell.datalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.datalog.DataSegment.Points;
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.IDataStream;
+import com.winterwell.utils.TodoException;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Cache;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.IFuture;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A local (no ES, no database) time-series store, which -- unlike {@link CSVStorage} -- can answer
+ * a query for one tag without scanning everything.
+ * <p>
+ * Each save writes a small immutable {@link DataSegment} file into the directory for its period
+ * (see {@link DataLogConfig#filePeriod}). A segment has a sorted tag dictionary with per-tag offsets,
+ * counts, min/max times and sums. So a query skips whole periods and segments by time, then seeks to the tag's block
+ * -- and a total over a whole block uses the stored sum.
+ * <p>
+ * A background task merges a period's segments once there are {@link DataLogConfig#segmentCompactAt} of them,
+ * or once the period is over. Before the merged segment goes in, a [segment].replaces file lists the segments it
+ * replaces -- so if we crash before they're deleted, readers skip them (and the next compaction deletes them),
+ * rather than counting their data twice.
+ * Compaction holds a file lock on [dir]/compact.lock, so two SegmentStorage objects (or processes) on the same
+ * directory never merge the same segments.
+ * <p>
+ * Limitations: the server arg is ignored (local data only). Events are not stored. Means are stored as their mean value.
+ * Only one process should write to a given directory + namespace.
+ *
+ * @author daniel
+ * @testedby  SegmentStorageTest}
+ */
+public class SegmentStorage implements IDataLogStorage {
+
+	static final String SUFFIX = ".dls";
+
+	/**
+	 * Compaction manifest: [merged segment].replaces lists the segments it replaces
+	 */
+	static final String REPLACES = ".replaces";
+
+	/**
+	 * Held (as a file lock) while compacting
+	 */
+	static final String COMPACT_LOCK = "compact.lock";
+
+	/**
+	 * Merged segments are written under this prefix, then renamed
+	 */
+	static final String MERGE_PREFIX = "merge-";
+
+	DataLogConfig config;
+
+	File dir;
+
+	/**
+	 * Segment indexes -- the files are immutable, so these never go stale (compaction deletes files, and evicts them).
+	 */
+	private final Cache<File, DataSegment> segments = new Cache(10000);
+
+	/**
+	 * Readers share. Compaction's swap (add the merged segment + delete the old ones) is exclusive,
+	 * so a reader never sees both or neither.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private static final AtomicInteger seq = new AtomicInteger();
+
+	private Timer compactor;
+
+	private volatile boolean closed;
+
+	public SegmentStorage() {
+	}
+
+	@Override
+	public IDataLogStorage init(DataLogConfig config) {
+		this.config = config;
+		closed = false;
+		File base = config.segmentDir != null? config.segmentDir : new File(FileUtils.getWorkingDirectory(), "datalog-segments");
+		dir = Utils.isBlank(config.namespace)? base : new File(base, config.namespace);
+		dir.mkdirs();
+		// compact in the background
+		if (compactor == null) {
+			compactor = new Timer("datalog.segments", true);
+			long gap = Math.max(1000, config.interval.getMillisecs());
+			compactor.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (Throwable ex) {
+						Log.e(DataLog.LOGTAG, ex);
+					}
+				}
+			}, gap, gap);
+		}
+		return this;
+	}
+
+	@Override
+	public void save(Period period, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2mean) {
+		long mid = DataLogImpl.doSave3_time(period).getTime();
+		TreeMap<String, Points> tag2points = new TreeMap();
+		for (Map.Entry<String, Double> e : tag2count.entrySet()) {
+			points(tag2points, e.getKey()).add(mid, e.getValue());
+		}
+		for (Map.Entry<String, IDistribution1D> e : tag2mean.entrySet()) {
+			points(tag2points, e.getKey()).add(mid, e.getValue().getMean());
+		}
+		if (tag2points.isEmpty()) return;
+		writeSegment(getPeriodDir(mid), tag2points);
+	}
+
+	@Override
+	public void saveHistory(Map<Pair2<String, Time>, Double> tag2time2count) {
+		// group by period
+		TreeMap<Long, TreeMap<String, Points>> period2points = new TreeMap();
+		for (Map.Entry<Pair2<String, Time>, Double> e : tag2time2count.entrySet()) {
+			long t = e.getKey().second.getTime();
+			TreeMap<String, Points> tag2points = period2points.computeIfAbsent(getPeriodStart(t), k -> new TreeMap());
+			points(tag2points, e.getKey().first).add(t, e.getValue());
+		}
+		for (Map.Entry<Long, TreeMap<String, Points>> e : period2points.entrySet()) {
+			writeSegment(getPeriodDir(e.getKey()), e.getValue());
+		}
+	}
+
+	private static Points points(TreeMap<String, Points> tag2points, String tag) {
+		return tag2points.computeIfAbsent(tag, k -> new Points());
+	}
+
+	private void writeSegment(File pdir, TreeMap<String, Points> tag2points) {
+		pdir.mkdirs();
+		File f = new File(pdir, "seg-"+System.currentTimeMillis()+"-"+seq.incrementAndGet()+SUFFIX);
+		try {
+			DataSegment.write(f, tag2points);
+		} catch (IOException e) {
+			throw Utils.runtime(e);
+		}
+	}
+
+	long getPeriodStart(long t) {
+		long fp = config.filePeriod.getMillisecs();
+		return Math.floorDiv(t, fp) * fp;
+	}
+
+	File getPeriodDir(long t) {
+		return new File(dir, Long.toString(getPeriodStart(t)));
+	}
+
+	/**
+	 * @return the directories for periods overlapping [start, end)
+	 */
+	private List<File> getPeriodDirs(long start, long end) {
+		String[] names = dir.list();
+		if (names == null) return new ArrayList();
+		long fp = config.filePeriod.getMillisecs();
+		List<File> dirs = new ArrayList();
+		for (String n : names) {
+			long ps;
+			try {
+				ps = Long.parseLong(n);
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			if (ps + fp <= start || ps >= end) continue;
+			dirs.add(new File(dir, n));
+		}
+		return dirs;
+	}
+
+	private List<DataSegment> getSegments(File pdir) {
+		File[] files = pdir.listFiles(f -> f.getName().endsWith(SUFFIX));
+		if (files == null) return new ArrayList();
+		Arrays.sort(files);
+		Set<String> superseded = getSuperseded(pdir);
+		List<DataSegment> segs = new ArrayList(files.length);
+		for (File f : files) {
+			if (superseded.contains(f.getName())) continue;
+			DataSegment seg = segments.get(f);
+			if (seg == null) {
+				try {
+					seg = DataSegment.open(f);
+				} catch (IOException e) {
+					Log.e(DataLog.LOGTAG, "Skip bad segment "+f+": "+e);
+					continue;
+				}
+				segments.put(f, seg);
+			}
+			segs.add(seg);
+		}
+		return segs;
+	}
+
+	/**
+	 * @return names of segments which a merged segment has replaced, but which are still on disk
+	 * (i.e. a compaction was interrupted). Usually empty.
+	 */
+	private Set<String> getSuperseded(File pdir) {
+		Set<String> superseded = new HashSet();
+		for (File manifest : getManifests(pdir)) {
+			// only valid once the merged segment is in place
+			if ( ! getManifestSegment(manifest).isFile()) continue;
+			superseded.addAll(readManifest(manifest));
+		}
+		return superseded;
+	}
+
+	private static File[] getManifests(File pdir) {
+		File[] manifests = pdir.listFiles(f -> f.getName().endsWith(REPLACES));
+		return manifests==null? new File[0] : manifests;
+	}
+
+	private static File getManifestSegment(File manifest) {
+		String name = manifest.getName();
+		return new File(manifest.getParentFile(), name.substring(0, name.length() - REPLACES.length()));
+	}
+
+	private static List<String> readManifest(File manifest) {
+		return Arrays.asList(StrUtils.splitLines(FileUtils.read(manifest).trim()));
+	}
+
+	/**
+	 * The query engine.
+	 * @param tag Exact match. Can be null if tagMatcher is set.
+	 * @param tagMatcher Can be null
+	 * @param start Can be null
+	 * @param end Can be null
+	 * @param totalOnly If true, don't bother with the points where a stored sum will do. The results are then
+	 * one Datum per block.
+	 * @return Datums, sorted by time
+	 */
+	List<Datum> query(String tag, Pattern tagMatcher, Time start, Time end, boolean totalOnly) {
+		long s = start==null? Long.MIN_VALUE : start.getTime();
+		long e = end==null? Long.MAX_VALUE : end.getTime();
+		List<Datum> data = new ArrayList();
+		lock.readLock().lock();
+		try {
+			for (File pdir : getPeriodDirs(s, e)) {
+				for (DataSegment seg : getSegments(pdir)) {
+					if ( ! seg.overlaps(s, e)) continue;
+					query2_segment(seg, tag, tagMatcher, s, e, totalOnly, data);
+				}
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		} finally {
+			lock.readLock().unlock();
+		}
+		data.sort((a, b) -> Long.compare(a.time.getTime(), b.time.getTime()));
+		return data;
+	}
+
+	private void query2_segment(DataSegment seg, String tag, Pattern tagMatcher, long s, long e, boolean totalOnly, List<Datum> data)
+			throws IOException
+	{
+		// which tags?
+		int[] idxs;
+		if (tag != null) {
+			int i = seg.indexOf(tag);
+			if (i == -1) return;
+			if (tagMatcher != null && ! tagMatcher.matcher(tag).matches()) return;
+			idxs = new int[] {i};
+		} else {
+			// scan the dictionary (not the data)
+			idxs = new int[seg.tags.length];
+			int n = 0;
+			for (int i = 0; i < seg.tags.length; i++) {
+				if (tagMatcher.matcher(seg.tags[i]).matches()) idxs[n++] = i;
+			}
+			idxs = Arrays.copyOf(idxs, n);
+		}
+		RandomAccessFile raf = null;
+		try {
+			for (int i : idxs) {
+				long tmin = seg.minTimes[i], tmax = seg.maxTimes[i];
+				if (seg.counts[i] == 0 || tmax < s || tmin >= e) continue;
+				// a total over the whole block? Use the sum
+				if (totalOnly && tmin >= s && tmax < e) {
+					data.add(new Datum(new Time(tmin), seg.sums[i], seg.tags[i]));
+					continue;
+				}
+				if (raf == null) raf = new RandomAccessFile(seg.file, "r");
+				Points p = seg.read(raf, i);
+				for (int j = 0; j < p.n; j++) {
+					long t = p.times[j];
+					if (t < s || t >= e) continue;
+					data.add(new Datum(new Time(t), p.values[j], seg.tags[i]));
+				}
+			}
+		} finally {
+			FileUtils.close(raf);
+		}
+	}
+
+	/**
+	 * Merge each period's segments, if it has lots, or if the period is over.
+	 */
+	void compact() {
+		if (closed) return;
+		File lockFile = new File(dir, COMPACT_LOCK);
+		try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock fileLock = compact2_tryLock(channel))
+		{
+			if (fileLock == null) {
+				Log.d(DataLog.LOGTAG, "Skip compaction: "+dir+" is being compacted by someone else");
+				return;
+			}
+			compact2_locked();
+		} catch (IOException e) {
+			Log.e(DataLog.LOGTAG, "Compaction failed for "+dir+": "+e);
+		}
+	}
+
+	/**
+	 * @return the lock, or null if another SegmentStorage (in this JVM or another) holds it
+	 */
+	private static FileLock compact2_tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			return null;
+		}
+	}
+
+	private void compact2_locked() {
+		String[] names = dir.list();
+		if (names == null) return;
+		long now = System.currentTimeMillis();
+		long fp = config.filePeriod.getMillisecs();
+		for (String n : names) {
+			long ps;
+			try {
+				ps = Long.parseLong(n);
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			File pdir = new File(dir, n);
+			compact2_recover(pdir);
+			List<DataSegment> segs;
+			lock.readLock().lock();
+			try {
+				segs = getSegments(pdir);
+			} finally {
+				lock.readLock().unlock();
+			}
+			boolean over = ps + fp < now;
+			if (segs.size() < 2 || (segs.size() < config.segmentCompactAt && ! over)) {
+				continue;
+			}
+			compact2(pdir, segs);
+		}
+	}
+
+	/**
+	 * Finish off any compaction which was interrupted (e.g. by a crash) between
+	 * adding the merged segment and deleting the old ones.
+	 */
+	private void compact2_recover(File pdir) {
+		// half-written merges (we hold the compaction lock, so nobody else is writing one)
+		File[] tmps = pdir.listFiles(f -> f.getName().startsWith(MERGE_PREFIX));
+		if (tmps != null) {
+			for (File tmp : tmps) {
+				Log.w(DataLog.LOGTAG, "Deleting orphaned merge file "+tmp);
+				FileUtils.delete(tmp);
+			}
+		}
+		File[] manifests = getManifests(pdir);
+		if (manifests.length == 0) return;
+		lock.writeLock().lock();
+		try {
+			for (File manifest : manifests) {
+				if (getManifestSegment(manifest).isFile()) {
+					Log.w(DataLog.LOGTAG, "Finishing interrupted compaction "+manifest);
+					for (String old : readManifest(manifest)) {
+						File f = new File(pdir, old);
+						FileUtils.delete(f);
+						segments.remove(f);
+					}
+				}
+				// (if the merged segment never made it, the old segments are still good)
+				FileUtils.delete(manifest);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void compact2(File pdir, List<DataSegment> segs) {
+		TreeMap<String, Points> merged = new TreeMap();
+		try {
+			for (DataSegment seg : segs) {
+				try (RandomAccessFile raf = new RandomAccessFile(seg.file, "r")) {
+					for (int i = 0; i < seg.tags.length; i++) {
+						points(merged, seg.tags[i]).addAll(seg.read(raf, i));
+					}
+				}
+			}
+			// write it under a name that readers ignore, until the swap
+			File tmp = new File(pdir, MERGE_PREFIX+System.currentTimeMillis()+"-"+seq.incrementAndGet());
+			DataSegment.write(tmp, merged);
+			File f = new File(pdir, "seg-"+System.currentTimeMillis()+"-"+seq.incrementAndGet()+SUFFIX);
+			File manifest = new File(pdir, f.getName()+REPLACES);
+			lock.writeLock().lock();
+			try {
+				// manifest first, so there's never a moment when the merged and the old segments both count
+				List<String> names = new ArrayList(segs.size());
+				for (DataSegment seg : segs) {
+					names.add(seg.file.getName());
+				}
+				FileUtils.write(manifest, StrUtils.join(names, "\n"));
+				FileUtils.move(tmp, f);
+				compact3_deleteOld(segs);
+				FileUtils.delete(manifest);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			Log.d(DataLog.LOGTAG, "Compacted "+segs.size()+" segments into "+f);
+		} catch (IOException e) {
+			Log.e(DataLog.LOGTAG, "Compaction failed for "+pdir+": "+e);
+		}
+	}
+
+	/**
+	 * Overridden in testing (to simulate a crash)
+	 */
+	void compact3_deleteOld(List<DataSegment> segs) {
+		for (DataSegment seg : segs) {
+			FileUtils.delete(seg.file);
+			segments.remove(seg.file);
+		}
+	}
+
+	@Override
+	public IFuture<IDataStream> getData(Pattern id, Time start, Time end) {
+		return new StatReqSegment<IDataStream>(this, KStatReq.DATA, id, start, end);
+	}
+
+	@Override
+	public StatReq<IDataStream> getData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
+		return new StatReqSegment<IDataStream>(this, KStatReq.DATA, tag, start, end, fn, bucketSize);
+	}
+
+	@Override
+	public StatReq<Double> getTotal(String tag, Time start, Time end) {
+		return new StatReqSegment<Double>(this, KStatReq.TOTAL, tag, start, end, null, null);
+	}
+
+	/**
+	 * @return an iterator over {@link Datum}s, sorted by time. The server is ignored.
+	 */
+	@Override
+	public Iterator<Datum> getReader(String server, Time start, Time end, Pattern tagMatcher, String tag) {
+		if (tag == null && tagMatcher == null) {
+			tagMatcher = Pattern.compile(".*");
+		}
+		return query(tag, tagMatcher, start, end, false).iterator();
+	}
+
+	@Override
+	public IFuture<MeanRate> getMean(Time start, Time end, String tag) {
+		throw new TodoException();
+	}
+
+	/**
+	 * Means are stored as their mean value, so this is the same as getData()
+	 */
+	@Override
+	public StatReq<IDataStream> getMeanData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
+		return getData(tag, start, end, fn, bucketSize);
+	}
+
+	@Override @Deprecated
+	public void setHistory(Map<Pair2<String, Time>, Double> tagTime2set) {
+		// unsupported
+	}
+
+	@Override
+	public Object saveEvent(Dataspace dataspace, DataLogEvent event, Period period) {
+		throw new TodoException();
+	}
+
+	@Override
+	public void saveEvents(Collection<DataLogEvent> values, Period period) {
+		// unsupported (as with CSVStorage)
+	}
+
+	/**
+	 * Stop the background compaction. Safe to repeat.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (compactor != null) {
+			compactor.cancel();
+			compactor = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SegmentStorage[" + dir + "]";
+	}
+}
@@ -0,0 +1,46 @@
+package com.winterwell.datalog;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A StatReq for {@link SegmentStorage}. No batching needed -- each request only reads its own tag's blocks.
+ * @testedby  SegmentStorageTest}
+ * @author daniel
+ * @param <X>
+ */
+public class StatReqSegment<X> extends StatReq<X> {
+
+	private final SegmentStorage storage;
+
+	public StatReqSegment(SegmentStorage storage, String cmd, Pattern tagMatcher, Time start, Time end) {
+		super(cmd, tagMatcher, start, end);
+		this.storage = storage;
+	}
+
+	public StatReqSegment(SegmentStorage storage, String cmd, String tag, Time start, Time end, KInterpolate interpolate, Dt bucketSize) {
+		super(cmd, tag, start, end, interpolate, bucketSize);
+		this.storage = storage;
+	}
+
+	@Override
+	protected void run() {
+		initV(this);
+		boolean total = KStatReq.TOTAL.equals(cmd);
+		List<Datum> data = storage.query(tag, tagMatcher, start, end, total);
+		for (Datum datum : data) {
+			add(this, datum);
+		}
+		// Add in the latest (unsaved) bucket -- if we are the live storage
+		if (tag != null && DataLog.dflt instanceof DataLogImpl && ((DataLogImpl) DataLog.dflt).storage == storage) {
+			stat = (DataLogImpl) DataLog.dflt;
+			addLatestBucket(this);
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.winterwell.datalog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * The live counters for the current DataLog bucket.
+ * <p>
+ * Thread safety: yes. Counting is lock-free and exact under concurrency -- each tag is a {@link DoubleAdder}
+ * (striped cells, so threads don't fight over one value), and there is no boxing or get/put race.
+ * <p>
+ * {@link #swap()} atomically swaps in a fresh set of counters at save time. It waits for any
+ * count() calls which are mid-way through adding to the old set, so no increments are lost.
+ * Writers announce themselves in a striped "busy" array (one slot per thread-stripe, padded to
+ * avoid false sharing), so this costs them an uncontended atomic inc/dec rather than a lock.
+ *
+ * @testedby TagCountsTest
+ * @author daniel
+ */
+final class TagCounts {
+
+	/**
+	 * ints per stripe: 16 x 4 bytes = a 64 byte cache line
+	 */
+	private static final int PAD = 16;
+
+	private static final int STRIPES = stripes();
+
+	private static int stripes() {
+		int n = Runtime.getRuntime().availableProcessors() * 2;
+		int p = 1;
+		while(p < n) p *= 2;
+		return p;
+	}
+
+	/**
+	 * One bucket's worth of counters
+	 */
+	private static final class Gen {
+		final ConcurrentHashMap<String, DoubleAdder> counts = new ConcurrentHashMap();
+		/**
+		 * How many threads are in the middle of an add, per stripe.
+		 */
+		final AtomicIntegerArray busy = new AtomicIntegerArray(STRIPES * PAD);
+	}
+
+	private volatile Gen gen = new Gen();
+
+	private static int stripe() {
+		return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+	}
+
+	/**
+	 * tag += dx
+	 * @param tag
+	 * @param dx
+	 */
+	public void add(String tag, double dx) {
+		final int stripe = stripe();
+		while(true) {
+			Gen g = gen;
+			g.busy.incrementAndGet(stripe);
+			try {
+				// swapped under us? Then use the new one
+				if (g != gen) continue;
+				DoubleAdder a = g.counts.get(tag);
+				if (a == null) {
+					a = g.counts.computeIfAbsent(tag, k -> new DoubleAdder());
+				}
+				a.add(dx);
+				return;
+			} finally {
+				g.busy.decrementAndGet(stripe);
+			}
+		}
+	}
+
+	/**
+	 * tag = x. This over-writes the old value, and is not atomic with respect to
+	 * concurrent calls to {@link #add(String, double)} for the same tag.
+	 * @param tag
+	 * @param x
+	 */
+	public void set(String tag, double x) {
+		final int stripe = stripe();
+		while(true) {
+			Gen g = gen;
+			g.busy.incrementAndGet(stripe);
+			try {
+				if (g != gen) continue;
+				DoubleAdder a = new DoubleAdder();
+				a.add(x);
+				g.counts.put(tag, a);
+				return;
+			} finally {
+				g.busy.decrementAndGet(stripe);
+			}
+		}
+	}
+
+	/**
+	 * @param tag
+	 * @return current value, or null if unset
+	 */
+	public Double get(String tag) {
+		DoubleAdder a = gen.counts.get(tag);
+		return a==null? null : a.sum();
+	}
+
+	public int size() {
+		return gen.counts.size();
+	}
+
+	public boolean isEmpty() {
+		return gen.counts.isEmpty();
+	}
+
+	/**
+	 * @return the current tags (a live view, which will go stale after a swap)
+	 */
+	public Set<String> keySet() {
+		return gen.counts.keySet();
+	}
+
+	/**
+	 * @return a snapshot of the current values. This does not reset anything.
+	 */
+	public Map<String, Double> toMap() {
+		return toMap(gen);
+	}
+
+	private static Map<String, Double> toMap(Gen g) {
+		HashMap<String, Double> map = new HashMap(g.counts.size());
+		for (Map.Entry<String, DoubleAdder> e : g.counts.entrySet()) {
+			map.put(e.getKey(), e.getValue().sum());
+		}
+		return map;
+	}
+
+	/**
+	 * Swap in fresh (empty) counters, and return the old values.
+	 * Every add() either lands in the returned map or in the new counters -- none are lost.
+	 * @return tag -> count for the old counters. A new map, which the caller can modify.
+	 */
+	public synchronized Map<String, Double> swap() {
+		Gen old = gen;
+		gen = new Gen();
+		// wait for writers who were mid-add on the old counters (this is very brief)
+		for(int i=0; i<old.busy.length(); i += PAD) {
+			while(old.busy.get(i) != 0) {
+				Thread.yield();
+			}
+		}
+		return toMap(old);
+	}
+
+	@Override
+	public String toString() {
+		return "TagCounts"+toMap();
+	}
+}
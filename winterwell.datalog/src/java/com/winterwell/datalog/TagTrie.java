@@ -0,0 +1,75 @@
+package com.winterwell.datalog;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the mapping from raw tag-bits (e.g. "foo", "bar") to escaped hierarchical tags (e.g. "foo", "foo/bar").
+ * <p>
+ * Escaping uses several regexes, and joining allocates -- which was a large part of the cost of DataLog.count().
+ * With this, counting a tag we've seen before is just a hash lookup per level.
+ * <p>
+ * Thread safety: yes. The trie is bounded: if it grows too big, it is thrown away and rebuilt.
+ *
+ * @author daniel
+ */
+final class TagTrie {
+
+	static final class Node {
+		/**
+		 * The escaped hierarchical tag
+		 */
+		final String tag;
+		final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap(4);
+
+		Node(String tag) {
+			this.tag = tag;
+		}
+
+		@Override
+		public String toString() {
+			return tag;
+		}
+	}
+
+	private final int maxNodes;
+
+	private volatile ConcurrentHashMap<String, Node> roots = new ConcurrentHashMap();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	public TagTrie(int maxNodes) {
+		this.maxNodes = maxNodes;
+	}
+
+	/**
+	 * @param parent null for a top-level tag
+	 * @param tagBit Must not be null
+	 * @return the node for parent/tagBit
+	 */
+	public Node child(Node parent, Object tagBit) {
+		String raw = tagBit.toString();
+		ConcurrentHashMap<String, Node> map = parent==null? roots : parent.children;
+		Node n = map.get(raw);
+		if (n != null) {
+			return n;
+		}
+		String esc = DataLog.tag2_escape(raw);
+		String tag = parent==null? esc : parent.tag + DataLog.HIERARCHY_CHAR + esc;
+		assert ! tag.isEmpty();
+		n = new Node(tag);
+		// too big? Start again (nodes already handed out remain valid)
+		if (size.incrementAndGet() > maxNodes) {
+			size.set(0);
+			roots = new ConcurrentHashMap();
+			return n;
+		}
+		Node old = map.putIfAbsent(raw, n);
+		return old==null? n : old;
+	}
+
+	@Override
+	public String toString() {
+		return "TagTrie[size=" + size + "]";
+	}
+}
@@ -0,0 +1,175 @@
+package com.winterwell.datalog.server;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.winterwell.utils.log.Log;
+
+/**
+ * Immutable lookup for bot IPs: ip -> user-type (e.g. "bot").
+ * Exact IPs go in a hash map. CIDR ranges (e.g. "66.249.64.0/19") go in a binary prefix trie,
+ * which finds the longest matching range. Either way, a lookup is O(1) in the number of entries.
+ * <p>
+ * Being immutable, this can be swapped in atomically when a fresh list is fetched -- see LgServlet.
+ *
+ * @testedby BotIPIndexTest
+ * @author daniel
+ */
+public final class BotIPIndex {
+
+	private static final String LOGTAG = "BotIPIndex";
+
+	public static final BotIPIndex EMPTY = new BotIPIndex(Collections.EMPTY_MAP, null, null);
+
+	private final Map<String, String> exact;
+	/**
+	 * Can be null if there are no IPv4 ranges
+	 */
+	private final Node v4;
+	/**
+	 * Can be null if there are no IPv6 ranges
+	 */
+	private final Node v6;
+
+	private BotIPIndex(Map<String, String> exact, Node v4, Node v6) {
+		this.exact = exact;
+		this.v4 = v4;
+		this.v6 = v6;
+	}
+
+	private static final class Node {
+		Node zero;
+		Node one;
+		/**
+		 * Set if a range ends here
+		 */
+		String type;
+	}
+
+	/**
+	 * @param hits Each should have "ip" (an IP or CIDR range) and "type". Bad entries are skipped.
+	 * @return a new index
+	 */
+	public static BotIPIndex build(List<Map> hits) {
+		Map<String, String> exact = new HashMap();
+		Node v4 = null, v6 = null;
+		for (Map hit : hits) {
+			Object oip = hit.get("ip");
+			if ( ! (oip instanceof String)) continue;
+			String ip = ((String) oip).trim();
+			String type = (String) hit.get("type");
+			int slash = ip.indexOf('/');
+			if (slash == -1) {
+				exact.put(ip, type);
+				continue;
+			}
+			// a range
+			try {
+				byte[] addr = parse(ip.substring(0, slash));
+				int bits = Integer.parseInt(ip.substring(slash+1));
+				if (addr == null || bits < 0 || bits > addr.length*8) {
+					Log.w(LOGTAG, "Skip bad range: "+ip);
+					continue;
+				}
+				if (addr.length == 4) {
+					if (v4 == null) v4 = new Node();
+					add(v4, addr, bits, type);
+				} else {
+					if (v6 == null) v6 = new Node();
+					add(v6, addr, bits, type);
+				}
+			} catch(NumberFormatException ex) {
+				Log.w(LOGTAG, "Skip bad range: "+ip);
+			}
+		}
+		return new BotIPIndex(exact, v4, v6);
+	}
+
+	private static void add(Node root, byte[] addr, int bits, String type) {
+		Node n = root;
+		for(int i=0; i<bits; i++) {
+			if (bit(addr, i)) {
+				if (n.one == null) n.one = new Node();
+				n = n.one;
+			} else {
+				if (n.zero == null) n.zero = new Node();
+				n = n.zero;
+			}
+		}
+		n.type = type;
+	}
+
+	private static boolean bit(byte[] addr, int i) {
+		return (addr[i >> 3] & (0x80 >> (i & 7))) != 0;
+	}
+
+	/**
+	 * @param ip
+	 * @return the user-type, or null if this is not a known bot IP
+	 */
+	public String getType(String ip) {
+		if (ip == null) return null;
+		String type = exact.get(ip);
+		if (type != null || (v4 == null && v6 == null)) {
+			return type;
+		}
+		byte[] addr = parse(ip);
+		if (addr == null) return null;
+		Node n = addr.length == 4? v4 : v6;
+		// walk down, remembering the longest match
+		String found = null;
+		for(int i=0; n != null; i++) {
+			if (n.type != null) found = n.type;
+			if (i == addr.length*8) break;
+			n = bit(addr, i)? n.one : n.zero;
+		}
+		return found;
+	}
+
+	/**
+	 * @param ip
+	 * @return 4 bytes for IPv4, 16 for IPv6, or null if this is not an IP address.
+	 * NB: this never does a DNS lookup.
+	 */
+	static byte[] parse(String ip) {
+		if (ip.indexOf(':') != -1) {
+			// IPv6 -- InetAddress treats anything with a : as a literal, so no DNS lookup
+			try {
+				return InetAddress.getByName(ip).getAddress();
+			} catch(Exception ex) {
+				return null;
+			}
+		}
+		// IPv4 by hand
+		byte[] addr = new byte[4];
+		int part = 0, v = 0, digits = 0;
+		for(int i=0; i<ip.length(); i++) {
+			char c = ip.charAt(i);
+			if (c == '.') {
+				if (digits == 0 || part == 3) return null;
+				addr[part++] = (byte) v;
+				v = 0; digits = 0;
+				continue;
+			}
+			if (c < '0' || c > '9' || digits == 3) return null;
+			v = v*10 + (c - '0');
+			if (v > 255) return null;
+			digits++;
+		}
+		if (digits == 0 || part != 3) return null;
+		addr[3] = (byte) v;
+		return addr;
+	}
+
+	public int size() {
+		return exact.size();
+	}
+
+	@Override
+	public String toString() {
+		return "BotIPIndex[exact=" + exact.size() + (v4==null? "" : " +v4 ranges") + (v6==null? "" : " +v6 ranges") + "]";
+	}
+}
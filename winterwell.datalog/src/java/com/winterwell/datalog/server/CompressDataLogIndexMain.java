@@ -45,6 +45,8 @@ import com.winterwell.web.app.AppUtils;
  * 
  * NB: Should we use RollUps?? - Nov 2020, rollups were not so easy to get started with
  * 
+ * NB: For answering breakdowns, see RollupEngine, which keeps hourly/daily rollups as the events come in (set DataLogConfig.rollups).
+ * 
  * https://www.elastic.co/guide/en/elasticsearch/reference/7.9/data-rollup-transform.html
  * 
  * 
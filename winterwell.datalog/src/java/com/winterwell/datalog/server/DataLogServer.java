@@ -5,6 +5,7 @@ import java.util.Arrays;
 import com.winterwell.datalog.DataLog;
 import com.winterwell.datalog.DataLogConfig;
 import com.winterwell.datalog.IDataLogAdmin;
+import com.winterwell.utils.Dep;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.log.LogFile;
 import com.winterwell.utils.time.TUnit;
@@ -67,6 +68,14 @@ public class DataLogServer extends AMain<DataLogConfig> {
 				.setLogRotation(TUnit.DAY.dt, 6*7);
 		// set the config
 		DataLog.init(config);
+		// async /lg?
+		if (config.lgAsync) {
+			LgIngester ingester = new LgIngester(config);
+			Dep.set(LgIngester.class, ingester);
+			Log.i("init", "async /lg: "+ingester);
+			// don't lose the queue on a kill -- see also stop()
+			Runtime.getRuntime().addShutdownHook(new Thread(ingester::shutdown, "lg.shutdown"));
+		}
 		// usual setup
 		super.init2(config);
 		init3_youAgain();
@@ -76,6 +85,18 @@ public class DataLogServer extends AMain<DataLogConfig> {
 		admin.registerDataspace(DataLog.getDataspace());
 	}
 	
+	/**
+	 * Stop Jetty, then drain the async /lg queue (if used) and save what's been logged.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		if (Dep.has(LgIngester.class)) {
+			Dep.get(LgIngester.class).shutdown();
+		}
+		DataLog.flush();
+	}
+	
 
 
 }
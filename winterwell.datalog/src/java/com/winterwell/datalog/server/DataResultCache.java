@@ -0,0 +1,162 @@
+package com.winterwell.datalog.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Cache;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Cache + request coalescing for {@link DataServlet}, so that a dashboard with lots of viewers costs one ES search
+ * per distinct query (per TTL), rather than one per viewer.
+ * <p>
+ * - Time-aware TTLs: a window which ends well in the past won't change (much), so it's kept for {@link #ttlHistoric}.
+ * A window which touches "now" is kept for {@link #ttlRecent}.<br>
+ * - Single-flight: if an identical query is already running, wait for its answer instead of running another.<br>
+ * - Counts hits / misses / coalesced waits.
+ *
+ * @author daniel
+ * @testedby  DataResultCacheTest}
+ */
+final class DataResultCache {
+
+	private static final class Entry {
+		final Map value;
+		final long expires;
+
+		Entry(Map value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * TTL for windows which touch now
+	 */
+	Dt ttlRecent = new Dt(1, TUnit.MINUTE);
+	/**
+	 * TTL for closed windows
+	 */
+	Dt ttlHistoric = TUnit.HOUR.dt;
+	/**
+	 * A window is historic if it ended at least this long ago (allowing for late-arriving data).
+	 */
+	Dt settled = TUnit.HOUR.dt;
+
+	private final Cache<List, Entry> cache;
+
+	private final ConcurrentHashMap<List, CompletableFuture<Map>> inflight = new ConcurrentHashMap();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	DataResultCache(int capacity) {
+		cache = new Cache(capacity);
+	}
+
+	/**
+	 * @param end The end of the query window. Can be null (=now)
+	 * @return true if the window touches the recent (unsettled) past
+	 */
+	boolean isRecent(Time end) {
+		return end==null || end.getTime() > System.currentTimeMillis() - settled.getMillisecs();
+	}
+
+	/**
+	 * Normalise a window which touches now, so that repeated polls share a key: start is rounded down and end rounded up
+	 * to the recent-TTL. Closed windows are left alone.
+	 * @return {start, end}
+	 */
+	Time[] normaliseWindow(Time start, Time end) {
+		if ( ! isRecent(end)) {
+			return new Time[] {start, end};
+		}
+		long g = ttlRecent.getMillisecs();
+		long s = Math.floorDiv(start.getTime(), g) * g;
+		long e = - Math.floorDiv(- end.getTime(), g) * g;
+		return new Time[] {new Time(s), new Time(e)};
+	}
+
+	/**
+	 * @param key The normalised query. Lists compare by value.
+	 * @param end The end of the query window -- sets the TTL
+	 * @param fn Runs the query on a miss. Its result is shared, so treat it as read-only.
+	 * @return the (maybe cached) result
+	 */
+	Map get(List key, Time end, Callable<Map> fn) {
+		Map v = get2_cached(key);
+		if (v != null) return v;
+		CompletableFuture<Map> mine = new CompletableFuture();
+		CompletableFuture<Map> running = inflight.putIfAbsent(key, mine);
+		if (running != null) {
+			// someone else is already asking this -- wait for their answer
+			coalesced.increment();
+			try {
+				return running.join();
+			} catch (CompletionException ex) {
+				throw Utils.runtime(ex.getCause());
+			}
+		}
+		try {
+			// double-check: it may have just been done
+			v = get2_cached(key);
+			if (v == null) {
+				misses.increment();
+				v = fn.call();
+				long ttl = (isRecent(end)? ttlRecent : ttlHistoric).getMillisecs();
+				if (v != null) cache.put(key, new Entry(v, System.currentTimeMillis() + ttl));
+			}
+			mine.complete(v);
+			return v;
+		} catch (Throwable ex) {
+			mine.completeExceptionally(ex);
+			throw Utils.runtime(ex);
+		} finally {
+			inflight.remove(key, mine);
+		}
+	}
+
+	private Map get2_cached(List key) {
+		Entry e = cache.get(key);
+		if (e == null) return null;
+		if (e.expires < System.currentTimeMillis()) {
+			cache.remove(key);
+			return null;
+		}
+		hits.increment();
+		return e.value;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of requests which waited on an identical in-flight query
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	void clear() {
+		cache.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "DataResultCache[hits=" + getHits() + ", misses=" + getMisses() + ", coalesced=" + getCoalesced() + "]";
+	}
+}
@@ -1,27 +1,31 @@
 package com.winterwell.datalog.server;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.servlet.http.HttpServletResponse;
 
 import com.winterwell.datalog.DataLog;
+import com.winterwell.datalog.DataLogConfig;
 import com.winterwell.datalog.DataLogImpl;
 import com.winterwell.datalog.DataLogSecurity;
 import com.winterwell.datalog.Dataspace;
 import com.winterwell.datalog.ESDataLogSearchBuilder;
 import com.winterwell.datalog.ESStorage;
+import com.winterwell.datalog.RollupPlanner;
+import com.winterwell.datalog.RollupPlanner.Part;
+import com.winterwell.datalog.RollupPlanner.Plan;
 import com.winterwell.es.client.ESHttpClient;
 import com.winterwell.es.client.SearchRequest;
 import com.winterwell.es.client.SearchResponse;
 import com.winterwell.nlp.query.SearchQuery;
 import com.winterwell.utils.Dep;
-import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.AbstractIterator;
 import com.winterwell.utils.containers.ArrayMap;
-import com.winterwell.utils.io.CSVSpec;
+import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.io.CSVWriter;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
@@ -29,12 +33,14 @@ import com.winterwell.utils.threads.ICallable;
 import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
-import com.winterwell.utils.web.WebUtils;
 import com.winterwell.utils.web.WebUtils2;
+import com.winterwell.web.WebEx;
 import com.winterwell.web.ajax.JsonResponse;
+import com.winterwell.web.app.ESScrollPages;
 import com.winterwell.web.app.IServlet;
 import com.winterwell.web.app.Json2Csv;
 import com.winterwell.web.app.WebRequest;
+import com.winterwell.web.app.WebRequest.KResponseType;
 import com.winterwell.web.fields.DtField;
 import com.winterwell.web.fields.IntField;
 import com.winterwell.web.fields.ListField;
@@ -49,6 +55,8 @@ import com.winterwell.youagain.client.YouAgainClient;
  * numRows: max terms in the breakdown
  * breakdown: e.g. evt/time 
  * 	See {@link ESDataLogSearchBuilder} for more info on the breakdown syntax
+ * 
+ * If the dataspace has rollups (see {@link DataLogConfig#rollups}), {@link RollupPlanner} decides whether to read them or raw events.
 
  * 
  * @author daniel
@@ -63,6 +71,15 @@ public class DataServlet implements IServlet {
 	private static final IntField SIZE = new IntField("size");
 	public static final SField DATASPACE = new SField("dataspace");
 	private static final String LOGTAG = "DataServlet";
+	/**
+	 * Page size when streaming a csv export
+	 */
+	private static final int CSV_PAGE_SIZE = 1000;
+
+	/**
+	 * Shared by all DataServlets (there's one per request)
+	 */
+	static final DataResultCache resultCache = new DataResultCache(1000);
 
 	@Override
 	public void process(WebRequest state) throws IOException {						
@@ -106,47 +123,104 @@ public class DataServlet implements IServlet {
 		if (q==null) q = "";
 		SearchQuery filter = new SearchQuery(q);				
 
+		Dt interval = state.get(new DtField("interval"), TUnit.DAY.dt);
+		
+		// csv? Stream out the matching events (not the aggregations)
+		if (state.getResponseType() == KResponseType.csv) {
+			if ( ! isLoggedIn(state)) {
+				throw new WebEx.E401(state.getRequestUrl(), "Not logged in => no csv export");
+			}
+			// all of them, unless size is set
+			int max = state.get(SIZE, Integer.MAX_VALUE);
+			doSendCSV(state, dataspace, filter, start, end, max);
+			return;
+		}
+		
+		// debug requests want the search itself, so skip the cache
+		if (state.debug) {
+			Map aggregations = doSearch(state, dataspace, breakdown, filter, numTerms, size, start, end, interval);
+			JsonResponse jr = new JsonResponse(state, aggregations);		
+			WebUtils2.sendJson(jr, state);
+			return;
+		}
+		
+		// Cached? Dashboards poll the same queries, so share the answer between viewers.
+		// NB: the security check above is per request
+		Time[] window = resultCache.normaliseWindow(start, end);
+		final Time s = window[0], e = window[1];
+		final int _size = size;
+		final List<String> _breakdown = breakdown;
+		List key = Arrays.asList(dataspace.toString(), new ArrayList(breakdown), q.trim(), 
+				s.getTime(), e.getTime(), interval.getMillisecs(), numTerms, size);
+		Map aggregations = resultCache.get(key, e, 
+				() -> doSearch(state, dataspace, _breakdown, filter, numTerms, _size, s, e, interval));
+		// done		
+		JsonResponse jr = new JsonResponse(state, aggregations);		
+		WebUtils2.sendJson(jr, state);
+	}
+
+	/**
+	 * Run the ES aggregation search -- over raw events, or rollups where the {@link RollupPlanner} says they can answer it.
+	 * @return aggregations + "examples" (+ "debug" if state.debug)
+	 */
+	private Map doSearch(WebRequest state, Dataspace dataspace, List<String> breakdown, SearchQuery filter, 
+			int numTerms, int size, Time start, Time end, Dt interval) 
+	{
 		DataLogImpl dl = (DataLogImpl) DataLog.getImplementation();
 		ESStorage ess = (ESStorage) dl.getStorage();
 //		ESStorage ess = Dep.get(ESStorage.class);
 		
-		ESHttpClient esc = ess.client(dataspace);		
-
-		// collect all the info together
-		ESDataLogSearchBuilder essb = new ESDataLogSearchBuilder(esc, dataspace);		
-		essb.setBreakdown(breakdown)
-			.setQuery(filter)
-			.setNumResults(numTerms)
-			.setStart(start)
-			.setEnd(end);		
-		Dt interval = state.get(new DtField("interval"), TUnit.DAY.dt);
-		essb.setInterval(interval);
-		
-		SearchRequest search = essb.prepareSearch();		
-		search.setDebug(state.debug);
-//		search.setType(typeFromEventType(spec.eventType)); all types unless fixed
-		search.setSize(size);
+		// raw or rollup?
+		RollupPlanner planner = new RollupPlanner(ess.getRollups(), dl.getConfig().rollupFlush);
+		Plan plan = planner.plan(dataspace, breakdown, filter, start, end, interval);
 		
-		// Search!
-		SearchResponse sr = search.get();		
-		sr.check();
-		
-		Map aggregations = sr.getAggregations();
-		if (aggregations==null) {
-			Log.d(LOGTAG, "No aggregations?! "+state+" "+sr);
-			aggregations = new ArrayMap();
+		Map aggregations = null;
+		List examples = new ArrayList();
+		List<String> curls = new ArrayList();
+		for(Part part : plan.parts) {
+			// examples only come from raw events
+			int partSize = part.rollup==null? Math.max(0, size - examples.size()) : 0;
+			ESHttpClient esc = ess.client(part.dataspace);
+	
+			// collect all the info together
+			ESDataLogSearchBuilder essb = new ESDataLogSearchBuilder(esc, part.dataspace);		
+			essb.setBreakdown(breakdown)
+				.setQuery(filter)
+				.setNumResults(numTerms)
+				.setStart(part.start)
+				.setEnd(part.end)
+				.setEndExclusive(part.endExclusive);		
+			essb.setInterval(interval);
+			
+			SearchRequest search = essb.prepareSearch();		
+			search.setDebug(state.debug);
+	//		search.setType(typeFromEventType(spec.eventType)); all types unless fixed
+			search.setSize(partSize);
+			
+			// Search!
+			SearchResponse sr = search.get();		
+			sr.check();
+			
+			Map partAggs = sr.getAggregations();
+			if (partAggs==null) {
+				Log.d(LOGTAG, "No aggregations?! "+state+" "+part+" "+sr);
+				partAggs = new ArrayMap();
+			}
+			// strip out no0 filter wrappers
+			partAggs = essb.cleanJson(partAggs);
+			aggregations = aggregations==null? partAggs : RollupPlanner.merge(aggregations, partAggs);
+			if (partSize > 0) examples.addAll(sr.getHits());
+			if (state.debug) curls.add(search.getCurl());
 		}
-		// strip out no0 filter wrappers
-		aggregations = essb.cleanJson(aggregations);
 		// also send eg data
-		aggregations.put("examples", sr.getHits());		
+		aggregations.put("examples", examples);		
 		// debug?
 		if (state.debug && isLoggedIn(state)) {
-			aggregations.put("debug", search.getCurl());
+			aggregations.put("debug", curls.size()==1? curls.get(0) : curls);
+			aggregations.put("plan", plan.toString());
+			aggregations.put("cache", resultCache.toString());
 		}
-		// done		
-		JsonResponse jr = new JsonResponse(state, aggregations);		
-		WebUtils2.sendJson(jr, state);
+		return aggregations;
 	}
 
 	/**
@@ -164,19 +238,41 @@ public class DataServlet implements IServlet {
 	}
 
 	/**
-	 * Convert json into a csv (fairly crudely)
-	 * @param state
-	 * @param egs
+	 * Convert the matching events into a csv (fairly crudely), streaming it out page by page.
+	 * Memory use does not grow with the size of the export.
+	 * @param max Max rows
 	 */
-	private void doSendCSV(WebRequest state, List<Map> egs) {
-		HttpServletResponse response = state.getResponse();
-		BufferedWriter out = null;
+	private void doSendCSV(WebRequest state, Dataspace dataspace, SearchQuery filter, Time start, Time end, int max) throws IOException {
+		DataLogImpl dl = (DataLogImpl) DataLog.getImplementation();
+		ESStorage ess = (ESStorage) dl.getStorage();
+		ESHttpClient esc = ess.client(dataspace);
+		ESDataLogSearchBuilder essb = new ESDataLogSearchBuilder(esc, dataspace);
+		essb.setBreakdown(new ArrayList())
+			.setQuery(filter)
+			.setStart(start)
+			.setEnd(end);
+		SearchRequest search = essb.prepareSearch();
+		search.setSize(Math.min(max, CSV_PAGE_SIZE));
+		ESScrollPages pages = new ESScrollPages(esc, search);
+		// the events, one page at a time
+		Iterable<Map> egs = () -> new AbstractIterator<Map>() {
+			Iterator<Map> page;
+			int cnt;
+			@Override
+			protected Map next2() throws Exception {
+				if (cnt == max) return null;
+				cnt++;
+				while(page==null || ! page.hasNext()) {
+					if ( ! pages.hasNext()) return null;
+					List<Map> hits = pages.next().getHits();
+					page = Containers.apply(hits, h -> (Map) h.get("_source")).iterator();
+				}
+				return page.next();
+			}
+		};
+		CSVWriter w = Json2Csv.openResponse(state);
 		try {
-			response.setContentType(WebUtils.MIME_TYPE_CSV);
-			out = FileUtils.getWriter(response.getOutputStream());
-			CSVWriter w = new CSVWriter(out, new CSVSpec());
 			Json2Csv j2c = new Json2Csv(w);
-
 			// optionally have headers set
 			List<String> headers = state.get(new ListField<>("headers"));
 			if (headers != null) {
@@ -184,14 +280,11 @@ public class DataServlet implements IServlet {
 			}
 			// convert!
 			j2c.run(egs);
-			
-			FileUtils.close(w);
-		} catch (IOException e) {
-			throw Utils.runtime(e);
 		} finally {
-			FileUtils.close(out);
+			FileUtils.close(w);
+			// release the scroll if we stopped early (hit max, or the client went away)
+			pages.close();
 		}
 	}
 
-
 }
@@ -0,0 +1,176 @@
+package com.winterwell.datalog.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.winterwell.datalog.DataLog;
+import com.winterwell.datalog.DataLogConfig;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.KQueueFullPolicy;
+
+/**
+ * Async mode for /lg: the request thread captures an {@link LgRecord}, queues it here, and replies at once.
+ * A pool of worker threads does the slow parts: user-agent parsing, bot screening, file logging and storage.
+ * <p>
+ * The queue is bounded ({@link DataLogConfig#lgQueueSize}). When it is full, {@link DataLogConfig#lgOverloadPolicy}
+ * says whether to drop the event, block the request thread for a bit, or log it on the request thread.
+ * <p>
+ * Switch on with {@link DataLogConfig#lgAsync}. Metrics are recorded in DataLog under "lg_queue".
+ *
+ * @author daniel
+ */
+public class LgIngester {
+
+	private static final String LOGTAG = "lg.async";
+
+	static final String STAT = "lg_queue";
+
+	/**
+	 * Sample the queue depth every N events
+	 */
+	private static final int DEPTH_SAMPLE = 100;
+
+	private final ThreadPoolExecutor pool;
+
+	private final KQueueFullPolicy policy;
+
+	private final long blockMsecs;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicInteger submitted = new AtomicInteger();
+
+	public LgIngester(DataLogConfig config) {
+		policy = config.lgOverloadPolicy==null? KQueueFullPolicy.DROP : config.lgOverloadPolicy;
+		blockMsecs = config.lgBlockTime==null? 0 : config.lgBlockTime.getMillisecs();
+		int n = Math.max(1, config.lgWorkers);
+		AtomicInteger threadCnt = new AtomicInteger();
+		pool = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue(Math.max(1, config.lgQueueSize)),
+				r -> {
+					Thread t = new Thread(r, "lg.worker."+threadCnt.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				new OverloadHandler());
+	}
+
+	/**
+	 * Queue a record for logging. Never throws, and normally returns at once.
+	 * @param rec
+	 */
+	public void submit(LgRecord rec) {
+		if (submitted.incrementAndGet() % DEPTH_SAMPLE == 0) {
+			// STATID: lg_queue/depth How many /lg events are waiting to be processed (sampled)
+			DataLog.mean(getQueueDepth(), STAT, "depth");
+		}
+		pool.execute(new Task(rec));
+	}
+
+	public int getQueueDepth() {
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * @return how many events have been dropped since start-up
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stop taking events (later ones are dropped), and let the queue drain (up to a minute).
+	 * Safe to call more than once.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+		try {
+			if ( ! pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				Log.w(LOGTAG, "shutdown timed out with "+getQueueDepth()+" events still queued");
+			}
+		} catch (InterruptedException e) {
+			Log.w(LOGTAG, e);
+		}
+	}
+
+	/**
+	 * Do the logging (on a worker thread). Overridden in testing.
+	 */
+	void process(LgRecord rec) {
+		LgServlet.doLog2(rec);
+	}
+
+	final class Task implements Runnable {
+		final LgRecord rec;
+
+		Task(LgRecord rec) {
+			this.rec = rec;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// STATID: lg_queue/lag Milliseconds from receiving an /lg event to processing it
+				DataLog.mean(System.currentTimeMillis() - rec.created, STAT, "lag");
+				process(rec);
+			} catch(Throwable ex) {
+				Log.e(LOGTAG, ex+" for "+rec);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Task[" + rec + "]";
+		}
+	}
+
+	final class OverloadHandler implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				drop(r);
+				return;
+			}
+			switch(policy) {
+			case CALLER_RUNS:
+				// STATID: lg_queue/caller_runs /lg events processed on the request thread as the queue was full
+				DataLog.count(1, STAT, "caller_runs");
+				r.run();
+				return;
+			case BLOCK:
+				try {
+					if (executor.getQueue().offer(r, blockMsecs, TimeUnit.MILLISECONDS)) {
+						// STATID: lg_queue/blocked /lg events which had to wait for the queue
+						DataLog.count(1, STAT, "blocked");
+						return;
+					}
+				} catch (InterruptedException e) {
+					// fall through to drop
+				}
+				drop(r);
+				return;
+			case DROP: default:
+				drop(r);
+			}
+		}
+
+		private void drop(Runnable r) {
+			long n = dropped.incrementAndGet();
+			// STATID: lg_queue/dropped /lg events thrown away as the queue was full
+			DataLog.count(1, STAT, "dropped");
+			// don't spam the log
+			if (Long.bitCount(n) == 1) {
+				Log.w(LOGTAG, "Queue full - dropped "+n+" events so far. Latest: "+r);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LgIngester[queue=" + getQueueDepth() + ", dropped=" + dropped + ", policy=" + policy + "]";
+	}
+}
@@ -0,0 +1,92 @@
+package com.winterwell.datalog.server;
+
+import java.util.Map;
+
+import com.winterwell.datalog.Dataspace;
+import com.winterwell.utils.time.Time;
+import com.winterwell.web.app.WebRequest;
+
+/**
+ * The bits of an /lg (or tracking-pixel) request that logging needs, captured on the request thread.
+ * This lets the slow parts of logging (user-agent parsing, bot screening, storage) run
+ * after the request has been answered -- see {@link LgIngester}.
+ * 
+ * @author daniel
+ */
+final class LgRecord {
+
+	final Dataspace dataspace;
+	final String gby;
+	final String tag;
+	final double count;
+	/**
+	 * Can be null
+	 */
+	final Time time;
+	/**
+	 * Can be null
+	 */
+	Map params;
+	final boolean stdTrackerParams;
+
+	/**
+	 * NB: made on the request thread, as it can set a cookie
+	 */
+	final String trckId;
+	final String userAgent;
+	final String remoteAddr;
+	final String referer;
+	/**
+	 * DfP hack: used in place of the referer if that's missing
+	 */
+	final String site;
+	/**
+	 * Optional url to call after logging
+	 */
+	String callback;
+
+	/**
+	 * When was this received? Used to measure queue lag.
+	 */
+	final long created = System.currentTimeMillis();
+
+	LgRecord(WebRequest state, Dataspace dataspace, String gby, String tag, double count,
+			Time time, Map params, boolean stdTrackerParams) 
+	{
+		this.dataspace = dataspace;
+		this.gby = gby;
+		this.tag = tag;
+		this.count = count;
+		this.time = time;
+		this.params = params;
+		this.stdTrackerParams = stdTrackerParams;
+		trckId = TrackingPixelServlet.getCreateCookieTrackerId(state);
+		userAgent = state.getUserAgent();
+		remoteAddr = state.getRemoteAddr();
+		referer = state.getReferer();
+		site = state.get("site");
+	}
+
+	/**
+	 * For testing: a record without a request
+	 */
+	LgRecord(Dataspace dataspace, String tag, Map params) {
+		this.dataspace = dataspace;
+		this.gby = null;
+		this.tag = tag;
+		this.count = 1;
+		this.time = null;
+		this.params = params;
+		this.stdTrackerParams = false;
+		trckId = null;
+		userAgent = null;
+		remoteAddr = null;
+		referer = null;
+		site = null;
+	}
+
+	@Override
+	public String toString() {
+		return "LgRecord[" + dataspace + " " + tag + " " + params + "]";
+	}
+}
@@ -1,12 +1,19 @@
 package com.winterwell.datalog.server;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 
 import org.eclipse.jetty.util.ajax.JSON;
@@ -16,9 +23,12 @@ import com.winterwell.datalog.DataLogConfig;
 import com.winterwell.datalog.DataLogEvent;
 import com.winterwell.datalog.Dataspace;
 import com.winterwell.utils.Dep;
+import com.winterwell.utils.FailureException;
 import com.winterwell.utils.Printer;
 import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.containers.Cache;
 import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.ICallable;
@@ -78,6 +88,12 @@ public class LgServlet {
 	 */
 	public static final SField GBY = new SField("gby");
 	
+	/**
+	 * Optional url to POST the event to after logging. 
+	 * Same parameter name as the old JsonResponse.CALLBACK
+	 */
+	static final SField CALLBACK = new SField("callback");
+	
 	static final BoolField track = new BoolField("track");
 	
 	/**
@@ -134,21 +150,10 @@ public class LgServlet {
 		}
 		ICallable<Time> ctime = state.get(DataLogFields.time);
 		Time time = ctime==null? null : ctime.call();
-		// log it!
-		DataLogEvent logged = doLog(state, ds, gby, tag, count, time, params, stdTrackerParams);
-				
-		// also fire a callback?
-		String cb = state.get(JsonResponse.CALLBACK);
-		if (cb!=null) {
-			try {
-				FakeBrowser fb = new FakeBrowser();
-				fb.setTimeOut(1000); // don't wait around - just call and go
-				fb.getPage(cb);
-			} catch(Exception ex) {
-				// oh well
-				Log.d("log.callback", cb+" from "+state+"-> "+ex);
-			}
-		}
+		// log it! (and also fire a callback?)
+		LgRecord rec = new LgRecord(state, ds, gby, tag, count, time, params, stdTrackerParams);
+		rec.callback = state.get(CALLBACK);
+		DataLogEvent logged = doLog(rec);
 		
 		// Reply		
 		// Send a .gif for a pixel?
@@ -161,7 +166,7 @@ public class LgServlet {
 			state.sendRedirect();
 			return;
 		}
-		// send the event back as json
+		// send the event back as json (NB: null in async mode, as it's not made yet)
 		if (DataLogServer.settings.CORS) {
 			WebUtils2.CORS(state, false);
 		}
@@ -198,10 +203,14 @@ public class LgServlet {
 	}
 
 	/**
-	 * TODO refactor as Map key:ip value=user-type eg "bot"
+	 * ip -> user-type eg "bot". Swapped in whole by {@link #refreshBotIPs()}.
+	 * Empty until the first fetch from Portal completes.
 	 */
-	static List<Map> userTypeForIPorXId;
-	static volatile Time userTypeForIPorXIdFetched;
+	static volatile BotIPIndex botIPs = BotIPIndex.EMPTY;
+	
+	static final AtomicBoolean botIPRefresherStarted = new AtomicBoolean();
+	
+	static final String BOTIP_URL = "https://portal.good-loop.com/botip/_list.json";
 	
 	/**
 	 * 
@@ -212,18 +221,62 @@ public class LgServlet {
 	 * @param time Optional set the event time 
 	 * @param params can be null
 	 * @param stdTrackerParams
-	 * @return event, or null if this was screened out (eg our own IPs)
+	 * @return event, or null if this was screened out (eg our own IPs), or queued in async mode
 	 */
 	public static DataLogEvent doLog(WebRequest state, Dataspace dataspace, String gby, String tag, double count, 
 			Time time, Map params, boolean stdTrackerParams) 
 	{
 		assert dataspace != null;		
 		assert tag != null : state;
-		String trckId = TrackingPixelServlet.getCreateCookieTrackerId(state);
+		LgRecord rec = new LgRecord(state, dataspace, gby, tag, count, time, params, stdTrackerParams);
+		return doLog(rec);
+	}
+
+	/**
+	 * Log now, or queue for the async workers if {@link DataLogConfig#lgAsync} is on.
+	 * @param rec
+	 * @return event, or null if this was screened out or queued
+	 */
+	static DataLogEvent doLog(LgRecord rec) {
+		if (Dep.has(LgIngester.class)) {
+			Dep.get(LgIngester.class).submit(rec);
+			return null;
+		}
+		return doLog2(rec);
+	}
+
+	/**
+	 * The slow part of logging: enrich, screen, and store. 
+	 * Called on the request thread, or on an {@link LgIngester} worker thread.
+	 * @param rec
+	 * @return event, or null if this was screened out (eg our own IPs)
+	 */
+	static DataLogEvent doLog2(LgRecord rec) {
+		DataLogEvent event = doLog3(rec);
+		// also fire a callback?
+		String cb = rec.callback;
+		if (cb!=null) {
+			try {
+				FakeBrowser fb = new FakeBrowser();
+				fb.setTimeOut(1000); // don't wait around - just call and go
+				fb.getPage(cb);
+			} catch(Exception ex) {
+				// oh well
+				Log.d("log.callback", cb+" from "+rec+"-> "+ex);
+			}
+		}
+		return event;
+	}
+	
+	private static DataLogEvent doLog3(LgRecord rec) {
+		Dataspace dataspace = rec.dataspace;
+		String tag = rec.tag;
+		Map params = rec.params;
 		// special vars
-		if (stdTrackerParams) {			
-			params = doLog2_addStdTrackerParams(state, params, trckId);
+		if (rec.stdTrackerParams) {			
+			params = doLog2_addStdTrackerParams(rec, params);
 		}
+		if (params==null) params = new ArrayMap(); // NPE paranoia
 		
 		// HACK remove Hetzner from the ip param 
 		// TODO make this a config setting?? Or even better, the servers report their IP
@@ -252,14 +305,14 @@ public class LgServlet {
 		}
 		
 		// write to log file
-		doLogToFile(dataspace, tag, count, params, trckId, state);
+		doLogToFile(dataspace, tag, rec.count, params, rec);
 				
 		// write to Stat / ES
 		// ...which dataspaces?
 		// Multiple dataspaces: Dan A reports a significant cost to per-user dataspaces
 		// -- he estimated one server per 4k ES indexes. c.f. #5403
-		DataLogEvent event = new DataLogEvent(dataspace, gby, count, new String[] { tag}, params);
-		if (time != null) event.setTime(time);
+		DataLogEvent event = new DataLogEvent(dataspace, rec.gby, rec.count, new String[] { tag}, params);
+		if (rec.time != null) event.setTime(rec.time);
 		DataLog.count(event);
 
 		return event;
@@ -267,68 +320,79 @@ public class LgServlet {
 	
 	
 	/**
-	 * Is it a bot? works with Portal which holds the data
+	 * Is it a bot? works with Portal which holds the data.
+	 * This never blocks: the list is fetched by a background thread (see {@link #refreshBotIPs()}),
+	 * and until the first fetch completes, nothing is marked as invalid.
 	 * @param ips
-	 * @return
+	 * @return user-type eg "bot", or null
 	 */
 	private static String getInvalidType(List ips) {
 		assert ips != null;
-		if (userTypeForIPorXId==null || userTypeForIPorXIdFetched==null || userTypeForIPorXIdFetched.isBefore(new Time().minus(10, TUnit.MINUTE))) {
-			//Needs to be set first -- will get caught in a loop otherwise as userTypeForIPorXId is still null
-			userTypeForIPorXIdFetched = new Time();			
-			FakeBrowser fb = new FakeBrowser();
-			fb.setRequestMethod("GET");
-
-			try {
-				//Right now, just set to point at local. TODO read in correct endpoint from state
-				String json= fb.getPage("https://portal.good-loop.com/botip/_list.json");
-				Map response = (Map) WebUtils2.parseJSON(json);
-				Map esres = (Map) response.get("cargo");
-				List<Map> hits = Containers.asList(esres.get("hits"));
-				
-				userTypeForIPorXId = hits;
-			}
-			catch(Exception ex) {
-				Log.e("lg.getInvalidType", ex);
-				userTypeForIPorXId = new ArrayList(); // paranoia: keep logging fast. This will get checked again in 10 minutes
-			}
+		if ( ! botIPRefresherStarted.get() && botIPRefresherStarted.compareAndSet(false, true)) {
+			startBotIPRefresher();
 		}
-		//At this point, can safely assume that we have a valid list of IPs
+		BotIPIndex index = botIPs;
 		for (Object userIP : ips) {
-			for(Map botIP : userTypeForIPorXId) {
-				String badIP = (String) botIP.get("ip");
-				if (userIP.equals(badIP)) return (String) botIP.get("type");
-			}
+			if (userIP==null) continue;
+			String type = index.getType(userIP.toString());
+			if (type != null) return type;
 		}
 		return null;
 	}
 
-
-	static ua_parser.Parser parser;
+	private static void startBotIPRefresher() {
+		Timer timer = new Timer("lg.botips", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				refreshBotIPs();
+			}
+		}, 0, TUnit.MINUTE.getMillisecs()*10);
+	}
 	
+	/**
+	 * Fetch the bot list from Portal, and swap in a new index. 
+	 * On error, keep the old index (it will be tried again in 10 minutes).
+	 */
+	static void refreshBotIPs() {
+		try {
+			FakeBrowser fb = new FakeBrowser();
+			fb.setRequestMethod("GET");
+			//Right now, just set to point at local. TODO read in correct endpoint from state
+			String json = fb.getPage(BOTIP_URL);
+			Map response = (Map) WebUtils2.parseJSON(json);
+			Map esres = (Map) response.get("cargo");
+			List<Map> hits = Containers.asList(esres.get("hits"));
+			BotIPIndex index = BotIPIndex.build(hits);
+			botIPs = index;
+			Log.d("lg.getInvalidType", "Refreshed "+index);
+		} catch(Throwable ex) {
+			Log.e("lg.getInvalidType", ex);
+		}
+	}
+
 
 	/**
 	 * Add ua (user agent), user, ip.
 	 * Adds nothing if this is a call from one of our servers.
 	 * 
-	 * @param state
+	 * @param rec
 	 * @param params Can be null
-	 * @param trckId
 	 * @return params, never null
 	 */
-	private static Map doLog2_addStdTrackerParams(WebRequest state, Map params, String trckId) {
+	private static Map doLog2_addStdTrackerParams(LgRecord rec, Map params) {
 		// TODO allow the caller to explicitly set some of these if they want to
 		if (params==null) params = new ArrayMap();
 		// Browser info
-		String ua = state.getUserAgent();
+		String ua = rec.userAgent;
 		if (FakeBrowser.HONEST_USER_AGENT.equals(ua)) {
 			return params; // dont add tracking params for our own server calls
 		}
 		params.putIfAbsent("ua", ua);
 		// Replace $user with tracking-id, and $
-		params.putIfAbsent("user", trckId);			
+		params.putIfAbsent("user", rec.trckId);			
 		// ip: $ip
-		params.putIfAbsent("ip", state.getRemoteAddr());
+		params.putIfAbsent("ip", rec.remoteAddr);
 			
 		BrowserType bt = getBrowserInfo(ua);
 		boolean mobile = bt.isMobile();		
@@ -343,8 +407,8 @@ public class LgServlet {
 		params.putIfAbsent("os", os);
 		
 		// what page?
-		String ref = state.getReferer();
-		if (ref==null) ref = state.get("site"); // DfP hack
+		String ref = rec.referer;
+		if (ref==null) ref = rec.site; // DfP hack
 		// remove some gumpf (UTM codes)
 		String cref = WebUtils2.cleanUp(ref);
 		if (cref != null) {
@@ -359,33 +423,118 @@ public class LgServlet {
 
 	
 	/**
-	 * Uses ua_parser if it can
+	 * user-agent -> browser info.
+	 * The set of distinct user-agents is small relative to traffic, so this saves most of the ua_parser work.
+	 * Failed parses are not cached.
+	 */
+	static final Cache<String, BrowserType> browserInfoCache = new Cache(20000);
+	
+	/**
+	 * Uses ua_parser if it can.
+	 * Cached -- NB: the returned object may be shared, so treat it as read-only.
 	 * @param ua
 	 * @return
 	 */
 	public static BrowserType getBrowserInfo(String ua) {
+		if (ua==null) {
+			return getBrowserInfo2(ua);
+		}
+		BrowserType bt = browserInfoCache.get(ua);
+		if (bt != null) {
+			// STATID: ua_cache/hit user-agent parses saved by the cache
+			DataLog.count(1, "ua_cache", "hit");
+			return bt;
+		}
+		// STATID: ua_cache/miss user-agent parses done
+		DataLog.count(1, "ua_cache", "miss");
+		bt = new BrowserType(ua);
+		if (getBrowserInfo2_parse(bt, ua)) {
+			browserInfoCache.put(ua, bt);
+		}
+		return bt;
+	}
+
+	private static BrowserType getBrowserInfo2(String ua) {
 		BrowserType bt = new BrowserType(ua);
-		// browser
+		getBrowserInfo2_parse(bt, ua);
+		return bt;
+	}
+
+	/**
+	 * @return false if ua_parser failed (so bt just has the raw user-agent)
+	 */
+	private static boolean getBrowserInfo2_parse(BrowserType bt, String ua) {
+		ua_parser.Parser _parser = null;
 		try {
-			ua_parser.Parser _parser = uaParser();
+			_parser = uaParser();
 			Client uac = _parser.parse(ua);			
 			bt.setBrowserMake(uac.userAgent.family);
 			bt.setVersion(uac.userAgent.major);
 			bt.setOS(uac.os.family);
+			return true;
 		} catch(Throwable ex) {
 			Log.w("lg", ex);
+			return false;
+		} finally {
+			if (_parser != null) releaseUaParser(_parser);
 		}
-		return bt;
 	}
 
+	/**
+	 * Idle parsers. ua_parser.Parser's thread safety is undocumented, so each parser is used by one thread at a time.
+	 */
+	private static final BlockingQueue<Parser> parserPool = new LinkedBlockingQueue();
+	
+	private static final AtomicInteger parsersMade = new AtomicInteger();
+	
+	/**
+	 * The constructor loads files, so we keep a few and reuse them.
+	 */
+	static final int MAX_PARSERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * How long to wait for a free parser before giving up
+	 */
+	private static final long PARSER_WAIT_MSECS = 1000;
+	
+	/**
+	 * Makes the parsers, if set. For testing.
+	 */
+	static Callable<Parser> parserFactory;
 
-	static Parser uaParser() throws IOException {
-		// The constructor loads files, so lets stash one copy and reuse it.
-		// Thread safety: not sure!
-		if (parser==null) {
-			parser = new Parser();
+	/**
+	 * Borrow a parser. Please return it after use with {@link #releaseUaParser(Parser)}.
+	 * @return a parser which no other thread is using 
+	 * @throws FailureException if no parser came free in time
+	 */
+	static Parser uaParser() {
+		Parser p = parserPool.poll();
+		if (p != null) return p;
+		// make another?
+		if (parsersMade.incrementAndGet() <= MAX_PARSERS) {
+			try {
+				return parserFactory==null? new Parser() : parserFactory.call();
+			} catch (Throwable e) {
+				// don't use up a slot (NB: a missing yaml jar gives an Error, not an Exception)
+				parsersMade.decrementAndGet();
+				throw Utils.runtime(e);
+			}
+		}
+		parsersMade.decrementAndGet();
+		// wait for one
+		try {
+			p = parserPool.poll(PARSER_WAIT_MSECS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw Utils.runtime(e);
 		}
-		return parser;
+		if (p == null) {
+			throw new FailureException("No free ua_parser after "+PARSER_WAIT_MSECS+"ms ("+MAX_PARSERS+" in use)");
+		}
+		return p;
+	}
+
+	static void releaseUaParser(Parser p) {
+		parserPool.offer(p);
 	}
 
 
@@ -436,10 +585,10 @@ public class LgServlet {
 	 */
 	static final List<String> OUR_IPS = Dep.get(DataLogConfig.class).ourSkippedIPs;
 	
-	private static void doLogToFile(Dataspace dataspace, String tag, double count, Map params, String trckId, WebRequest state) {
+	private static void doLogToFile(Dataspace dataspace, String tag, double count, Map params, LgRecord rec) {
 		String msg = params == null? "" : Printer.toString(params, ", ", ": ");
 		if (count != 1) msg += "\tcount:"+count;
-		msg += "\ttracker:"+trckId+"\tref:"+state.getReferer()+"\tip:"+state.getRemoteAddr();
+		msg += "\ttracker:"+rec.trckId+"\tref:"+rec.referer+"\tip:"+rec.remoteAddr;
 		// Guard against giant objects getting put into log, which is almost
 		// certainly a careless error
 		if (msg.length() > Log.MAX_LENGTH) {
@@ -452,7 +601,7 @@ public class LgServlet {
 		// Note: LogFile will force the report onto one line by converting [\r\n] to " "
 		// Add in referer and IP
 		// Tab-separating elements on this line is useless, as Report.toString() will immediately convert \t to space.
-		String msgPlus = msg+" ENDMSG "+state.getReferer()+" "+state.getRemoteAddr();
+		String msgPlus = msg+" ENDMSG "+rec.referer+" "+rec.remoteAddr;
 		
 		// error or warning?
 		if (tag.contains("error")) {
@@ -1,8 +1,28 @@
 package com.winterwell.datalog;
 
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpServer;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.threads.Actor;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
+import com.winterwell.web.FakeBrowser;
+import com.winterwell.web.HttpTransport;
+import com.winterwell.web.WebEx;
 
 public class CallbackManagerTest {
 
@@ -16,4 +36,213 @@ public class CallbackManagerTest {
 		cm.consume2_doCallback(dle, callback);
 	}
 
+	/**
+	 * Collects dead letters
+	 */
+	static class DeadLetters extends Actor<DataLogEvent> {
+		final List<DataLogEvent> got = Collections.synchronizedList(new ArrayList());
+		@Override
+		protected void consume(DataLogEvent msg, Actor sender) throws Exception {
+			got.add(msg);
+		}
+	}
+	
+	/**
+	 * A fake webhook: completes each POST after a delay (on another thread), and records the batch sizes and peak concurrency.
+	 */
+	static class FakeHook {
+		final ScheduledExecutorService exec = Executors.newScheduledThreadPool(8);
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList());
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final AtomicInteger calls = new AtomicInteger();
+		long delay = 20;
+		/**
+		 * Fail the first n calls with this
+		 */
+		int failFirst;
+		RuntimeException failWith;
+		
+		CompletableFuture<?> post(List<DataLogEvent> events) {
+			batchSizes.add(events.size());
+			int n = inFlight.incrementAndGet();
+			maxInFlight.accumulateAndGet(n, Math::max);
+			int call = calls.incrementAndGet();
+			CompletableFuture<String> f = new CompletableFuture();
+			exec.schedule(() -> {
+				inFlight.decrementAndGet();
+				if (call <= failFirst) f.completeExceptionally(failWith);
+				else f.complete("OK");
+			}, delay, TimeUnit.MILLISECONDS);
+			return f;
+		}
+	}
+
+	static ScheduledExecutorService timer() {
+		return Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	static DataLogEvent event(int i) {
+		DataLogEvent dle = new DataLogEvent("minview", i);
+		dle.time = new Time();
+		return dle;
+	}
+	
+	static void waitFor(CallbackEndpoint ep, long n) {
+		for(int i=0; i<500; i++) {
+			if (ep.getDelivered() + ep.getDead() >= n) return;
+			Utils.sleep(10);
+		}
+		assert false : ep;
+	}
+	
+	@Test
+	public void testParallelNoBatch() {
+		FakeHook hook = new FakeHook();
+		CallbackEndpoint ep = new CallbackEndpoint("http://hook", false, hook::post, timer(), new DeadLetters());
+		ep.parallelism = 3;
+		for(int i=0; i<30; i++) {
+			ep.add(event(i));
+		}
+		waitFor(ep, 30);
+		assert ep.getDelivered() == 30 : ep;
+		assert ep.getPosts() == 30 : ep;
+		assert hook.maxInFlight.get() == 3 : hook.maxInFlight;
+		assert ep.getQueueSize() == 0 && ep.getInFlight() == 0 : ep;
+		assert ep.getMaxLag() > 0 : ep;
+		assert ep.getThroughput() > 0 : ep;
+	}
+	
+	@Test
+	public void testBatching() {
+		FakeHook hook = new FakeHook();
+		CallbackEndpoint ep = new CallbackEndpoint("http://hook", true, hook::post, timer(), new DeadLetters());
+		ep.parallelism = 2;
+		ep.maxBatch = 10;
+		for(int i=0; i<100; i++) {
+			ep.add(event(i));
+		}
+		waitFor(ep, 100);
+		assert ep.getDelivered() == 100 : ep;
+		// the first 2 go straight out, then the backlog goes in batches
+		assert ep.getPosts() < 20 : ep;
+		assert Collections.max(hook.batchSizes) == 10 : hook.batchSizes;
+		assert hook.maxInFlight.get() <= 2 : hook.maxInFlight;
+	}
+	
+	@Test
+	public void testRetryThenDeliver() {
+		FakeHook hook = new FakeHook();
+		hook.failFirst = 2;
+		hook.failWith = new WebEx.E50X(503, "http://hook", "busy");
+		DeadLetters dead = new DeadLetters();
+		CallbackEndpoint ep = new CallbackEndpoint("http://hook", false, hook::post, timer(), dead);
+		ep.parallelism = 1;
+		ep.backoff = new Dt(10, TUnit.MILLISECOND);
+		ep.add(event(1));
+		waitFor(ep, 1);
+		assert ep.getDelivered() == 1 : ep;
+		assert ep.getFailedPosts() == 2 : ep;
+		assert ep.getRetries() == 2 : ep;
+		assert dead.got.isEmpty();
+	}
+	
+	@Test
+	public void testDeadLetters() {
+		FakeHook hook = new FakeHook();
+		hook.delay = 1;
+		hook.failFirst = 1000;
+		hook.failWith = new WebEx.E50X(500, "http://hook", "down");
+		DeadLetters dead = new DeadLetters();
+		CallbackEndpoint ep = new CallbackEndpoint("http://hook", false, hook::post, timer(), dead);
+		ep.backoff = new Dt(1, TUnit.MILLISECOND);
+		ep.maxRetries = 3;
+		ep.add(event(1));
+		ep.add(event(2));
+		waitFor(ep, 2);
+		Utils.sleep(50); // let the dead-letter actor run
+		assert ep.getDead() == 2 : ep;
+		assert ep.getRetries() == 6 : ep;
+		assert hook.calls.get() == 8 : hook.calls;
+		assert dead.got.size() == 2 : dead.got;
+		
+		// a 4xx is not retried
+		hook.failWith = new WebEx.E40X(400, "http://hook", "bad");
+		ep.add(event(3));
+		waitFor(ep, 3);
+		assert ep.getRetries() == 6 : ep;
+		assert hook.calls.get() == 9 : hook.calls;
+	}
+	
+	@Test
+	public void testStalledEndpoint() throws Exception {
+		// a webhook which doesn't answer until we say so
+		CountDownLatch stall = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", ex -> {
+			try {
+				stall.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				// oh well
+			}
+			ex.sendResponseHeaders(200, 2);
+			try (OutputStream out = ex.getResponseBody()) {
+				out.write("OK".getBytes());
+			}
+		});
+		server.start();
+		String url = "http://localhost:"+server.getAddress().getPort()+"/hook";
+		// fewer http slots than the endpoint's parallelism
+		HttpTransport.set(new HttpTransport(2, new Dt(5, TUnit.SECOND)));
+		try {
+			CallbackEndpoint ep = new CallbackEndpoint(url, false,
+					events -> new FakeBrowser().postAsync(url, FakeBrowser.MIME_TYPE_URLENCODED_FORM, "n="+events.size()),
+					timer(), new DeadLetters());
+			ep.parallelism = 4;
+			long t = System.currentTimeMillis();
+			for(int i=0; i<20; i++) {
+				ep.add(event(i));
+			}
+			// add() must not wait for the stalled POSTs
+			assert System.currentTimeMillis() - t < 500 : ep;
+			assert ep.getInFlight() == 4 : ep;
+			assert HttpTransport.get().getQueued() == 2 : HttpTransport.get();
+			stall.countDown();
+			waitFor(ep, 20);
+			assert ep.getDelivered() == 20 : ep;
+		} finally {
+			HttpTransport.set(null);
+			server.stop(0);
+		}
+	}
+	
+	@Test
+	public void testManagerRoutesPerUrl() {
+		List<String> posted = Collections.synchronizedList(new ArrayList());
+		CallbackManager cm = new CallbackManager() {
+			@Override
+			protected CompletableFuture<?> post(String url, List<DataLogEvent> events) {
+				for (DataLogEvent e : events) posted.add(url);
+				return CompletableFuture.completedFuture("OK");
+			}
+		};
+		Callback a = new Callback("gl", "minview", "http://a");
+		Callback b = new Callback("gl", "minview", "http://b");
+		for(int i=0; i<5; i++) {
+			cm.consume2_doCallback(event(i), a);
+			cm.consume2_doCallback(event(i), b);
+		}
+		CallbackEndpoint epa = cm.getEndpoints().get("http://a");
+		waitFor(epa, 5);
+		waitFor(cm.getEndpoints().get("http://b"), 5);
+		assert cm.getEndpoints().size() == 2 : cm.getEndpoints();
+		assert posted.size() == 10 : posted;
+		assert epa.getDelivered() == 5 : epa;
+	}
+
 }
@@ -79,11 +79,10 @@ public class DatalogTestCase {
 		Time te1 = new Time(e1);
 		Period period = new Period(ts1, te1);
 		
-		Map<String, Double> old = si.tag2count;		
+		Map<String, Double> old = si.tag2count.swap();		
 		Map<String, IDistribution1D> oldMean = si.tag2dist;	
 		
 		si.save(period, old, oldMean);
-		si.tag2count = new ConcurrentHashMap();
 		si.tag2dist = new ConcurrentHashMap();
 		return period;
 	}
@@ -0,0 +1,179 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.ESBulkWriter.Item;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * @tested {@link ESBulkWriter}
+ * @author daniel
+ *
+ */
+public class ESBulkWriterTest {
+
+	/**
+	 * Records batches instead of talking to ES
+	 */
+	static class RecordingWriter extends ESBulkWriter {
+		final List<List<Item>> batches = Collections.synchronizedList(new ArrayList());
+		/**
+		 * Fail this many requests outright (as if ES were down)
+		 */
+		volatile int failRequests;
+
+		RecordingWriter(DataLogConfig config) {
+			super(new ESStorage(), config);
+		}
+
+		@Override
+		void doBulk(Dataspace dataspace, List<Item> batch) {
+			if (failRequests > 0) {
+				failRequests--;
+				throw new IllegalStateException("ES is down");
+			}
+			batches.add(batch);
+		}
+
+		int sent() {
+			int n = 0;
+			synchronized (batches) {
+				for (List<Item> b : batches) n += b.size();
+			}
+			return n;
+		}
+	}
+
+	Dataspace ds = new Dataspace("bulktest");
+	Period period = new Period(new Time().minus(TUnit.MINUTE), new Time());
+
+	private DataLogConfig config(int size, Dt maxAge) {
+		DataLogConfig dlc = new DataLogConfig();
+		dlc.bulkSize = size;
+		dlc.bulkMaxAge = maxAge;
+		dlc.bulkMaxInFlight = 2;
+		dlc.bulkMaxRetries = 2;
+		return dlc;
+	}
+
+	private DataLogEvent event(int i) {
+		return new DataLogEvent(ds.name, 1, "test", new ArrayMap("i", i, "n", "bulk"));
+	}
+
+	@Test
+	public void testSendOnSize() {
+		RecordingWriter bw = new RecordingWriter(config(3, TUnit.HOUR.dt));
+		for(int i=0; i<5; i++) {
+			bw.add(ds, event(i), period);
+		}
+		Utils.sleep(200);
+		assert bw.batches.size() == 1 : bw.batches;
+		assert bw.batches.get(0).size() == 3;
+		assert bw.getPendingCount() == 2;
+		bw.close();
+	}
+
+	@Test
+	public void testSendOnAge() {
+		RecordingWriter bw = new RecordingWriter(config(100, new Dt(50, TUnit.MILLISECOND)));
+		bw.add(ds, event(1), period);
+		bw.add(ds, event(2), period);
+		assert bw.batches.isEmpty();
+		Utils.sleep(400);
+		assert bw.sent() == 2 : bw.batches;
+		assert bw.getPendingCount() == 0;
+		bw.close();
+	}
+
+	@Test
+	public void testFlushAndClose() {
+		RecordingWriter bw = new RecordingWriter(config(100, TUnit.HOUR.dt));
+		bw.add(ds, event(1), period);
+		bw.flush();
+		assert bw.sent() == 1 : bw.batches;
+		// close sends the last partial batch
+		bw.add(ds, event(2), period);
+		bw.add(ds, event(3), period);
+		bw.close();
+		assert bw.sent() == 3 : bw.batches;
+		try {
+			bw.add(ds, event(4), period);
+			assert false;
+		} catch(IllegalStateException ex) {
+			// good
+		}
+	}
+
+	@Test
+	public void testCloseStorageWithoutWriter() {
+		ESStorage storage = new ESStorage();
+		// no writer made yet - close is harmless
+		storage.close();
+	}
+
+	@Test
+	public void testRequestFailureIsRetried() {
+		RecordingWriter bw = new RecordingWriter(config(100, TUnit.HOUR.dt));
+		bw.failRequests = 1;
+		bw.add(ds, event(1), period);
+		bw.add(ds, event(2), period);
+		bw.flush();
+		assert bw.sent() == 0;
+		// requeued
+		assert bw.getPendingCount() == 2 : bw.getPendingCount();
+		bw.flush();
+		assert bw.sent() == 2 : bw.batches;
+		bw.close();
+	}
+
+	@Test
+	public void testRequestFailureGivesUp() {
+		RecordingWriter bw = new RecordingWriter(config(100, TUnit.HOUR.dt));
+		bw.failRequests = 10;
+		bw.add(ds, event(1), period);
+		// 1st try + 2 retries
+		for(int i=0; i<3; i++) {
+			bw.flush();
+		}
+		assert bw.getPendingCount() == 0 : bw.getPendingCount();
+		assert bw.sent() == 0;
+		bw.close();
+	}
+
+	@Test
+	public void testItemFailures() {
+		RecordingWriter bw = new RecordingWriter(config(100, TUnit.HOUR.dt));
+		List<Item> batch = new ArrayList();
+		for(int i=0; i<5; i++) {
+			batch.add(new Item(ds, event(i), period));
+		}
+		// already retried to the limit
+		batch.get(4).retries = 2;
+		List<Map> items = Arrays.asList(
+				new ArrayMap("index", new ArrayMap("status", 201)),
+				new ArrayMap("index", new ArrayMap("status", 429)),
+				new ArrayMap("index", new ArrayMap("status", 400, "error", "mapper_parsing_exception")),
+				new ArrayMap("update", new ArrayMap("status", 503)),
+				new ArrayMap("index", new ArrayMap("status", 429))
+				);
+		List<Item> retry = bw.doBulk2_itemFailures(batch, items);
+		// rejected (429) and server errors get retried -- bad requests and over-the-limit items do not
+		assert retry.size() == 2 : retry;
+		assert retry.get(0) == batch.get(1);
+		assert retry.get(1) == batch.get(3);
+		assert batch.get(1).retries == 1;
+		assert batch.get(2).retries == 0;
+		bw.close();
+	}
+}
@@ -0,0 +1,335 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.RollupPlanner.Part;
+import com.winterwell.datalog.RollupPlanner.Plan;
+import com.winterwell.nlp.query.SearchQuery;
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+import com.winterwell.web.app.AppUtils;
+
+public class RollupEngineTest {
+
+	static final Dataspace ds = new Dataspace("test");
+
+	static DataLogConfig config(Time since) {
+		DataLogConfig config = new DataLogConfig();
+		config.rollups = Arrays.asList("test");
+		config.rollupSince = since;
+		return config;
+	}
+
+	/**
+	 * Stands in for ES: rollup docs are overwritten by id
+	 */
+	static class FakeStore {
+		final Map<Dataspace, Map<String, DataLogEvent>> docs = new HashMap();
+		int writes;
+
+		void write(Dataspace rds, Map<String, DataLogEvent> id2doc) {
+			writes++;
+			docs.computeIfAbsent(rds, k -> new HashMap()).putAll(id2doc);
+		}
+
+		List<DataLogEvent> get(Dataspace rds) {
+			Map<String, DataLogEvent> m = docs.get(rds);
+			return m==null? new ArrayList() : new ArrayList(m.values());
+		}
+	}
+
+	/**
+	 * A mini version of the ES aggregation: sum of count and amount, by time-bucket and field.
+	 * @param field can be null
+	 * @param endExclusive As for {@link AppUtils#makeESFilterFromSearchQuery(SearchQuery, Time, Time, boolean)} 
+	 * -- see {@link #testPartFilters()} which checks that against the real filter.
+	 */
+	static Map<List, double[]> aggregate(List<DataLogEvent> events, Time start, Time end, boolean endExclusive, String field, Dt interval) {
+		Map<List, double[]> out = new HashMap();
+		for (DataLogEvent e : events) {
+			long t = e.getTime().getTime();
+			if (t < start.getTime() || t > end.getTime() || (endExclusive && t == end.getTime())) continue;
+			long bucket = RollupEngine.floor(t, TUnit.HOUR) / interval.getMillisecs() * interval.getMillisecs();
+			Object v = field==null? null : field.equals("evt")? e.getEventType0() : e.getProp(field);
+			double[] sum = out.computeIfAbsent(Arrays.asList(bucket, v), k -> new double[2]);
+			sum[0] += e.count;
+			Object amount = e.getProp("amount");
+			if (amount != null) sum[1] += MathUtils.toNum(amount);
+		}
+		return out;
+	}
+
+	static void addAll(Map<List, double[]> total, Map<List, double[]> part) {
+		for (List k : part.keySet()) {
+			double[] t = total.computeIfAbsent(k, x -> new double[2]);
+			t[0] += part.get(k)[0];
+			t[1] += part.get(k)[1];
+		}
+	}
+
+	static List<DataLogEvent> randomEvents(Random r, Time t0, int n, long spanMs) {
+		String[] evts = "minview click donation".split(" ");
+		String[] domains = "a.com b.com c.com".split(" ");
+		String[] countries = "GB US FR".split(" ");
+		List<DataLogEvent> events = new ArrayList();
+		for(int i=0; i<n; i++) {
+			Map props = new ArrayMap(
+					"domain", domains[r.nextInt(domains.length)],
+					"user", "user"+r.nextInt(1000) // not rolled up
+					);
+			if (r.nextBoolean()) props.put("country", countries[r.nextInt(countries.length)]);
+			if (r.nextInt(5)==0) props.put("amount", 0.25 * r.nextInt(20));
+			DataLogEvent e = new DataLogEvent(ds, 1 + r.nextInt(3), evts[r.nextInt(evts.length)], props);
+			e.time = new Time(t0.getTime() + (long) (r.nextDouble() * spanMs));
+			events.add(e);
+		}
+		return events;
+	}
+
+	/**
+	 * The main test: answer breakdowns from raw events, and via the planner from rollups -- they must match.
+	 */
+	@Test
+	public void testRawVsRollupCorrectness() {
+		Random r = new Random(42);
+		// 3 days, starting mid-hour, a week ago
+		Time t0 = new Time(RollupEngine.floor(new Time().minus(7, TUnit.DAY).getTime(), TUnit.DAY) + 17*60000);
+		long span = 3 * TUnit.DAY.getMillisecs();
+		List<DataLogEvent> raw = randomEvents(r, t0, 5000, span);
+		// ...and some on the part boundaries (e.g. periodic stats, which are stamped at the end of their bucket)
+		Time start = new Time(t0.getTime() + 5*60000); // ragged start
+		Time end = new Time(t0.getTime() + span + 60000);
+		List<DataLogEvent> onTheHour = randomEvents(r, t0, 80, 1);
+		for(int i=0; i<onTheHour.size(); i++) {
+			onTheHour.get(i).time = new Time(RollupEngine.ceil(t0.getTime(), TUnit.HOUR) + i*TUnit.HOUR.getMillisecs());
+		}
+		onTheHour.get(0).time = start;
+		onTheHour.get(1).time = end;
+		raw.addAll(onTheHour);
+		RollupEngine engine = new RollupEngine(config(new Time(0)));
+		FakeStore store = new FakeStore();
+		// add with flushes along the way (which overwrite, and drop closed buckets from memory)
+		for(int i=0; i<raw.size(); i++) {
+			DataLogEvent e = raw.get(i);
+			engine.add(ds, e, e.time);
+			if (i % 1000 == 999) engine.flush(store::write);
+		}
+		engine.flush(store::write);
+		assert engine.size() == 0 : engine; // all closed
+		assert store.writes > 2;
+
+		RollupPlanner planner = new RollupPlanner(engine, TUnit.MINUTE.dt);
+		for(String field : new String[] {null, "evt", "domain", "country"}) {
+			for(Dt interval : new Dt[] {TUnit.HOUR.dt, TUnit.DAY.dt, new Dt(6, TUnit.HOUR)}) {
+				List<String> breakdown = Arrays.asList(field==null? "time" : field+"/time");
+				Plan plan = planner.plan(ds, breakdown, new SearchQuery(""), start, end, interval);
+				assert ! plan.isRaw() : plan;
+				Map<List, double[]> expected = aggregate(raw, start, end, false, field, interval);
+				Map<List, double[]> got = new HashMap();
+				for (Part part : plan.parts) {
+					List<DataLogEvent> src = part.rollup==null? raw : store.get(part.dataspace);
+					addAll(got, aggregate(src, part.start, part.end, part.endExclusive, field, interval));
+				}
+				assert got.keySet().equals(expected.keySet()) : field+" "+interval+" "+plan;
+				for (List k : expected.keySet()) {
+					assert MathUtils.equalish(got.get(k)[0], expected.get(k)[0]) : k+" "+Printer.toString(got.get(k))+" "+plan;
+					assert MathUtils.equalish(got.get(k)[1], expected.get(k)[1]) : k+" "+plan;
+				}
+				if (interval.equals(TUnit.DAY.dt)) {
+					assert plan.toString().contains("day[") : plan;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLateEventsMakeNewDocs() {
+		RollupEngine engine = new RollupEngine(config(new Time(0)));
+		FakeStore store = new FakeStore();
+		Time old = new Time().minus(3, TUnit.DAY);
+		DataLogEvent e1 = new DataLogEvent(ds, 2, "click", new ArrayMap("domain", "a.com"));
+		engine.add(ds, e1, old);
+		engine.flush(store::write);
+		assert engine.size() == 0;
+		// late arrival for the same (dropped) bucket
+		DataLogEvent e2 = new DataLogEvent(ds, 3, "click", new ArrayMap("domain", "a.com"));
+		engine.add(ds, e2, old);
+		engine.flush(store::write);
+		Dataspace hours = RollupEngine.rollupDataspace(ds, TUnit.HOUR);
+		List<DataLogEvent> docs = store.get(hours);
+		assert docs.size() == 2 : docs;
+		assert docs.get(0).count + docs.get(1).count == 5;
+	}
+
+	@Test
+	public void testFailedFlushIsRetried() {
+		RollupEngine engine = new RollupEngine(config(new Time(0)));
+		FakeStore store = new FakeStore();
+		engine.add(ds, new DataLogEvent(ds, 1, "click", new ArrayMap("domain", "a.com")), new Time().minus(2, TUnit.DAY));
+		try {
+			engine.flush((rds, docs) -> { throw new RuntimeException("ES down"); });
+		} catch(Exception ex) {
+			assert false : ex;
+		}
+		assert engine.size() == 2 : engine; // kept
+		assert engine.getCompleteBefore(0) == null;
+		engine.flush(store::write);
+		assert engine.size() == 0;
+		assert store.get(RollupEngine.rollupDataspace(ds, TUnit.DAY)).size() == 1;
+		assert engine.getCompleteBefore(0) != null;
+	}
+
+	@Test
+	public void testPlannerPicksRaw() {
+		RollupEngine engine = new RollupEngine(config(new Time(0)));
+		engine.flush((rds, docs) -> {});
+		RollupPlanner planner = new RollupPlanner(engine, TUnit.MINUTE.dt);
+		Time start = new Time().minus(TUnit.MONTH);
+		Time end = new Time();
+		SearchQuery q = new SearchQuery("");
+		Dt day = TUnit.DAY.dt;
+		// rollup-able
+		assert ! planner.plan(ds, Arrays.asList("evt/time"), q, start, end, day).isRaw();
+		assert ! planner.plan(ds, Arrays.asList("domain {\"amount\":\"sum\"}"), q, start, end, day).isRaw();
+		assert ! planner.plan(ds, Arrays.asList("time"), new SearchQuery("evt:click domain:a.com"), start, end, day).isRaw();
+		// not
+		assert planner.plan(new Dataspace("other"), Arrays.asList("evt/time"), q, start, end, day).isRaw();
+		assert planner.plan(ds, Arrays.asList("user/time"), q, start, end, day).isRaw();
+		assert planner.plan(ds, Arrays.asList("dateRange"), q, start, end, day).isRaw();
+		assert planner.plan(ds, Arrays.asList("evt {\"price\":\"sum\"}"), q, start, end, day).isRaw();
+		assert planner.plan(ds, Arrays.asList("evt/time"), q, start, end, new Dt(15, TUnit.MINUTE)).isRaw();
+		assert planner.plan(ds, Arrays.asList("evt"), new SearchQuery("user:bob"), start, end, day).isRaw();
+		assert planner.plan(ds, Arrays.asList("evt"), new SearchQuery("hello"), start, end, day).isRaw();
+		// too short
+		assert planner.plan(ds, Arrays.asList("evt"), q, end.minus(20, TUnit.MINUTE), end, day).isRaw();
+		// no time breakdown => any interval is OK
+		assert ! planner.plan(ds, Arrays.asList("evt"), q, start, end, new Dt(15, TUnit.MINUTE)).isRaw();
+	}
+
+	/**
+	 * Run the plan parts through the real ES filter builder: every instant in the search -- 
+	 * including the part boundaries -- must be in exactly one part.
+	 */
+	@Test
+	public void testPartFilters() {
+		RollupEngine engine = new RollupEngine(config(new Time(0)));
+		engine.flush((rds, docs) -> {});
+		RollupPlanner planner = new RollupPlanner(engine, TUnit.MINUTE.dt);
+		Time end = new Time(RollupEngine.floor(new Time().minus(TUnit.DAY).getTime(), TUnit.HOUR)); // on the hour
+		Time start = end.minus(3, TUnit.DAY).plus(17, TUnit.MINUTE);
+		SearchQuery q = new SearchQuery("");
+		Plan plan = planner.plan(ds, Arrays.asList("time"), q, start, end, TUnit.DAY.dt);
+		// raw, hour, day, hour, raw
+		assert plan.parts.size() == 5 : plan;
+		List<Object> filters = new ArrayList();
+		Set<Long> instants = new HashSet();
+		for (Part part : plan.parts) {
+			filters.add(AppUtils.makeESFilterFromSearchQuery(q, part.start, part.end, part.endExclusive).toJson2());
+			for(long t : new long[] {part.start.getTime(), part.end.getTime()}) {
+				instants.add(t - 1);
+				instants.add(t);
+				instants.add(t + 1);
+			}
+		}
+		for (Long t : instants) {
+			int n = 0;
+			for (Object f : filters) {
+				if (matchesTime(f, t)) n++;
+			}
+			boolean inSearch = t >= start.getTime() && t <= end.getTime();
+			assert n == (inSearch? 1 : 0) : new Time(t)+" ("+t+") is in "+n+" parts of "+plan;
+		}
+	}
+
+	/**
+	 * A mini ES: does the "time" range in this (all-must) filter json match t?
+	 */
+	static boolean matchesTime(Object json, long t) {
+		if (json instanceof List) {
+			for (Object x : (List) json) {
+				if ( ! matchesTime(x, t)) return false;
+			}
+			return true;
+		}
+		if ( ! (json instanceof Map)) return true;
+		Map m = (Map) json;
+		for (Object k : m.keySet()) {
+			Object v = m.get(k);
+			if ("range".equals(k) && ((Map) v).containsKey("time")) {
+				Map range = (Map) ((Map) v).get("time");
+				if ( ! matchesTime2_range(range, t)) return false;
+			} else if ( ! matchesTime(v, t)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matchesTime2_range(Map range, long t) {
+		// gte/gt/lte/lt, or the older from/to/include_lower/include_upper
+		Object lo = Utils.or(range.get("gte"), range.get("gt"), range.get("from"));
+		Object hi = Utils.or(range.get("lte"), range.get("lt"), range.get("to"));
+		boolean loIncl = range.containsKey("gte") || (range.containsKey("from") && ! Boolean.FALSE.equals(range.get("include_lower")));
+		boolean hiIncl = range.containsKey("lte") || (range.containsKey("to") && ! Boolean.FALSE.equals(range.get("include_upper")));
+		if (lo != null) {
+			long l = toMillisecs(lo);
+			if (t < l || (t == l && ! loIncl)) return false;
+		}
+		if (hi != null) {
+			long h = toMillisecs(hi);
+			if (t > h || (t == h && ! hiIncl)) return false;
+		}
+		return true;
+	}
+
+	private static long toMillisecs(Object v) {
+		if (v instanceof Number) return ((Number) v).longValue();
+		String s = v.toString();
+		return MathUtils.isNumber(s)? Long.valueOf(s) : new Time(s).getTime();
+	}
+
+	@Test
+	public void testMerge() {
+		Map a = new HashMap(new ArrayMap(
+				"allCount", 10.0,
+				"by_evt", new ArrayMap("buckets", new ArrayList(Arrays.asList(
+						new ArrayMap("key", "click", "count", 4.0),
+						new ArrayMap("key", "minview", "count", 6.0)))),
+				"by_time", new ArrayMap("buckets", new ArrayList(Arrays.asList(
+						new ArrayMap("key", 2000L, "key_as_string", "b", "count", 1.0))))
+				));
+		Map b = new HashMap(new ArrayMap(
+				"allCount", 5.0,
+				"by_evt", new ArrayMap("buckets", new ArrayList(Arrays.asList(
+						new ArrayMap("key", "donation", "count", 1.0),
+						new ArrayMap("key", "click", "count", 4.0)))),
+				"by_time", new ArrayMap("buckets", new ArrayList(Arrays.asList(
+						new ArrayMap("key", 1000L, "key_as_string", "a", "count", 2.0),
+						new ArrayMap("key", 2000L, "key_as_string", "b", "count", 3.0))))
+				));
+		Map m = RollupPlanner.merge(a, b);
+		assert ((Number) m.get("allCount")).doubleValue() == 15;
+		List<Map> evts = (List) ((Map) m.get("by_evt")).get("buckets");
+		assert evts.size() == 3 : evts;
+		assert ((Number) evts.get(0).get("count")).doubleValue() == 8;
+		List<Map> times = (List) ((Map) m.get("by_time")).get("buckets");
+		assert times.size() == 2;
+		assert times.get(0).get("key").equals(1000L) : times;
+		assert ((Number) times.get(1).get("count")).doubleValue() == 4;
+		assert times.get(1).get("key").equals(2000L) : "keys are not summed";
+	}
+}
@@ -3,6 +3,7 @@ package com.winterwell.datalog;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
+import java.sql.Connection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -16,6 +17,8 @@ import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
 import com.winterwell.maths.timeseries.ListDataStream;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.SqlUtils;
+import com.winterwell.utils.log.Log;
 import com.winterwell.utils.time.Period;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
@@ -302,6 +305,101 @@ public class SQLStorageTest extends DatalogTestCase {
 		assertTrue(storage.selectSum(null, s, e, null, smarch) >= 3.0);
 	}
 
+	/**
+	 * Throughput of a big bucket, against an in-memory H2 database -- batched save vs the old row-at-a-time inserts.
+	 * Also the saveHistory / setHistory upserts.
+	 */
+	@Test
+	public void testThroughputH2() {
+		// H2 is not a shipped dependency (see BuildDataLog)
+		try {
+			Class.forName("org.h2.Driver");
+		} catch (ClassNotFoundException ex) {
+			Log.w(DataLog.LOGTAG, "Skip testThroughputH2: no H2 on the classpath");
+			return;
+		}
+		DataLogConfig config = newStatConfig();
+		config.dbUrl = "jdbc:h2:mem:stats"+Utils.getRandomString(4)+";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+		config.dbUser = "sa";
+		config.dbPassword = "";
+		SqlUtils.options = null;
+		try {
+			testThroughputH2_2(config);
+		} finally {
+			// don't leave the global options pointing at H2
+			SqlUtils.options = null;
+		}
+	}
+
+	private void testThroughputH2_2(DataLogConfig config) {
+		// H2 can't do the Postgres create, so make the table first
+		Connection conn0 = SqlUtils.getConnection(config);
+		try {
+			SqlUtils.executeCommand("create table stats (id bigint generated by default as identity primary key, timestamp bigint not null, tag varchar not null, "
+					+"count_mean float not null, variance float, min float, max float);", conn0, false);
+		} finally {
+			SqlUtils.close(conn0);
+		}
+		SQLStorage storage = new SQLStorage();
+		storage.init(config);
+		
+		int N = 50000;
+		Map<String, Double> tag2count = new HashMap();
+		for(int i=0; i<N; i++) {
+			tag2count.put("tag"+i, 1.0*i);
+		}
+		Time start = new Time(2020, 1, 1);
+		Period p = new Period(start, start.plus(TUnit.MINUTE));
+		// warm up
+		storage.save(new Period(start.minus(TUnit.DAY), start.minus(TUnit.HOUR)), tag2count, new HashMap());
+		
+		long a = System.currentTimeMillis();
+		storage.save(p, tag2count, new HashMap());
+		long b = System.currentTimeMillis();
+		// the old way: one statement per tag
+		int M = 5000;
+		Connection conn = SqlUtils.getConnection(config);
+		try {
+			for(int i=0; i<M; i++) {
+				SqlUtils.executeUpdate("insert into stats ( timestamp, tag, count_mean ) values ("+start.minus(TUnit.WEEK).getTime()
+						+", "+SqlUtils.sqlEncode("tag"+i)+", "+i+");", conn);
+			}
+		} finally {
+			SqlUtils.close(conn);
+		}
+		long c = System.currentTimeMillis();
+		double batchRate = N*1000.0 / Math.max(1, b - a);
+		double oldRate = M*1000.0 / Math.max(1, c - b);
+		// timings vary too much from machine to machine to assert on
+		Log.i(DataLog.LOGTAG, "batched: "+Math.round(batchRate)+" rows/sec   one-by-one: "+Math.round(oldRate)+" rows/sec");
+		Object[] countSum = SqlUtils.executeQuery("select count(*), sum(count_mean) from stats where timestamp > "+p.first.getTime()
+				+" and timestamp < "+p.second.getTime()+";", null, 0).iterator().next();
+		assertEquals(N, ((Number) countSum[0]).intValue());
+		assertEquals(1.0*N*(N-1)/2, ((Number) countSum[1]).doubleValue());
+		assertEquals(7.0, storage.selectSum(null, p.first, p.second, null, "tag7"));
+		long week = start.minus(TUnit.WEEK).getTime();
+		Object[] oldCountSum = SqlUtils.executeQuery("select count(*), sum(count_mean) from stats where timestamp = "+week+";", null, 0).iterator().next();
+		assertEquals(M, ((Number) oldCountSum[0]).intValue());
+		assertEquals(1.0*M*(M-1)/2, ((Number) oldCountSum[1]).doubleValue());
+		
+		// upserts
+		Time t = new Time(2020, 2, 1);
+		Map<Pair2<String, Time>, Double> hist = new HashMap();
+		for(int i=0; i<10; i++) {
+			hist.put(new Pair2("h"+i, t), 1.0);
+		}
+		storage.saveHistory(hist); // insert
+		storage.saveHistory(hist); // add
+		Time s = t.minus(TUnit.MINUTE), e = t.plus(TUnit.MINUTE);
+		assertEquals(2.0, storage.selectSum(null, s, e, null, "h3"));
+		hist.put(new Pair2("h3", t), 7.0);
+		hist.put(new Pair2("new", t), 5.0);
+		storage.setHistory(hist); // replace + insert
+		assertEquals(7.0, storage.selectSum(null, s, e, null, "h3"));
+		assertEquals(1.0, storage.selectSum(null, s, e, null, "h4"));
+		assertEquals(5.0, storage.selectSum(null, s, e, null, "new"));
+	}
+
 	private DataLogConfig newStatConfig() {
 		return new DataLogConfig();
 	}
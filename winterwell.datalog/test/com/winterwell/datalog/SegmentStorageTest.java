@@ -0,0 +1,274 @@
+package com.winterwell.datalog;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * @author daniel
+ */
+public class SegmentStorageTest {
+
+	private SegmentStorage newStorage(String name) {
+		File dir = new File(FileUtils.getWorkingDirectory(), "test/temp/segments-"+name);
+		if (dir.exists()) FileUtils.deleteDir(dir);
+		DataLogConfig config = new DataLogConfig();
+		config.segmentDir = dir;
+		config.interval = new Dt(1, TUnit.HOUR); // no background compaction during the test
+		SegmentStorage storage = new SegmentStorage();
+		storage.init(config);
+		return storage;
+	}
+
+	@Test
+	public void testIO() {
+		SegmentStorage storage = newStorage("io");
+		Time start = new Time();
+		Period p = new Period(start, start.plus(10, TUnit.SECOND));
+
+		Map<String, Double> tag2count = new HashMap();
+		tag2count.put("hello", 4.0);
+		Map<String, IDistribution1D> tag2mean = new HashMap();
+		MeanVar1D mv = new MeanVar1D();
+		mv.train1(1.0);
+		mv.train1(2.0);
+		tag2mean.put("world", mv);
+		storage.save(p, tag2count, tag2mean);
+
+		assert storage.getTotal("hello", p.first, p.second).get() == 4.0;
+		assert storage.getTotal("nope", p.first, p.second).get() == 0.0;
+		ListDataStream stream = (ListDataStream) storage.getData("world", p.first, p.second, null, null).get();
+		assert stream.size() == 1;
+		assert stream.get(0).x() == 1.5;
+		// outside the time window
+		assert storage.getTotal("hello", p.second, p.second.plus(TUnit.HOUR)).get() == 0.0;
+	}
+
+	@Test
+	public void testManyPeriodsAndCompaction() {
+		SegmentStorage storage = newStorage("compact");
+		Time t0 = new Time(2020, 1, 1);
+		for (int d = 0; d < 20; d++) {
+			// several saves a day
+			for (int h = 0; h < 10; h++) {
+				Time s = t0.plus(d, TUnit.DAY).plus(h, TUnit.HOUR);
+				Map<String, Double> tag2count = new HashMap();
+				tag2count.put("a", 1.0);
+				tag2count.put("b", 2.0);
+				tag2count.put("c"+d, 10.0);
+				storage.save(new Period(s, s.plus(TUnit.MINUTE)), tag2count, Collections.EMPTY_MAP);
+			}
+		}
+		Time mid = t0.plus(10, TUnit.DAY);
+		Time end = t0.plus(30, TUnit.DAY);
+		assert storage.getTotal("a", t0, end).get() == 200.0;
+		assert storage.getTotal("a", mid, end).get() == 100.0;
+		assert storage.getTotal("c3", null, null).get() == 100.0;
+		ListDataStream data = (ListDataStream) storage.getData(Pattern.compile("c1\\d"), t0, end).get();
+		assert data.size() == 100 : data.size();
+
+		// compact (all these periods are over)
+		storage.compact();
+		File[] segs = storage.getPeriodDir(mid.getTime()).listFiles();
+		assert segs.length == 1 : segs.length;
+		assert storage.getTotal("a", t0, end).get() == 200.0;
+		assert storage.getTotal("a", mid, end).get() == 100.0;
+		// half a day -- not a whole block
+		assert storage.getTotal("b", mid, mid.plus(5, TUnit.HOUR)).get() == 10.0;
+		ListDataStream bs = (ListDataStream) storage.getData("b", mid, mid.plus(TUnit.DAY), null, null).get();
+		assert bs.size() == 10 : bs;
+	}
+
+	/**
+	 * Crash between adding the merged segment and deleting the old ones
+	 */
+	@Test
+	public void testCompactionCrash() {
+		File dir = new File(FileUtils.getWorkingDirectory(), "test/temp/segments-crash");
+		if (dir.exists()) FileUtils.deleteDir(dir);
+		DataLogConfig config = new DataLogConfig();
+		config.segmentDir = dir;
+		config.interval = new Dt(1, TUnit.HOUR);
+		SegmentStorage storage = new SegmentStorage() {
+			@Override
+			void compact3_deleteOld(List<DataSegment> segs) {
+				throw new IllegalStateException("crash!");
+			}
+		};
+		storage.init(config);
+		Time t0 = new Time(2020, 1, 1);
+		for (int h = 0; h < 5; h++) {
+			Time s = t0.plus(h, TUnit.HOUR);
+			storage.save(new Period(s, s.plus(TUnit.MINUTE)), Collections.singletonMap("a", 1.0), Collections.EMPTY_MAP);
+		}
+		Time end = t0.plus(TUnit.DAY);
+		assert storage.getTotal("a", t0, end).get() == 5.0;
+		try {
+			storage.compact();
+			assert false;
+		} catch(IllegalStateException ex) {
+			// good
+		}
+		File pdir = storage.getPeriodDir(t0.getTime());
+		// merged + 5 old + the manifest
+		assert pdir.listFiles().length == 7 : Arrays.toString(pdir.listFiles());
+		assert storage.getTotal("a", t0, end).get() == 5.0;
+
+		// restart -- a fresh storage (and cache) must not double count either
+		SegmentStorage storage2 = new SegmentStorage();
+		storage2.init(config);
+		assert storage2.getTotal("a", t0, end).get() == 5.0;
+		// the next compaction tidies up
+		storage2.compact();
+		assert pdir.listFiles().length == 1 : Arrays.toString(pdir.listFiles());
+		assert storage2.getTotal("a", t0, end).get() == 5.0;
+	}
+
+	/**
+	 * Two storages on one directory (e.g. DataLog re-initialised) must not both compact the same period
+	 */
+	@Test
+	public void testTwoInstancesCompact() {
+		File dir = new File(FileUtils.getWorkingDirectory(), "test/temp/segments-two");
+		if (dir.exists()) FileUtils.deleteDir(dir);
+		DataLogConfig config = new DataLogConfig();
+		config.segmentDir = dir;
+		config.interval = new Dt(1, TUnit.HOUR);
+		SegmentStorage other = new SegmentStorage();
+		other.init(config);
+		boolean[] otherRan = new boolean[1];
+		SegmentStorage storage = new SegmentStorage() {
+			@Override
+			void compact3_deleteOld(List<DataSegment> segs) {
+				// the other one tries to compact in the middle of our swap
+				other.compact();
+				otherRan[0] = true;
+				super.compact3_deleteOld(segs);
+			}
+		};
+		storage.init(config);
+		Time t0 = new Time(2020, 1, 1);
+		for (int h = 0; h < 5; h++) {
+			Time s = t0.plus(h, TUnit.HOUR);
+			storage.save(new Period(s, s.plus(TUnit.MINUTE)), Collections.singletonMap("a", 1.0), Collections.EMPTY_MAP);
+		}
+		// an orphan from a crashed merge gets tidied up
+		File pdir = storage.getPeriodDir(t0.getTime());
+		FileUtils.write(new File(pdir, SegmentStorage.MERGE_PREFIX+"123-4"), "junk");
+		storage.compact();
+		assert otherRan[0];
+		assert pdir.listFiles().length == 1 : Arrays.toString(pdir.listFiles());
+		Time end = t0.plus(TUnit.DAY);
+		assert storage.getTotal("a", t0, end).get() == 5.0;
+		assert other.getTotal("a", t0, end).get() == 5.0;
+		storage.close();
+		other.close();
+	}
+
+	@Test
+	public void testClose() {
+		SegmentStorage storage = newStorage("close");
+		Time t0 = new Time(2020, 1, 1);
+		for (int h = 0; h < 3; h++) {
+			Time s = t0.plus(h, TUnit.HOUR);
+			storage.save(new Period(s, s.plus(TUnit.MINUTE)), Collections.singletonMap("a", 1.0), Collections.EMPTY_MAP);
+		}
+		storage.close();
+		// no more compaction
+		storage.compact();
+		File pdir = storage.getPeriodDir(t0.getTime());
+		assert pdir.listFiles().length == 3 : Arrays.toString(pdir.listFiles());
+		// safe to repeat
+		storage.close();
+		// still readable
+		assert storage.getTotal("a", t0, t0.plus(TUnit.DAY)).get() == 3.0;
+	}
+
+	@Test
+	public void testSaveHistory() {
+		SegmentStorage storage = newStorage("history");
+		Time t0 = new Time(2020, 6, 1);
+		Map<Pair2<String, Time>, Double> hist = new HashMap();
+		hist.put(new Pair2("x", t0), 3.0);
+		hist.put(new Pair2("x", t0.plus(3, TUnit.DAY)), 4.0);
+		storage.saveHistory(hist);
+		assert storage.getTotal("x", t0, t0.plus(TUnit.WEEK)).get() == 7.0;
+		assert storage.getTotal("x", t0.plus(TUnit.DAY), t0.plus(TUnit.WEEK)).get() == 4.0;
+	}
+
+	/**
+	 * Not a proper benchmark -- compare with CSV for a one-tag query over months of 100k-tag data.
+	 */
+	@Test
+	public void testSpeedVsCSV() throws Exception {
+		int TAGS = 100000, DAYS = 62, PER_DAY = 20000;
+		// CSV goes via the DataLog default
+		DataLogConfig csvConfig = new DataLogConfig();
+		csvConfig.storageClass = CSVStorage.class;
+		csvConfig.namespace = "segtest"+System.currentTimeMillis();
+		DataLogImpl dl = new DataLogImpl(csvConfig);
+		IDataLog oldDflt = DataLog.dflt;
+		DataLog.dflt = dl;
+		try {
+			CSVStorage csv = (CSVStorage) dl.storage;
+			SegmentStorage seg = newStorage("speed");
+			testSpeedVsCSV2(csv, seg, TAGS, DAYS, PER_DAY);
+		} finally {
+			DataLog.dflt = oldDflt;
+		}
+	}
+
+	private void testSpeedVsCSV2(CSVStorage csv, SegmentStorage seg, int TAGS, int DAYS, int PER_DAY) {
+
+		Time t0 = new Time(2019, 1, 1);
+		for (int d = 0; d < DAYS; d++) {
+			Map<String, Double> tag2count = new HashMap();
+			for (int i = 0; i < PER_DAY; i++) {
+				tag2count.put("tag"+((d*PER_DAY + i) % TAGS), 1.0);
+			}
+			Time s = t0.plus(d, TUnit.DAY);
+			Period p = new Period(s, s.plus(TUnit.HOUR));
+			csv.save(p, tag2count, Collections.EMPTY_MAP);
+			seg.save(p, tag2count, Collections.EMPTY_MAP);
+		}
+		seg.compact();
+		Time end = t0.plus(DAYS, TUnit.DAY);
+		// warm up
+		double total = seg.getTotal("tag7", t0, end).get();
+
+		long a = System.currentTimeMillis();
+		for (int d = 0; d < DAYS; d++) {
+			// CSV can't filter, so this is a scan of that day's file
+			Time s = t0.plus(d, TUnit.DAY);
+			csv.getTotal("tag7", s, s.plus(TUnit.DAY)).get();
+		}
+		long b = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			total = seg.getTotal("tag7", t0, end).get();
+			ListDataStream data = (ListDataStream) seg.getData("tag7", t0, end, null, null).get();
+			assert data.size() == total;
+		}
+		long c = System.currentTimeMillis();
+		// timings vary too much from machine to machine to assert on
+		Log.i(DataLog.LOGTAG, "CSV: "+(b-a)+"ms  Segments: "+(c-b)/10.0+"ms");
+		// tag7 is in the 1st fifth of the tags, so it's saved every 5th day
+		assert total == 13 : total;
+	}
+}
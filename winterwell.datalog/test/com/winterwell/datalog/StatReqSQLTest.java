@@ -123,7 +123,7 @@ public class StatReqSQLTest extends DatalogTestCase {
 			Time t = new Time(2013, 01, i);
 			si.count(t, 1, tag);
 		}
-		storage.save(period, si.tag2count, si.tag2dist);
+		storage.save(period, si.tag2count.toMap(), si.tag2dist);
 		
 		StatReqSQL statreq = new StatReqSQL(KStatReq.DATA, tag, start.minus(1, TUnit.SECOND), end.plus(1, TUnit.SECOND), null, null);
 		StatReq.initV(statreq);
@@ -0,0 +1,114 @@
+package com.winterwell.datalog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.Containers;
+
+public class TagCountsTest {
+
+	@Test
+	public void testAddGetSet() {
+		TagCounts tc = new TagCounts();
+		assert tc.get("foo") == null;
+		tc.add("foo", 1);
+		tc.add("foo", 2.5);
+		assert tc.get("foo") == 3.5 : tc;
+		tc.set("foo", 10);
+		assert tc.get("foo") == 10 : tc;
+		assert tc.size() == 1;
+	}
+
+	@Test
+	public void testSwap() {
+		TagCounts tc = new TagCounts();
+		tc.add("foo", 1);
+		tc.add("bar", 2);
+		Map<String, Double> old = tc.swap();
+		assert old.get("foo") == 1 : old;
+		assert old.get("bar") == 2 : old;
+		assert tc.isEmpty();
+		tc.add("foo", 1);
+		assert tc.get("foo") == 1 : tc;
+	}
+
+	/**
+	 * No increments should be lost, even when swap() runs during heavy counting.
+	 */
+	@Test
+	public void testExactUnderConcurrency() throws InterruptedException {
+		TagCounts tc = new TagCounts();
+		int threads = 8;
+		int n = 200000;
+		ExecutorService exe = Executors.newFixedThreadPool(threads);
+		for(int t=0; t<threads; t++) {
+			exe.submit(() -> {
+				for(int i=0; i<n; i++) {
+					tc.add("a", 1);
+					tc.add("b"+(i % 10), 1);
+				}
+			});
+		}
+		exe.shutdown();
+		double total = 0;
+		while( ! exe.awaitTermination(1, TimeUnit.MILLISECONDS)) {
+			Map<String, Double> old = tc.swap();
+			total += old.getOrDefault("a", 0.0);
+		}
+		total += tc.swap().getOrDefault("a", 0.0);
+		assert total == threads * n : total;
+	}
+
+	/**
+	 * Not really a test -- compares against the old ConcurrentHashMap + Containers.plus approach.
+	 * NB: the old approach can also lose counts, as its get-then-put isn't atomic.
+	 */
+	@Test
+	public void testSpeedVsMap() throws InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int n = 1000000;
+		String[] tags = new String[8];
+		for(int i=0; i<tags.length; i++) tags[i] = "tag"+i;
+		for(int warmup=0; warmup<2; warmup++) {
+			// old
+			ConcurrentHashMap<String, Double> map = new ConcurrentHashMap();
+			long t0 = System.nanoTime();
+			run(threads, () -> {
+				for(int i=0; i<n; i++) {
+					Containers.plus(map, tags[i & 7], 1);
+				}
+			});
+			long mapTime = System.nanoTime() - t0;
+			double mapTotal = 0;
+			for(Double v : map.values()) mapTotal += v;
+			// new
+			TagCounts tc = new TagCounts();
+			t0 = System.nanoTime();
+			run(threads, () -> {
+				for(int i=0; i<n; i++) {
+					tc.add(tags[i & 7], 1);
+				}
+			});
+			long tcTime = System.nanoTime() - t0;
+			double tcTotal = 0;
+			for(Double v : tc.toMap().values()) tcTotal += v;
+			assert tcTotal == 1.0 * threads * n : tcTotal;
+			System.out.println(threads+" threads x "+n+" counts: map "+(mapTime/1000000)+"ms (lost "+(threads*n - mapTotal)
+					+") vs TagCounts "+(tcTime/1000000)+"ms");
+		}
+	}
+
+	private void run(int threads, Runnable r) throws InterruptedException {
+		ExecutorService exe = Executors.newFixedThreadPool(threads);
+		for(int t=0; t<threads; t++) {
+			exe.submit(r);
+		}
+		exe.shutdown();
+		exe.awaitTermination(5, TimeUnit.MINUTES);
+	}
+}
@@ -0,0 +1,76 @@
+package com.winterwell.datalog.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.ArrayMap;
+
+public class BotIPIndexTest {
+
+	@Test
+	public void testExact() {
+		BotIPIndex index = BotIPIndex.build(Arrays.asList(
+				new ArrayMap("ip", "1.2.3.4", "type", "bot"),
+				new ArrayMap("ip", "2001:db8::1", "type", "dc")
+				));
+		assert "bot".equals(index.getType("1.2.3.4"));
+		assert "dc".equals(index.getType("2001:db8::1"));
+		assert index.getType("1.2.3.5") == null;
+		assert index.getType("not-an-ip") == null;
+		assert index.getType(null) == null;
+	}
+
+	@Test
+	public void testRanges() {
+		BotIPIndex index = BotIPIndex.build(Arrays.asList(
+				new ArrayMap("ip", "66.249.64.0/19", "type", "google"),
+				new ArrayMap("ip", "66.249.70.0/24", "type", "special"),
+				new ArrayMap("ip", "10.0.0.0/8", "type", "internal"),
+				new ArrayMap("ip", "2001:db8::/32", "type", "v6"),
+				new ArrayMap("ip", "1.2.3.0/99", "type", "bad range - skipped")
+				));
+		assert "google".equals(index.getType("66.249.64.1"));
+		assert "google".equals(index.getType("66.249.95.255"));
+		assert index.getType("66.249.96.0") == null;
+		// longest match wins
+		assert "special".equals(index.getType("66.249.70.7"));
+		assert "internal".equals(index.getType("10.200.1.1"));
+		assert "v6".equals(index.getType("2001:db8:1234::5"));
+		assert index.getType("2001:db9::5") == null;
+		assert index.getType("1.2.3.4") == null;
+		// not IPs
+		assert index.getType("66.249.64") == null;
+		assert index.getType("66.249.64.256") == null;
+	}
+
+	@Test
+	public void testEmpty() {
+		assert BotIPIndex.EMPTY.getType("1.2.3.4") == null;
+		assert BotIPIndex.build(new ArrayList()).getType("1.2.3.4") == null;
+	}
+
+	/**
+	 * Not really a test -- lookups should not slow down as the list grows.
+	 */
+	@Test
+	public void testSpeed() {
+		List<Map> hits = new ArrayList();
+		for(int i=0; i<100000; i++) {
+			hits.add(new ArrayMap("ip", "10."+(i>>16 & 255)+"."+(i>>8 & 255)+"."+(i & 255), "type", "bot"));
+		}
+		hits.add(new ArrayMap("ip", "192.168.0.0/16", "type", "lan"));
+		BotIPIndex index = BotIPIndex.build(hits);
+		long t0 = System.nanoTime();
+		int found = 0;
+		for(int i=0; i<1000000; i++) {
+			if (index.getType((i & 1)==0? "10.0.1.2" : "192.168.3.4") != null) found++;
+		}
+		long dt = System.nanoTime() - t0;
+		assert found == 1000000 : found;
+		System.out.println("1m lookups against "+hits.size()+" entries: "+(dt/1000000)+"ms");
+	}
+}
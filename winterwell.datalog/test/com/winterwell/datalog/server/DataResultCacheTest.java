@@ -0,0 +1,105 @@
+package com.winterwell.datalog.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class DataResultCacheTest {
+
+	@Test
+	public void testHitAndTTL() {
+		DataResultCache cache = new DataResultCache(10);
+		AtomicInteger searches = new AtomicInteger();
+		List key = Arrays.asList("default", Arrays.asList("evt"), "", 1L, 2L);
+		Time old = new Time().minus(TUnit.WEEK);
+		Map v1 = cache.get(key, old, () -> new ArrayMap("n", searches.incrementAndGet()));
+		// an equal (not identical) key
+		Map v2 = cache.get(new ArrayList(key), old, () -> new ArrayMap("n", searches.incrementAndGet()));
+		assert v1 == v2;
+		assert searches.get() == 1;
+		assert cache.getHits() == 1 && cache.getMisses() == 1 : cache;
+
+		// recent windows expire quickly
+		cache.ttlRecent = new Dt(50, TUnit.MILLISECOND);
+		List key2 = Arrays.asList("recent");
+		cache.get(key2, new Time(), () -> new ArrayMap("n", searches.incrementAndGet()));
+		cache.get(key2, new Time(), () -> new ArrayMap("n", searches.incrementAndGet()));
+		assert searches.get() == 2;
+		Utils.sleep(100);
+		cache.get(key2, new Time(), () -> new ArrayMap("n", searches.incrementAndGet()));
+		assert searches.get() == 3;
+		// ...but the historic one is still there
+		cache.get(key, old, () -> new ArrayMap("n", searches.incrementAndGet()));
+		assert searches.get() == 3;
+	}
+
+	@Test
+	public void testNormaliseWindow() {
+		DataResultCache cache = new DataResultCache(10);
+		Time now = new Time();
+		Time[] w1 = cache.normaliseWindow(now.minus(TUnit.MONTH), now);
+		Time[] w2 = cache.normaliseWindow(now.minus(TUnit.MONTH).plus(TUnit.MILLISECOND), now.plus(TUnit.MILLISECOND));
+		// (this could fail if the test straddles a minute boundary -- very unlikely)
+		assert w1[0].equals(w2[0]) || now.getTime() % 60000 == 59999 : w1[0]+" vs "+w2[0];
+		assert ! w1[1].isBefore(now);
+		// closed windows are left alone
+		Time s = new Time(2020, 1, 1, 12, 34, 56), e = new Time(2020, 2, 1, 1, 2, 3);
+		Time[] w3 = cache.normaliseWindow(s, e);
+		assert w3[0].equals(s) && w3[1].equals(e);
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		DataResultCache cache = new DataResultCache(10);
+		AtomicInteger searches = new AtomicInteger();
+		List key = Arrays.asList("slow");
+		List<Thread> threads = new ArrayList();
+		List<Map> results = new ArrayList();
+		for (int i = 0; i < 8; i++) {
+			Thread t = new Thread(() -> {
+				Map v = cache.get(key, new Time(), () -> {
+					searches.incrementAndGet();
+					Utils.sleep(300);
+					return new ArrayMap("slow", true);
+				});
+				synchronized (results) {
+					results.add(v);
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) t.join();
+		assert searches.get() == 1 : searches;
+		assert results.size() == 8;
+		for (Map map : results) assert map == results.get(0);
+		assert cache.getMisses() == 1 : cache;
+		assert cache.getCoalesced() + cache.getHits() == 7 : cache;
+	}
+
+	@Test
+	public void testErrorNotCached() {
+		DataResultCache cache = new DataResultCache(10);
+		List key = Arrays.asList("bad");
+		try {
+			cache.get(key, new Time(), () -> {
+				throw new IllegalStateException("ES is down");
+			});
+			assert false;
+		} catch (IllegalStateException ex) {
+			// good
+		}
+		Map v = cache.get(key, new Time(), () -> new ArrayMap("ok", true));
+		assert v.get("ok") == Boolean.TRUE;
+	}
+}
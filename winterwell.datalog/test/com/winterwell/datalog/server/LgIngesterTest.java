@@ -0,0 +1,158 @@
+package com.winterwell.datalog.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.DataLogConfig;
+import com.winterwell.datalog.Dataspace;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.threads.KQueueFullPolicy;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+/**
+ * @tested {@link LgIngester}
+ * @author daniel
+ *
+ */
+public class LgIngesterTest {
+
+	/**
+	 * Records what it logs instead of storing it. Workers wait for the gate to open.
+	 */
+	static class RecordingIngester extends LgIngester {
+		final List<LgRecord> done = new CopyOnWriteArrayList();
+		final List<Thread> threads = new CopyOnWriteArrayList();
+		final CountDownLatch gate;
+
+		RecordingIngester(DataLogConfig config, CountDownLatch gate) {
+			super(config);
+			this.gate = gate;
+		}
+
+		@Override
+		void process(LgRecord rec) {
+			threads.add(Thread.currentThread());
+			if (Thread.currentThread().getName().startsWith("lg.worker")) {
+				try {
+					gate.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw Utils.runtime(e);
+				}
+			}
+			done.add(rec);
+		}
+	}
+
+	Dataspace ds = new Dataspace("lgtest");
+
+	private DataLogConfig config(KQueueFullPolicy policy) {
+		DataLogConfig dlc = new DataLogConfig();
+		dlc.lgWorkers = 1;
+		dlc.lgQueueSize = 2;
+		dlc.lgOverloadPolicy = policy;
+		dlc.lgBlockTime = new Dt(100, TUnit.MILLISECOND);
+		return dlc;
+	}
+
+	private LgRecord rec(int i) {
+		return new LgRecord(ds, "test", new ArrayMap("i", i));
+	}
+
+	/**
+	 * 1 on the (stuck) worker, 2 in the queue
+	 */
+	private void fill(RecordingIngester lgi) {
+		for(int i=0; i<3; i++) {
+			lgi.submit(rec(i));
+		}
+		Utils.sleep(100);
+		assert lgi.getQueueDepth() == 2 : lgi;
+	}
+
+	@Test
+	public void testAsync() {
+		RecordingIngester lgi = new RecordingIngester(config(KQueueFullPolicy.DROP), new CountDownLatch(0));
+		Thread me = Thread.currentThread();
+		lgi.submit(rec(1));
+		lgi.submit(rec(2));
+		lgi.shutdown();
+		assert lgi.done.size() == 2 : lgi.done;
+		assert ! lgi.threads.contains(me);
+	}
+
+	@Test
+	public void testShutdownDrainsQueue() {
+		CountDownLatch gate = new CountDownLatch(1);
+		RecordingIngester lgi = new RecordingIngester(config(KQueueFullPolicy.DROP), gate);
+		fill(lgi);
+		new Thread(() -> {
+			Utils.sleep(200);
+			gate.countDown();
+		}).start();
+		lgi.shutdown();
+		assert lgi.done.size() == 3 : lgi.done;
+		assert lgi.getDropped() == 0;
+		// later events are dropped, not lost silently or thrown
+		lgi.submit(rec(4));
+		assert lgi.getDropped() == 1;
+		// safe to repeat
+		lgi.shutdown();
+	}
+
+	@Test
+	public void testDrop() {
+		CountDownLatch gate = new CountDownLatch(1);
+		RecordingIngester lgi = new RecordingIngester(config(KQueueFullPolicy.DROP), gate);
+		fill(lgi);
+		long t = System.currentTimeMillis();
+		lgi.submit(rec(3));
+		lgi.submit(rec(4));
+		assert System.currentTimeMillis() - t < 100;
+		assert lgi.getDropped() == 2 : lgi;
+		gate.countDown();
+		lgi.shutdown();
+		assert lgi.done.size() == 3 : lgi.done;
+	}
+
+	@Test
+	public void testBlock() {
+		CountDownLatch gate = new CountDownLatch(1);
+		RecordingIngester lgi = new RecordingIngester(config(KQueueFullPolicy.BLOCK), gate);
+		fill(lgi);
+		// no space within lgBlockTime -- dropped
+		long t = System.currentTimeMillis();
+		lgi.submit(rec(3));
+		assert System.currentTimeMillis() - t >= 90;
+		assert lgi.getDropped() == 1 : lgi;
+		// space turns up while we wait
+		new Thread(() -> {
+			Utils.sleep(20);
+			gate.countDown();
+		}).start();
+		lgi.submit(rec(4));
+		assert lgi.getDropped() == 1 : lgi;
+		lgi.shutdown();
+		assert lgi.done.size() == 4 : lgi.done;
+	}
+
+	@Test
+	public void testCallerRuns() {
+		CountDownLatch gate = new CountDownLatch(1);
+		RecordingIngester lgi = new RecordingIngester(config(KQueueFullPolicy.CALLER_RUNS), gate);
+		fill(lgi);
+		lgi.submit(rec(3));
+		// done on this thread, while the worker is still stuck
+		assert lgi.done.size() == 1 : lgi.done;
+		assert lgi.threads.contains(Thread.currentThread());
+		assert lgi.getDropped() == 0;
+		gate.countDown();
+		lgi.shutdown();
+		assert lgi.done.size() == 4 : lgi.done;
+	}
+}
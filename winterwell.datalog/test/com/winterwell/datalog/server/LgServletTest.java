@@ -1,12 +1,16 @@
 package com.winterwell.datalog.server;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.junit.Test;
 
 import com.winterwell.datalog.DataLogConfig;
 import com.winterwell.utils.Dep;
+import com.winterwell.utils.FailureException;
 import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.log.Log;
 import com.winterwell.web.FakeBrowser;
@@ -43,6 +47,9 @@ public class LgServletTest {
 		String ua = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/83.0.4103.61 Safari/537.36";
 		BrowserType bi = LgServlet.getBrowserInfo(ua);
 		System.out.println(bi);
+		// cached
+		BrowserType bi2 = LgServlet.getBrowserInfo(ua);
+		assert bi2 == bi;
 	}
 	
 	@Test
@@ -66,5 +73,45 @@ public class LgServletTest {
 		Parser p = LgServlet.uaParser();
 		Client c = p.parse("Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/67.0.3396.99 Safari/537.36");
 		assert "Chrome 67".equals(c.userAgent.family+" "+c.userAgent.major);
+		LgServlet.releaseUaParser(p);
+	}
+
+	@Test
+	public void testParserConstructorFails() throws Exception {
+		Dep.setIfAbsent(DataLogConfig.class, new DataLogConfig());
+		String ua = "Mozilla/5.0 (X11; Linux x86_64; testParserConstructorFails) Firefox/90.0";
+		Callable<Parser> factory = LgServlet.parserFactory;
+		List<Parser> held = new ArrayList();
+		try {
+			LgServlet.parserFactory = () -> { throw new IOException("no regexes.yaml"); };
+			// take the idle parsers out of the pool, so new ones are needed
+			while(true) {
+				try {
+					held.add(LgServlet.uaParser());
+				} catch(Exception ex) {
+					assert ! (ex instanceof FailureException) : ex;
+					break;
+				}
+			}
+			// more failures than MAX_PARSERS must not use up the slots, or leave the caller waiting
+			long t = System.currentTimeMillis();
+			for(int i=0; i<LgServlet.MAX_PARSERS + 2; i++) {
+				BrowserType bt = LgServlet.getBrowserInfo(ua);
+				assert bt != null;
+			}
+			assert System.currentTimeMillis() - t < 1000;
+			// failures are not cached
+			assert LgServlet.browserInfoCache.get(ua) == null;
+			LgServlet.parserFactory = factory;
+			for (Parser p : held) LgServlet.releaseUaParser(p);
+			held.clear();
+			// ...so the next call can do a proper job
+			BrowserType bt = LgServlet.getBrowserInfo(ua);
+			assert bt.getVersion() == 90 : bt;
+			assert LgServlet.browserInfoCache.get(ua) == bt;
+		} finally {
+			LgServlet.parserFactory = factory;
+			for (Parser p : held) LgServlet.releaseUaParser(p);
+		}
 	}
 }
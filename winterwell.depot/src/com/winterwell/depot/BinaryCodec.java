@@ -0,0 +1,765 @@
+package com.winterwell.depot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.winterwell.utils.ReflectionUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.XStreamBinaryConverter.BinaryXML;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.web.XStreamUtils;
+
+/**
+ * A compact binary format for Depot artifacts -- much faster and smaller than XStream xml
+ * for numeric data (e.g. vectors, matrices, Datums), where the xml does a text round-trip per number.
+ * <p>
+ * Format: the header "WWDB" + a version byte, then one value. Each value is a tag byte plus its data.
+ * <ul>
+ * <li>Primitive arrays are written in bulk (no per-element tags).
+ * <li>Objects are written field by field via reflection (like XStream). The field names are written once per class,
+ * the first time it appears, and reading matches by name -- so adding or removing fields is OK (unknown fields are skipped,
+ * missing ones are left at their default).
+ * <li>Object identity is preserved (shared references and cycles).
+ * <li>Sub-modules ({@link ModularXML} objects below the top level) are stored as their Desc, and loaded via the Depot on read
+ * -- same as {@link ModularConverter}.
+ * <li>readResolve() is honoured.
+ * <li>Anything awkward -- most java.* classes other than collections, {@link BinaryXML} classes
+ * -- falls back to an embedded XStream xml string.
+ * </ul>
+ *
+ * Thread safety: yes (each read/write has its own state).
+ *
+ * @author daniel
+ * @testedby  BinaryCodecTest}
+ */
+public final class BinaryCodec implements IDepotCodec {
+
+	private static final String LOGTAG = "depot.binary";
+
+	static final byte[] MAGIC = {'W','W','D','B'};
+	/**
+	 * Bump this if the format changes incompatibly
+	 */
+	static final byte VERSION = 1;
+
+	// tags
+	private static final byte NULL = 0, TRUE = 1, FALSE = 2, BYTE = 3, SHORT = 4, CHAR = 5, INT = 6, LONG = 7,
+			FLOAT = 8, DOUBLE = 9, STRING = 10, REF = 11,
+			BOOLEANS = 20, BYTES = 21, SHORTS = 22, CHARS = 23, INTS = 24, LONGS = 25, FLOATS = 26, DOUBLES = 27,
+			ARRAY = 30, ENUM = 31, CLASS = 32, COLLECTION = 33, MAP = 34, OBJECT = 35, MODULE = 36, XML = 37;
+
+	/**
+	 * Bulk arrays are copied in chunks of this many bytes
+	 */
+	private static final int CHUNK = 8192;
+
+	private static final ConcurrentHashMap<Class, ClassInfo> classInfo = new ConcurrentHashMap();
+
+	@Override
+	public boolean isMine(byte[] head, int len) {
+		if (len < MAGIC.length + 1) return false;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (head[i] != MAGIC[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void write(Object artifact, OutputStream out) throws IOException {
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 65536));
+		dout.write(MAGIC);
+		dout.write(VERSION);
+		new Writer(dout).write(artifact, true);
+		dout.flush();
+	}
+
+	@Override
+	public Object read(InputStream in) throws IOException {
+		if ( ! (in instanceof BufferedInputStream)) {
+			in = new BufferedInputStream(in, 65536);
+		}
+		DataInputStream din = new DataInputStream(in);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (din.readByte() != MAGIC[i]) throw new IOException("Not a depot binary file");
+		}
+		byte v = din.readByte();
+		if (v > VERSION) {
+			throw new IOException("Depot binary format version "+v+" is newer than this code ("+VERSION+")");
+		}
+		return new Reader(din).read();
+	}
+
+	/**
+	 * How to write (and read) a class. Worked out once per class.
+	 */
+	static final class ClassInfo {
+		final Class klass;
+		/**
+		 * true => use the xml fallback
+		 */
+		final boolean xml;
+		/**
+		 * java.util collection / map with a no-arg constructor
+		 */
+		final boolean collection, map;
+		final Field[] fields;
+		final String[] names;
+		final Map<String,Field> field4name;
+		final Method readResolve;
+
+		ClassInfo(Class klass) {
+			this.klass = klass;
+			boolean isColl = Collection.class.isAssignableFrom(klass);
+			boolean isMap = Map.class.isAssignableFrom(klass);
+			if (isColl || isMap) {
+				boolean ok = isJavaUtil(klass) && hasNoArgConstructor(klass);
+				collection = ok && isColl;
+				map = ok && isMap;
+				xml = ! ok;
+				fields = null; names = null; field4name = null; readResolve = null;
+				return;
+			}
+			collection = false; map = false;
+			if (isJava(klass) || klass.isAnnotationPresent(BinaryXML.class) || hasJavaSuperclass(klass)) {
+				xml = true;
+				fields = null; names = null; field4name = null; readResolve = null;
+				return;
+			}
+			Method rr = null;
+			for(Class k = klass; k != null && k != Object.class; k = k.getSuperclass()) {
+				try {
+					rr = k.getDeclaredMethod("readResolve");
+					rr.setAccessible(true);
+					break;
+				} catch (NoSuchMethodException e) {
+					// keep looking
+				}
+			}
+			readResolve = rr;
+			xml = false;
+			List<Field> fs = ReflectionUtils.getAllFields(klass);
+			fs.removeIf(ReflectionUtils::isTransient);
+			fields = fs.toArray(new Field[fs.size()]);
+			// names -- qualified by the declaring class if a sub-class shadows a field
+			HashMap<String,Integer> nameCount = new HashMap();
+			for (Field f : fields) {
+				nameCount.merge(f.getName(), 1, Integer::sum);
+			}
+			names = new String[fields.length];
+			field4name = new HashMap(fields.length);
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+				names[i] = nameCount.get(f.getName()) == 1? f.getName() : f.getDeclaringClass().getName()+"#"+f.getName();
+				field4name.put(names[i], f);
+			}
+		}
+	}
+
+	static ClassInfo getClassInfo(Class klass) {
+		ClassInfo ci = classInfo.get(klass);
+		if (ci != null) return ci;
+		ci = new ClassInfo(klass);
+		classInfo.putIfAbsent(klass, ci);
+		return ci;
+	}
+
+	private static boolean isJava(Class klass) {
+		String n = klass.getName();
+		return n.startsWith("java.") || n.startsWith("javax.") || n.startsWith("sun.") || n.startsWith("jdk.");
+	}
+
+	private static boolean isJavaUtil(Class klass) {
+		String n = klass.getName();
+		// not e.g. Collections$UnmodifiableList
+		return (n.startsWith("java.util.") && n.indexOf('$') == -1);
+	}
+
+	private static boolean hasJavaSuperclass(Class klass) {
+		for(Class k = klass.getSuperclass(); k != null && k != Object.class; k = k.getSuperclass()) {
+			if (isJava(k)) return true;
+		}
+		return false;
+	}
+
+	private static boolean hasNoArgConstructor(Class klass) {
+		try {
+			klass.getConstructor();
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Per-write state
+	 */
+	static final class Writer {
+		final DataOutputStream out;
+		final IdentityHashMap<Object,Integer> refs = new IdentityHashMap();
+		final HashMap<Class,Integer> classes = new HashMap();
+		/**
+		 * classes whose field-names have been written
+		 */
+		final HashMap<Class,Boolean> schemas = new HashMap();
+		byte[] buf;
+
+		Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write(Object x, boolean top) throws IOException {
+			if (x == null) {
+				out.writeByte(NULL);
+				return;
+			}
+			Class k = x.getClass();
+			// common immutables (not reference tracked)
+			if (k == String.class) {
+				out.writeByte(STRING);
+				writeString((String) x);
+				return;
+			}
+			if (k == Double.class) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) x);
+				return;
+			}
+			if (k == Integer.class) {
+				out.writeByte(INT);
+				out.writeInt((Integer) x);
+				return;
+			}
+			if (k == Long.class) {
+				out.writeByte(LONG);
+				out.writeLong((Long) x);
+				return;
+			}
+			if (k == Boolean.class) {
+				out.writeByte((Boolean) x? TRUE : FALSE);
+				return;
+			}
+			if (k == Float.class) {
+				out.writeByte(FLOAT);
+				out.writeFloat((Float) x);
+				return;
+			}
+			if (k == Short.class) {
+				out.writeByte(SHORT);
+				out.writeShort((Short) x);
+				return;
+			}
+			if (k == Byte.class) {
+				out.writeByte(BYTE);
+				out.writeByte((Byte) x);
+				return;
+			}
+			if (k == Character.class) {
+				out.writeByte(CHAR);
+				out.writeChar((Character) x);
+				return;
+			}
+			// seen before?
+			Integer ref = refs.get(x);
+			if (ref != null) {
+				out.writeByte(REF);
+				writeVar(ref);
+				return;
+			}
+			// NB: register before writing the contents, so cycles work. The reader does the same.
+			refs.put(x, refs.size());
+			if (k.isArray()) {
+				writeArray(x, k);
+				return;
+			}
+			if (x instanceof Enum) {
+				out.writeByte(ENUM);
+				writeClass(((Enum) x).getDeclaringClass());
+				writeString(((Enum) x).name());
+				return;
+			}
+			if (k == Class.class) {
+				out.writeByte(CLASS);
+				writeString(((Class) x).getName());
+				return;
+			}
+			// a sub-module?
+			if ( ! top && x instanceof ModularXML) {
+				Desc desc = ((IHasDesc) x).getDesc();
+				assert desc != null : x;
+				out.writeByte(MODULE);
+				write(desc, false);
+				return;
+			}
+			ClassInfo ci = getClassInfo(k);
+			if (ci.collection || ci.map) {
+				// sorted with a custom comparator? The comparator would be lost
+				if ((x instanceof SortedSet && ((SortedSet) x).comparator() != null)
+					|| (x instanceof SortedMap && ((SortedMap) x).comparator() != null))
+				{
+					writeXml(x);
+					return;
+				}
+				if (ci.collection) {
+					Collection c = (Collection) x;
+					out.writeByte(COLLECTION);
+					writeClass(k);
+					writeVar(c.size());
+					for (Object e : c) {
+						write(e, false);
+					}
+				} else {
+					Map<?,?> m = (Map) x;
+					out.writeByte(MAP);
+					writeClass(k);
+					writeVar(m.size());
+					for (Map.Entry e : m.entrySet()) {
+						write(e.getKey(), false);
+						write(e.getValue(), false);
+					}
+				}
+				return;
+			}
+			if (ci.xml) {
+				writeXml(x);
+				return;
+			}
+			writeObject(x, ci);
+		}
+
+		private void writeObject(Object x, ClassInfo ci) throws IOException {
+			out.writeByte(OBJECT);
+			writeClass(ci.klass);
+			if (schemas.put(ci.klass, Boolean.TRUE) == null) {
+				writeVar(ci.names.length);
+				for (String n : ci.names) {
+					writeString(n);
+				}
+			}
+			try {
+				for (Field f : ci.fields) {
+					Class t = f.getType();
+					// primitives: no boxing
+					if (t == double.class) {
+						out.writeByte(DOUBLE);
+						out.writeDouble(f.getDouble(x));
+					} else if (t == int.class) {
+						out.writeByte(INT);
+						out.writeInt(f.getInt(x));
+					} else if (t == long.class) {
+						out.writeByte(LONG);
+						out.writeLong(f.getLong(x));
+					} else if (t == boolean.class) {
+						out.writeByte(f.getBoolean(x)? TRUE : FALSE);
+					} else {
+						write(f.get(x), false);
+					}
+				}
+			} catch (IllegalAccessException e) {
+				throw Utils.runtime(e);
+			}
+		}
+
+		private void writeXml(Object x) throws IOException {
+			out.writeByte(XML);
+			writeString(XStreamUtils.serialiseToXml(x));
+		}
+
+		private void writeArray(Object x, Class k) throws IOException {
+			Class ct = k.getComponentType();
+			if ( ! ct.isPrimitive()) {
+				Object[] arr = (Object[]) x;
+				out.writeByte(ARRAY);
+				writeClass(k);
+				writeVar(arr.length);
+				for (Object e : arr) {
+					write(e, false);
+				}
+				return;
+			}
+			if (ct == double.class) {
+				double[] arr = (double[]) x;
+				out.writeByte(DOUBLES);
+				writeVar(arr.length);
+				int step = CHUNK / 8;
+				for(int off = 0; off < arr.length; off += step) {
+					int n = Math.min(step, arr.length - off);
+					ByteBuffer bb = chunk();
+					bb.asDoubleBuffer().put(arr, off, n);
+					out.write(buf, 0, n*8);
+				}
+			} else if (ct == int.class) {
+				int[] arr = (int[]) x;
+				out.writeByte(INTS);
+				writeVar(arr.length);
+				int step = CHUNK / 4;
+				for(int off = 0; off < arr.length; off += step) {
+					int n = Math.min(step, arr.length - off);
+					chunk().asIntBuffer().put(arr, off, n);
+					out.write(buf, 0, n*4);
+				}
+			} else if (ct == long.class) {
+				long[] arr = (long[]) x;
+				out.writeByte(LONGS);
+				writeVar(arr.length);
+				int step = CHUNK / 8;
+				for(int off = 0; off < arr.length; off += step) {
+					int n = Math.min(step, arr.length - off);
+					chunk().asLongBuffer().put(arr, off, n);
+					out.write(buf, 0, n*8);
+				}
+			} else if (ct == float.class) {
+				float[] arr = (float[]) x;
+				out.writeByte(FLOATS);
+				writeVar(arr.length);
+				int step = CHUNK / 4;
+				for(int off = 0; off < arr.length; off += step) {
+					int n = Math.min(step, arr.length - off);
+					chunk().asFloatBuffer().put(arr, off, n);
+					out.write(buf, 0, n*4);
+				}
+			} else if (ct == short.class) {
+				short[] arr = (short[]) x;
+				out.writeByte(SHORTS);
+				writeVar(arr.length);
+				int step = CHUNK / 2;
+				for(int off = 0; off < arr.length; off += step) {
+					int n = Math.min(step, arr.length - off);
+					chunk().asShortBuffer().put(arr, off, n);
+					out.write(buf, 0, n*2);
+				}
+			} else if (ct == char.class) {
+				char[] arr = (char[]) x;
+				out.writeByte(CHARS);
+				writeVar(arr.length);
+				int step = CHUNK / 2;
+				for(int off = 0; off < arr.length; off += step) {
+					int n = Math.min(step, arr.length - off);
+					chunk().asCharBuffer().put(arr, off, n);
+					out.write(buf, 0, n*2);
+				}
+			} else if (ct == byte.class) {
+				byte[] arr = (byte[]) x;
+				out.writeByte(BYTES);
+				writeVar(arr.length);
+				out.write(arr);
+			} else {
+				assert ct == boolean.class : ct;
+				boolean[] arr = (boolean[]) x;
+				out.writeByte(BOOLEANS);
+				writeVar(arr.length);
+				for (boolean b : arr) {
+					out.writeBoolean(b);
+				}
+			}
+		}
+
+		private ByteBuffer chunk() {
+			if (buf == null) buf = new byte[CHUNK];
+			return ByteBuffer.wrap(buf);
+		}
+
+		/**
+		 * A class-table index. The first time, the index is followed by the class name.
+		 */
+		private void writeClass(Class k) throws IOException {
+			Integer ci = classes.get(k);
+			if (ci != null) {
+				writeVar(ci);
+				return;
+			}
+			int i = classes.size();
+			classes.put(k, i);
+			writeVar(i);
+			writeString(k.getName());
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVar(bytes.length);
+			out.write(bytes);
+		}
+
+		/**
+		 * unsigned var-int: 7 bits per byte
+		 */
+		private void writeVar(int v) throws IOException {
+			assert v >= 0 : v;
+			while((v & ~0x7F) != 0) {
+				out.writeByte((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			out.writeByte(v);
+		}
+	}
+
+	/**
+	 * Per-read state
+	 */
+	static final class Reader {
+		final DataInputStream in;
+		final ArrayList<Object> refs = new ArrayList();
+		final ArrayList<Class> classes = new ArrayList();
+		/**
+		 * class-index to the fields in the file's order (null for fields we no longer have)
+		 */
+		final HashMap<Integer,Field[]> schemas = new HashMap();
+		final ReflectionProvider reflection = XStreamUtils.xstream().getReflectionProvider();
+		byte[] buf;
+
+		Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		Object read() throws IOException {
+			byte tag = in.readByte();
+			switch(tag) {
+			case NULL: return null;
+			case TRUE: return Boolean.TRUE;
+			case FALSE: return Boolean.FALSE;
+			case BYTE: return in.readByte();
+			case SHORT: return in.readShort();
+			case CHAR: return in.readChar();
+			case INT: return in.readInt();
+			case LONG: return in.readLong();
+			case FLOAT: return in.readFloat();
+			case DOUBLE: return in.readDouble();
+			case STRING: return readString();
+			case REF: return refs.get(readVar());
+			}
+			// reference tracked
+			int ref = refs.size();
+			refs.add(null);
+			Object x;
+			switch(tag) {
+			case DOUBLES: case INTS: case LONGS: case FLOATS: case SHORTS: case CHARS: case BYTES: case BOOLEANS:
+				x = readPrimitiveArray(tag);
+				break;
+			case ARRAY:
+				Class ak = readClass();
+				int len = readVar();
+				Object[] arr = (Object[]) Array.newInstance(ak.getComponentType(), len);
+				refs.set(ref, arr);
+				for (int i = 0; i < len; i++) {
+					arr[i] = read();
+				}
+				return arr;
+			case ENUM:
+				Class ek = readClass();
+				x = Enum.valueOf(ek, readString());
+				break;
+			case CLASS:
+				x = forName(readString());
+				break;
+			case COLLECTION:
+				Collection c = (Collection) newInstance(readClass());
+				refs.set(ref, c);
+				int n = readVar();
+				for (int i = 0; i < n; i++) {
+					c.add(read());
+				}
+				return c;
+			case MAP:
+				Map m = (Map) newInstance(readClass());
+				refs.set(ref, m);
+				int mn = readVar();
+				for (int i = 0; i < mn; i++) {
+					Object k = read();
+					m.put(k, read());
+				}
+				return m;
+			case OBJECT:
+				return readObject(ref);
+			case MODULE:
+				Desc desc = (Desc) read();
+				x = ModularConverter.loadModule(Depot.getDefault(), desc);
+				break;
+			case XML:
+				x = XStreamUtils.serialiseFromXml(readString());
+				break;
+			default:
+				throw new IOException("Corrupt depot binary: unknown tag "+tag);
+			}
+			refs.set(ref, x);
+			return x;
+		}
+
+		private Object readObject(int ref) throws IOException {
+			int ci = readVar();
+			Class k = readClass(ci);
+			Field[] fields = schemas.get(ci);
+			if (fields == null) {
+				// first time: read the field names, and match them against the class as it is now
+				ClassInfo info = getClassInfo(k);
+				int n = readVar();
+				fields = new Field[n];
+				for (int i = 0; i < n; i++) {
+					String name = readString();
+					fields[i] = info.field4name==null? null : info.field4name.get(name);
+				}
+				schemas.put(ci, fields);
+			}
+			Object x = reflection.newInstance(k);
+			refs.set(ref, x);
+			for (Field f : fields) {
+				Object v = read();
+				if (f == null) continue; // dropped field
+				try {
+					f.set(x, v);
+				} catch (IllegalArgumentException e) {
+					// the field's type has changed -- leave it at the default
+					Log.w(LOGTAG, "Skip "+f+" for "+k.getSimpleName()+": "+e);
+				} catch (IllegalAccessException e) {
+					throw Utils.runtime(e);
+				}
+			}
+			Method rr = getClassInfo(k).readResolve;
+			if (rr != null) {
+				try {
+					x = rr.invoke(x);
+				} catch (Exception e) {
+					throw Utils.runtime(e);
+				}
+				refs.set(ref, x);
+			}
+			return x;
+		}
+
+		private Object newInstance(Class k) {
+			try {
+				return k.getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				throw Utils.runtime(e);
+			}
+		}
+
+		private Object readPrimitiveArray(byte tag) throws IOException {
+			int len = readVar();
+			switch(tag) {
+			case DOUBLES:
+				double[] ds = new double[len];
+				for(int off = 0, step = CHUNK / 8; off < len; off += step) {
+					int n = Math.min(step, len - off);
+					chunk(n*8).asDoubleBuffer().get(ds, off, n);
+				}
+				return ds;
+			case INTS:
+				int[] is = new int[len];
+				for(int off = 0, step = CHUNK / 4; off < len; off += step) {
+					int n = Math.min(step, len - off);
+					chunk(n*4).asIntBuffer().get(is, off, n);
+				}
+				return is;
+			case LONGS:
+				long[] ls = new long[len];
+				for(int off = 0, step = CHUNK / 8; off < len; off += step) {
+					int n = Math.min(step, len - off);
+					chunk(n*8).asLongBuffer().get(ls, off, n);
+				}
+				return ls;
+			case FLOATS:
+				float[] fs = new float[len];
+				for(int off = 0, step = CHUNK / 4; off < len; off += step) {
+					int n = Math.min(step, len - off);
+					chunk(n*4).asFloatBuffer().get(fs, off, n);
+				}
+				return fs;
+			case SHORTS:
+				short[] ss = new short[len];
+				for(int off = 0, step = CHUNK / 2; off < len; off += step) {
+					int n = Math.min(step, len - off);
+					chunk(n*2).asShortBuffer().get(ss, off, n);
+				}
+				return ss;
+			case CHARS:
+				char[] cs = new char[len];
+				for(int off = 0, step = CHUNK / 2; off < len; off += step) {
+					int n = Math.min(step, len - off);
+					chunk(n*2).asCharBuffer().get(cs, off, n);
+				}
+				return cs;
+			case BYTES:
+				byte[] bs = new byte[len];
+				in.readFully(bs);
+				return bs;
+			default:
+				boolean[] bools = new boolean[len];
+				for (int i = 0; i < len; i++) {
+					bools[i] = in.readBoolean();
+				}
+				return bools;
+			}
+		}
+
+		/**
+		 * Read n bytes into the chunk buffer
+		 */
+		private ByteBuffer chunk(int n) throws IOException {
+			if (buf == null) buf = new byte[CHUNK];
+			in.readFully(buf, 0, n);
+			return ByteBuffer.wrap(buf, 0, n);
+		}
+
+		private Class readClass() throws IOException {
+			return readClass(readVar());
+		}
+
+		private Class readClass(int i) throws IOException {
+			if (i < classes.size()) {
+				return classes.get(i);
+			}
+			assert i == classes.size() : i+" vs "+classes.size();
+			Class k = forName(readString());
+			classes.add(k);
+			return k;
+		}
+
+		private Class forName(String name) throws IOException {
+			try {
+				return Class.forName(name, false, Thread.currentThread().getContextClassLoader());
+			} catch (ClassNotFoundException e) {
+				try {
+					return Class.forName(name);
+				} catch (ClassNotFoundException e2) {
+					throw new IOException("Depot binary: unknown class "+name, e2);
+				}
+			}
+		}
+
+		private String readString() throws IOException {
+			int len = readVar();
+			byte[] bytes = len <= CHUNK? (buf==null? (buf = new byte[CHUNK]) : buf) : new byte[len];
+			in.readFully(bytes, 0, len);
+			return new String(bytes, 0, len, StandardCharsets.UTF_8);
+		}
+
+		private int readVar() throws IOException {
+			int v = 0;
+			for(int shift = 0; ; shift += 7) {
+				int b = in.readByte();
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+		}
+	}
+
+}
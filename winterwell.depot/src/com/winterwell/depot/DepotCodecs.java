@@ -0,0 +1,178 @@
+package com.winterwell.depot;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import com.winterwell.depot.Desc.KSerialiser;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.web.XStreamUtils;
+
+/**
+ * The file formats {@link FileStore} can use: XStream xml (the default), Java serialisation,
+ * {@link BinaryCodec}, and the {@link MMapArtifact} format.
+ * <p>
+ * Reading auto-detects the format (and gzip) from the first few bytes, so changing
+ * {@link DepotConfig#serialiser} does not break existing files.
+ * The exception is Java serialisation, which is only read if the caller asks for it --
+ * otherwise any file which starts with the right magic bytes could run code on load.
+ *
+ * @author daniel
+ */
+public final class DepotCodecs {
+
+	public static final IDepotCodec XSTREAM = new XStreamCodec();
+	public static final IDepotCodec JAVA = new JavaCodec();
+	public static final IDepotCodec BINARY = new BinaryCodec();
+	public static final IDepotCodec MMAP = new MMapArtifact.Codec();
+
+	/**
+	 * Tried in order when auto-detecting. XStream is the fallback if none match.
+	 * NB: not JAVA, see {@link #read(InputStream, KSerialiser)}
+	 */
+	private static final List<IDepotCodec> codecs = new CopyOnWriteArrayList<>(new IDepotCodec[] {BINARY, MMAP});
+
+	private static final int HEAD = 16;
+
+	private DepotCodecs() {}
+
+	/**
+	 * Add a format for auto-detection on read. Higher priority than the built-in ones.
+	 * @param codec
+	 */
+	public static void register(IDepotCodec codec) {
+		codecs.add(0, codec);
+	}
+
+	/**
+	 * @param ser Can be null (=> XStream)
+	 * @return the codec for writing
+	 */
+	public static IDepotCodec forSerialiser(KSerialiser ser) {
+		if (ser==null) return XSTREAM;
+		switch(ser) {
+		case JAVA: return JAVA;
+		case BINARY: return BINARY;
+		default: return XSTREAM;
+		}
+	}
+
+	/**
+	 * @param artifact
+	 * @param ser Can be null
+	 * @return the codec for writing this artifact. Some artifacts have their own format, e.g. {@link MMapArtifact}.
+	 */
+	public static IDepotCodec forArtifact(Object artifact, KSerialiser ser) {
+		if (artifact instanceof MMapArtifact) return MMAP;
+		return forSerialiser(ser);
+	}
+
+	/**
+	 * Read an artifact, whatever format it's in -- except Java serialisation, which this refuses.
+	 * @param in This will be buffered and un-gzipped as needed. The caller should close it.
+	 * @return the artifact
+	 */
+	public static Object read(InputStream in) throws IOException {
+		return read(in, null);
+	}
+
+	/**
+	 * Read an artifact, whatever format it's in.
+	 * @param in This will be buffered and un-gzipped as needed. The caller should close it.
+	 * @param ser The format the artifact was saved with. Java serialisation is only read if this is JAVA.
+	 * Other formats are auto-detected. Can be null.
+	 * @return the artifact
+	 */
+	public static Object read(InputStream in, KSerialiser ser) throws IOException {
+		if ( ! in.markSupported()) {
+			in = new BufferedInputStream(in, 65536);
+		}
+		// gzipped?
+		byte[] head = new byte[HEAD];
+		int len = peek(in, head);
+		if (len >= 2 && (head[0] & 0xFF) == 0x1F && (head[1] & 0xFF) == 0x8B) {
+			in = new BufferedInputStream(new GZIPInputStream(in, 65536), 65536);
+			len = peek(in, head);
+		}
+		if (JAVA.isMine(head, len)) {
+			if (ser != KSerialiser.JAVA) {
+				throw new IOException("Java-serialised data, but the format is "+ser+" - not reading it");
+			}
+			return JAVA.read(in);
+		}
+		for (IDepotCodec codec : codecs) {
+			if (codec.isMine(head, len)) {
+				return codec.read(in);
+			}
+		}
+		return XSTREAM.read(in);
+	}
+
+	private static int peek(InputStream in, byte[] head) throws IOException {
+		in.mark(head.length);
+		int len = 0;
+		while(len < head.length) {
+			int n = in.read(head, len, head.length - len);
+			if (n == -1) break;
+			len += n;
+		}
+		in.reset();
+		return len;
+	}
+
+	static final class XStreamCodec implements IDepotCodec {
+		@Override
+		public boolean isMine(byte[] head, int len) {
+			// the fallback -- xml
+			return len > 0 && head[0] == '<';
+		}
+
+		@Override
+		public void write(Object artifact, OutputStream out) throws IOException {
+			Writer w = FileUtils.getWriter(out);
+			XStreamUtils.serialiseToXml(w, artifact);
+			w.flush();
+		}
+
+		@Override
+		public Object read(InputStream in) throws IOException {
+			return XStreamUtils.serialiseFromXml(in);
+		}
+	}
+
+	/**
+	 * Java serialisation (good for some forms of dense data)
+	 */
+	static final class JavaCodec implements IDepotCodec {
+		@Override
+		public boolean isMine(byte[] head, int len) {
+			// ObjectStreamConstants.STREAM_MAGIC
+			return len >= 2 && (head[0] & 0xFF) == 0xAC && (head[1] & 0xFF) == 0xED;
+		}
+
+		@Override
+		public void write(Object artifact, OutputStream out) throws IOException {
+			ObjectOutputStream objStrm = new ObjectOutputStream(out);
+			objStrm.writeObject(artifact);
+			objStrm.flush();
+		}
+
+		@Override
+		public Object read(InputStream in) throws IOException {
+			try {
+				ObjectInputStream objIn = new ObjectInputStream(in);
+				return objIn.readObject();
+			} catch (ClassNotFoundException e) {
+				throw Utils.runtime(e);
+			}
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.lang.reflect.Constructor;
 import java.util.Map;
 
+import com.winterwell.depot.Desc.KSerialiser;
 import com.winterwell.utils.MathUtils;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.io.FileUtils;
@@ -80,6 +81,10 @@ public class DepotConfig {
 	@Option(description="Set this to store certain tags in a different directory. Only applies if FileStorage is used")
 	Map<String,String> dir4tag;
 	
+	@Option(description="File format for FileStore: XSTREAM (xml, the default), BINARY (compact & fast, esp. for numeric data) or JAVA. "
+			+"Reading auto-detects the format, so old files still load if you change this.")
+	KSerialiser serialiser;
+
 	@Option
 	KErrorPolicy errorPolicy = KErrorPolicy.DELETE_CAUSE; // !!
 
@@ -145,6 +150,11 @@ public class DepotConfig {
 		return s;
 	}
 
+	public DepotConfig setSerialiser(KSerialiser serialiser) {
+		this.serialiser = serialiser;
+		return this;
+	}
+
 	public DepotConfig setDir(File dir) {
 		this.dir = dir;
 		return this;
@@ -4,10 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -16,7 +13,6 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import com.winterwell.datalog.DataLog;
@@ -27,7 +23,6 @@ import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.time.Period;
 import com.winterwell.utils.time.Time;
-import com.winterwell.utils.web.XStreamUtils;
 
 /**
  * A simple file-based depot.
@@ -162,20 +157,13 @@ public class FileStore implements IStore {
 			// We can synch on artifact, but that relies on editors doing the same.  
 			// We could test loading the object, though that's inefficient (esp if it's modular).
 			try {
-				File tmpFile = File.createTempFile("depot", ".xml");
+				File tmpFile = File.createTempFile("depot", ".tmp");
 				strm = new FileOutputStream(tmpFile);
 				if (desc.gzip) strm = new GZIPOutputStream(strm); 
-				if (desc.ser==Desc.KSerialiser.JAVA) {
-					// use java serialisation (good for some forms of dense data)
-					ObjectOutputStream objStrm = new ObjectOutputStream(strm);
-					objStrm.writeObject(artifact);			
-					objStrm.close();	
-				} else {
-					// xstream by default
-					Writer w = FileUtils.getWriter(strm);
-					XStreamUtils.serialiseToXml(w, artifact);
-					w.close();
-				}
+				// the Desc can ask for a format, otherwise use the config (xstream by default)
+				IDepotCodec codec = DepotCodecs.forArtifact(artifact, desc.ser!=null? desc.ser : depotConfig.serialiser);
+				codec.write(artifact, strm);
+				strm.close();
 				FileUtils.close(strm);
 				// move it into place
 				FileUtils.move(tmpFile, storeHere);
@@ -339,19 +327,16 @@ public class FileStore implements IStore {
 		assert f.isFile() : f;
 		
 		DataLog.count(1,"Depot","load", config.getType().getSimpleName());
+		// special case for big arrays -- map, don't read
+		if (config.getType()==MMapArtifact.class && ! config.gzip) {
+			return (X2) MMapArtifact.open(f);
+		}
 		InputStream in = null;
 		try {
 			in = new FileInputStream(f);
-			if (config.gzip) in = new GZIPInputStream(in); 
-			if (config.ser==Desc.KSerialiser.JAVA) {
-				// use java serialisation (good for some forms of dense data)
-				ObjectInputStream objIn = new ObjectInputStream(in);
-				Object data = objIn.readObject();			
-				objIn.close();
-				return (X2) data;	
-			}
-			// xstream by default
-			Object data = XStreamUtils.serialiseFromXml(in);
+			// NB: the format (and gzip) is auto-detected, so files written under an older config still load.
+			// But Java serialisation is only read if it's the format the artifact is saved with.
+			Object data = DepotCodecs.read(in, config.ser!=null? config.ser : depotConfig.serialiser);
 			return (X2) data;
 		} catch(Exception ex) {
 			throw Utils.runtime(ex);
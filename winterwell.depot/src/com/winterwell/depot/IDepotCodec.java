@@ -0,0 +1,34 @@
+package com.winterwell.depot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A file format for artifacts. See {@link DepotCodecs} for the built-in ones,
+ * and for registering more.
+ *
+ * @author daniel
+ */
+public interface IDepotCodec {
+
+	/**
+	 * @param head The first few bytes of a file (gzip already undone). Can be shorter than usual for tiny files.
+	 * @param len How many bytes of head are valid
+	 * @return true if this looks like our format. Used to auto-detect the format on read.
+	 */
+	boolean isMine(byte[] head, int len);
+
+	/**
+	 * @param artifact
+	 * @param out Do not close this -- the caller will.
+	 */
+	void write(Object artifact, OutputStream out) throws IOException;
+
+	/**
+	 * @param in Do not close this -- the caller will.
+	 * @return the artifact
+	 */
+	Object read(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,539 @@
+package com.winterwell.depot;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * A Depot artifact of named columns of primitives (e.g. a big dense vector, an embedding matrix
+ * stored row-major, or the columns of a table), which is memory-mapped on load instead of being read into the heap.
+ * <p>
+ * So a multi-GB artifact opens in milliseconds, only the pages you touch get read,
+ * and several processes using the same artifact share the OS page cache.
+ * <p>
+ * Usage:
+ * <pre><code>
+ * // save
+ * MMapArtifact ma = new MMapArtifact().put("weights", myDoubles);
+ * depot.put(new Desc&lt;MMapArtifact&gt;("mymodel", MMapArtifact.class), ma);
+ * // load -- mapped, not read
+ * MMapArtifact ma2 = depot.get(desc);
+ * double w = ma2.getDouble("weights", 123456789L);
+ * </code></pre>
+ *
+ * Mapping only happens with {@link FileStore} (and not if the Desc is gzipped) -- other stores read the
+ * columns into heap buffers. Views are read-only. This should be a top-level artifact, not a field inside another object.
+ * <p>
+ * File format: "WWDM" + version, the column directory, then each column's data (8-byte aligned, little-endian).
+ *
+ * @author daniel
+ * @testedby  MMapArtifactTest}
+ */
+public final class MMapArtifact {
+
+	static final byte[] MAGIC = {'W','W','D','M'};
+	static final byte VERSION = 1;
+
+	static final byte DOUBLE = 1, FLOAT = 2, LONG = 3, INT = 4, BYTE = 5;
+
+	/**
+	 * Big columns are mapped in pages of this many bytes (a multiple of 8), as a single mapping is limited to 2gb.
+	 * Package-visible for testing.
+	 */
+	static int PAGE = 1 << 30;
+
+	static final class Column {
+		final String name;
+		final byte type;
+		/**
+		 * number of elements
+		 */
+		final long length;
+		/**
+		 * in the file
+		 */
+		long offset;
+		/**
+		 * The java array, for in-memory columns. null if mapped.
+		 */
+		Object array;
+		/**
+		 * Lazily mapped pages. null if in-memory.
+		 */
+		ByteBuffer[] pages;
+
+		Column(String name, byte type, long length) {
+			this.name = name;
+			this.type = type;
+			this.length = length;
+		}
+
+		int width() {
+			return width(type);
+		}
+
+		static int width(byte type) {
+			switch(type) {
+			case DOUBLE: case LONG: return 8;
+			case FLOAT: case INT: return 4;
+			default: return 1;
+			}
+		}
+	}
+
+	private final LinkedHashMap<String,Column> columns = new LinkedHashMap();
+
+	/**
+	 * The mapped file, or null for in-memory
+	 */
+	private File file;
+
+	/**
+	 * Create an empty in-memory artifact. Add data with put().
+	 */
+	public MMapArtifact() {
+	}
+
+	/**
+	 * Map a file (as written by {@link FileStore}). Only the header is read now.
+	 * @param f
+	 * @return artifact with lazily mapped columns
+	 */
+	public static MMapArtifact open(File f) {
+		MMapArtifact ma = new MMapArtifact();
+		ma.file = f;
+		// the directory is small -- read it via a stream
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(f));
+			ma.readHeader(in);
+			long flen = f.length();
+			for (Column c : ma.columns.values()) {
+				if (c.offset + c.length*c.width() > flen) {
+					throw new IOException("Truncated depot mmap file "+f+" column "+c.name);
+				}
+				c.pages = new ByteBuffer[(int) ((c.length*c.width() + PAGE - 1) / PAGE)];
+			}
+			return ma;
+		} catch (IOException e) {
+			throw Utils.runtime(e);
+		} finally {
+			FileUtils.close(in);
+		}
+	}
+
+	public MMapArtifact put(String name, double[] data) {
+		return put2(name, DOUBLE, data, data.length);
+	}
+
+	public MMapArtifact put(String name, float[] data) {
+		return put2(name, FLOAT, data, data.length);
+	}
+
+	public MMapArtifact put(String name, long[] data) {
+		return put2(name, LONG, data, data.length);
+	}
+
+	public MMapArtifact put(String name, int[] data) {
+		return put2(name, INT, data, data.length);
+	}
+
+	public MMapArtifact put(String name, byte[] data) {
+		return put2(name, BYTE, data, data.length);
+	}
+
+	private MMapArtifact put2(String name, byte type, Object data, int len) {
+		if (file != null) throw new IllegalStateException("Mapped artifacts are read-only: "+file);
+		Column c = new Column(name, type, len);
+		c.array = data;
+		columns.put(name, c);
+		return this;
+	}
+
+	/**
+	 * @return column names, in order
+	 */
+	public List<String> getColumnNames() {
+		return new ArrayList(columns.keySet());
+	}
+
+	/**
+	 * @param name
+	 * @return number of elements in the column, or -1 if there is no such column
+	 */
+	public long size(String name) {
+		Column c = columns.get(name);
+		return c==null? -1 : c.length;
+	}
+
+	/**
+	 * @return true if this is a view on a file (as opposed to in-memory arrays)
+	 */
+	public boolean isMapped() {
+		return file != null;
+	}
+
+	/**
+	 * Random access, no copying. Works for any size of column.
+	 * @param name
+	 * @param i
+	 */
+	public double getDouble(String name, long i) {
+		Column c = column(name, DOUBLE);
+		if (c.array != null) return ((double[]) c.array)[(int) i];
+		long b = index(c, i);
+		return page(c, b).getDouble((int) (b % PAGE));
+	}
+
+	public float getFloat(String name, long i) {
+		Column c = column(name, FLOAT);
+		if (c.array != null) return ((float[]) c.array)[(int) i];
+		long b = index(c, i);
+		return page(c, b).getFloat((int) (b % PAGE));
+	}
+
+	public long getLong(String name, long i) {
+		Column c = column(name, LONG);
+		if (c.array != null) return ((long[]) c.array)[(int) i];
+		long b = index(c, i);
+		return page(c, b).getLong((int) (b % PAGE));
+	}
+
+	public int getInt(String name, long i) {
+		Column c = column(name, INT);
+		if (c.array != null) return ((int[]) c.array)[(int) i];
+		long b = index(c, i);
+		return page(c, b).getInt((int) (b % PAGE));
+	}
+
+	public byte getByte(String name, long i) {
+		Column c = column(name, BYTE);
+		if (c.array != null) return ((byte[]) c.array)[(int) i];
+		long b = index(c, i);
+		return page(c, b).get((int) (b % PAGE));
+	}
+
+	/**
+	 * A zero-copy, read-only view of a whole column. The column must fit in one page (under 1gb)
+	 * -- use {@link #getDouble(String, long)} for bigger ones.
+	 */
+	public DoubleBuffer getDoubles(String name) {
+		Column c = column(name, DOUBLE);
+		if (c.array != null) return DoubleBuffer.wrap((double[]) c.array).asReadOnlyBuffer();
+		return whole(c).asDoubleBuffer();
+	}
+
+	public FloatBuffer getFloats(String name) {
+		Column c = column(name, FLOAT);
+		if (c.array != null) return FloatBuffer.wrap((float[]) c.array).asReadOnlyBuffer();
+		return whole(c).asFloatBuffer();
+	}
+
+	public LongBuffer getLongs(String name) {
+		Column c = column(name, LONG);
+		if (c.array != null) return LongBuffer.wrap((long[]) c.array).asReadOnlyBuffer();
+		return whole(c).asLongBuffer();
+	}
+
+	public IntBuffer getInts(String name) {
+		Column c = column(name, INT);
+		if (c.array != null) return IntBuffer.wrap((int[]) c.array).asReadOnlyBuffer();
+		return whole(c).asIntBuffer();
+	}
+
+	public ByteBuffer getBytes(String name) {
+		Column c = column(name, BYTE);
+		if (c.array != null) return ByteBuffer.wrap((byte[]) c.array).asReadOnlyBuffer();
+		return whole(c);
+	}
+
+	/**
+	 * Big columns are split into pages (see {@link #getFloats(String, int)} etc). In-memory columns are one page.
+	 * @param name
+	 * @return the number of pages in the column
+	 */
+	public int getPageCount(String name) {
+		Column c = columns.get(name);
+		if (c == null) throw new IllegalArgumentException("No column "+name+" in "+this);
+		if (c.array != null) return 1;
+		return c.pages.length;
+	}
+
+	/**
+	 * @param name
+	 * @param page
+	 * @return the index of the first element in the page. Page p holds elements [getPageStart(p), getPageStart(p+1)).
+	 */
+	public long getPageStart(String name, int page) {
+		Column c = columns.get(name);
+		if (c == null) throw new IllegalArgumentException("No column "+name+" in "+this);
+		if (c.array != null) return page==0? 0 : c.length;
+		return Math.min(c.length, (long) page * (PAGE / c.width()));
+	}
+
+	/**
+	 * A zero-copy, read-only view of one page of a column, for bulk access to columns of any size.
+	 * Index 0 in the buffer is element {@link #getPageStart(String, int)}.
+	 */
+	public DoubleBuffer getDoubles(String name, int page) {
+		Column c = column(name, DOUBLE);
+		if (c.array != null) return getDoubles(name);
+		return pageBuffer(c, page).asDoubleBuffer();
+	}
+
+	public FloatBuffer getFloats(String name, int page) {
+		Column c = column(name, FLOAT);
+		if (c.array != null) return getFloats(name);
+		return pageBuffer(c, page).asFloatBuffer();
+	}
+
+	public LongBuffer getLongs(String name, int page) {
+		Column c = column(name, LONG);
+		if (c.array != null) return getLongs(name);
+		return pageBuffer(c, page).asLongBuffer();
+	}
+
+	public IntBuffer getInts(String name, int page) {
+		Column c = column(name, INT);
+		if (c.array != null) return getInts(name);
+		return pageBuffer(c, page).asIntBuffer();
+	}
+
+	public ByteBuffer getBytes(String name, int page) {
+		Column c = column(name, BYTE);
+		if (c.array != null) return getBytes(name);
+		return pageBuffer(c, page);
+	}
+
+	/**
+	 * Copy a column into the heap.
+	 * @param name
+	 * @return a new array
+	 */
+	public double[] toDoubleArray(String name) {
+		Column c = column(name, DOUBLE);
+		if (c.array != null) return ((double[]) c.array).clone();
+		double[] arr = new double[Math.toIntExact(c.length)];
+		int done = 0;
+		for (int p = 0; p < c.pages.length; p++) {
+			DoubleBuffer db = page(c, (long) p*PAGE).asDoubleBuffer();
+			int n = Math.min(db.remaining(), arr.length - done);
+			db.get(arr, done, n);
+			done += n;
+		}
+		return arr;
+	}
+
+	private Column column(String name, byte type) {
+		Column c = columns.get(name);
+		if (c == null) throw new IllegalArgumentException("No column "+name+" in "+this);
+		if (c.type != type) throw new ClassCastException("Column "+name+" is type "+c.type+" not "+type);
+		return c;
+	}
+
+	private static long index(Column c, long i) {
+		if (i < 0 || i >= c.length) throw new IndexOutOfBoundsException(i+" in "+c.name+" length "+c.length);
+		return i * c.width();
+	}
+
+	private ByteBuffer whole(Column c) {
+		if (c.pages.length > 1) {
+			throw new UnsupportedOperationException("Column "+c.name+" is too big for a single buffer: "+c.length);
+		}
+		return pageBuffer(c, 0);
+	}
+
+	private ByteBuffer pageBuffer(Column c, int p) {
+		if (c.length == 0) return ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+		if (p < 0 || p >= c.pages.length) throw new IndexOutOfBoundsException("page "+p+" of "+c.pages.length+" in "+c.name);
+		// NB: duplicate() resets the byte order
+		return page(c, (long) p*PAGE).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Map a page if it isn't already. Races just mean a page gets mapped twice, which is harmless.
+	 * @param bytePos position within the column
+	 */
+	private ByteBuffer page(Column c, long bytePos) {
+		int p = (int) (bytePos / PAGE);
+		ByteBuffer bb = c.pages[p];
+		if (bb != null) return bb;
+		long start = (long) p * PAGE;
+		long len = Math.min(PAGE, c.length*c.width() - start);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			// NB: the mapping outlives the channel
+			bb = raf.getChannel().map(MapMode.READ_ONLY, c.offset + start, len).order(ByteOrder.LITTLE_ENDIAN);
+		} catch (IOException e) {
+			throw Utils.runtime(e);
+		}
+		c.pages[p] = bb;
+		return bb;
+	}
+
+	private void readHeader(DataInputStream in) throws IOException {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (in.readByte() != MAGIC[i]) throw new IOException("Not a depot mmap file");
+		}
+		byte v = in.readByte();
+		if (v > VERSION) throw new IOException("Depot mmap format version "+v+" is newer than this code ("+VERSION+")");
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			byte[] nb = new byte[in.readUnsignedShort()];
+			in.readFully(nb);
+			Column c = new Column(new String(nb, StandardCharsets.UTF_8), in.readByte(), in.readLong());
+			c.offset = in.readLong();
+			columns.put(c.name, c);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MMapArtifact["+(file==null? "in-memory" : file.getName())+" "+columns.keySet()+"]";
+	}
+
+	/**
+	 * Read/write the mmap format as a stream. {@link FileStore} maps the file instead of calling read().
+	 */
+	static final class Codec implements IDepotCodec {
+
+		@Override
+		public boolean isMine(byte[] head, int len) {
+			if (len < MAGIC.length + 1) return false;
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (head[i] != MAGIC[i]) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void write(Object artifact, OutputStream out) throws IOException {
+			MMapArtifact ma = (MMapArtifact) artifact;
+			DataOutputStream dout = new DataOutputStream(out);
+			// work out the header size, so we know the offsets
+			List<byte[]> names = new ArrayList();
+			long pos = MAGIC.length + 1 + 4;
+			for (Column c : ma.columns.values()) {
+				byte[] nb = c.name.getBytes(StandardCharsets.UTF_8);
+				names.add(nb);
+				pos += 2 + nb.length + 1 + 8 + 8;
+			}
+			dout.write(MAGIC);
+			dout.write(VERSION);
+			dout.writeInt(ma.columns.size());
+			int i = 0;
+			for (Column c : ma.columns.values()) {
+				pos = align(pos);
+				byte[] nb = names.get(i++);
+				dout.writeShort(nb.length);
+				dout.write(nb);
+				dout.writeByte(c.type);
+				dout.writeLong(c.length);
+				dout.writeLong(pos);
+				pos += c.length*c.width();
+			}
+			long written = dout.size();
+			// data
+			byte[] buf = new byte[65536];
+			for (Column c : ma.columns.values()) {
+				// pad to 8
+				while((written & 7) != 0) {
+					dout.writeByte(0);
+					written++;
+				}
+				long bytes = c.length*c.width();
+				for(long done = 0; done < bytes; ) {
+					int n = (int) Math.min(buf.length, bytes - done);
+					ma.copy(c, done, buf, n);
+					dout.write(buf, 0, n);
+					done += n;
+				}
+				written += bytes;
+			}
+			dout.flush();
+		}
+
+		private static long align(long pos) {
+			return (pos + 7) & ~7L;
+		}
+
+		@Override
+		public Object read(InputStream in) throws IOException {
+			// not mapped -- e.g. from a remote store. Read it into the heap.
+			DataInputStream din = new DataInputStream(in);
+			MMapArtifact ma = new MMapArtifact();
+			ma.readHeader(din);
+			// the header size, as written
+			long pos = MAGIC.length + 1 + 4;
+			for (Column c : ma.columns.values()) {
+				pos += 2 + c.name.getBytes(StandardCharsets.UTF_8).length + 1 + 8 + 8;
+			}
+			for (Column c : ma.columns.values()) {
+				din.skipBytes((int) (c.offset - pos));
+				byte[] bytes = new byte[Math.toIntExact(c.length*c.width())];
+				din.readFully(bytes);
+				pos = c.offset + bytes.length;
+				ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+				int len = (int) c.length;
+				switch(c.type) {
+				case DOUBLE: double[] ds = new double[len]; bb.asDoubleBuffer().get(ds); c.array = ds; break;
+				case FLOAT: float[] fs = new float[len]; bb.asFloatBuffer().get(fs); c.array = fs; break;
+				case LONG: long[] ls = new long[len]; bb.asLongBuffer().get(ls); c.array = ls; break;
+				case INT: int[] is = new int[len]; bb.asIntBuffer().get(is); c.array = is; break;
+				default: c.array = bytes;
+				}
+			}
+			return ma;
+		}
+	}
+
+	/**
+	 * Copy n bytes of column data (little-endian) into buf
+	 */
+	void copy(Column c, long from, byte[] buf, int n) {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, n).order(ByteOrder.LITTLE_ENDIAN);
+		if (c.array == null) {
+			// mapped: copy from the pages
+			int done = 0;
+			while(done < n) {
+				long pos = from + done;
+				ByteBuffer page = page(c, pos).duplicate();
+				page.position((int) (pos % PAGE));
+				int m = Math.min(n - done, page.remaining());
+				page.limit(page.position() + m);
+				bb.put(page);
+				done += m;
+			}
+			return;
+		}
+		int w = c.width();
+		int i0 = (int) (from / w);
+		int cnt = n / w;
+		switch(c.type) {
+		case DOUBLE: bb.asDoubleBuffer().put((double[]) c.array, i0, cnt); break;
+		case FLOAT: bb.asFloatBuffer().put((float[]) c.array, i0, cnt); break;
+		case LONG: bb.asLongBuffer().put((long[]) c.array, i0, cnt); break;
+		case INT: bb.asIntBuffer().put((int[]) c.array, i0, cnt); break;
+		default: System.arraycopy(c.array, i0, buf, 0, n);
+		}
+	}
+
+}
@@ -220,6 +220,40 @@ public class ModularConverter implements Converter {
 		writer.addAttribute(DESC_ATTRIBUTE, d);		
 	}
 
+	/**
+	 * Get a sub-module from the depot, applying the {@link #setOnNotFound(KErrorPolicy)} policy if it's missing.
+	 * Also used by {@link BinaryCodec}.
+	 * @param depot
+	 * @param d
+	 * @return the module, or null
+	 */
+	static Object loadModule(Depot depot, Desc d) {
+		Object arti = depot.get(d);
+		if (arti==null) {
+			KErrorPolicy err = onNotFound.get();
+			// Note: Depot sets this to be noisy: a random null showing up after deserialisation could be a real
+			// pain to track down! But Desc.markForMerge() calling Utils.copy() wants it quiet.
+			if (err==null) err=KErrorPolicy.RETURN_NULL;
+			switch(err) {
+			case DELETE_CAUSE:
+				// TODO sometimes delete as per top level??
+			case REPORT:
+				 // log then return null...
+				 Log.w("xstream", new NotInDepotException(d));
+			 case ACCEPT: case IGNORE: case RETURN_NULL:
+				 return null;
+			 case THROW_EXCEPTION:					 
+				 throw new NotInDepotException(d);
+			 case DIE: 
+				 Log.e("xstream", new NotInDepotException(d));
+				 System.exit(1);
+			 default:
+				 throw new IllegalStateException(""+err);
+			}					
+		}
+		return arti;
+	}
+
 	Depot depot;
 	
 	@Override
@@ -233,30 +267,7 @@ public class ModularConverter implements Converter {
 			if (depot==null) {
 				depot = Depot.getDefault();
 			}
-			Object arti = depot.get(d);
-			if (arti==null) {
-				KErrorPolicy err = onNotFound.get();
-				// Note: Depot sets this to be noisy: a random null showing up after deserialisation could be a real
-				// pain to track down! But Desc.markForMerge() calling Utils.copy() wants it quiet.
-				if (err==null) err=KErrorPolicy.RETURN_NULL;
-				switch(err) {
-				case DELETE_CAUSE:
-					// TODO sometimes delete as per top level??
-				case REPORT:
-					 // log then return null...
-					 Log.w("xstream", new NotInDepotException(d));
-				 case ACCEPT: case IGNORE: case RETURN_NULL:
-					 return null;
-				 case THROW_EXCEPTION:					 
-					 throw new NotInDepotException(d);
-				 case DIE: 
-					 Log.e("xstream", new NotInDepotException(d));
-					 System.exit(1);
-				 default:
-					 throw new IllegalStateException(""+err);
-				}					
-			}
-			return arti;
+			return loadModule(depot, d);
 		}			
 		
 		// normal unmarshal
@@ -0,0 +1,191 @@
+package com.winterwell.depot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.winterwell.depot.Desc.KSerialiser;
+import com.winterwell.utils.time.Time;
+
+import no.uib.cipr.matrix.DenseVector;
+
+/**
+ * @author daniel
+ */
+public class BinaryCodecTest {
+
+	static enum KColour {RED, GREEN}
+
+	static class Thing {
+		String name;
+		int n;
+		long big;
+		double x;
+		boolean flag;
+		Float boxed;
+		KColour colour;
+		double[] data;
+		int[] ints;
+		String[] words;
+		List<Object> list;
+		Map<String,Object> map;
+		Thing other;
+		transient String skipMe = "skip";
+		Time time;
+		Class klass;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Thing t = new Thing();
+		t.name = "Hello £ wörld";
+		t.n = -7;
+		t.big = Long.MAX_VALUE;
+		t.x = Math.PI;
+		t.flag = true;
+		t.boxed = 1.5f;
+		t.colour = KColour.GREEN;
+		t.data = new double[] {1, -2.5, Double.NaN};
+		t.ints = new int[5000];
+		for (int i = 0; i < t.ints.length; i++) t.ints[i] = i*i;
+		t.words = new String[] {"a", null, "c"};
+		t.list = new ArrayList(Arrays.asList(1, "two", 3.0, null, KColour.RED));
+		t.map = new HashMap();
+		t.map.put("k", new TreeMap());
+		t.map.put("t", t); // cycle
+		t.time = new Time(2020, 1, 2);
+		t.klass = String.class;
+		t.other = new Thing();
+		t.other.name = "other";
+
+		Thing t2 = roundTrip(t);
+		assert t2 != t;
+		assert t2.name.equals(t.name) : t2.name;
+		assert t2.n == -7;
+		assert t2.big == Long.MAX_VALUE;
+		assert t2.x == Math.PI;
+		assert t2.flag;
+		assert t2.boxed == 1.5f;
+		assert t2.colour == KColour.GREEN;
+		assert Arrays.equals(t2.data, t.data);
+		assert Arrays.equals(t2.ints, t.ints);
+		assert Arrays.equals(t2.words, t.words);
+		assert t2.list.equals(t.list) : t2.list;
+		assert t2.map.get("k") instanceof TreeMap;
+		assert t2.map.get("t") == t2 : "cycle lost";
+		assert t2.skipMe == null;
+		assert t2.time.equals(t.time) : t2.time;
+		assert t2.klass == String.class;
+		assert t2.other.name.equals("other");
+		assert t2.other.other == null;
+	}
+
+	@Test
+	public void testTopLevel() throws IOException {
+		assert roundTrip(null) == null;
+		assert roundTrip("foo").equals("foo");
+		assert roundTrip(42L).equals(42L);
+		double[] ds = roundTrip(new double[] {1,2,3});
+		assert ds.length == 3 && ds[2] == 3;
+		List list = roundTrip(new ArrayList(Arrays.asList("a", "b")));
+		assert list.equals(Arrays.asList("a", "b"));
+		// java.* fallback to xml
+		List fixed = roundTrip(Arrays.asList("a", "b"));
+		assert fixed.equals(Arrays.asList("a", "b"));
+	}
+
+	@Test
+	public void testVector() throws IOException {
+		DenseVector v = new DenseVector(new double[] {0.5, -1, 1e10});
+		DenseVector v2 = roundTrip(v);
+		assert v2.size() == 3;
+		assert v2.get(2) == 1e10;
+		assert Arrays.equals(v.getData(), v2.getData());
+	}
+
+	@Test
+	public void testDetect() throws IOException {
+		Thing t = new Thing();
+		t.name = "detect";
+		for(KSerialiser ks : new KSerialiser[] {KSerialiser.XSTREAM, KSerialiser.BINARY}) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DepotCodecs.forSerialiser(ks).write(t, out);
+			Thing t2 = (Thing) DepotCodecs.read(new ByteArrayInputStream(out.toByteArray()));
+			assert t2.name.equals("detect") : ks;
+		}
+	}
+
+	@Test
+	public void testJavaOnlyIfAsked() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DepotCodecs.JAVA.write(new ArrayList(Arrays.asList("a", "b")), out);
+		try {
+			DepotCodecs.read(new ByteArrayInputStream(out.toByteArray()));
+			assert false;
+		} catch(IOException ex) {
+			// good
+		}
+		try {
+			DepotCodecs.read(new ByteArrayInputStream(out.toByteArray()), KSerialiser.BINARY);
+			assert false;
+		} catch(IOException ex) {
+			// good
+		}
+		List list = (List) DepotCodecs.read(new ByteArrayInputStream(out.toByteArray()), KSerialiser.JAVA);
+		assert list.equals(Arrays.asList("a", "b")) : list;
+		// other formats are still auto-detected
+		out = new ByteArrayOutputStream();
+		DepotCodecs.BINARY.write(new ArrayList(Arrays.asList("c")), out);
+		list = (List) DepotCodecs.read(new ByteArrayInputStream(out.toByteArray()), KSerialiser.JAVA);
+		assert list.equals(Arrays.asList("c")) : list;
+	}
+
+	/**
+	 * Not a proper benchmark -- but a sanity check that binary beats xml on numeric data.
+	 */
+	@Test
+	public void testSpeedVsXStream() throws IOException {
+		List<DenseVector> vectors = new ArrayList();
+		for (int i = 0; i < 1000; i++) {
+			double[] d = new double[100];
+			for (int j = 0; j < d.length; j++) d[j] = Math.random();
+			vectors.add(new DenseVector(d, false));
+		}
+		// warm up
+		for (int i = 0; i < 3; i++) {
+			time(DepotCodecs.XSTREAM, vectors);
+			time(DepotCodecs.BINARY, vectors);
+		}
+		long[] xml = time(DepotCodecs.XSTREAM, vectors);
+		long[] bin = time(DepotCodecs.BINARY, vectors);
+		System.out.println("XStream: "+xml[2]+" bytes, write "+xml[0]+"ms, read "+xml[1]+"ms");
+		System.out.println("Binary: "+bin[2]+" bytes, write "+bin[0]+"ms, read "+bin[1]+"ms");
+		assert bin[2] < xml[2];
+		assert bin[0] + bin[1] < xml[0] + xml[1];
+	}
+
+	private long[] time(IDepotCodec codec, Object x) throws IOException {
+		long t0 = System.currentTimeMillis();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.write(x, out);
+		long t1 = System.currentTimeMillis();
+		Object x2 = codec.read(new ByteArrayInputStream(out.toByteArray()));
+		long t2 = System.currentTimeMillis();
+		assert x2 != null;
+		return new long[] {t1 - t0, t2 - t1, out.size()};
+	}
+
+	private <X> X roundTrip(Object x) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DepotCodecs.BINARY.write(x, out);
+		return (X) DepotCodecs.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+}
@@ -49,4 +49,24 @@ public class FileStoreTest {
 		assert keys3.contains(desc2);
 	}
 
+	@Test
+	public void testChangeSerialiser() {
+		File testDir = new File("test/temp").getAbsoluteFile();
+		DepotConfig config = new DepotConfig().setDir(testDir);
+		FileStore fs = new FileStore(config);
+		Desc<double[]> desc = new Desc("TestSer", double[].class);
+		desc.setTag("test");
+		fs.put(desc, new double[] {1, 2});
+		// switch to binary -- the old xml file should still load
+		config.setSerialiser(Desc.KSerialiser.BINARY);
+		double[] xml = fs.get(desc);
+		assert xml[1] == 2;
+		fs.put(desc, new double[] {3, 4});
+		double[] bin = fs.get(desc);
+		assert bin[1] == 4;
+		// and back again
+		config.setSerialiser(null);
+		assert fs.get(desc)[0] == 3;
+	}
+
 }
@@ -0,0 +1,114 @@
+package com.winterwell.depot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author daniel
+ */
+public class MMapArtifactTest {
+
+	private FileStore fileStore() {
+		File testDir = new File("test/temp").getAbsoluteFile();
+		return new FileStore(new DepotConfig().setDir(testDir));
+	}
+
+	@Test
+	public void testPutGet() {
+		FileStore fs = fileStore();
+		double[] ds = new double[10000];
+		for (int i = 0; i < ds.length; i++) ds[i] = i * 0.5;
+		MMapArtifact ma = new MMapArtifact()
+				.put("x", ds)
+				.put("ids", new int[] {7, 8, 9})
+				.put("ts", new long[] {Long.MIN_VALUE, 1})
+				.put("empty", new float[0]);
+		Desc<MMapArtifact> desc = new Desc("TestMMap", MMapArtifact.class);
+		desc.setTag("test");
+		fs.put(desc, ma);
+
+		MMapArtifact ma2 = fs.get(desc);
+		assert ma2.isMapped();
+		assert ma2.getColumnNames().equals(Arrays.asList("x", "ids", "ts", "empty")) : ma2.getColumnNames();
+		assert ma2.size("x") == 10000;
+		assert ma2.getDouble("x", 9999) == 9999 * 0.5;
+		assert ma2.getInt("ids", 2) == 9;
+		assert ma2.getLong("ts", 0) == Long.MIN_VALUE;
+		assert ma2.size("empty") == 0;
+		DoubleBuffer db = ma2.getDoubles("x");
+		assert db.get(10) == 5;
+		assert db.isReadOnly();
+		assert Arrays.equals(ma2.toDoubleArray("x"), ds);
+		// re-save a mapped artifact
+		Desc<MMapArtifact> desc2 = new Desc("TestMMap2", MMapArtifact.class);
+		desc2.setTag("test");
+		fs.put(desc2, ma2);
+		MMapArtifact ma3 = fs.get(desc2);
+		assert Arrays.equals(ma3.toDoubleArray("x"), ds);
+	}
+
+	@Test
+	public void testPaging() {
+		int old = MMapArtifact.PAGE;
+		try {
+			MMapArtifact.PAGE = 64; // 8 doubles per page
+			FileStore fs = fileStore();
+			double[] ds = new double[1001];
+			for (int i = 0; i < ds.length; i++) ds[i] = -i;
+			Desc<MMapArtifact> desc = new Desc("TestMMapPaged", MMapArtifact.class);
+			desc.setTag("test");
+			fs.put(desc, new MMapArtifact().put("x", ds));
+			MMapArtifact ma = fs.get(desc);
+			for (int i = 0; i < ds.length; i++) {
+				assert ma.getDouble("x", i) == -i;
+			}
+			assert Arrays.equals(ma.toDoubleArray("x"), ds);
+			try {
+				ma.getDoubles("x");
+				assert false;
+			} catch (UnsupportedOperationException ex) {
+				// ok
+			}
+			// page by page
+			int pages = ma.getPageCount("x");
+			assert pages == 126 : pages;
+			assert ma.getPageStart("x", 1) == 8;
+			assert ma.getPageStart("x", pages) == ds.length;
+			int n = 0;
+			for (int p = 0; p < pages; p++) {
+				DoubleBuffer db = ma.getDoubles("x", p);
+				long start = ma.getPageStart("x", p);
+				assert db.remaining() == ma.getPageStart("x", p+1) - start : p;
+				for (int j = 0; j < db.remaining(); j++) {
+					assert db.get(j) == -(start + j);
+					n++;
+				}
+			}
+			assert n == ds.length;
+			// in-memory is one page
+			MMapArtifact mem = new MMapArtifact().put("x", ds);
+			assert mem.getPageCount("x") == 1;
+			assert mem.getDoubles("x", 0).remaining() == ds.length;
+			assert mem.getPageStart("x", 1) == ds.length;
+		} finally {
+			MMapArtifact.PAGE = old;
+		}
+	}
+
+	@Test
+	public void testStreamRead() throws IOException {
+		MMapArtifact ma = new MMapArtifact().put("b", new byte[] {1, 2, 3}).put("f", new float[] {1.5f});
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DepotCodecs.MMAP.write(ma, out);
+		MMapArtifact ma2 = (MMapArtifact) DepotCodecs.read(new ByteArrayInputStream(out.toByteArray()));
+		assert ! ma2.isMapped();
+		assert ma2.getByte("b", 2) == 3;
+		assert ma2.getFloat("f", 0) == 1.5f;
+	}
+}
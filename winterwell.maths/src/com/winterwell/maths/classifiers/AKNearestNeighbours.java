@@ -7,12 +7,25 @@ import java.util.List;
 import java.util.Map;
 
 import com.winterwell.maths.stats.distributions.ATrainableBase;
+import com.winterwell.maths.vector.VectorDB;
 import com.winterwell.utils.containers.ListMap;
+import com.winterwell.utils.containers.Pair2;
 
+/**
+ * k-nearest neighbours. By default, this compares against all of the training data.
+ * For large training sets, use {@link #setUseIndex(boolean)} to search an approximate index ({@link VectorDB}) instead.
+ */
 public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 
 	private boolean debug = false;
 
+	/**
+	 * null unless useIndex. Built lazily from the training data.
+	 */
+	private VectorDB<T> index;
+
+	private boolean useIndex;
+
 	protected int k;
 
 	private boolean quickClassifyOnExactMatch;
@@ -87,14 +100,24 @@ public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 		}
 		assert trainingData.size() != 0;
 		ListMap<Double, X> distances = new ListMap<Double, X>();
-		// calculate distance to all entries in training data
-		for (int i = 0; i < trainingData.size(); i++) {
-			T exemplar = trainingData.get(i);
-			double distance = distance(exemplar, x);
-			X classification = trainingDataLabels.get(i);
-			if (quickClassifyOnExactMatch && distance == 0.0)
-				return classification;
-			distances.add(distance, classification);
+		if (useIndex) {
+			// approximate: just the k nearest from the index
+			for (Pair2<Integer, Double> hit : getIndex().nearest(x, k)) {
+				X classification = trainingDataLabels.get(hit.first);
+				if (quickClassifyOnExactMatch && hit.second == 0.0)
+					return classification;
+				distances.add(hit.second, classification);
+			}
+		} else {
+			// calculate distance to all entries in training data
+			for (int i = 0; i < trainingData.size(); i++) {
+				T exemplar = trainingData.get(i);
+				double distance = distance(exemplar, x);
+				X classification = trainingDataLabels.get(i);
+				if (quickClassifyOnExactMatch && distance == 0.0)
+					return classification;
+				distances.add(distance, classification);
+			}
 		}
 		if (debug) {
 			System.out.println("\tdistances are " + distances.toString());
@@ -114,6 +137,31 @@ public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 
 	protected abstract double distance(T x, T y);
 
+	/**
+	 * @param useIndex If true, classify() searches an approximate nearest-neighbours index of the training data,
+	 * rather than comparing against all of it. Much faster for large training sets, at the cost of occasionally 
+	 * missing a near neighbour. 
+	 */
+	public void setUseIndex(boolean useIndex) {
+		this.useIndex = useIndex;
+		if ( ! useIndex) index = null;
+	}
+
+	/**
+	 * @return the index, brought up to date with the training data
+	 */
+	synchronized VectorDB<T> getIndex() {
+		if (index == null) {
+			index = new VectorDB<T>(this::distance);
+		}
+		// add any new training data
+		int n = index.size();
+		if (n < trainingData.size()) {
+			index.addAll(trainingData.subList(n, trainingData.size()));
+		}
+		return index;
+	}
+
 	@Override
 	public final void finishTraining() {
 		// do nothing
@@ -157,6 +205,7 @@ public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 	@Override
 	public void resetup() {
 		super.resetup();
+		index = null;
 	}
 
 	/**
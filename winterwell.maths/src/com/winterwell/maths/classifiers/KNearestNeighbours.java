@@ -15,7 +15,7 @@ import no.uib.cipr.matrix.Vector;
  * classification among said nearest neighbours, weighted by the inverse of each
  * distance.
  * 
- * This will perform horribly for large training sets.
+ * This will perform horribly for large training sets -- unless you {@link #setUseIndex(boolean)}.
  * 
  * @author miles
  * 
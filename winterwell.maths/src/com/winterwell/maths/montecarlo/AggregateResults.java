@@ -21,9 +21,78 @@ import com.winterwell.utils.time.Time;
  */
 public class AggregateResults {
 
+	/**
+	 * Weighted sums per time-step, as an alternative to keeping every trace.
+	 * One of these per thread, then {@link AggregateResults#addMoments(Moments)} to merge.
+	 */
+	public static final class Moments {
+		final long[] times;
+		final int dim;
+		final double[] sumW;
+		/**
+		 * sum of w^2 per step, for the variance
+		 */
+		final double[] sumW2;
+		/**
+		 * [step*dim + d]
+		 */
+		final double[] sum;
+		final double[] sum2;
+
+		/**
+		 * @param times The end time of each step
+		 */
+		public Moments(long[] times, int dim) {
+			this.times = times;
+			this.dim = dim;
+			sumW = new double[times.length];
+			sumW2 = new double[times.length];
+			sum = new double[times.length*dim];
+			sum2 = new double[times.length*dim];
+		}
+
+		/**
+		 * @param x state is x[offset] to x[offset+dim-1]
+		 */
+		public void add(int step, double[] x, int offset, double w) {
+			sumW[step] += w;
+			sumW2[step] += w*w;
+			int s = step*dim;
+			for(int d=0; d<dim; d++) {
+				double xd = x[offset+d];
+				sum[s+d] += w*xd;
+				sum2[s+d] += w*xd*xd;
+			}
+		}
+
+		void merge(Moments other) {
+			assert other.times.length == times.length && other.dim == dim;
+			for(int i=0; i<sumW.length; i++) {
+				sumW[i] += other.sumW[i];
+				sumW2[i] += other.sumW2[i];
+			}
+			for(int i=0; i<sum.length; i++) {
+				sum[i] += other.sum[i];
+				sum2[i] += other.sum2[i];
+			}
+		}
+	}
+
 	private DataSet dataset;
 	List<ListDataStream> traces = new ArrayList<ListDataStream>();
 
+	private Moments moments;
+
+	/**
+	 * Merge in the results from a batch of particles. Merge in a fixed order for repeatable (to the last bit) results.
+	 */
+	public void addMoments(Moments m) {
+		if (moments==null) {
+			moments = new Moments(m.times, m.dim);
+		}
+		moments.merge(m);
+	}
+
 	/**
 	 * @param data
 	 *            The history from one particle's run
@@ -35,6 +104,9 @@ public class AggregateResults {
 	/**
 	 * Get merged data for a specific dimension. This is either the mean value
 	 * at each time step, or +/- n standard deviations from the mean.
+	 * <p>
+	 * Uses the particle-weighted moments if there are any. Traces on their own 
+	 * are treated as equally weighted.
 	 * 
 	 * @param stdDevs
 	 *            0 for the mean
@@ -42,6 +114,9 @@ public class AggregateResults {
 	 *         likely to be called 3 times
 	 */
 	public IDataStream getConfidenceLine(int dim, double stdDevs) {
+		if (moments != null) {
+			return getConfidenceLine2_moments(dim, stdDevs);
+		}
 		ListMap<Time, Double> data = new ListMap<Time, Double>();
 		for (ListDataStream trace : traces) {
 			trace = trace.clone();
@@ -65,6 +140,30 @@ public class AggregateResults {
 		return line;
 	}
 
+	/**
+	 * Weighted mean and variance, from the moments. The weights are importance weights (not counts),
+	 * so this uses the unbiased estimator for reliability weights:
+	 * var = (sum(w.x^2) - V1.mean^2) . V1 / (V1^2 - V2), where V1 = sum(w), V2 = sum(w^2)
+	 */
+	private IDataStream getConfidenceLine2_moments(int dim, double stdDevs) {
+		Moments m = moments;
+		ListDataStream line = new ListDataStream(1);
+		for(int i=0; i<m.times.length; i++) {
+			double w = m.sumW[i];
+			if (w == 0) continue;
+			double x = m.sum[i*m.dim + dim] / w;
+			if (stdDevs != 0) {
+				double w2 = m.sumW2[i];
+				double denom = w*w - w2;
+				// denom is 0 if only one particle has any weight -- no spread then
+				double var = denom > 0? (m.sum2[i*m.dim + dim] - w*x*x) * w / denom : 0;
+				x += stdDevs * Math.sqrt(Math.max(0, var));
+			}
+			line.add(new Datum(new Time(m.times[i]), x, null));
+		}
+		return line;
+	}
+
 	public DataSet getDataSet() {
 		return dataset;
 	}
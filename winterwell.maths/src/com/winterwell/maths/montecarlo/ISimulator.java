@@ -1,9 +1,36 @@
 package com.winterwell.maths.montecarlo;
 
+import java.util.Random;
+
+import com.winterwell.maths.timeseries.Datum;
 import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Time;
+
+import no.uib.cipr.matrix.DenseVector;
 
 public interface ISimulator {
 
 	Particle sim1step(Particle particle, Dt timeStep);
 
+	/**
+	 * Array version, as used by {@link ParticleFilter}. The default wraps {@link #sim1step(Particle, Dt)}
+	 * -- override this to avoid the per-step object churn.
+	 * <p>
+	 * This may be called from several threads at once (for different particles).
+	 * Use random for any noise, so runs are repeatable for a given seed.
+	 *
+	 * @param x The particle state is x[offset] to x[offset+dim-1]. Modify in place.
+	 * @param time The particle's time (before this step)
+	 * @param random Never null
+	 * @return The weight multiplier for this step: 1 for no change.
+	 */
+	default double sim1step(double[] x, int offset, int dim, long time, Dt timeStep, Random random) {
+		DenseVector v = new DenseVector(dim);
+		System.arraycopy(x, offset, v.getData(), 0, dim);
+		Particle p = sim1step(new Particle(new Datum(new Time(time), v, null), 1), timeStep);
+		for(int i=0; i<dim; i++) {
+			x[offset+i] = p.get(i);
+		}
+		return p.weight;
+	}
 }
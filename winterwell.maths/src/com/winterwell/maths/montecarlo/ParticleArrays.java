@@ -0,0 +1,167 @@
+package com.winterwell.maths.montecarlo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.utils.time.Time;
+
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * A particle cloud stored as flat arrays (structure-of-arrays), so that simulating does not create
+ * an object per particle per step. All the particles share one time.
+ * <p>
+ * Particle i has state x[i*dim] to x[i*dim + dim-1], and weight w[i].
+ *
+ * @author daniel
+ * @testedby  ParticleFilterTest}
+ */
+public final class ParticleArrays {
+
+	/**
+	 * How to pick the particles for the next generation
+	 */
+	public static enum Resampling {
+		/** No resampling */
+		NONE,
+		/** One uniform random offset, then evenly spaced picks. Lowest variance, and O(n). */
+		SYSTEMATIC,
+		/** One uniform random pick within each of n even strata. */
+		STRATIFIED
+	}
+
+	final int n;
+
+	final int dim;
+
+	final double[] x;
+
+	final double[] w;
+
+	long time;
+
+	public ParticleArrays(int n, int dim, Time time) {
+		this.n = n;
+		this.dim = dim;
+		this.x = new double[n*dim];
+		this.w = new double[n];
+		this.time = time.getTime();
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public int getDim() {
+		return dim;
+	}
+
+	public Time getTime() {
+		return new Time(time);
+	}
+
+	/**
+	 * @return a copy of particle i's state
+	 */
+	public Vector getState(int i) {
+		DenseVector v = new DenseVector(dim);
+		System.arraycopy(x, i*dim, v.getData(), 0, dim);
+		return v;
+	}
+
+	public void setState(int i, Vector v) {
+		assert v.size() == dim : v.size()+" vs "+dim;
+		for(int d=0; d<dim; d++) {
+			x[i*dim + d] = v.get(d);
+		}
+	}
+
+	public double getWeight(int i) {
+		return w[i];
+	}
+
+	public void setWeight(int i, double weight) {
+		w[i] = weight;
+	}
+
+	public double getTotalWeight() {
+		double sum = 0;
+		for (double wi : w) sum += wi;
+		return sum;
+	}
+
+	/**
+	 * @return The effective sample size, (sum w)^2 / sum w^2. n if all the weights are equal.
+	 * A common rule is to resample when this drops below n/2.
+	 */
+	public double getEffectiveSampleSize() {
+		double sum = 0, sum2 = 0;
+		for (double wi : w) {
+			sum += wi;
+			sum2 += wi*wi;
+		}
+		return sum2==0? 0 : sum*sum / sum2;
+	}
+
+	/**
+	 * Resample in place: particles are copied in proportion to their weight, and all weights are then 1.
+	 * @param method NONE does nothing
+	 * @param random
+	 */
+	public void resample(Resampling method, Random random) {
+		if (method == Resampling.NONE) return;
+		int[] picks = resampleIndexes(w, n, method, random);
+		double[] x2 = new double[x.length];
+		for(int i=0; i<n; i++) {
+			System.arraycopy(x, picks[i]*dim, x2, i*dim, dim);
+		}
+		System.arraycopy(x2, 0, x, 0, x.length);
+		Arrays.fill(w, 1);
+	}
+
+	/**
+	 * @param weights Need not be normalised. Must not all be 0.
+	 * @param m How many picks to make
+	 * @return m indexes into weights, in increasing order
+	 */
+	public static int[] resampleIndexes(double[] weights, int m, Resampling method, Random random) {
+		assert method != Resampling.NONE;
+		double total = 0;
+		for (double wi : weights) total += wi;
+		if ( ! (total > 0)) throw new IllegalArgumentException("No weight to resample from: "+total);
+		int[] picks = new int[m];
+		double step = total / m;
+		double u0 = random.nextDouble() * step;
+		double cum = weights[0];
+		int j = 0;
+		for(int i=0; i<m; i++) {
+			// systematic: one offset for all. stratified: a fresh offset per stratum.
+			double u = i*step + (method == Resampling.STRATIFIED? random.nextDouble() * step : u0);
+			while(u >= cum && j < weights.length - 1) {
+				j++;
+				cum += weights[j];
+			}
+			picks[i] = j;
+		}
+		return picks;
+	}
+
+	/**
+	 * @return the particles as objects (for use with older code)
+	 */
+	public ParticleCloud toCloud() {
+		ParticleCloud cloud = new ParticleCloud();
+		Time t = getTime();
+		for(int i=0; i<n; i++) {
+			cloud.add(new Particle(new Datum(t, getState(i), null), w[i]));
+		}
+		return cloud;
+	}
+
+	@Override
+	public String toString() {
+		return "ParticleArrays[n=" + n + " dim=" + dim + " time=" + getTime() + "]";
+	}
+}
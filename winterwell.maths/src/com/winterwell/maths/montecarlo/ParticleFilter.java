@@ -2,33 +2,47 @@ package com.winterwell.maths.montecarlo;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import com.winterwell.maths.montecarlo.AggregateResults.Moments;
+import com.winterwell.maths.montecarlo.ParticleArrays.Resampling;
 import com.winterwell.maths.stats.algorithms.ITimeSeriesFilter;
 import com.winterwell.maths.stats.distributions.IDistribution;
 import com.winterwell.maths.timeseries.Datum;
 import com.winterwell.maths.timeseries.IDataStream;
 import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.Utils;
 import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.Period;
 import com.winterwell.utils.time.Time;
 
 import no.uib.cipr.matrix.Vector;
 
+/**
+ * Particles are held in a {@link ParticleArrays} cloud, and simulated in fixed-size chunks. 
+ * Each chunk has its own random stream (from the seed and the chunk number) and its own results accumulator, 
+ * and the accumulators are merged in chunk order -- so the output for a given seed is the same 
+ * however many threads are used. 
+ * 
+ * @author daniel
+ * @testedby  ParticleFilterTest}
+ */
 public class ParticleFilter implements ITimeSeriesFilter 
 {
 
-	private ParticleCloud cloud;
+	private ParticleArrays particles;
 
 	int cloudSize = 1000;
 
-	ListDataStream data;
-
-	IDistribution generator;
-
 	/**
-	 * The current particle
+	 * Particles per task
 	 */
-	private Particle particle;
+	int chunkSize = 64;
+
+	IDistribution generator;
 
 	private AggregateResults results;
 
@@ -36,6 +50,29 @@ public class ParticleFilter implements ITimeSeriesFilter
 
 	private Dt timeStep;
 
+	/**
+	 * From {@link #setSeed(long)}, or null
+	 */
+	private Long seed;
+
+	/**
+	 * The seed for the current run: {@link #seed} if set, otherwise fresh each run.
+	 */
+	private long runSeed;
+
+	/**
+	 * 1 = single-threaded. 0 = use the common fork-join pool
+	 */
+	private int threads = 1;
+
+	private Resampling resampling = Resampling.NONE;
+
+	/**
+	 * If true, keep every particle's history in the results (slow & memory hungry). 
+	 * Otherwise, just per-step means and variances.
+	 */
+	private boolean keepTraces;
+
 	public ParticleFilter(IDistribution generator, ISimulator simulator,
 			Dt timeStep) {
 		this.generator = generator;
@@ -43,63 +80,168 @@ public class ParticleFilter implements ITimeSeriesFilter
 		this.timeStep = timeStep;
 	}
 
+	/**
+	 * @param seed Fixes the random streams, for repeatable runs. This is also set on the generator
+	 * at the start of each run. If unset, each run gets new random streams, and the generator's 
+	 * random source is left alone.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param threads 1 (the default) for single-threaded. 0 to use the common fork-join pool.
+	 * This does not change the results.
+	 */
+	public void setThreads(int threads) {
+		assert threads >= 0 : threads;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param resampling Applied at the end of each run. Default: NONE
+	 */
+	public void setResampling(Resampling resampling) {
+		this.resampling = resampling;
+	}
+
+	public void setKeepTraces(boolean keepTraces) {
+		this.keepTraces = keepTraces;
+	}
+
+	public void setCloudSize(int cloudSize) {
+		this.cloudSize = cloudSize;
+	}
+
 	public AggregateResults getResults() {
 		return results;
 	}
 
+	/**
+	 * @return The particles after the last run
+	 */
+	public ParticleArrays getParticles() {
+		return particles;
+	}
+
 	/**
 	 * Generate a particle cloud and advance it for period
 	 * 
 	 * @param period
 	 */
 	public void run(Period period) {
+		runSeed = seed==null? System.nanoTime() : seed;
 		// make cloud
 		run2_generateCloud(period.getStart());
 		// run
 		run2_simCloud(period.length());
+		// resample
+		particles.resample(resampling, chunkRandom(-1));
 	}
 
 	private void run2_generateCloud(Time start) {
-		cloud = new ParticleCloud();
+		if (seed != null) {
+			generator.setRandomSource(new Random(seed));
+		}
+		particles = null;
 		for (int i = 0; i < cloudSize; i++) {
 			// let's start with a simple generation strategy
 			// - means that outliers are unlikely to be generated
 			Vector x = generator.sample();
-			Datum d = new Datum(start, x, null);
-			Particle p = new Particle(d, 1);
-			cloud.add(p);
+			if (particles==null) particles = new ParticleArrays(cloudSize, x.size(), start);
+			particles.setState(i, x);
+			particles.setWeight(i, 1);
 		}
 	}
 
-	List<Particle> run2_simCloud(Dt period) {
+	/**
+	 * Advance the particles until period (or later).
+	 */
+	void run2_simCloud(Dt period) {
+		long dt = timeStep.getMillisecs();
+		assert dt > 0 : timeStep;
+		long start = particles.time;
+		int steps = (int) Math.max(0, (period.getMillisecs() + dt - 1) / dt);
+		long[] times = new long[steps];
+		for(int k=0; k<steps; k++) {
+			times[k] = start + (k+1)*dt;
+		}
+		int chunks = (particles.n + chunkSize - 1) / chunkSize;
+		List<Callable<Chunk>> tasks = new ArrayList(chunks);
+		for(int c=0; c<chunks; c++) {
+			int chunk = c;
+			tasks.add(() -> run3_simChunk(chunk, times));
+		}
+		List<Chunk> done = new ArrayList(chunks);
+		if (threads == 1) {
+			for (Callable<Chunk> task : tasks) {
+				try {
+					done.add(task.call());
+				} catch (Exception e) {
+					throw Utils.runtime(e);
+				}
+			}
+		} else {
+			ForkJoinPool pool = threads==0? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+			try {
+				for (Future<Chunk> f : pool.invokeAll(tasks)) {
+					done.add(f.get());
+				}
+			} catch (Exception e) {
+				throw Utils.runtime(e);
+			} finally {
+				if (pool != ForkJoinPool.commonPool()) pool.shutdown();
+			}
+		}
+		// merge in chunk order (so the sums are the same whatever the threading)
 		results = new AggregateResults();
-		List<Particle> after = new ArrayList<Particle>(cloud.size());
-		for (Particle p : cloud) {
-			run3_simParticle(p, period);
-			// results from that run
-			results.addTrace(data);
-			after.add(particle);
+		for (Chunk chunk : done) {
+			results.addMoments(chunk.moments);
+			if (chunk.traces != null) {
+				for (IDataStream trace : chunk.traces) results.addTrace(trace);
+			}
 		}
-		return after;
+		if (steps > 0) particles.time = times[steps-1];
 	}
 
 	/**
-	 * Advance the particle until it is period (or later).
-	 * 
-	 * @param start
-	 * @param period
-	 * @return weight of final particle
+	 * Per-task output
 	 */
-	double run3_simParticle(Particle start, Dt period) {
-		// a fresh data collection object
-		data = new ListDataStream(start.state.size());
-		particle = start;
-		Time endTime = start.state.time.plus(period);
-		while (particle.state.time.longValue() < endTime.longValue()) {
-			particle = simulator.sim1step(particle, timeStep);
-			data.add(particle.state);
+	static final class Chunk {
+		Moments moments;
+		List<ListDataStream> traces;
+	}
+
+	private Chunk run3_simChunk(int c, long[] times) {
+		ParticleArrays ps = particles;
+		int dim = ps.dim;
+		double[] x = ps.x;
+		Chunk chunk = new Chunk();
+		chunk.moments = new Moments(times, dim);
+		if (keepTraces) chunk.traces = new ArrayList();
+		Random random = chunkRandom(c);
+		int end = Math.min(ps.n, (c+1)*chunkSize);
+		for(int i=c*chunkSize; i<end; i++) {
+			int offset = i*dim;
+			ListDataStream trace = keepTraces? new ListDataStream(dim) : null;
+			long t = ps.time;
+			for(int k=0; k<times.length; k++) {
+				ps.w[i] *= simulator.sim1step(x, offset, dim, t, timeStep, random);
+				t = times[k];
+				chunk.moments.add(k, x, offset, ps.w[i]);
+				if (trace != null) trace.add(new Datum(new Time(t), ps.getState(i), null));
+			}
+			if (trace != null) chunk.traces.add(trace);
 		}
-		return particle.weight;
+		return chunk;
+	}
+
+	/**
+	 * @param c chunk number, or -1 for resampling
+	 */
+	private Random chunkRandom(int c) {
+		// NB: spread the seeds, as nearby seeds give correlated java.util.Random streams
+		return new Random(runSeed + (c+1) * 0x9E3779B97F4A7C15L);
 	}
 
 	@Override
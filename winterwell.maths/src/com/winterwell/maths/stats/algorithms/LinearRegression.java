@@ -46,6 +46,13 @@ import no.uib.cipr.matrix.VectorEntry;
  * treating x, x2, ... as being distinct independent variables -- ie
  * {@link #train1(Vector, Double)} with vector=[x, x^2, x^3...]
  * 
+ * <h3>Streaming Mode</h3>
+ * By default, the training data is kept until {@link #finishTraining()}, which needs O(n.d) memory.
+ * With {@link #setStreaming(boolean)}, train1() instead adds each row into {@link LinearRegressionStats}
+ * (X^T X, X^T y etc.), which is O(d^2) memory. Streaming mode also supports: 
+ * row weights, ridge regression ({@link #setRidge(double)}), exponential forgetting for time-series ({@link #setForgetting(double)}),
+ * training on after finishTraining(), and merging models trained on separate threads ({@link #merge(LinearRegression)}).
+ * 
  * Should we have an AConditionalDistribution class to be the base for this?
  * 
  * @author daniel
@@ -80,6 +87,68 @@ public class LinearRegression implements IPredictor,
 	 */
 	private int numExpVars;
 
+	private boolean streaming;
+
+	/**
+	 * Streaming mode: the sufficient statistics. null until the first train1()
+	 */
+	LinearRegressionStats stats;
+
+	private double ridge;
+
+	private double forgetting = 1;
+
+	/**
+	 * @param streaming If true, don't keep the training data -- just accumulate {@link LinearRegressionStats}.
+	 * Set this before training.
+	 */
+	public void setStreaming(boolean streaming) {
+		assert expRows.isEmpty() && stats == null : "set before training";
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Streaming mode only: Ridge regression, which penalises large weights (but not the offset).
+	 * @param ridge >= 0. 0 for ordinary least squares (the default).
+	 */
+	public void setRidge(double ridge) {
+		assert ridge >= 0 : ridge;
+		this.ridge = ridge;
+	}
+
+	/**
+	 * Streaming mode only: Exponential forgetting. Before each row is added, older rows are down-weighted by this factor. 
+	 * So a row from n steps ago has weight f^n. E.g. 0.99 gives an effective memory of about 100 rows.
+	 * @param f in (0, 1]. 1 (the default) for no forgetting.
+	 */
+	public void setForgetting(double f) {
+		assert f > 0 && f <= 1 : f;
+		this.forgetting = f;
+	}
+
+	/**
+	 * Streaming mode: the sufficient statistics (can be null if there has been no training)
+	 */
+	public LinearRegressionStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Streaming mode: add in the training from another model (e.g. one trained on another thread).
+	 * Call {@link #finishTraining()} after merging.
+	 * @param other Not modified
+	 */
+	public void merge(LinearRegression other) {
+		assert streaming && other.streaming : "merge needs streaming mode";
+		if (other.stats == null) return;
+		if (stats == null) {
+			stats = other.stats.copy();
+			numExpVars = stats.dim - 1;
+			return;
+		}
+		stats.merge(other.stats);
+	}
+
 	/**
 	 * If true, the model can vary it's settings and data to get around issues.
 	 * @param resilient
@@ -89,6 +158,10 @@ public class LinearRegression implements IPredictor,
 	}
 
 	public void finishTraining() {
+		if (streaming) {
+			finishTraining2_stats();
+			return;
+		}
 		if (expRows.size() < expRows.get(0).size())
 			// TODO ignore some dims if this happens? Create fake points?
 			throw new FailureException("Not enough data: " + expRows.size() + "pts, "
@@ -219,6 +292,29 @@ public class LinearRegression implements IPredictor,
 		}
 	}
 
+	/**
+	 * Solve from the sufficient statistics. The stats are kept, so training can carry on.
+	 */
+	private void finishTraining2_stats() {
+		if (stats == null || stats.rows < stats.dim - 1) {
+			throw new FailureException("Not enough data: " + (stats==null? 0 : stats.rows) + "pts, " + numExpVars + "dims");
+		}
+		Vector _a = stats.solve(ridge, resilient);
+		assert DataUtils.isSafe(_a) : _a;
+		// noise (the same unbiased estimate as StatsUtils.var() of the errors)
+		double rss = stats.rss(_a);
+		double var = stats.sumW > 1? rss / (stats.sumW - 1) : rss;
+		// safety check, as for batch mode
+		double range = stats.yMax - stats.yMin;
+		for (VectorEntry ve : _a) {
+			if (ve.get() > 1000000*range && ve.get() > 10000*stats.yMax) {
+				throw new FailureException("solution looks unstable: "+_a);
+			}
+		}
+		a = _a;
+		noise = new Gaussian1D(0, var);
+	}
+
 	public Gaussian1D getNoise() {
 		return noise;
 	}
@@ -260,6 +356,7 @@ public class LinearRegression implements IPredictor,
 	public void resetup() {
 		targets.clear();
 		expRows.clear();
+		stats = null;
 		a = null;
 		noise = null;
 		numExpVars=0;
@@ -268,16 +365,30 @@ public class LinearRegression implements IPredictor,
 	@Override
 	public String toString() {
 		return "LinearRegression[weights=" + Printer.toString(a) + " data="
-				+ expRows.size() + "]";
+				+ (stats==null? expRows.size() : stats.rows) + "]";
 	}
 
+	/**
+	 * @param weight Ignored, unless in streaming mode
+	 */
 	@Override
-	public void train1(Vector x, Double y, double weightIgnored) {
+	public void train1(Vector x, Double y, double weight) {
 		if (numExpVars==0) {
 			numExpVars = x.size();
 		} else {
 			assert numExpVars==x.size();
 		}
+		if (streaming) {
+			assert MathUtils.isSafe(y) : y;
+			assert DataUtils.isSafe(x) : x;
+			if (stats==null) {
+				stats = new LinearRegressionStats(numExpVars);
+			} else if (forgetting != 1) {
+				stats.scale(forgetting);
+			}
+			stats.add(x, y, weight);
+			return;
+		}
 		this.targets.add(y);
 		this.expRows.add(x);
 		assert MathUtils.isSafe(y) : y;
@@ -0,0 +1,206 @@
+package com.winterwell.maths.stats.algorithms;
+
+import com.winterwell.maths.matrix.MatrixUtils;
+import com.winterwell.maths.timeseries.DataUtils;
+import com.winterwell.utils.FailureException;
+
+import no.uib.cipr.matrix.DenseCholesky;
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * Sufficient statistics for least squares: X^T X, X^T y, y^T y (with the always-1 offset input as the last dimension).
+ * Memory is O(d^2) however many rows are seen, and accumulators from separate threads / machines can be {@link #merge(LinearRegressionStats)}d.
+ * <p>
+ * Solving is by Cholesky factorisation of X^T X (+ ridge), rather than an explicit inverse.
+ *
+ * @author daniel
+ * @testedby  LinearRegressionTest}
+ */
+public final class LinearRegressionStats {
+
+	/**
+	 * Number of inputs, including the offset
+	 */
+	final int dim;
+
+	/**
+	 * X^T X. Only the upper triangle (j >= i) is filled in
+	 */
+	final double[][] xx;
+
+	final double[] xy;
+
+	double yy;
+
+	/**
+	 * Sum of weights -- the effective number of rows (which is less than rows if forgetting is used)
+	 */
+	double sumW;
+
+	/**
+	 * Rows seen
+	 */
+	long rows;
+
+	double yMin = Double.POSITIVE_INFINITY;
+	double yMax = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param numExpVars Number of inputs, NOT including the offset
+	 */
+	public LinearRegressionStats(int numExpVars) {
+		this.dim = numExpVars + 1;
+		xx = new double[dim][dim];
+		xy = new double[dim];
+	}
+
+	/**
+	 * Add a row.
+	 * @param x
+	 * @param y
+	 * @param w weight, normally 1
+	 */
+	public void add(Vector x, double y, double w) {
+		assert x.size() + 1 == dim : x.size()+" vs "+(dim-1);
+		int d = dim - 1;
+		double[] row = new double[dim];
+		for(int i=0; i<d; i++) row[i] = x.get(i);
+		row[d] = 1;
+		for(int i=0; i<dim; i++) {
+			double wxi = w*row[i];
+			if (wxi==0) continue;
+			double[] xxi = xx[i];
+			for(int j=i; j<dim; j++) {
+				xxi[j] += wxi*row[j];
+			}
+			xy[i] += wxi*y;
+		}
+		yy += w*y*y;
+		sumW += w;
+		rows++;
+		if (y < yMin) yMin = y;
+		if (y > yMax) yMax = y;
+	}
+
+	/**
+	 * Down-weight everything seen so far -- for exponential forgetting.
+	 * @param f in (0, 1]
+	 */
+	public void scale(double f) {
+		assert f > 0 && f <= 1 : f;
+		for(int i=0; i<dim; i++) {
+			for(int j=i; j<dim; j++) {
+				xx[i][j] *= f;
+			}
+			xy[i] *= f;
+		}
+		yy *= f;
+		sumW *= f;
+	}
+
+	/**
+	 * Add in another accumulator (e.g. from another thread).
+	 * @param other Not modified
+	 */
+	public void merge(LinearRegressionStats other) {
+		if (other.dim != dim) throw new IllegalArgumentException("dimension mismatch: "+(dim-1)+" vs "+(other.dim-1));
+		for(int i=0; i<dim; i++) {
+			for(int j=i; j<dim; j++) {
+				xx[i][j] += other.xx[i][j];
+			}
+			xy[i] += other.xy[i];
+		}
+		yy += other.yy;
+		sumW += other.sumW;
+		rows += other.rows;
+		yMin = Math.min(yMin, other.yMin);
+		yMax = Math.max(yMax, other.yMax);
+	}
+
+	/**
+	 * @param ridge >= 0. Penalises the squared weights (but not the offset).
+	 * @param resilient If true, fall back to a pseudo-inverse if X^T X is singular (e.g. linearly dependent inputs)
+	 * @return weights, with the offset last
+	 * @throws FailureException if X^T X is singular (and not resilient)
+	 */
+	public Vector solve(double ridge, boolean resilient) {
+		DenseMatrix A = getXX();
+		for(int i=0; i<dim-1; i++) {
+			A.add(i, i, ridge);
+		}
+		DenseMatrix b = new DenseMatrix(dim, 1);
+		for(int i=0; i<dim; i++) b.set(i, 0, xy[i]);
+		DenseCholesky cd = DenseCholesky.factorize(A);
+		if (cd.isSPD()) {
+			cd.solve(b);
+			Vector a = DataUtils.newVector(dim);
+			for(int i=0; i<dim; i++) a.set(i, b.get(i, 0));
+			if (DataUtils.isSafe(a)) return a;
+		}
+		if ( ! resilient) {
+			throw new FailureException("X^T X is singular (are some inputs linearly dependent?) rows: "+rows);
+		}
+		Matrix pinv = MatrixUtils.pseudoInverse(A);
+		Vector a = DataUtils.newVector(dim);
+		pinv.mult(new DenseVector(xy), a);
+		return a;
+	}
+
+	/**
+	 * @return the (weighted) residual sum of squares for weights a, i.e. sum (y - a.x)^2
+	 */
+	public double rss(Vector a) {
+		// (y - Xa)^T (y - Xa) = yy - 2 a.Xy + a^T XX a
+		double axy = 0, axxa = 0;
+		for(int i=0; i<dim; i++) {
+			double ai = a.get(i);
+			axy += ai*xy[i];
+			axxa += ai*ai*xx[i][i];
+			for(int j=i+1; j<dim; j++) {
+				axxa += 2*ai*a.get(j)*xx[i][j];
+			}
+		}
+		double rss = yy - 2*axy + axxa;
+		// rounding can push a perfect fit slightly negative
+		return Math.max(0, rss);
+	}
+
+	/**
+	 * @return X^T X as a full (symmetric) matrix
+	 */
+	public DenseMatrix getXX() {
+		DenseMatrix A = new DenseMatrix(dim, dim);
+		for(int i=0; i<dim; i++) {
+			for(int j=i; j<dim; j++) {
+				A.set(i, j, xx[i][j]);
+				A.set(j, i, xx[i][j]);
+			}
+		}
+		return A;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public double getSumW() {
+		return sumW;
+	}
+
+	/**
+	 * @return a copy
+	 */
+	public LinearRegressionStats copy() {
+		LinearRegressionStats c = new LinearRegressionStats(dim - 1);
+		c.merge(this);
+		return c;
+	}
+
+	@Override
+	public String toString() {
+		return "LinearRegressionStats[dim=" + (dim-1) + " rows=" + rows + " sumW=" + sumW + "]";
+	}
+}
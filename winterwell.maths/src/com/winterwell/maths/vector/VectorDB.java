@@ -1,18 +1,392 @@
 package com.winterwell.maths.vector;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToDoubleBiFunction;
+
+import com.winterwell.maths.timeseries.DataUtils;
+import com.winterwell.utils.containers.Pair2;
+
+import gnu.trove.list.array.TIntArrayList;
+import no.uib.cipr.matrix.Vector;
+
 /**
- * TODO Problem: how to perform nearest-neighbours search against a store of
- * high-dimensional vectors?
- * 
- * Solutions: - index a random subspace - index the high eigenvectors - cluster,
- * then use clusters?? - hash buckets? or ordering? (hash buckets seem to be
- * more popular) Parameter Sensitive Hashing (PSH) The trick: Estimate
- * performance of different hash functions on examples
- * 
- * 
+ * Approximate nearest-neighbours search against a store of (high-dimensional) vectors -- or anything else with a distance.
+ * <p>
+ * This is a Hierarchical Navigable Small World graph (HNSW, Malkov &amp; Yashunin 2016): each item is linked to its near neighbours,
+ * with a few items also in sparser upper layers for long jumps. A search walks greedily down the layers, then does a
+ * best-first search of the bottom layer. Queries are roughly O(log n), inserts are incremental, and recall is typically 95%+.
+ * <p>
+ * The distance need not be a true metric (e.g. 1 - similarity works), though recall is best if it is.
+ * <p>
+ * Thread-safe: searches run in parallel, adds are one at a time.
+ *
+ * Older notes on the problem: index a random subspace? index the high eigenvectors? cluster, then use clusters?
+ * hash buckets (LSH, Parameter Sensitive Hashing)?
+ *
  * @author daniel
- * 
+ * @testedby  VectorDBTest}
+ * @param <T> Usually {@link Vector}
  */
-public class VectorDB {
+public class VectorDB<T> {
+
+	/**
+	 * Euclidean distance, via {@link DataUtils#dist(Vector, Vector)}
+	 */
+	public static final ToDoubleBiFunction<Vector, Vector> EUCLIDEAN = DataUtils::dist;
+
+	/**
+	 * @param metric Used for every dimension (e.g. a {@link CyclicMetric} for time-of-day).
+	 * @return sqrt(sum of metric.dist(a_i, b_i)^2)
+	 */
+	public static ToDoubleBiFunction<Vector, Vector> metric(IMetric1D metric) {
+		return (a, b) -> {
+			double sum = 0;
+			for(int i=0, n=a.size(); i<n; i++) {
+				double d = metric.dist(a.get(i), b.get(i));
+				sum += d*d;
+			}
+			return Math.sqrt(sum);
+		};
+	}
+
+	/**
+	 * @return A VectorDB using Euclidean distance
+	 */
+	public static VectorDB<Vector> euclidean() {
+		return new VectorDB<Vector>(EUCLIDEAN);
+	}
+
+	private final ToDoubleBiFunction<? super T, ? super T> distance;
+
+	/**
+	 * Links per item in the upper layers. The bottom layer allows 2M.
+	 */
+	private int m = 16;
+
+	/**
+	 * Search width when adding. Higher = better graph, slower adds.
+	 */
+	private int efConstruction = 100;
+
+	/**
+	 * Search width when querying (at least k is used). Higher = better recall, slower queries.
+	 */
+	private int efSearch = 50;
+
+	private final ArrayList<T> items = new ArrayList();
+
+	/**
+	 * links.get(id)[layer] = neighbour ids
+	 */
+	private final ArrayList<TIntArrayList[]> links = new ArrayList();
+
+	private int entryPoint = -1;
+
+	private int maxLayer = -1;
+
+	private Random random = new Random(1);
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public VectorDB(ToDoubleBiFunction<? super T, ? super T> distance) {
+		this.distance = distance;
+	}
+
+	/**
+	 * @param m Links per item (default 16). Set before adding anything.
+	 */
+	public void setM(int m) {
+		assert items.isEmpty() : "set before adding";
+		assert m > 1 : m;
+		this.m = m;
+	}
+
+	public void setEfConstruction(int efConstruction) {
+		this.efConstruction = efConstruction;
+	}
+
+	public void setEfSearch(int efSearch) {
+		this.efSearch = efSearch;
+	}
+
+	/**
+	 * @param random Controls the layer assignment, for a repeatable index
+	 */
+	public void setRandomSource(Random random) {
+		this.random = random;
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+	public T get(int id) {
+		return items.get(id);
+	}
+
+	/**
+	 * Add all of these (equivalent to add() for each, in order).
+	 * @return the id of the first. The rest follow on.
+	 */
+	public int addAll(List<? extends T> xs) {
+		lock.writeLock().lock();
+		try {
+			int first = items.size();
+			for (T x : xs) {
+				add2(x);
+			}
+			return first;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the id for x, which is its index (0 for the first item added, etc.)
+	 */
+	public int add(T x) {
+		lock.writeLock().lock();
+		try {
+			return add2(x);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private int add2(T x) {
+		int id = items.size();
+		int layer = (int) (- Math.log(1 - random.nextDouble()) / Math.log(m));
+		TIntArrayList[] nodeLinks = new TIntArrayList[layer+1];
+		for(int l=0; l<=layer; l++) {
+			nodeLinks[l] = new TIntArrayList(l==0? 2*m : m);
+		}
+		items.add(x);
+		links.add(nodeLinks);
+		if (entryPoint == -1) {
+			entryPoint = id;
+			maxLayer = layer;
+			return id;
+		}
+		// greedy descent through the upper layers
+		int ep = entryPoint;
+		double epDist = distance.applyAsDouble(x, items.get(ep));
+		for(int l=maxLayer; l>layer; l--) {
+			Hit best = greedy(x, ep, epDist, l);
+			ep = best.id;
+			epDist = best.dist;
+		}
+		// link in on each of our layers
+		for(int l=Math.min(layer, maxLayer); l>=0; l--) {
+			List<Hit> near = searchLayer(x, ep, epDist, efConstruction, l);
+			List<Hit> picked = selectNeighbours(near, m);
+			for (Hit h : picked) {
+				nodeLinks[l].add(h.id);
+				link(h.id, id, l);
+			}
+			Hit nearest = near.get(0);
+			ep = nearest.id;
+			epDist = nearest.dist;
+		}
+		if (layer > maxLayer) {
+			maxLayer = layer;
+			entryPoint = id;
+		}
+		return id;
+	}
+
+	/**
+	 * Add a back-link from -> to, pruning from's links if there are now too many.
+	 */
+	private void link(int from, int to, int layer) {
+		TIntArrayList fromLinks = links.get(from)[layer];
+		fromLinks.add(to);
+		int max = layer==0? 2*m : m;
+		if (fromLinks.size() <= max) return;
+		T fromX = items.get(from);
+		List<Hit> cands = new ArrayList(fromLinks.size());
+		for(int i=0; i<fromLinks.size(); i++) {
+			int n = fromLinks.get(i);
+			cands.add(new Hit(n, distance.applyAsDouble(fromX, items.get(n))));
+		}
+		Collections.sort(cands);
+		List<Hit> keep = selectNeighbours(cands, max);
+		fromLinks.resetQuick();
+		for (Hit h : keep) fromLinks.add(h.id);
+	}
+
+	/**
+	 * The HNSW heuristic: prefer neighbours in different directions -- skip a candidate if it is closer
+	 * to an already-picked neighbour than to the new item. Tops up with the nearest skipped ones.
+	 * @param near sorted, nearest first
+	 */
+	private List<Hit> selectNeighbours(List<Hit> near, int max) {
+		if (near.size() <= max) return near;
+		List<Hit> picked = new ArrayList(max);
+		List<Hit> skipped = new ArrayList();
+		for (Hit c : near) {
+			if (picked.size() == max) break;
+			T cx = items.get(c.id);
+			boolean ok = true;
+			for (Hit p : picked) {
+				if (distance.applyAsDouble(cx, items.get(p.id)) < c.dist) {
+					ok = false;
+					break;
+				}
+			}
+			if (ok) picked.add(c);
+			else skipped.add(c);
+		}
+		for(int i=0; picked.size() < max && i < skipped.size(); i++) {
+			picked.add(skipped.get(i));
+		}
+		return picked;
+	}
+
+	/**
+	 * Hill-climb on one layer.
+	 * @return the local nearest
+	 */
+	private Hit greedy(T q, int ep, double epDist, int layer) {
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			TIntArrayList nbrs = links.get(ep)[layer];
+			for(int i=0; i<nbrs.size(); i++) {
+				int n = nbrs.get(i);
+				double d = distance.applyAsDouble(q, items.get(n));
+				if (d < epDist) {
+					epDist = d;
+					ep = n;
+					changed = true;
+				}
+			}
+		}
+		return new Hit(ep, epDist);
+	}
+
+	/**
+	 * Best-first search of one layer.
+	 * @return up to ef hits, nearest first
+	 */
+	private List<Hit> searchLayer(T q, int ep, double epDist, int ef, int layer) {
+		BitSet visited = new BitSet(items.size());
+		visited.set(ep);
+		PriorityQueue<Hit> candidates = new PriorityQueue();
+		// furthest first
+		PriorityQueue<Hit> results = new PriorityQueue(Collections.reverseOrder());
+		Hit start = new Hit(ep, epDist);
+		candidates.add(start);
+		results.add(start);
+		while( ! candidates.isEmpty()) {
+			Hit c = candidates.poll();
+			if (c.dist > results.peek().dist && results.size() >= ef) break;
+			TIntArrayList nbrs = links.get(c.id)[layer];
+			for(int i=0; i<nbrs.size(); i++) {
+				int n = nbrs.get(i);
+				if (visited.get(n)) continue;
+				visited.set(n);
+				double d = distance.applyAsDouble(q, items.get(n));
+				if (results.size() < ef || d < results.peek().dist) {
+					Hit h = new Hit(n, d);
+					candidates.add(h);
+					results.add(h);
+					if (results.size() > ef) results.poll();
+				}
+			}
+		}
+		List<Hit> out = new ArrayList(results);
+		Collections.sort(out);
+		return out;
+	}
+
+	/**
+	 * Approximate k-nearest neighbours.
+	 * @return (id, distance) pairs, nearest first. Can be fewer than k if the db is small.
+	 */
+	public List<Pair2<Integer, Double>> nearest(T q, int k) {
+		lock.readLock().lock();
+		try {
+			if (entryPoint == -1) return new ArrayList();
+			int ep = entryPoint;
+			double epDist = distance.applyAsDouble(q, items.get(ep));
+			for(int l=maxLayer; l>0; l--) {
+				Hit best = greedy(q, ep, epDist, l);
+				ep = best.id;
+				epDist = best.dist;
+			}
+			List<Hit> hits = searchLayer(q, ep, epDist, Math.max(efSearch, k), 0);
+			return toPairs(hits, k);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Exact k-nearest neighbours, by brute force. For small dbs, and for measuring recall.
+	 * @return (id, distance) pairs, nearest first
+	 */
+	public List<Pair2<Integer, Double>> nearestExact(T q, int k) {
+		lock.readLock().lock();
+		try {
+			// furthest first
+			PriorityQueue<Hit> results = new PriorityQueue(Collections.reverseOrder());
+			for(int i=0; i<items.size(); i++) {
+				double d = distance.applyAsDouble(q, items.get(i));
+				if (results.size() < k || d < results.peek().dist) {
+					results.add(new Hit(i, d));
+					if (results.size() > k) results.poll();
+				}
+			}
+			List<Hit> hits = new ArrayList(results);
+			Collections.sort(hits);
+			return toPairs(hits, k);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static List<Pair2<Integer, Double>> toPairs(List<Hit> hits, int k) {
+		int n = Math.min(k, hits.size());
+		List<Pair2<Integer, Double>> out = new ArrayList(n);
+		for(int i=0; i<n; i++) {
+			Hit h = hits.get(i);
+			out.add(new Pair2(h.id, h.dist));
+		}
+		return out;
+	}
+
+	/**
+	 * An id + distance from the query. Sorts nearest first.
+	 */
+	private static final class Hit implements Comparable<Hit> {
+		final int id;
+		final double dist;
+
+		Hit(int id, double dist) {
+			this.id = id;
+			this.dist = dist;
+		}
+
+		@Override
+		public int compareTo(Hit o) {
+			int c = Double.compare(dist, o.dist);
+			return c != 0? c : Integer.compare(id, o.id);
+		}
+
+		@Override
+		public String toString() {
+			return id+":"+dist;
+		}
+	}
 
+	@Override
+	public String toString() {
+		return "VectorDB[size=" + size() + " layers=" + (maxLayer+1) + " m=" + m + "]";
+	}
 }
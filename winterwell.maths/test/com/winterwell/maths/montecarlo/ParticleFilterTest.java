@@ -0,0 +1,277 @@
+package com.winterwell.maths.montecarlo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.maths.montecarlo.AggregateResults.Moments;
+import com.winterwell.maths.montecarlo.ParticleArrays.Resampling;
+import com.winterwell.maths.stats.distributions.AxisAlignedGaussian;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.IDataStream;
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+import no.uib.cipr.matrix.DenseVector;
+
+public class ParticleFilterTest {
+
+	/**
+	 * Random walk with drift 1 per second in each dim, and weight favouring small x[0]
+	 */
+	static class RandomWalk implements ISimulator {
+		int work;
+
+		@Override
+		public Particle sim1step(Particle particle, Dt timeStep) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public double sim1step(double[] x, int offset, int dim, long time, Dt timeStep, Random random) {
+			double secs = timeStep.convertTo(TUnit.SECOND).getValue();
+			for(int d=0; d<dim; d++) {
+				x[offset+d] += secs + 0.1*random.nextGaussian();
+			}
+			// make some work, for the benchmark
+			double junk = 0;
+			for(int i=0; i<work; i++) junk += Math.sin(i + x[offset]);
+			return 1 / (1 + 0.01*Math.abs(x[offset])) + junk*0;
+		}
+	}
+
+	static ParticleFilter newPF(ISimulator sim) {
+		AxisAlignedGaussian gen = new AxisAlignedGaussian(new DenseVector(new double[] {0, 10}), new DenseVector(new double[] {1, 1}));
+		ParticleFilter pf = new ParticleFilter(gen, sim, TUnit.SECOND.dt);
+		pf.setSeed(42);
+		pf.setCloudSize(1000);
+		return pf;
+	}
+
+	static Period period() {
+		Time start = new Time(2020, 1, 1);
+		return new Period(start, start.plus(20, TUnit.SECOND));
+	}
+
+	@Test
+	public void testRun() {
+		ParticleFilter pf = newPF(new RandomWalk());
+		pf.run(period());
+		IDataStream mean = pf.getResults().getConfidenceLine(1, 0);
+		Datum last = null;
+		int n = 0;
+		for (Datum d : mean) {
+			last = d;
+			n++;
+		}
+		assert n == 20 : n;
+		assert last.getTime().equals(period().getEnd()) : last;
+		// 10 + 20 steps of +1
+		assert Math.abs(last.x() - 30) < 0.2 : last;
+		IDataStream upper = pf.getResults().getConfidenceLine(1, 2);
+		for (Datum d : upper) last = d;
+		// sd ~ 1 at the start, plus a bit of walk
+		assert last.x() > 31.5 && last.x() < 33 : last;
+		assert pf.getParticles().getTime().equals(period().getEnd());
+	}
+
+	@Test
+	public void testDeterministicAcrossThreads() {
+		double[] x1 = null, w1 = null;
+		String line1 = null;
+		for(int threads : new int[] {1, 2, 4, 0}) {
+			ParticleFilter pf = newPF(new RandomWalk());
+			pf.setThreads(threads);
+			pf.setResampling(Resampling.SYSTEMATIC);
+			pf.run(period());
+			ParticleArrays ps = pf.getParticles();
+			String line = "";
+			for (Datum d : pf.getResults().getConfidenceLine(0, 1)) line += d.time+" "+d.x()+", ";
+			if (x1==null) {
+				x1 = ps.x.clone();
+				w1 = ps.w.clone();
+				line1 = line;
+				continue;
+			}
+			assert Arrays.equals(x1, ps.x) : threads;
+			assert Arrays.equals(w1, ps.w) : threads;
+			assert line.equals(line1) : threads;
+		}
+		// a different seed gives different results
+		ParticleFilter pf = newPF(new RandomWalk());
+		pf.setSeed(7);
+		pf.run(period());
+		assert ! Arrays.equals(x1, pf.getParticles().x);
+	}
+
+	@Test
+	public void testSeed() {
+		// seeded: every run is the same
+		ParticleFilter pf = newPF(new RandomWalk());
+		pf.run(period());
+		double[] x1 = pf.getParticles().x.clone();
+		pf.run(period());
+		assert Arrays.equals(x1, pf.getParticles().x);
+		// unseeded: each run is different, and the generator keeps the random source it was given
+		AxisAlignedGaussian gen = new AxisAlignedGaussian(new DenseVector(new double[] {0, 10}), new DenseVector(new double[] {1, 1}));
+		int[] calls = new int[1];
+		gen.setRandomSource(new Random(1) {
+			@Override
+			protected int next(int bits) {
+				calls[0]++;
+				return super.next(bits);
+			}
+		});
+		pf = new ParticleFilter(gen, new RandomWalk(), TUnit.SECOND.dt);
+		pf.setCloudSize(100);
+		pf.run(period());
+		double[] x2 = pf.getParticles().x.clone();
+		assert calls[0] > 0;
+		pf.run(period());
+		assert ! Arrays.equals(x2, pf.getParticles().x);
+	}
+
+	@Test
+	public void testWeightedVariance() {
+		long[] times = {1000};
+		// importance weights are relative, so the scale should not matter (even if the total is < 1)
+		for(double w : new double[] {0.01, 1, 10}) {
+			Moments m = new Moments(times, 1);
+			m.add(0, new double[] {0}, 0, w);
+			m.add(0, new double[] {2}, 0, w);
+			m.add(0, new double[] {4}, 0, 2*w);
+			AggregateResults ar = new AggregateResults();
+			ar.addMoments(m);
+			double mean = ar.getConfidenceLine(0, 0).iterator().next().x();
+			double upper = ar.getConfidenceLine(0, 1).iterator().next().x();
+			assert MathUtils.approx(mean, 2.5) : mean;
+			// sum(w.x^2) - V1.mean^2 = 36w - 25w, V1 = 4w, V2 = 6w^2 => var = 11w * 4w / (16w^2 - 6w^2) = 4.4
+			assert MathUtils.approx(upper - mean, Math.sqrt(4.4)) : w+" "+(upper - mean);
+		}
+		// one particle with all the weight: no spread
+		Moments m = new Moments(times, 1);
+		m.add(0, new double[] {3}, 0, 0.5);
+		m.add(0, new double[] {7}, 0, 0);
+		AggregateResults ar = new AggregateResults();
+		ar.addMoments(m);
+		assert ar.getConfidenceLine(0, 2).iterator().next().x() == 3;
+	}
+
+	@Test
+	public void testTracesUseWeights() {
+		ParticleFilter pf = newPF(new RandomWalk());
+		pf.setCloudSize(200);
+		pf.run(period());
+		String line = "";
+		for (Datum d : pf.getResults().getConfidenceLine(0, 1)) line += d.x()+", ";
+		pf.setKeepTraces(true);
+		pf.run(period());
+		assert pf.getResults().numTraces() == 200;
+		String line2 = "";
+		for (Datum d : pf.getResults().getConfidenceLine(0, 1)) line2 += d.x()+", ";
+		assert line.equals(line2);
+	}
+
+	@Test
+	public void testLegacySimulator() {
+		// an old-style object simulator: x += 1
+		ISimulator sim = (p, dt) -> {
+			Particle p2 = p.copy();
+			p2.set(0, p.get(0) + 1);
+			p2.setState(p2.getVector(), p.getTime().plus(dt));
+			return p2;
+		};
+		ParticleFilter pf = newPF(sim);
+		pf.setKeepTraces(true);
+		pf.run(period());
+		assert pf.getResults().numTraces() == 1000;
+		ParticleArrays ps = pf.getParticles();
+		assert ps.getWeight(0) == 1;
+		assert Math.abs(ps.getState(0).get(1) - (ps.getState(0).get(0) + 10 - 20)) < 5 : ps.getState(0);
+	}
+
+	@Test
+	public void testResampleIndexes() {
+		double[] w = {0, 3, 1, 0, 4};
+		for(Resampling method : new Resampling[] {Resampling.SYSTEMATIC, Resampling.STRATIFIED}) {
+			int[] counts = new int[w.length];
+			Random r = new Random(1);
+			int m = 8000;
+			int[] picks = ParticleArrays.resampleIndexes(w, m, method, r);
+			for(int i=0; i<m; i++) {
+				counts[picks[i]]++;
+				assert i==0 || picks[i] >= picks[i-1];
+			}
+			assert counts[0] == 0 && counts[3] == 0 : Printer.toString(counts);
+			if (method == Resampling.SYSTEMATIC) {
+				// systematic is exact to +/- 1
+				assert Math.abs(counts[1] - 3000) <= 1 : Printer.toString(counts);
+				assert Math.abs(counts[4] - 4000) <= 1 : Printer.toString(counts);
+			} else {
+				assert MathUtils.approx(counts[1], 3000) : Printer.toString(counts);
+				assert MathUtils.approx(counts[4], 4000) : Printer.toString(counts);
+			}
+		}
+	}
+
+	@Test
+	public void testResample() {
+		ParticleArrays ps = new ParticleArrays(4, 1, new Time());
+		for(int i=0; i<4; i++) {
+			ps.x[i] = i;
+			ps.w[i] = i==2? 1 : 0;
+		}
+		assert ps.getEffectiveSampleSize() == 1;
+		ps.resample(Resampling.SYSTEMATIC, new Random());
+		for(int i=0; i<4; i++) {
+			assert ps.x[i] == 2;
+			assert ps.w[i] == 1;
+		}
+		assert ps.getEffectiveSampleSize() == 4;
+	}
+
+	/**
+	 * Scaling by core count. Not a pass/fail test: the speedup depends on the machine.
+	 * Thread counts go up to the number of cores (more would just measure contention), and each
+	 * time is the median of several runs after several warm-up runs, so JIT warm-up doesn't pass for speedup.
+	 */
+	@Test
+	public void testBenchmarkThreads() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int WARMUPS = 5, RUNS = 5;
+		RandomWalk sim = new RandomWalk();
+		sim.work = 200;
+		// 1, 2, 4, ... and the core count itself
+		List<Integer> threadCounts = new ArrayList();
+		for(int threads=1; threads < cores; threads *= 2) {
+			threadCounts.add(threads);
+		}
+		threadCounts.add(cores);
+		long t1 = 0;
+		for(int threads : threadCounts) {
+			ParticleFilter pf = newPF(sim);
+			pf.setCloudSize(5000);
+			pf.setThreads(threads);
+			for(int i=0; i<WARMUPS; i++) {
+				pf.run(period());
+			}
+			long[] dts = new long[RUNS];
+			for(int i=0; i<RUNS; i++) {
+				long t = System.nanoTime();
+				pf.run(period());
+				dts[i] = System.nanoTime() - t;
+			}
+			Arrays.sort(dts);
+			long dt = dts[RUNS/2];
+			if (threads==1) t1 = dt;
+			Printer.out(threads+" threads ("+cores+" cores): median "+(dt/1000000)+"ms of "+RUNS+", speedup x"+String.format("%.2f", 1.0*t1/dt));
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.winterwell.maths.stats.algorithms;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -13,6 +14,8 @@ import com.winterwell.maths.vector.XYZ;
 import com.winterwell.utils.MathUtils;
 import com.winterwell.utils.Printer;
 
+import no.uib.cipr.matrix.DenseVector;
+
 public class LinearRegressionTest {
 
 	@Test
@@ -135,4 +138,150 @@ public class LinearRegressionTest {
 		assert MathUtils.equalish(lr.getNoise().getVariance(), 0) : lr
 				.getNoise();
 	}
+
+	@Test
+	public void testStreamingMatchesBatch() {
+		Random r = new Random(7);
+		LinearRegression batch = new LinearRegression();
+		LinearRegression stream = new LinearRegression();
+		stream.setStreaming(true);
+		// y = 2x1 -x2 + 5 + noise
+		for (int i = 0; i < 500; i++) {
+			XY x = new XY(10*r.nextDouble(), 10*r.nextDouble());
+			double y = 2*x.x - x.y + 5 + r.nextGaussian();
+			batch.train1(x, y);
+			stream.train1(x, y);
+		}
+		batch.finishTraining();
+		stream.finishTraining();
+		assert DataUtils.equalish(batch.a, stream.a) : batch.a+" vs "+stream.a;
+		assert MathUtils.equalish(batch.getNoise().getVariance(), stream.getNoise().getVariance()) 
+			: batch.getNoise()+" vs "+stream.getNoise();
+		assert stream.expRows.isEmpty();
+		// carry on training
+		stream.train1(new XY(1, 1), 6.0);
+		stream.finishTraining();
+		assert stream.getStats().getRows() == 501;
+	}
+
+	@Test
+	public void testStreamingMerge() throws Exception {
+		// train in parallel, then merge
+		List<LinearRegression> parts = new ArrayList();
+		List<Thread> threads = new ArrayList();
+		LinearRegression single = new LinearRegression();
+		single.setStreaming(true);
+		for(int t=0; t<4; t++) {
+			LinearRegression lr = new LinearRegression();
+			lr.setStreaming(true);
+			parts.add(lr);
+			Random r = new Random(t);
+			List<XY> xs = new ArrayList();
+			List<Double> ys = new ArrayList();
+			for (int i = 0; i < 1000; i++) {
+				XY x = new XY(r.nextDouble(), r.nextDouble());
+				xs.add(x);
+				ys.add(3*x.x + x.y - 1 + 0.1*r.nextGaussian());
+				single.train1(x, ys.get(i));
+			}
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < xs.size(); i++) lr.train1(xs.get(i), ys.get(i));
+			}));
+		}
+		for (Thread thread : threads) thread.start();
+		for (Thread thread : threads) thread.join();
+		LinearRegression merged = new LinearRegression();
+		merged.setStreaming(true);
+		for (LinearRegression lr : parts) merged.merge(lr);
+		merged.finishTraining();
+		single.finishTraining();
+		assert merged.getStats().getRows() == 4000;
+		assert DataUtils.equalish(merged.a, single.a) : merged.a+" vs "+single.a;
+		assert DataUtils.approx(merged.a, new XYZ(3, 1, -1)) : merged.a;
+	}
+
+	@Test
+	public void testStreamingRidge() {
+		Random r = new Random(1);
+		LinearRegression ols = new LinearRegression();
+		ols.setStreaming(true);
+		LinearRegression ridge = new LinearRegression();
+		ridge.setStreaming(true);
+		ridge.setRidge(100);
+		for (int i = 0; i < 50; i++) {
+			X x = new X(r.nextDouble());
+			double y = 4*x.x + 1 + r.nextGaussian();
+			ols.train1(x, y);
+			ridge.train1(x, y);
+		}
+		ols.finishTraining();
+		ridge.finishTraining();
+		// ridge shrinks the weight (but not the offset)
+		assert Math.abs(ridge.a.get(0)) < Math.abs(ols.a.get(0)) : ridge.a+" vs "+ols.a;
+	}
+
+	@Test
+	public void testStreamingForgetting() {
+		LinearRegression lr = new LinearRegression();
+		lr.setStreaming(true);
+		lr.setForgetting(0.95);
+		Random r = new Random(2);
+		// the slope changes from 1 to 5
+		for (int i = 0; i < 1000; i++) {
+			double x = r.nextDouble();
+			lr.train1(new X(x), (i < 500? 1 : 5) * x);
+		}
+		lr.finishTraining();
+		assert DataUtils.equalish(lr.a, new XY(5, 0)) : lr.a;
+		assert lr.getStats().getSumW() < 25 : lr.getStats();
+	}
+
+	@Test
+	public void testStreamingWeights() {
+		LinearRegression lr = new LinearRegression();
+		lr.setStreaming(true);
+		LinearRegression dup = new LinearRegression();
+		dup.setStreaming(true);
+		Random r = new Random(3);
+		for (int i = 0; i < 100; i++) {
+			X x = new X(r.nextDouble());
+			double y = 2*x.x + r.nextGaussian();
+			// weight 2 = the same row twice
+			lr.train1(x, y, i%2==0? 2 : 1);
+			dup.train1(x, y);
+			if (i%2==0) dup.train1(x, y);
+		}
+		lr.finishTraining();
+		dup.finishTraining();
+		assert DataUtils.equalish(lr.a, dup.a) : lr.a+" vs "+dup.a;
+	}
+
+	/**
+	 * Streaming mode uses O(d^2) memory, so a million rows is fine
+	 */
+	@Test
+	public void testStreamingBig() {
+		LinearRegression lr = new LinearRegression();
+		lr.setStreaming(true);
+		Random r = new Random(4);
+		int d = 10;
+		double[] w = new double[d];
+		for (int j = 0; j < d; j++) w[j] = j - 5;
+		long t = System.currentTimeMillis();
+		for (int i = 0; i < 1000000; i++) {
+			DenseVector x = new DenseVector(d);
+			double y = 7;
+			for (int j = 0; j < d; j++) {
+				x.set(j, r.nextDouble());
+				y += w[j]*x.get(j);
+			}
+			lr.train1(x, y + 0.01*r.nextGaussian());
+		}
+		lr.finishTraining();
+		Printer.out("1m rows: "+(System.currentTimeMillis() - t)+"ms "+lr);
+		for (int j = 0; j < d; j++) {
+			assert Math.abs(lr.a.get(j) - w[j]) < 0.01 : lr.a;
+		}
+		assert Math.abs(lr.a.get(d) - 7) < 0.01 : lr.a;
+	}
 }
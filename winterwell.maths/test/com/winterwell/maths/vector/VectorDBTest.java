@@ -0,0 +1,123 @@
+package com.winterwell.maths.vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.maths.classifiers.KNearestNeighbours;
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.containers.Pair2;
+
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Vector;
+
+public class VectorDBTest {
+
+	static List<Vector> randomVectors(Random r, int n, int dim) {
+		List<Vector> vs = new ArrayList(n);
+		for(int i=0; i<n; i++) {
+			DenseVector v = new DenseVector(dim);
+			for(int d=0; d<dim; d++) v.set(d, r.nextGaussian());
+			vs.add(v);
+		}
+		return vs;
+	}
+
+	static Set<Integer> ids(List<Pair2<Integer, Double>> hits) {
+		Set<Integer> ids = new HashSet();
+		for (Pair2<Integer, Double> h : hits) ids.add(h.first);
+		return ids;
+	}
+
+	@Test
+	public void testSmall() {
+		VectorDB<Vector> db = VectorDB.euclidean();
+		assert db.nearest(new XY(0, 0), 3).isEmpty();
+		for(int i=0; i<10; i++) {
+			db.add(new XY(i, 0));
+		}
+		List<Pair2<Integer, Double>> hits = db.nearest(new XY(3.1, 0), 3);
+		assert hits.size() == 3;
+		assert hits.get(0).first == 3 : hits;
+		assert ids(hits).equals(new HashSet(Arrays.asList(2, 3, 4))) : hits;
+		assert Math.abs(hits.get(0).second - 0.1) < 0.0001;
+		assert db.nearest(new XY(0, 0), 20).size() == 10;
+	}
+
+	/**
+	 * Recall vs brute force, and the speed-up. 
+	 */
+	@Test
+	public void testRecallAndLatency() {
+		Random r = new Random(1);
+		int dim = 20;
+		VectorDB<Vector> db = VectorDB.euclidean();
+		long t0 = System.currentTimeMillis();
+		// batch build, then incremental inserts
+		db.addAll(randomVectors(r, 8000, dim));
+		for (Vector v : randomVectors(r, 2000, dim)) db.add(v);
+		long build = System.currentTimeMillis() - t0;
+		List<Vector> queries = randomVectors(r, 200, dim);
+		int k = 10;
+		int found = 0;
+		long tApprox = 0, tExact = 0;
+		for (Vector q : queries) {
+			long t = System.nanoTime();
+			Set<Integer> approx = ids(db.nearest(q, k));
+			tApprox += System.nanoTime() - t;
+			t = System.nanoTime();
+			Set<Integer> exact = ids(db.nearestExact(q, k));
+			tExact += System.nanoTime() - t;
+			assert exact.size() == k;
+			for (Integer id : approx) if (exact.contains(id)) found++;
+		}
+		double recall = found / (double) (k * queries.size());
+		Printer.out(db+" build: "+build+"ms recall@"+k+": "+recall
+				+" query: "+(tApprox/queries.size()/1000)+"us vs brute-force "+(tExact/queries.size()/1000)+"us");
+		assert recall > 0.9 : recall;
+		assert tApprox < tExact : tApprox+" vs "+tExact;
+	}
+
+	@Test
+	public void testMetric() {
+		// clock-face: 23 is next to 1
+		VectorDB<Vector> db = new VectorDB<Vector>(VectorDB.metric(new CyclicMetric(24)));
+		db.add(new X(1));
+		db.add(new X(12));
+		db.add(new X(20));
+		List<Pair2<Integer, Double>> hits = db.nearest(new X(23), 1);
+		assert hits.get(0).first == 0 : hits;
+		assert Math.abs(hits.get(0).second - 2) < 0.0001 : hits;
+	}
+
+	@Test
+	public void testKNNWithIndex() {
+		Random r = new Random(2);
+		KNearestNeighbours<String> exact = new KNearestNeighbours(5);
+		KNearestNeighbours<String> approx = new KNearestNeighbours(5);
+		approx.setUseIndex(true);
+		// two clusters
+		for(int i=0; i<2000; i++) {
+			boolean a = r.nextBoolean();
+			Vector v = new XY(r.nextGaussian() + (a? 3 : -3), r.nextGaussian());
+			exact.train1(v, a? "a" : "b");
+			approx.train1(v, a? "a" : "b");
+		}
+		int agree = 0;
+		for(int i=0; i<200; i++) {
+			Vector q = new XY(6*r.nextDouble() - 3, r.nextGaussian());
+			if (exact.classify(q).equals(approx.classify(q))) agree++;
+		}
+		assert agree > 190 : agree;
+		assert approx.classify(new XY(3, 0)).equals("a");
+		// more training after a classify goes into the index
+		approx.train1(new XY(100, 100), "c");
+		approx.setQuickClassifyOnExactMatch(true);
+		assert approx.classify(new XY(100, 100)).equals("c");
+	}
+}
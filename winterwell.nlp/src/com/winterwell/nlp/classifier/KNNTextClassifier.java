@@ -9,6 +9,9 @@ import com.winterwell.nlp.similarity.ICompareText;
 /**
  * k-nearest neighbours text classifier. Takes the value of k, some training
  * data and an ICompareText as a constructor parameter.
+ * <p>
+ * For large training sets, use {@link #setUseIndex(boolean)} -- which indexes the documents
+ * by 1 - similarity, so the comparator is called O(log n) times per classify() rather than n times.
  * 
  * @author miles
  * 
@@ -4,8 +4,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -13,17 +14,20 @@ import java.util.zip.ZipFile;
 import com.winterwell.nlp.NLPWorkshop;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Pair2;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.io.LineReader;
 import com.winterwell.utils.log.Log;
 import com.winterwell.web.FakeBrowser;
 
-import no.uib.cipr.matrix.DenseVector;
 import no.uib.cipr.matrix.Vector;
 
 /**
  * Use the GLOVE pre-computed word vectors.
- * Warning: Make ONE instance and cache it globally! This is a big object and slow to load.
+ * <p>
+ * The first init() converts the text file into a binary {@link WordVectorStore} alongside it (slow, once).
+ * After that, init() just memory-maps the binary file, which takes milliseconds.
+ * Make ONE instance and cache it globally all the same.
  * @author daniel
  * @testedby  GloveWordVectorsTest}
  */
@@ -32,6 +36,10 @@ public class GloveWordVectors {
 	private File file;
 	private KGloveSource src;
 	private Set<String> dictionary;
+	/**
+	 * md5 of the dictionary, so different filters get different binary files
+	 */
+	private String dictionaryHash;
 	
 
 	public static enum KGloveSource {
@@ -78,7 +86,19 @@ public class GloveWordVectors {
 		this.file = file;
 	}
 	
-	final Map<String,Vector> word2vec = new HashMap();
+	/**
+	 * Only keep words in this dictionary. Must be called before init().
+	 * @param dictionary Can be null for no filter
+	 * @return this
+	 */
+	public GloveWordVectors setDictionary(Set<String> dictionary) {
+		if (store != null) throw new IllegalStateException("Already initialised "+this);
+		this.dictionary = dictionary;
+		dictionaryHash = null;
+		return this;
+	}
+	
+	private volatile WordVectorStore store;
 	
 	/**
 	 * Download a fresh version of Wikipedia! This may be slow.
@@ -97,59 +117,73 @@ public class GloveWordVectors {
 
 	
 	public GloveWordVectors init() {
-		if ( ! word2vec.isEmpty()) return this;
+		if (store != null) return this;
 		synchronized (this) {
-			ZipFile zipf = null;
-			try {
-				if ( ! word2vec.isEmpty()) return this;
-				Log.d("glove", "Loading word vectors from "+file+" ...");
-				if (file==null || ! file.exists()) {
-					// download it
-					download(src);				
-				}
-				BufferedReader reader;
-				if (file.getName().endsWith(".gz")) {
-					reader = FileUtils.getGZIPReader(file);
-				} else if (file.getName().endsWith(".zip")) {
-					zipf = new ZipFile(file);
-					ZipEntry entry = zipf.getEntry(src.entry);
-					if (entry==null) {
-						throw new FileNotFoundException(src.entry+" in "+zipf);
-					}
-					InputStream in = zipf.getInputStream(entry);
-					reader = FileUtils.getReader(in);
-				} else {
-					reader = FileUtils.getReader(file);
-				}
-				// read in the data: each line is a word
-				LineReader lr = new LineReader(reader);
-				int cnt=0;
-				for (String input : lr) {
-					cnt++;
-					if (cnt % 100000 == 0) Log.d("glove", "...loaded "+cnt+" "+(cnt/4000)+"% kept "+word2vec.size()+" word vectors...");
-					String[] data = input.split(" ");
-					String word = data[0];	
-					// dictionary filter, cos Glove does have a lot of dud-words in it
-					if (dictionary!=null) {
-						if ( ! dictionary.contains(word)) {
-							continue;
-						}
-					}
-					Vector sv = new DenseVector(data.length);
-					for (int i=1;i<data.length;i++) {				
-						Double v = Double.valueOf(data[i]);
-						sv.set(i-1, v);
-					}			
-					word2vec.put(canon(word),sv);					
+			if (store != null) return this;
+			// NB: once converted, we don't need the source file
+			if (file==null || ! (file.exists() || getBinFile().exists())) {
+				// download it
+				download(src);
+				file = getFile(src);
+			}
+			File bin = getBinFile();
+			if ( ! bin.exists()) {
+				init2_convert(bin);
+			}
+			store = WordVectorStore.open(bin);
+			Log.d(LOGTAG, "Mapped "+store);
+			return this;
+		}
+	}
+
+	/**
+	 * @return The binary version of the file. Different for each dictionary filter.
+	 */
+	File getBinFile() {
+		if (dictionary==null) {
+			return new File(file.getPath()+".bin");
+		}
+		if (dictionaryHash==null) {
+			// sort, so the hash doesn't depend on the set's iteration order
+			List<String> words = new ArrayList(dictionary);
+			Collections.sort(words);
+			dictionaryHash = StrUtils.md5(StrUtils.join(words, "\n"));
+		}
+		return new File(file.getPath()+".dict."+dictionaryHash+".bin");
+	}
+
+	private void init2_convert(File bin) {
+		ZipFile zipf = null;
+		try {
+			Log.d(LOGTAG, "Converting word vectors from "+file+" to "+bin+" (this only happens once)...");
+			BufferedReader reader;
+			if (file.getName().endsWith(".gz")) {
+				reader = FileUtils.getGZIPReader(file);
+			} else if (file.getName().endsWith(".zip")) {
+				zipf = new ZipFile(file);
+				ZipEntry entry = zipf.getEntry(src.entry);
+				if (entry==null) {
+					throw new FileNotFoundException(src.entry+" in "+zipf);
 				}
-				lr.close();
-				Log.d("glove", "...loaded "+word2vec.size()+" word vectors.");
-				return this;
-			} catch(Exception ex) {
-				throw Utils.runtime(ex);
-			} finally {
-				FileUtils.close(zipf);
+				InputStream in = zipf.getInputStream(entry);
+				reader = FileUtils.getReader(in);
+			} else {
+				reader = FileUtils.getReader(file);
 			}
+			// read in the data: each line is a word
+			LineReader lr = new LineReader(reader);
+			WordVectorStore.convert(lr, word -> {
+				// dictionary filter, cos Glove does have a lot of dud-words in it
+				if (dictionary!=null && ! dictionary.contains(word)) {
+					return null;
+				}
+				return canon(word);
+			}, bin);
+			lr.close();
+		} catch(Exception ex) {
+			throw Utils.runtime(ex);
+		} finally {
+			FileUtils.close(zipf);
 		}
 	}
 
@@ -158,20 +192,54 @@ public class GloveWordVectors {
 	}
 
 	/**
-	 * Does a defensive copy
 	 * @param string
-	 * @return
+	 * @return A read-only view (no copying -- use copy() if you want to edit it), or null
 	 */
 	public Vector getVector(String string) {
 		init();
-		Vector v = word2vec.get(canon(string));
-		// safety copy - protect the store from edits
-		return v==null? null : new DenseVector(v);
+		return store.getVector(canon(string));
 	}
 
+	/**
+	 * Batch version of {@link #getVector(String)}
+	 * @return vectors in the same order as words, with null for unknown words
+	 */
+	public List<Vector> getVectors(List<String> words) {
+		init();
+		List<String> canons = new ArrayList(words.size());
+		for (String w : words) {
+			canons.add(canon(w));
+		}
+		return store.getVectors(canons);
+	}
+
+	/**
+	 * @return The k nearest words by cosine similarity (not including word itself), best first.
+	 */
+	public List<Pair2<String, Double>> getMostSimilar(String word, int k) {
+		init();
+		return store.getMostSimilar(canon(word), k);
+	}
+
+	/**
+	 * @return The k nearest words to v by cosine similarity, best first.
+	 */
+	public List<Pair2<String, Double>> getMostSimilar(Vector v, int k) {
+		init();
+		return store.getMostSimilar(v, k);
+	}
+
+	/**
+	 * @return a read-only set
+	 */
 	public Set<String> getWords() {
 		init();
-		return word2vec.keySet();
+		return store.getWords();
+	}
+
+	WordVectorStore getStore() {
+		init();
+		return store;
 	}
 	
 }
@@ -0,0 +1,410 @@
+package com.winterwell.nlp.vectornlp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.winterwell.depot.DepotCodecs;
+import com.winterwell.depot.MMapArtifact;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+
+import no.uib.cipr.matrix.AbstractVector;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * Word vectors in a compact binary file, which is memory-mapped rather than read in.
+ * So opening takes milliseconds, memory is off-heap, and several JVMs share the OS page cache.
+ * <p>
+ * Make the file once with {@link #convert(Iterable, Function, File)}.
+ * The format is a {@link MMapArtifact} with columns: vocab (the UTF-8 words, sorted by byte), offsets (into vocab),
+ * vectors (float32, one row per word), norms (float32).
+ * <p>
+ * Vectors are returned as zero-copy read-only views.
+ *
+ * @author daniel
+ * @testedby  WordVectorStoreTest}
+ */
+public final class WordVectorStore {
+
+	private static final String LOGTAG = "glove";
+
+	private final MMapArtifact ma;
+
+	final int size;
+
+	final int dim;
+
+	private final ByteBuffer vocab;
+
+	private final int[] offsets;
+
+	/**
+	 * The matrix, as the artifact's pages (usually just one -- big files are split into 1gb pages).
+	 * NB: a row can straddle two pages.
+	 */
+	private final FloatBuffer[] vectors;
+
+	/**
+	 * floats per page (the last page can be shorter)
+	 */
+	private final long pageSize;
+
+	private final FloatBuffer norms;
+
+	private WordVectorStore(MMapArtifact ma) {
+		this.ma = ma;
+		size = (int) ma.size("norms");
+		dim = ma.getInt("dim", 0);
+		vocab = ma.getBytes("vocab");
+		// NB: copied into the heap, as binary-search hits this a lot. 4 bytes per word.
+		offsets = new int[size + 1];
+		ma.getInts("offsets").get(offsets);
+		vectors = new FloatBuffer[ma.getPageCount("vectors")];
+		for(int p=0; p<vectors.length; p++) {
+			vectors[p] = ma.getFloats("vectors", p);
+		}
+		pageSize = vectors.length==1? Long.MAX_VALUE : ma.getPageStart("vectors", 1);
+		norms = ma.getFloats("norms");
+	}
+
+	/**
+	 * Map a file made by {@link #convert(Iterable, Function, File)}
+	 */
+	public static WordVectorStore open(File file) {
+		return new WordVectorStore(MMapArtifact.open(file));
+	}
+
+	/**
+	 * One-off conversion from the GloVe text format: "word x1 x2 ..." per line.
+	 * This holds the vectors in memory (as floats) while sorting, and writes via a temp file,
+	 * so a reader never sees a half-written file.
+	 *
+	 * @param lines
+	 * @param filter Maps each word to its canonical form, or null to skip it. If several words map to one form, the last wins.
+	 * @param out
+	 * @return the number of words kept
+	 */
+	public static int convert(Iterable<String> lines, Function<String,String> filter, File out) {
+		Map<String,float[]> word2vec = new HashMap();
+		int dim = -1, cnt = 0;
+		for (String line : lines) {
+			cnt++;
+			if (cnt % 100000 == 0) Log.d(LOGTAG, "...converted "+cnt+" lines, kept "+word2vec.size()+" word vectors...");
+			int sp = line.indexOf(' ');
+			if (sp <= 0) continue;
+			String word = filter.apply(line.substring(0, sp));
+			if (word == null) continue;
+			float[] v = parse(line, sp, dim);
+			if (dim == -1) dim = v.length;
+			word2vec.put(word, v);
+		}
+		// sort by UTF-8 bytes, to match lookup
+		List<byte[]> words = new ArrayList(word2vec.size());
+		for (String w : word2vec.keySet()) {
+			words.add(w.getBytes(StandardCharsets.UTF_8));
+		}
+		Collections.sort(words, WordVectorStore::compare);
+		int n = words.size();
+		int[] offsets = new int[n + 1];
+		for(int i=0; i<n; i++) {
+			offsets[i+1] = offsets[i] + words.get(i).length;
+		}
+		byte[] vocab = new byte[offsets[n]];
+		float[] vectors = new float[Math.multiplyExact(n, Math.max(dim, 0))];
+		float[] norms = new float[n];
+		for(int i=0; i<n; i++) {
+			byte[] w = words.get(i);
+			System.arraycopy(w, 0, vocab, offsets[i], w.length);
+			float[] v = word2vec.remove(new String(w, StandardCharsets.UTF_8));
+			System.arraycopy(v, 0, vectors, i*dim, dim);
+			double sum2 = 0;
+			for (float x : v) sum2 += x*x;
+			norms[i] = (float) Math.sqrt(sum2);
+		}
+		MMapArtifact ma = new MMapArtifact()
+				.put("dim", new int[] {Math.max(dim, 0)})
+				.put("vocab", vocab)
+				.put("offsets", offsets)
+				.put("vectors", vectors)
+				.put("norms", norms);
+		File tmp = new File(out.getPath()+".tmp"+Utils.getRandomString(4));
+		OutputStream fout = null;
+		try {
+			fout = new BufferedOutputStream(new FileOutputStream(tmp));
+			DepotCodecs.MMAP.write(ma, fout);
+			fout.close();
+			FileUtils.move(tmp, out);
+		} catch (IOException e) {
+			FileUtils.delete(tmp);
+			throw Utils.runtime(e);
+		} finally {
+			FileUtils.close(fout);
+		}
+		Log.d(LOGTAG, "...converted "+n+" word vectors to "+out);
+		return n;
+	}
+
+	/**
+	 * Parse the numbers after the word. Avoids String.split.
+	 * @param dim -1 if unknown
+	 */
+	static float[] parse(String line, int sp, int dim) {
+		float[] v = new float[dim == -1? 64 : dim];
+		int i = 0;
+		int len = line.length();
+		int start = sp + 1;
+		while(start < len) {
+			int end = line.indexOf(' ', start);
+			if (end == -1) end = len;
+			if (end > start) {
+				if (i == v.length) {
+					if (dim != -1) throw new IllegalArgumentException("Wrong dimension (want "+dim+"): "+line.substring(0, sp));
+					v = Arrays.copyOf(v, v.length*2);
+				}
+				v[i++] = Float.parseFloat(line.substring(start, end));
+			}
+			start = end + 1;
+		}
+		if (dim != -1 && i != dim) throw new IllegalArgumentException("Wrong dimension "+i+" (want "+dim+"): "+line.substring(0, sp));
+		return i==v.length? v : Arrays.copyOf(v, i);
+	}
+
+	/**
+	 * Unsigned byte order
+	 */
+	static int compare(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for(int i=0; i<n; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0) return c;
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * Compare word i to w
+	 */
+	private int compare(int i, byte[] w) {
+		int off = offsets[i];
+		int len = offsets[i+1] - off;
+		int n = Math.min(len, w.length);
+		for(int j=0; j<n; j++) {
+			int c = (vocab.get(off + j) & 0xFF) - (w[j] & 0xFF);
+			if (c != 0) return c;
+		}
+		return len - w.length;
+	}
+
+	/**
+	 * @param word Must already be canonical, if a filter was used in {@link #convert(Iterable, Function, File)}
+	 * @return index, or -1
+	 */
+	public int indexOf(String word) {
+		byte[] w = word.getBytes(StandardCharsets.UTF_8);
+		int lo = 0, hi = size - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(mid, w);
+			if (c < 0) lo = mid + 1;
+			else if (c > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	public String getWord(int i) {
+		int off = offsets[i];
+		byte[] w = new byte[offsets[i+1] - off];
+		for(int j=0; j<w.length; j++) w[j] = vocab.get(off + j);
+		return new String(w, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a read-only view (no copying), or null
+	 */
+	public Vector getVector(String word) {
+		int i = indexOf(word);
+		return i == -1? null : getVector(i);
+	}
+
+	public Vector getVector(int i) {
+		if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i+" of "+size);
+		return new RowVector(i);
+	}
+
+	/**
+	 * Batch lookup.
+	 * @return vectors in the same order as words, with null for unknown words
+	 */
+	public List<Vector> getVectors(List<String> words) {
+		List<Vector> vs = new ArrayList(words.size());
+		for (String w : words) {
+			vs.add(getVector(w));
+		}
+		return vs;
+	}
+
+	float get(long i) {
+		if (vectors.length == 1) return vectors[0].get((int) i);
+		int p = (int) (i / pageSize);
+		return vectors[p].get((int) (i - p*pageSize));
+	}
+
+	/**
+	 * @return the k words with the highest cosine similarity to v, best first.
+	 */
+	public List<Pair2<String, Double>> getMostSimilar(Vector v, int k) {
+		return getMostSimilar2(v, k, -1);
+	}
+
+	/**
+	 * @return the k words (not including word itself) with the highest cosine similarity to word, best first.
+	 * Empty if word is unknown.
+	 */
+	public List<Pair2<String, Double>> getMostSimilar(String word, int k) {
+		int i = indexOf(word);
+		if (i == -1) return new ArrayList();
+		return getMostSimilar2(getVector(i), k, i);
+	}
+
+	private List<Pair2<String, Double>> getMostSimilar2(Vector v, int k, int skip) {
+		assert v.size() == dim : v.size()+" vs "+dim;
+		if (k <= 0) return new ArrayList();
+		float[] q = new float[dim];
+		double qn = 0;
+		for(int d=0; d<dim; d++) {
+			q[d] = (float) v.get(d);
+			qn += q[d]*q[d];
+		}
+		qn = Math.sqrt(qn);
+		// worst first
+		PriorityQueue<Pair2<Integer, Double>> best = new PriorityQueue<>(k+1, (a, b) -> Double.compare(a.second, b.second));
+		for(int i=0; i<size; i++) {
+			if (i == skip) continue;
+			float ni = norms.get(i);
+			if (ni == 0) continue;
+			long row = (long) i*dim;
+			double dot = 0;
+			int p = vectors.length==1? 0 : (int) (row / pageSize);
+			FloatBuffer page = vectors[p];
+			int r = (int) (row - p*pageSize);
+			if (r + dim <= page.limit()) {
+				for(int d=0; d<dim; d++) dot += q[d]*page.get(r + d);
+			} else {
+				// the row straddles two pages (rare)
+				for(int d=0; d<dim; d++) dot += q[d]*get(row + d);
+			}
+			double cos = dot / (qn * ni);
+			if (best.size() < k) {
+				best.add(new Pair2(i, cos));
+			} else if (cos > best.peek().second) {
+				best.poll();
+				best.add(new Pair2(i, cos));
+			}
+		}
+		List<Pair2<String, Double>> out = new ArrayList(best.size());
+		while( ! best.isEmpty()) {
+			Pair2<Integer, Double> p = best.poll();
+			out.add(new Pair2(getWord(p.first), p.second));
+		}
+		Collections.reverse(out);
+		return out;
+	}
+
+	/**
+	 * @return a read-only view of the vocabulary
+	 */
+	public Set<String> getWords() {
+		return new AbstractSet<String>() {
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof String && indexOf((String) o) != -1;
+			}
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					int i;
+					@Override
+					public boolean hasNext() {
+						return i < size;
+					}
+					@Override
+					public String next() {
+						return getWord(i++);
+					}
+				};
+			}
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getDim() {
+		return dim;
+	}
+
+	/**
+	 * A read-only view of one row of the matrix
+	 */
+	final class RowVector extends AbstractVector {
+		private static final long serialVersionUID = 1L;
+		final long row;
+
+		RowVector(int i) {
+			super(dim);
+			this.row = (long) i*dim;
+		}
+
+		@Override
+		public double get(int index) {
+			check(index);
+			return WordVectorStore.this.get(row + index);
+		}
+
+		@Override
+		public void set(int index, double value) {
+			throw new UnsupportedOperationException("Read-only word vector");
+		}
+
+		/**
+		 * @return a modifiable copy
+		 */
+		@Override
+		public DenseVector copy() {
+			double[] xs = new double[size];
+			for(int d=0; d<size; d++) xs[d] = WordVectorStore.this.get(row + d);
+			return new DenseVector(xs, false);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "WordVectorStore[" + size + " words, dim=" + dim + " " + ma + "]";
+	}
+}
@@ -42,7 +42,7 @@ public class GloveWordVectorsTest {
 		for(String word : new String[]{"frog", "love"}) {
 			Vector frog = gwv.getVector(word);
 			TopNList<String> best = new TopNList<>(10);
-			for(String w : gwv.word2vec.keySet()) {
+			for(String w : gwv.getWords()) {
 				if (stop.contains(w)) {
 					continue;
 				}
@@ -0,0 +1,229 @@
+package com.winterwell.nlp.vectornlp;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.depot.MMapArtifact;
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
+
+import no.uib.cipr.matrix.Vector;
+
+public class WordVectorStoreTest {
+
+	static List<String> lines() {
+		return Arrays.asList(
+				"frog 1 0 0.5",
+				"toad 0.9 0.1 0.5",
+				"love -1 1 0",
+				"Frog 1 0 0.5",
+				"café 0 0 1",
+				"zebra 0 0 0",
+				"big -0.5 2 0"
+				);
+	}
+
+	@Test
+	public void testConvertAndOpen() throws Exception {
+		File f = File.createTempFile("wvs", ".bin");
+		try {
+			int n = WordVectorStore.convert(lines(), w -> w.toLowerCase(), f);
+			assert n == 6 : n; // Frog = frog
+			WordVectorStore store = WordVectorStore.open(f);
+			assert store.size() == 6;
+			assert store.getDim() == 3;
+			Vector toad = store.getVector("toad");
+			assert toad.get(0) == 0.9f && toad.get(2) == 0.5 : toad;
+			assert store.getVector("café").get(2) == 1;
+			assert store.getVector("nope") == null;
+			assert store.getVector("") == null;
+			// sorted vocab
+			List<String> words = new ArrayList(store.getWords());
+			List<String> sorted = new ArrayList(words);
+			sorted.sort(null);
+			assert words.equals(sorted) : words;
+			assert store.getWords().contains("zebra");
+			assert ! store.getWords().contains("Frog");
+			// batch
+			List<Vector> vs = store.getVectors(Arrays.asList("love", "nope", "big"));
+			assert vs.get(0).get(1) == 1 && vs.get(1) == null && vs.get(2).get(1) == 2;
+		} finally {
+			FileUtils.delete(f);
+		}
+	}
+
+	@Test
+	public void testReadOnly() throws Exception {
+		File f = File.createTempFile("wvs", ".bin");
+		try {
+			WordVectorStore.convert(lines(), w -> w, f);
+			WordVectorStore store = WordVectorStore.open(f);
+			Vector frog = store.getVector("frog");
+			try {
+				frog.set(0, 7);
+				assert false;
+			} catch(UnsupportedOperationException ex) {
+				// good
+			}
+			Vector copy = frog.copy();
+			copy.set(0, 7);
+			assert store.getVector("frog").get(0) == 1;
+			assert frog.dot(copy) == 7 + 0.25 : frog.dot(copy);
+		} finally {
+			FileUtils.delete(f);
+		}
+	}
+
+	@Test
+	public void testMostSimilar() throws Exception {
+		File f = File.createTempFile("wvs", ".bin");
+		try {
+			WordVectorStore.convert(lines(), w -> w.toLowerCase(), f);
+			WordVectorStore store = WordVectorStore.open(f);
+			List<Pair2<String, Double>> sim = store.getMostSimilar("frog", 2);
+			assert sim.size() == 2 : sim;
+			assert sim.get(0).first.equals("toad") : sim;
+			assert sim.get(0).second > sim.get(1).second : sim;
+			// zero vectors are skipped, and the query word too
+			sim = store.getMostSimilar("frog", 10);
+			assert sim.size() == 4 : sim;
+			assert store.getMostSimilar("nope", 3).isEmpty();
+			// k=0 is not an error
+			assert store.getMostSimilar("frog", 0).isEmpty();
+			assert store.getMostSimilar(store.getVector("frog"), 0).isEmpty();
+		} finally {
+			FileUtils.delete(f);
+		}
+	}
+
+	/**
+	 * Files with a vectors column over 1gb are mapped in several pages. Use tiny pages to test that here.
+	 */
+	@Test
+	public void testPaged() throws Exception {
+		File f = File.createTempFile("wvs", ".bin");
+		// MMapArtifact.PAGE is package-private
+		Field PAGE = MMapArtifact.class.getDeclaredField("PAGE");
+		PAGE.setAccessible(true);
+		int old = PAGE.getInt(null);
+		try {
+			WordVectorStore.convert(lines(), w -> w.toLowerCase(), f);
+			WordVectorStore whole = WordVectorStore.open(f);
+			// 32 bytes = 8 floats per page, so some rows (3 floats) straddle two pages.
+			// The other columns still fit in one page.
+			PAGE.setInt(null, 32);
+			WordVectorStore paged = WordVectorStore.open(f);
+			for (String w : whole.getWords()) {
+				Vector a = whole.getVector(w), b = paged.getVector(w);
+				for(int d=0; d<3; d++) {
+					assert a.get(d) == b.get(d) : w;
+				}
+			}
+			assert paged.getMostSimilar("frog", 10).equals(whole.getMostSimilar("frog", 10)) : paged.getMostSimilar("frog", 10);
+			assert paged.getMostSimilar("frog", 1).get(0).first.equals("toad");
+		} finally {
+			PAGE.setInt(null, old);
+			FileUtils.delete(f);
+		}
+	}
+
+	/**
+	 * Brute-force top-k, as a check -- and a rough timing for a Wikipedia-sized vocab.
+	 */
+	@Test
+	public void testMostSimilarBig() throws Exception {
+		File f = File.createTempFile("wvs", ".bin");
+		try {
+			Random r = new Random(1);
+			int n = 50000, dim = 50;
+			List<String> lines = new ArrayList(n);
+			for(int i=0; i<n; i++) {
+				StringBuilder sb = new StringBuilder("w"+i);
+				for(int d=0; d<dim; d++) sb.append(' ').append(r.nextGaussian());
+				lines.add(sb.toString());
+			}
+			long t = System.currentTimeMillis();
+			WordVectorStore.convert(lines, w -> w, f);
+			long tConvert = System.currentTimeMillis() - t;
+			t = System.currentTimeMillis();
+			WordVectorStore store = WordVectorStore.open(f);
+			long tOpen = System.currentTimeMillis() - t;
+			Vector q = store.getVector("w123");
+			t = System.currentTimeMillis();
+			List<Pair2<String, Double>> sim = store.getMostSimilar(q, 5);
+			long tSearch = System.currentTimeMillis() - t;
+			Printer.out("convert "+tConvert+"ms open "+tOpen+"ms top-5 "+tSearch+"ms: "+sim);
+			assert sim.get(0).first.equals("w123") : sim;
+			assert Math.abs(sim.get(0).second - 1) < 0.0001;
+			// check vs brute force in double
+			double best = -2; String bestW = null;
+			int qi = store.indexOf("w123");
+			for(int i=0; i<n; i++) {
+				if (i==qi) continue;
+				Vector v = store.getVector(i);
+				double cos = q.dot(v) / (q.norm(Vector.Norm.Two) * v.norm(Vector.Norm.Two));
+				if (cos > best) { best = cos; bestW = store.getWord(i); }
+			}
+			assert sim.get(1).first.equals(bestW) : sim+" vs "+bestW;
+			assert tOpen < 1000 : tOpen;
+		} finally {
+			FileUtils.delete(f);
+		}
+	}
+
+	@Test
+	public void testGloveWordVectorsFromFile() throws Exception {
+		File dir = FileUtils.createTempDir();
+		try {
+			File txt = new File(dir, "glove.test.3d.txt");
+			FileUtils.write(txt, String.join("\n", lines()));
+			GloveWordVectors gwv = new GloveWordVectors(txt);
+			assert gwv.getVector("Toad").get(0) == 0.9f;
+			assert gwv.getBinFile().exists();
+			assert gwv.getWords().size() == 6;
+			assert gwv.getMostSimilar("frog", 1).get(0).first.equals("toad");
+			assert gwv.getVectors(Arrays.asList("LOVE", "x")).get(0).get(0) == -1;
+			// 2nd time: just maps the binary file
+			txt.delete();
+			GloveWordVectors gwv2 = new GloveWordVectors(txt);
+			assert gwv2.getWords().size() == 6;
+		} finally {
+			FileUtils.deleteDir(dir);
+		}
+	}
+
+	@Test
+	public void testGloveWordVectorsDictionaries() throws Exception {
+		File dir = FileUtils.createTempDir();
+		try {
+			File txt = new File(dir, "glove.test.3d.txt");
+			FileUtils.write(txt, String.join("\n", lines()));
+			GloveWordVectors animals = new GloveWordVectors(txt)
+					.setDictionary(new HashSet(Arrays.asList("frog", "toad", "zebra")));
+			assert animals.getWords().size() == 3 : animals.getWords();
+			// a different filter must not reuse the animals' binary file
+			GloveWordVectors love = new GloveWordVectors(txt)
+					.setDictionary(new HashSet(Arrays.asList("love")));
+			assert ! love.getBinFile().equals(animals.getBinFile());
+			assert love.getWords().size() == 1 : love.getWords();
+			assert love.getVector("frog") == null;
+			// the same filter does
+			GloveWordVectors animals2 = new GloveWordVectors(txt)
+					.setDictionary(new HashSet(Arrays.asList("zebra", "toad", "frog")));
+			assert animals2.getBinFile().equals(animals.getBinFile());
+			// no filter
+			GloveWordVectors all = new GloveWordVectors(txt);
+			assert all.getWords().size() == 6;
+		} finally {
+			FileUtils.deleteDir(dir);
+		}
+	}
+}
@@ -12,8 +12,10 @@ import com.winterwell.utils.io.DBOptions;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.io.Option;
 import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.KQueueFullPolicy;
 import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
 import com.winterwell.web.app.ISiteConfig;
 
 /**
@@ -75,6 +77,15 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 	
 	@Option
 	public Class storageClass;
+
+	@Option(description="SegmentStorage: where to keep the segment files. Default: datalog-segments in the working directory")
+	public File segmentDir;
+
+	@Option(description="SegmentStorage: merge a period's segments once it has this many")
+	public int segmentCompactAt = 8;
+
+	@Option(description="SQLStorage: use Postgres COPY (instead of batched inserts) for saves with at least this many rows. 0 for never")
+	public int sqlCopyAt = 5000;
 	
 
 	/**
@@ -104,6 +115,54 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 	@Option
 	public boolean noCallbacks;
 
+	@Option(description="Callbacks: max concurrent POSTs per callback url")
+	public int callbackParallelism = 4;
+
+	@Option(description="Callbacks: max events per POST, for callbacks which accept batches")
+	public int callbackMaxBatch = 100;
+
+	@Option(description="Callbacks: retries (with exponential backoff) before an event is given up on")
+	public int callbackMaxRetries = 5;
+
+	@Option(description="ES storage: max events per _bulk request")
+	public int bulkSize = 1000;
+	
+	@Option(description="ES storage: max time an event waits before its batch is sent")
+	public Dt bulkMaxAge = new Dt(5, TUnit.SECOND);
+	
+	@Option(description="ES storage: max concurrent _bulk requests. Beyond this, saving blocks until ES catches up.")
+	public int bulkMaxInFlight = 4;
+	
+	@Option(description="ES storage: how many times to retry an event which ES rejected (429) or errored on (5xx)")
+	public int bulkMaxRetries = 3;
+
+	@Option(description="ES storage: dataspaces to keep hourly and daily rollups for, so DataServlet can answer breakdowns without scanning raw events. Unset for off.")
+	public List<String> rollups;
+
+	@Option(description="Rollups: numeric properties to sum (count is always summed). Rollups break down by evt and the longterms properties.")
+	public List<String> rollupSums = Arrays.asList("amount", "dntn");
+
+	@Option(description="Rollups: how often to write them to ES")
+	public Dt rollupFlush = TUnit.MINUTE.dt;
+
+	@Option(description="Rollups: when they were switched on -- earlier data is read from raw events. Default: when this server started.")
+	public Time rollupSince;
+
+	@Option(description="If true, /lg replies at once, and queues the event for worker threads to parse, screen and store.")
+	public boolean lgAsync;
+	
+	@Option(description="Async /lg: max events waiting in the queue")
+	public int lgQueueSize = 10000;
+	
+	@Option(description="Async /lg: number of worker threads")
+	public int lgWorkers = 4;
+	
+	@Option(description="Async /lg: what to do when the queue is full: DROP, BLOCK (for up to lgBlockTime), or CALLER_RUNS")
+	public KQueueFullPolicy lgOverloadPolicy = KQueueFullPolicy.DROP;
+	
+	@Option(description="Async /lg: with the BLOCK policy, how long to wait for queue space before dropping")
+	public Dt lgBlockTime = new Dt(100, TUnit.MILLISECOND);
+
 	
 	@Option(description="Switch off logging of system stats such as mem_free, cpu_java, etc")
 	public boolean noSystemStats;
@@ -162,7 +162,8 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 	@Deprecated // When we simplify Desc, this will likely go.
 	public static enum KSerialiser {
 		JAVA, 
-		/** The default, ie null = XStream */ XSTREAM
+		/** The default, ie null = XStream */ XSTREAM,
+		/** Compact binary, see BinaryCodec in the depot project */ BINARY
 	}
 
 	/**
@@ -429,6 +430,8 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 		// save format
 		if (ser == KSerialiser.JAVA)
 			sb.append(".ser");
+		if (ser == KSerialiser.BINARY)
+			sb.append(".bin");
 		if (gzip)
 			sb.append(".gz");
 		id = sb.toString();		
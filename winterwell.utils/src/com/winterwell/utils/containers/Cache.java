@@ -1,32 +1,40 @@
 package com.winterwell.utils.containers;
 
-import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.winterwell.datalog.DataLog;
-import com.winterwell.utils.IFilter;
-import com.winterwell.utils.IFn;
 
 /**
- * A thread-safe in-memory cache which keeps the most recently used values.
+ * A thread-safe in-memory cache which keeps the recently used values.
  * <p>
  * This uses hard-keys & soft-values (so keys should ideally be small, but
  * values may be large).
  * <p>
- * Note: This is mostly a convenience wrapper for using {@link LinkedHashMap}
- * with synchronized + Stat counters.
- * 
- * TODO remove persistence?? Add a remove listener framework instead. TODO use
- * reference queues to clean out those nulls
- * 
+ * Eviction is CLOCK (aka second-chance), which approximates LRU: entries sit in a FIFO ring,
+ * get() sets a "used" flag, and the eviction hand gives used entries another lap instead of dropping them.
+ * The entries live in a {@link ConcurrentHashMap}, so get() never takes a lock. put() only
+ * takes a lock when the cache is over capacity and something must be evicted.
+ * (This replaced a synchronized access-ordered LinkedHashMap, where every get() fought over one lock.)
+ * <p>
+ * Hit / miss / eviction counts are kept -- see {@link #getHits()} etc.
+ * <p>
+ * Null keys are not supported.
+ *
+ * TODO use reference queues to clean out those nulls
+ *
  * @author daniel
  * @testedby CacheTest
  * @param <Key>
@@ -34,15 +42,25 @@ import com.winterwell.utils.IFn;
  */
 public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 
-	/**
-	 * Extract the referent
-	 */
-	private static final IFn<Reference, Object> GET = new IFn<Reference, Object>() {
-		@Override
-		public Object apply(Reference value) {
-			return value == null ? null : value.get();
+	private static final class Node<Key, Value> {
+		final Key key;
+		final SoftReference<Value> ref;
+		/**
+		 * Set by get(), cleared by the eviction hand
+		 */
+		volatile boolean used;
+		/**
+		 * Removed or replaced -- the eviction hand skips these
+		 */
+		volatile boolean dead;
+
+		Node(Key key, Value value) {
+			this.key = key;
+			this.ref = new SoftReference(value);
 		}
-	};
+	}
+
+	private final int capacity;
 
 	/**
 	 * We use hard-keys, mainly because weak/soft keys use === instead of
@@ -50,43 +68,38 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 * <p>
 	 * Soft values means the cache can drop values when memory is squeezed (this
 	 * is on top of dropping key+value when at capacity).
-	 * <p>
-	 * Type: synchronized-wrapped LinkedHashMap
 	 */
-	private final Map<Key, SoftReference<Value>> backing;
+	private final ConcurrentHashMap<Key, Node<Key, Value>> backing;
+
+	/**
+	 * The CLOCK ring, oldest first. Can hold dead nodes, which get cleared out lazily.
+	 */
+	private final ConcurrentLinkedQueue<Node<Key, Value>> ring = new ConcurrentLinkedQueue();
+
+	/**
+	 * Roughly how many dead nodes are in the ring
+	 */
+	private final AtomicInteger deadCount = new AtomicInteger();
+
+	/**
+	 * Only held by the eviction hand
+	 */
+	private final ReentrantLock evictLock = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
 
 	/**
 	 * Create a cache with the given capacity
-	 * 
+	 *
 	 * @param capacity
 	 */
 	public Cache(final int capacity) {
 		assert capacity > 0;
-		// Hm: could we use ConcurrentHashMap somehow -- wouldn't it be faster?
+		this.capacity = capacity;
 		// 0.75 is the default load factor
-		LinkedHashMap<Key, SoftReference<Value>> map = new LinkedHashMap<Key, SoftReference<Value>>(
-				capacity + 1, .75F, true) {
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			public boolean removeEldestEntry(
-					Map.Entry<Key, SoftReference<Value>> eldest) {
-				if (size() <= capacity)
-					return false;
-				SoftReference<Value> val = eldest.getValue();
-				// already been garbage collected?				
-				if (val == null) return true;
-				Value v = val.get();
-				if (v == null) return true;				
-				boolean ok = preRemovalCheck(eldest.getKey(), v);
-				// clean up?
-				if (ok) {
-					onRemove(eldest.getKey(), v);
-				}
-				return ok;
-			}
-		};
-		backing = Collections.synchronizedMap(map);
+		backing = new ConcurrentHashMap<Key, Node<Key, Value>>(Math.min(capacity + 1, 1024*1024));
 	}
 
 	/**
@@ -95,7 +108,7 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 * @param value Could be null
 	 */
 	protected void onRemove(Key key, Value value) {
-		
+
 	}
 
 	/**
@@ -104,7 +117,7 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 * get(a) = get(b).
 	 * <p>
 	 * This does nothing by default - override this as needed.
-	 * 
+	 *
 	 * @param key
 	 * @return canonical form of key.
 	 */
@@ -117,7 +130,14 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 */
 	@Override
 	public final void clear() {
-		backing.clear();
+		evictLock.lock();
+		try {
+			backing.clear();
+			ring.clear();
+			deadCount.set(0);
+		} finally {
+			evictLock.unlock();
+		}
 	}
 
 	/**
@@ -125,13 +145,15 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 */
 	@Override
 	public Set<java.util.Map.Entry<Key, Value>> entrySet() {
-		final Set<Entry<Key, SoftReference<Value>>> es = backing.entrySet();
+		final Set<Entry<Key, Node<Key, Value>>> es = backing.entrySet();
 		return new AbstractSet<Map.Entry<Key, Value>>() {
 			@Override
 			public Iterator<java.util.Map.Entry<Key, Value>> iterator() {
-				final Iterator<Entry<Key, SoftReference<Value>>> it = es
+				final Iterator<Entry<Key, Node<Key, Value>>> it = es
 						.iterator();
 				return new Iterator<Map.Entry<Key, Value>>() {
+					Node<Key, Value> last;
+
 					@Override
 					public boolean hasNext() {
 						return it.hasNext();
@@ -139,13 +161,15 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 
 					@Override
 					public java.util.Map.Entry<Key, Value> next() {
-						Entry<Key, SoftReference<Value>> n = it.next();
-						return new MapEntry(n.getKey(), n.getValue().get());
+						Entry<Key, Node<Key, Value>> n = it.next();
+						last = n.getValue();
+						return new MapEntry(n.getKey(), last.ref.get());
 					}
 
 					@Override
 					public void remove() {
 						it.remove();
+						markDead(last);
 					}
 				};
 			}
@@ -164,8 +188,9 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 
 	/**
 	 * Switch on (or off) Stat logging.
-	 * 
-	 * @param statTag Stats will be logged under "Cache_hit/statTag", "Cache_miss/statTag" and "Cache_size/statTag" 
+	 *
+	 * @param statTag Stats will be logged under "Cache_hit/statTag", "Cache_miss/statTag",
+	 * "Cache_evict/statTag" and "Cache_size/statTag"
 	 * @return this
 	 */
 	public Cache<Key, Value> setStats(String statTag) {
@@ -183,28 +208,38 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	@Override
 	public Value get(Object key) {
 		Key k = canonical((Key) key);
-		SoftReference<Value> ref = backing.get(k);
-		Value v = ref == null ? null : ref.get();
+		Node<Key, Value> node = backing.get(k);
+		Value v = node == null ? null : node.ref.get();
 		if (v == null) {
+			misses.increment();
 			if (stats != null) {
 				DataLog.count(1, "Cache_miss", stats);
 			}
 			return null;
-		} else {
-			if (stats != null) {
-				DataLog.count(1, "Cache_hit", stats);
-			}
+		}
+		// only write if we have to, to keep the cache line clean
+		if ( ! node.used) {
+			node.used = true;
+		}
+		hits.increment();
+		if (stats != null) {
+			DataLog.count(1, "Cache_hit", stats);
 		}
 		return v;
 	}
 
 	/**
-	 * Provides direct access to the backing map. For low-level convenience
+	 * Provides access to the backing map. For low-level convenience
 	 * only.
+	 * @return a snapshot copy (edits will not affect the cache)
 	 */
 	@Deprecated
 	public Map<Key, SoftReference<Value>> getBacking() {
-		return backing;
+		HashMap<Key, SoftReference<Value>> map = new HashMap(backing.size());
+		for (Entry<Key, Node<Key, Value>> e : backing.entrySet()) {
+			map.put(e.getKey(), e.getValue().ref);
+		}
+		return map;
 	}
 
 	/**
@@ -227,11 +262,11 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 * <p>
 	 * NB2: Returning false will lead to the cache growing beyond its prescribed
 	 * capacity!
-	 * 
+	 *
 	 * @param key
 	 * @param value
 	 * @return true if the removal should go ahead.
-	 * 
+	 *
 	 */
 	protected boolean preRemovalCheck(Key key, Value value) {
 		return true;
@@ -239,13 +274,80 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 
 	@Override
 	public final Value put(Key k, Value v) {
-		SoftReference<Value> old = backing.put(canonical(k), new SoftReference(
-				v));
-		// maybePersist();
+		Key ck = canonical(k);
+		Node<Key, Value> node = new Node(ck, v);
+		Node<Key, Value> old = backing.put(ck, node);
+		ring.add(node);
+		if (old != null) {
+			markDead(old);
+		}
+		// over capacity (or lots of junk in the ring)?
+		if (backing.size() > capacity || deadCount.get() > capacity) {
+			evict();
+		}
 		if (stats != null) {
 			DataLog.mean(size(), "Cache_size", stats);
 		}
-		return old == null ? null : old.get();
+		return old == null ? null : old.ref.get();
+	}
+
+	private void markDead(Node<Key, Value> node) {
+		if (node == null || node.dead) return;
+		node.dead = true;
+		deadCount.incrementAndGet();
+	}
+
+	/**
+	 * Run the CLOCK hand until we're back within capacity.
+	 */
+	private void evict() {
+		evictLock.lock();
+		try {
+			// preRemovalCheck can refuse -- so don't go round forever
+			// NB: ring.size() is O(n), so estimate
+			int budget = 2 * (backing.size() + deadCount.get()) + 16;
+			while(backing.size() > capacity && budget-- > 0) {
+				Node<Key, Value> node = ring.poll();
+				if (node == null) break;
+				if (node.dead) {
+					deadCount.updateAndGet(x -> x > 0? x - 1 : 0);
+					continue;
+				}
+				Value v = node.ref.get();
+				// already been garbage collected? Then it can go without ceremony
+				if (v == null) {
+					if (backing.remove(node.key, node)) {
+						node.dead = true;
+					}
+					continue;
+				}
+				// second chance?
+				if (node.used) {
+					node.used = false;
+					ring.add(node);
+					continue;
+				}
+				if ( ! preRemovalCheck(node.key, v)) {
+					ring.add(node);
+					continue;
+				}
+				if (backing.remove(node.key, node)) {
+					node.dead = true;
+					evictions.increment();
+					if (stats != null) {
+						DataLog.count(1, "Cache_evict", stats);
+					}
+					onRemove(node.key, v);
+				}
+			}
+			// clear out junk
+			if (deadCount.get() > capacity) {
+				ring.removeIf(n -> n.dead);
+				deadCount.set(0);
+			}
+		} finally {
+			evictLock.unlock();
+		}
 	}
 
 	/**
@@ -255,8 +357,9 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	@Override
 	public final Value remove(Object key) {
 		Key k = canonical((Key) key);
-		SoftReference<Value> old = backing.remove(k);
-		Value v = old==null? null : old.get();
+		Node<Key, Value> old = backing.remove(k);
+		markDead(old);
+		Value v = old==null? null : old.ref.get();
 		onRemove(k, v);
 		return v;
 	}
@@ -274,9 +377,32 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 */
 	@Override
 	public Collection<Value> values() {
-		Collection<SoftReference<Value>> values = backing.values();
-		List<Object> vals = Containers.apply(values, GET);
-		return (Collection) Containers.filter(vals, IFilter.NOT_NULL);
+		List<Value> vals = new ArrayList(backing.size());
+		for (Node<Key, Value> node : backing.values()) {
+			Value v = node.ref.get();
+			if (v != null) vals.add(v);
+		}
+		return vals;
+	}
+
+	/**
+	 * @return number of get() calls which found a value, since creation
+	 */
+	public long getHits() {
+		return hits.sum();
 	}
 
+	/**
+	 * @return number of get() calls which did not find a value, since creation
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of entries dropped for capacity, since creation
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
 }
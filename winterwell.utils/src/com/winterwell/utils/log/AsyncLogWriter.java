@@ -0,0 +1,323 @@
+package com.winterwell.utils.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.threads.KQueueFullPolicy;
+
+/**
+ * The async mode for {@link LogFile}: reporting threads put lines on a lock-free queue,
+ * and a single writer thread drains it. The writer keeps the file open, writes in batches,
+ * and fsyncs every {@link LogConfig#fileFsyncInterval} -- or at once if the batch holds a SEVERE report.
+ * Log rotation and the max-size check are done on the writer thread, so they never hold up a reporter.
+ * <p>
+ * The queue is bounded by {@link LogConfig#fileQueueSize}. When it is full, see {@link LogConfig#fileQueueFullPolicy}.
+ * SEVERE reports always wait (up to {@link LogConfig#fileBlockTime}) rather than being dropped.
+ * <p>
+ * Counters (summed over all async LogFiles) are available via {@link Log#getAsyncFileStats()}.
+ *
+ * @author daniel
+ * @testedby  LogFileTest}
+ */
+final class AsyncLogWriter implements Runnable {
+
+	/**
+	 * With {@link KQueueFullPolicy#SAMPLE}, start sampling when the queue is this full
+	 */
+	private static final double SAMPLE_FROM = 0.75;
+	/**
+	 * With {@link KQueueFullPolicy#SAMPLE}, keep 1 in N non-severe lines once sampling
+	 */
+	private static final int SAMPLE_EVERY = 10;
+	/**
+	 * Write out when a batch reaches this many chars
+	 */
+	private static final int BATCH_CHARS = 64 * 1024;
+	/**
+	 * How long the writer naps when there's nothing to do
+	 */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	static final AtomicLong queued = new AtomicLong();
+	static final AtomicLong written = new AtomicLong();
+	static final AtomicLong dropped = new AtomicLong();
+	static final AtomicLong sampledOut = new AtomicLong();
+	static final AtomicLong blocked = new AtomicLong();
+	static final AtomicLong batches = new AtomicLong();
+	static final AtomicLong fsyncs = new AtomicLong();
+
+	static final class Item {
+		final String line;
+		final Time time;
+		final boolean severe;
+
+		Item(String line, Time time, boolean severe) {
+			this.line = line;
+			this.time = time;
+			this.severe = severe;
+		}
+	}
+
+	private final LogFile logFile;
+	private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue();
+	/**
+	 * ConcurrentLinkedQueue.size() is O(n), so we count
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	private final int capacity;
+	private final KQueueFullPolicy policy;
+	private final long blockNanos;
+	private final long fsyncNanos;
+	private final AtomicInteger sampleCnt = new AtomicInteger();
+
+	/**
+	 * Items accepted onto the queue -- used by {@link #flush(long)}
+	 */
+	private final AtomicLong inSeq = new AtomicLong();
+	/**
+	 * Items handled by the writer
+	 */
+	private volatile long outSeq;
+	/**
+	 * Items written and fsynced
+	 */
+	private volatile long syncedSeq;
+
+	private volatile boolean syncRequested;
+	private volatile boolean running = true;
+	private final Thread thread;
+
+	// writer-thread only
+	private FileChannel channel;
+	private long fileSize;
+	private long lastSync = System.nanoTime();
+	private boolean dirty;
+	private final StringBuilder batch = new StringBuilder();
+
+	AsyncLogWriter(LogFile logFile, LogConfig lc) {
+		this.logFile = logFile;
+		capacity = Math.max(1, lc.fileQueueSize);
+		policy = lc.fileQueueFullPolicy==null? KQueueFullPolicy.BLOCK : lc.fileQueueFullPolicy;
+		blockNanos = lc.fileBlockTime==null? 0 : TimeUnit.MILLISECONDS.toNanos(lc.fileBlockTime.getMillisecs());
+		fsyncNanos = lc.fileFsyncInterval==null? 0 : TimeUnit.MILLISECONDS.toNanos(lc.fileFsyncInterval.getMillisecs());
+		thread = new Thread(this, "LogFile.writer."+logFile.getFile().getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Called by reporting threads. Never takes a lock. Only waits if the queue is full and the policy says so.
+	 */
+	void offer(String line, Time time, boolean severe) {
+		if ( ! running) {
+			dropped.incrementAndGet();
+			return;
+		}
+		// sample?
+		if (policy == KQueueFullPolicy.SAMPLE && ! severe && size.get() >= capacity * SAMPLE_FROM) {
+			if (sampleCnt.incrementAndGet() % SAMPLE_EVERY != 0) {
+				sampledOut.incrementAndGet();
+				return;
+			}
+		}
+		if ( ! reserve(severe)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.add(new Item(line, time, severe));
+		inSeq.incrementAndGet();
+		queued.incrementAndGet();
+		if (severe) {
+			syncRequested = true;
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * @return true if there's room on the queue for one more
+	 */
+	private boolean reserve(boolean severe) {
+		if (size.incrementAndGet() <= capacity) {
+			return true;
+		}
+		size.decrementAndGet();
+		// wait? (CALLER_RUNS is treated as BLOCK: only the writer thread touches the file)
+		if ( ! severe && (policy == KQueueFullPolicy.DROP || policy == KQueueFullPolicy.SAMPLE)) {
+			return false;
+		}
+		blocked.incrementAndGet();
+		LockSupport.unpark(thread);
+		long end = System.nanoTime() + blockNanos;
+		while(System.nanoTime() < end) {
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+			if (size.incrementAndGet() <= capacity) {
+				return true;
+			}
+			size.decrementAndGet();
+		}
+		return false;
+	}
+
+	int getQueueSize() {
+		return size.get();
+	}
+
+	@Override
+	public void run() {
+		while(running || ! queue.isEmpty()) {
+			try {
+				Item item = queue.poll();
+				if (item == null) {
+					if (syncRequested || (dirty && System.nanoTime() - lastSync >= fsyncNanos)) {
+						sync();
+					}
+					LockSupport.parkNanos(this, IDLE_NANOS);
+					continue;
+				}
+				run2_batch(item);
+			} catch(Throwable ex) {
+				// Can't use Log here -- it would come back to us
+				ex.printStackTrace();
+				closeChannel();
+				LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+			}
+		}
+		try {
+			sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		closeChannel();
+	}
+
+	private void run2_batch(Item item) throws IOException {
+		int n = 0;
+		boolean severe = false;
+		if (channel != null) {
+			// NB: the file may have been cleared under us
+			fileSize = channel.size();
+		}
+		try {
+			while(item != null) {
+				n++;
+				severe |= item.severe;
+				// rotate? Write what we have to the old file first
+				if (logFile.nextRotation != null && item.time != null && logFile.nextRotation.isBefore(item.time)) {
+					write();
+					sync();
+					closeChannel();
+					logFile.rotateLogFiles();
+				}
+				// too big?
+				if (logFile.fileMaxSize > 0 && fileSize() + batch.length() > logFile.fileMaxSize) {
+					if ( ! logFile.criedForHelp) {
+						batch.append(logFile.tooBigLine(fileSize() + batch.length(), item.line));
+						logFile.criedForHelp = true;
+					}
+				} else {
+					batch.append(item.line);
+					logFile.criedForHelp = false;
+				}
+				if (batch.length() >= BATCH_CHARS) break;
+				item = queue.poll();
+			}
+			write();
+		} finally {
+			size.addAndGet(-n);
+			written.addAndGet(n);
+			outSeq += n;
+		}
+		if (severe || syncRequested || System.nanoTime() - lastSync >= fsyncNanos) {
+			sync();
+		}
+	}
+
+	private long fileSize() throws IOException {
+		if (channel == null) {
+			File f = logFile.getFile();
+			return f.length();
+		}
+		return fileSize;
+	}
+
+	private void write() throws IOException {
+		if (batch.length() == 0) return;
+		if (channel == null) {
+			File f = logFile.getFile();
+			channel = new FileOutputStream(f, true).getChannel();
+			fileSize = channel.size();
+		}
+		ByteBuffer buf = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+		batch.setLength(0);
+		while(buf.hasRemaining()) {
+			fileSize += channel.write(buf);
+		}
+		dirty = true;
+		batches.incrementAndGet();
+	}
+
+	private void sync() throws IOException {
+		syncRequested = false;
+		long seq = outSeq;
+		if (dirty && channel != null) {
+			channel.force(false);
+			dirty = false;
+			lastSync = System.nanoTime();
+			fsyncs.incrementAndGet();
+		}
+		syncedSeq = seq;
+	}
+
+	private void closeChannel() {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+		dirty = false;
+	}
+
+	/**
+	 * Wait until everything queued so far is written and fsynced.
+	 * @param maxMsecs Give up after this long
+	 */
+	void flush(long maxMsecs) {
+		long target = inSeq.get();
+		long end = System.currentTimeMillis() + maxMsecs;
+		syncRequested = true;
+		while(syncedSeq < target && thread.isAlive() && System.currentTimeMillis() < end) {
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Stop taking lines, write out what's queued, and close the file.
+	 */
+	void close() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			// oh well
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncLogWriter[" + logFile.getFile() + ", queue=" + size + ", policy=" + policy + "]";
+	}
+}
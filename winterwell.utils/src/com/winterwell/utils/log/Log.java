@@ -6,9 +6,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
-import com.winterwell.datalog.Rate;
 import com.winterwell.utils.Environment;
 import com.winterwell.utils.IFilter;
 import com.winterwell.utils.IFn;
@@ -18,12 +19,8 @@ import com.winterwell.utils.ReflectionUtils;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.ArrayMap;
-import com.winterwell.utils.containers.Cache;
 import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.io.ConfigFactory;
-import com.winterwell.utils.time.RateCounter;
-import com.winterwell.utils.time.TUnit;
-import com.winterwell.utils.time.Time;
 
 /**
  * Yet another logging system. We use Android LogCat style commands, e.g.
@@ -67,6 +64,12 @@ public class Log {
 
 	private static Map<String,Level> sensitiveTags = new HashMap();
 
+	/**
+	 * Per-tag decisions: min-level, exclude, downgrade, throttle. Thrown away when the config changes.
+	 * NB: declared before the static init block, which uses it.
+	 */
+	private static volatile ConcurrentHashMap<String, LogTagInfo> tagInfo = new ConcurrentHashMap();
+
 	private static ILogListener[] listeners = new ILogListener[0];
 
 	/**
@@ -133,7 +136,7 @@ public class Log {
 	
 	public static void setConfig(LogConfig config) {
 		Log.config = config;
-		sensitiveTags.clear();
+		sensitiveTags = new HashMap();
 		if (config.ignoretags!=null) {
 			for(String tag : config.ignoretags) {
 				setMinLevel(tag, OFF);
@@ -177,7 +180,7 @@ public class Log {
 			};
 		}
 		
-		// throttle cache??
+		clearTagInfo();
 		
 		// all set (let's log that)
 		Log.i("log", "setConfig "+ReflectionUtils.getSomeStack(10));
@@ -243,46 +246,53 @@ public class Log {
 	 * @param error
 	 */
 	static void report(String tag, Object msg, Level error, Throwable ex) {
-		// Ignore?
-		Level minLevel = getMinLevel(tag);
+		// Ignore? (cheap checks first: nothing is formatted until we know we want it)
+		LogTagInfo ti = tag==null? null : getTagInfo(tag);
+		Level minLevel = ti==null || ti.minLevel==null? MIN_LEVEL : ti.minLevel;
 		if (minLevel.intValue() > error.intValue()) {
 			return;
 		}
 		// stochastic (off by default)
 		if (config.keep > 0 && config.keep < 1) {
 			if ( ! Utils.getRandomChoice(config.keep)) return;
-		}		
+		}
 		// null tag? Put in the calling class.method
 		if (tag == null) {
 			StackTraceElement ste = ReflectionUtils.getCaller(Log.class
 					.getName());
 			tag = ' ' + ste.toString(); // add a space from the # to make these
 										// clickable from the Eclipse console
+			ti = getTagInfo(tag);
+		}
+		// exclude by tag?
+		if (ti.excluded) {
+			return;
 		}
 		// throttle?
-		if (throttle(tag)) {
+		if (throttle(ti)) {
 			return; // throttled!
 		}
-		
+		// lazy message?
+		if (msg instanceof Supplier) {
+			msg = ((Supplier) msg).get();
+		}
 		String smsg = Printer.toString(msg);
 		// exclude or downgrade?
-		if (excludeFilter!=null) {
-			// tag or message ??should this be report.toString()
-			if (excludeFilter.accept(tag)) {
-				return;
-			}
-			if (excludeFilter.accept(smsg)) {
-				return;
-			}
-		}		
-		if (downgradeFilter!=null && error.intValue() > Level.INFO.intValue()) {
-			if (downgradeFilter.accept(smsg)) {
-				error = Level.INFO;
-			} else if (downgradeFilter.accept(tag)) {
+		IFilter<String> ef = excludeFilter;
+		if (ef!=null && ef.accept(smsg)) {
+			return;
+		}
+		if (error.intValue() > Level.INFO.intValue()) {
+			if (ti.downgraded) {
 				error = Level.INFO;
+			} else {
+				IFilter<String> df = downgradeFilter;
+				if (df!=null && df.accept(smsg)) {
+					error = Level.INFO;
+				}
 			}
 		}
-		
+
 		// Message
 		String msgText;
 		// Exception? Add in some stack
@@ -290,7 +300,8 @@ public class Log {
 			msgText = Printer.toString((Throwable)msg, true);
 			if (ex==null) ex = (Throwable) msg;
 		} else {
-			msgText = Printer.toString(msg);			
+			// same as smsg -- no need to format it twice
+			msgText = smsg;
 		}
 		// Guard against giant objects getting put into log, which is almost
 		// certainly a careless error
@@ -315,49 +326,51 @@ public class Log {
 			escalate(new WeirdException("Escalating "+msgText));
 		}
 	}
-	
+
 	/**
-	 * 
-	 * @param tag
+	 * Bound the tag cache (e.g. in case of tags made from data)
+	 */
+	private static final int MAX_TAGS = 10000;
+
+	private static LogTagInfo getTagInfo(String tag) {
+		ConcurrentHashMap<String, LogTagInfo> map = tagInfo;
+		LogTagInfo ti = map.get(tag);
+		if (ti != null) return ti;
+		ti = new LogTagInfo(tag, sensitiveTags.get(tag), config, excludeFilter, downgradeFilter);
+		if (map.size() >= MAX_TAGS) {
+			// start afresh
+			ConcurrentHashMap<String, LogTagInfo> map2 = new ConcurrentHashMap();
+			map2.put(tag, ti);
+			tagInfo = map2;
+			return ti;
+		}
+		LogTagInfo old = map.putIfAbsent(tag, ti);
+		return old==null? ti : old;
+	}
+
+	/**
+	 * Call after any config change
+	 */
+	private static void clearTagInfo() {
+		tagInfo = new ConcurrentHashMap();
+	}
+
+	/**
+	 *
+	 * @param ti
 	 * @return true to silently swallow this tag
 	 * This is to protect against log file bloat
 	 */
-	private static boolean throttle(String tag) {
-		if (config==null) return false;
-		if (config.throttleWindow==null) {
-			return false;
-		}
-		Rate throttleAt = config.getThrottleAt(tag);
-		if (throttleAt==null) return false;
-		RateCounter rc = throttle.get(tag);
-		if (rc==null) {
-			rc = new RateCounter(config.throttleWindow);
-			rc.setFirstDtOverride(true);
-			throttle.put(tag, rc);
-			return false;
-		}
-		// shall we?
-		rc.plus(1);
-		if (throttleAt.isGreaterThan(rc.rate())) {
+	private static boolean throttle(LogTagInfo ti) {
+		if ( ! ti.throttle()) {
 			return false;
 		}
 		// first time? Or first time today?
-		Time tat = throttledAt.get(tag);
-		if (tat==null || tat.isBefore(new Time().minus(TUnit.DAY))) {
-			if ( ! "throttle".equals(tag)) {
-				Log.i("throttle", "Throttle (skip) log reports for tag #"+tag+" which is running at "+rc);
-			}
-			throttledAt.put(tag, new Time());
+		if (ti.isFirstThrottle() && ! "throttle".equals(ti.tag)) {
+			Log.i("throttle", "Throttle (skip) log reports for tag #"+ti.tag+" "+ti);
 		}
 		return true;
 	}
-	
-
-	/**
-	 * Throttle frequent messages
-	 */
-	static final Cache<String, RateCounter> throttle = new Cache<>(1000);
-	static final Cache<String, Time> throttledAt = new Cache<>(100);
 
 	@Deprecated
 	public static void report(String tag, Object msg, Level error) {
@@ -422,6 +435,13 @@ public class Log {
 	public static void w(String tag, Object msg) {
 		report(tag, msg, Level.WARNING, null);
 	}
+	
+	/**
+	 * Lazy warning: msg.get() is only called if the report will be logged.
+	 */
+	public static void w(String tag, Supplier<?> msg) {
+		report(tag, msg, Level.WARNING, null);
+	}
 
 	/**
 	 * Add a Log message on error.
@@ -447,6 +467,15 @@ public class Log {
 	public static void i(String tag, Object msg) {
 		report(tag, msg, INFO, null);
 	}
+	
+	/**
+	 * Lazy version: msg.get() is only called if the report will be logged.
+	 * @param tag
+	 * @param msg e.g. <code>() -> "expensive "+thing</code>
+	 */
+	public static void i(String tag, Supplier<?> msg) {
+		report(tag, msg, INFO, null);
+	}
 
 	/**
 	 * A debug report (uses Level.FINE)
@@ -457,6 +486,15 @@ public class Log {
 	public static void d(String tag, Object msg) {
 		report(tag, msg, DEBUG);
 	}
+	
+	/**
+	 * Lazy debug report: msg.get() is only called if the report will be logged.
+	 * @param tag
+	 * @param msg e.g. <code>() -> "expensive "+thing</code>
+	 */
+	public static void d(String tag, Supplier<?> msg) {
+		report(tag, msg, DEBUG, null);
+	}
 
 	/**
 	 * A verbose report (uses Level.FINEST -- which is ignored by default)
@@ -467,6 +505,15 @@ public class Log {
 	public static void v(String tag, Object msg) {
 		report(tag, msg, VERBOSE);
 	}
+	
+	/**
+	 * Lazy verbose report: msg.get() is only called if the report will be logged.
+	 * @param tag
+	 * @param msg e.g. <code>() -> "expensive "+thing</code>
+	 */
+	public static void v(String tag, Supplier<?> msg) {
+		report(tag, msg, VERBOSE, null);
+	}
 
 	public static void v(String tag, Object... items) {
 		report(tag, items, VERBOSE);
@@ -545,11 +592,28 @@ public class Log {
 		HashMap map = new HashMap(sensitiveTags);
 		map.put(tag, level);
 		sensitiveTags = map;
+		clearTagInfo();
 	}
 	
 	public static LogConfig getConfig() {
 		return config;
 	}
+	
+	/**
+	 * @return counters for async {@link LogFile}s (summed over all of them): queued, written, 
+	 * dropped, sampled_out, blocked, batches, fsyncs. All zero unless {@link LogConfig#fileAsync} is used.
+	 */
+	public static Map<String,Long> getAsyncFileStats() {
+		return new ArrayMap(
+				"queued", AsyncLogWriter.queued.get(),
+				"written", AsyncLogWriter.written.get(),
+				"dropped", AsyncLogWriter.dropped.get(),
+				"sampled_out", AsyncLogWriter.sampledOut.get(),
+				"blocked", AsyncLogWriter.blocked.get(),
+				"batches", AsyncLogWriter.batches.get(),
+				"fsyncs", AsyncLogWriter.fsyncs.get()
+				);
+	}
 	public static void w(Object warning) {
 		String cn = ReflectionUtils.getCallingClassSimpleName(1);
 		w(cn, warning);
@@ -8,6 +8,7 @@ import java.util.Map;
 import com.winterwell.datalog.Rate;
 import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.io.Option;
+import com.winterwell.utils.threads.KQueueFullPolicy;
 import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
@@ -78,4 +79,19 @@ public class LogConfig {
 	
 	@Option
 	public Integer fileHistory;
+	
+	@Option(description="If true, LogFiles write via a queue and a background thread, in batches. Faster for busy servers, but a hard crash can lose the last few (non-severe) reports.")
+	public boolean fileAsync;
+	
+	@Option(description="Async LogFile: max reports waiting to be written.")
+	public int fileQueueSize = 10000;
+	
+	@Option(description="Async LogFile: what to do when the queue is full. BLOCK (waits up to fileBlockTime, then drops), DROP, or SAMPLE (keep 1 in 10 once the queue is 3/4 full). SEVERE reports always wait.")
+	public KQueueFullPolicy fileQueueFullPolicy = KQueueFullPolicy.BLOCK;
+	
+	@Option(description="Async LogFile: max time a reporting thread will wait for space in the queue.")
+	public Dt fileBlockTime = new Dt(100, TUnit.MILLISECOND);
+	
+	@Option(description="Async LogFile: how often to fsync. SEVERE reports are fsynced at once.")
+	public Dt fileFsyncInterval = TUnit.SECOND.dt;
 }
@@ -23,6 +23,10 @@ import com.winterwell.utils.web.WebUtils;
  * thing, but it guarantees that the log will not lose the reports leading up to
  * a crash (ie. the important ones).
  * <p>
+ * For busy servers, there is an async mode (see {@link #setAsync(boolean)} or {@link LogConfig#fileAsync}):
+ * reports are queued and written in batches by a background thread, which fsyncs 
+ * on an interval, and at once for SEVERE reports.
+ * <p>
  * LogFile's stay alive until they are closed! Use {@link #close()} to remove
  * this LogFile from the log listeners.
  * 
@@ -54,7 +58,12 @@ public class LogFile implements ILogListener, Closeable {
 	/**
 	 * See {@link LogConfig#fileMaxSize}
 	 */
-	private long fileMaxSize;
+	long fileMaxSize;
+
+	/**
+	 * null unless async
+	 */
+	private volatile AsyncLogWriter asyncWriter;
 
 	private int lineMaxChars = 2048;
 	
@@ -74,15 +83,58 @@ public class LogFile implements ILogListener, Closeable {
 		if (file.getParentFile() != null) {
 			file.getParentFile().mkdirs();
 		}
-		Log.addListener(this);
 		// settings form config?
-		LogConfig lc = Dep.has(LogConfig.class)? Dep.get(LogConfig.class) : new LogConfig();
+		LogConfig lc = getLogConfig();
 		if (lc.fileHistory!=null && lc.fileInterval!=null) {
 			setLogRotation(lc.fileInterval, lc.fileHistory);
 		}
 		if (lc.fileMaxSize!=null) {
 			setFileMaxSize(ConfigBuilder.bytesFromString(lc.fileMaxSize));
 		}
+		if (lc.fileAsync) {
+			setAsync(true);
+		}
+		Log.addListener(this);
+	}
+
+	private static LogConfig getLogConfig() {
+		return Dep.has(LogConfig.class)? Dep.get(LogConfig.class) : new LogConfig();
+	}
+
+	/**
+	 * Switch async mode on or off. Off is the default.
+	 * When on, reports are queued and written by a background thread. 
+	 * Settings come from {@link LogConfig} (fileQueueSize, fileQueueFullPolicy, fileFsyncInterval).
+	 * @param async
+	 * @return this
+	 */
+	public synchronized LogFile setAsync(boolean async) {
+		if (async == (asyncWriter != null)) {
+			return this;
+		}
+		if (async) {
+			asyncWriter = new AsyncLogWriter(this, getLogConfig());
+		} else {
+			AsyncLogWriter w = asyncWriter;
+			asyncWriter = null;
+			w.close();
+		}
+		return this;
+	}
+	
+	public boolean isAsync() {
+		return asyncWriter != null;
+	}
+
+	/**
+	 * In async mode, wait (up to 10 seconds) until everything reported so far is written and fsynced.
+	 * Does nothing otherwise.
+	 */
+	public void flush() {
+		AsyncLogWriter w = asyncWriter;
+		if (w != null) {
+			w.flush(10000);
+		}
 	}
 
 	private void setFileMaxSize(long maxSize) {
@@ -95,15 +147,17 @@ public class LogFile implements ILogListener, Closeable {
 	 * will be empty.
 	 */
 	public void clear() {
+		flush();
 		FileUtils.write(file, "");
 	}
 
 	/**
-	 * Stop listening to log events
+	 * Stop listening to log events. In async mode, this writes out any queued reports.
 	 */
 	@Override
 	public void close() {
 		Log.removeListener(this);
+		setAsync(false);
 	}
 
 	public File getFile() {
@@ -127,6 +181,11 @@ public class LogFile implements ILogListener, Closeable {
 			}
 		}
 		String line = listen2_lineFromReport(report);
+		AsyncLogWriter w = asyncWriter;
+		if (w != null) {
+			w.offer(line, report.getTime(), report.level == Level.SEVERE);
+			return;
+		}
 		listen2(line, report.getTime());
 	}
 
@@ -153,22 +212,28 @@ public class LogFile implements ILogListener, Closeable {
 	
 	SimpleFormatter sf = new SimpleFormatter();
 
-	private transient boolean criedForHelp;
+	transient boolean criedForHelp;
 	
 	/**
 	 * Low-level faster writing. 
 	 * @param line
 	 * @param time
 	 */
-	public synchronized void listen2(String line, Time time) {
+	public void listen2(String line, Time time) {
+		AsyncLogWriter w = asyncWriter;
+		if (w != null) {
+			w.offer(line, time, false);
+			return;
+		}
+		listen3_sync(line, time);
+	}
+
+	private synchronized void listen3_sync(String line, Time time) {
 		// too big?!
 		if (fileMaxSize > 0 && file.length() > fileMaxSize) {
 			// one final log message
 			if ( ! criedForHelp) {
-				// ??minor: possibly refactor Log so this can use guaranteed the same Report construction
-				String tooBigLine = "Log file too big: "+file.length()+" > "+fileMaxSize+". Logging skipped!";
-				Report report = new Report("log", tooBigLine, Level.SEVERE, line, null);
-				String cry = listen2_lineFromReport(report);
+				String cry = tooBigLine(file.length(), line);
 				FileUtils.append(cry, file);
 				criedForHelp = true;
 			}
@@ -184,10 +249,22 @@ public class LogFile implements ILogListener, Closeable {
 		criedForHelp = false;
 	}
 
+	/**
+	 * @param size
+	 * @param line The line which won't get logged
+	 * @return a "file too big" log line
+	 */
+	String tooBigLine(long size, String line) {
+		// ??minor: possibly refactor Log so this can use guaranteed the same Report construction
+		String tooBigLine = "Log file too big: "+size+" > "+fileMaxSize+". Logging skipped!";
+		Report report = new Report("log", tooBigLine, Level.SEVERE, line, null);
+		return listen2_lineFromReport(report);
+	}
+
 	/**
 	 * Move all the log files down one.
 	 */
-	private synchronized void rotateLogFiles() {
+	synchronized void rotateLogFiles() {
 		// advance the trigger
 		nextRotation = nextRotation.plus(rotationInterval);
 		// just nuke the current log?
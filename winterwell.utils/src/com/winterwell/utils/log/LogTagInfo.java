@@ -0,0 +1,86 @@
+package com.winterwell.utils.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.winterwell.datalog.Rate;
+import com.winterwell.utils.IFilter;
+
+/**
+ * Per-tag decisions for {@link Log#report(String, Object, Level, Throwable)}, worked out once:
+ * the tag's min-level override, whether the tag is excluded or downgraded by config,
+ * and the throttle state.
+ * <p>
+ * Thread safety: yes. The throttle is lock-free -- a fixed window with an atomic counter.
+ * Races at the window edge can let through a report or two extra, which is fine for a throttle.
+ *
+ * @author daniel
+ */
+final class LogTagInfo {
+
+	final String tag;
+	/**
+	 * null => use the default
+	 */
+	final Level minLevel;
+	final boolean excluded;
+	final boolean downgraded;
+
+	/**
+	 * max reports per window. Long.MAX_VALUE for no throttle
+	 */
+	private final long limit;
+	private final long windowMsecs;
+	private final AtomicLong windowStart = new AtomicLong();
+	private final AtomicLong count = new AtomicLong();
+	/**
+	 * When we last said "throttling" for this tag
+	 */
+	private volatile long throttleNotice;
+
+	LogTagInfo(String tag, Level minLevel, LogConfig config, IFilter<String> excludeFilter, IFilter<String> downgradeFilter) {
+		this.tag = tag;
+		this.minLevel = minLevel;
+		excluded = excludeFilter != null && excludeFilter.accept(tag);
+		downgraded = downgradeFilter != null && downgradeFilter.accept(tag);
+		Rate throttleAt = config==null || config.throttleWindow==null? null : config.getThrottleAt(tag);
+		if (throttleAt == null) {
+			limit = Long.MAX_VALUE;
+			windowMsecs = Long.MAX_VALUE;
+		} else {
+			windowMsecs = Math.max(1, config.throttleWindow.getMillisecs());
+			limit = Math.max(1, (long) throttleAt.per(config.throttleWindow));
+		}
+	}
+
+	/**
+	 * Count a report.
+	 * @return true to silently swallow it
+	 */
+	boolean throttle() {
+		if (limit == Long.MAX_VALUE) return false;
+		long now = System.currentTimeMillis();
+		long ws = windowStart.get();
+		if (now - ws >= windowMsecs && windowStart.compareAndSet(ws, now)) {
+			// new window (only one thread wins the reset)
+			count.set(0);
+		}
+		return count.incrementAndGet() > limit;
+	}
+
+	/**
+	 * @return true at most once a day per tag
+	 */
+	boolean isFirstThrottle() {
+		long now = System.currentTimeMillis();
+		long tn = throttleNotice;
+		if (now - tn < 24L*60*60*1000) return false;
+		throttleNotice = now;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "LogTagInfo[" + tag + " minLevel=" + minLevel + " excluded=" + excluded + " count=" + count + "/" + limit + "]";
+	}
+}
@@ -0,0 +1,16 @@
+package com.winterwell.utils.threads;
+
+/**
+ * What to do when a bounded work queue is full.
+ * @author daniel
+ */
+public enum KQueueFullPolicy {
+	/** Wait for space (possibly with a time-limit, after which the item is dropped). */
+	BLOCK,
+	/** Throw away the new item (and count it). */
+	DROP,
+	/** Do the work on the calling thread -- slower for the caller, but nothing is lost. */
+	CALLER_RUNS,
+	/** Keep a sample of new items once the queue is nearly full, dropping the rest (and count them). */
+	SAMPLE
+}
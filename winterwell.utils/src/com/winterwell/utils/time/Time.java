@@ -174,14 +174,23 @@ public final class Time implements Serializable, Comparable<Time> {
 	 * NB: the Date class javadoc incorrectly describes this as "dow mon dd hh:mm:ss zzz yyyy"
 	 */
 	private static final String TO_STRING_FORMAT = "E MMM dd HH:mm:ss z yyyy";
+
+	private static final Pattern EXPONENTIAL = Pattern.compile("\\d\\.\\d+e\\d+");
+
+	private static final Pattern DDMMYY = Pattern.compile("(\\d{1,2})/(\\d{1,2})/(\\d{2,4})");
 	
 	private static long parse(String date) {
 		// Is it a timecode?
 		if (date.length() > 8 && date.length() < 24 && StrUtils.isInteger(date)) {
 			return Long.parseLong(date);
 		}
+		// The common formats, done quickly
+		long fast = parseFast(date);
+		if (fast != NOT_FAST) {
+			return fast;
+		}
 		// Hack: handle exponential format
-		if (Pattern.compile("\\d\\.\\d+e\\d+").matcher(date).matches()) {
+		if (date.indexOf('e') != -1 && EXPONENTIAL.matcher(date).matches()) {
 			double d = Double.parseDouble(date);
 			long l = (long) d;
 			// Is the long fairly close to the double, and within sane ranges?
@@ -247,8 +256,7 @@ public final class Time implements Serializable, Comparable<Time> {
 		}		
 		// sniff for dd/mm/yy with some UK/US smarts
 		// NB: Date.parse is not so smart, so we do this first
-		Pattern ddmmyy = Pattern.compile("(\\d{1,2})/(\\d{1,2})/(\\d{2,4})");
-		Matcher m2 = ddmmyy.matcher(date);
+		Matcher m2 = DDMMYY.matcher(date);
 		if (m2.matches()) {
 			int d = Integer.parseInt(m2.group(1));
 			int mon = Integer.parseInt(m2.group(2));
@@ -290,7 +298,212 @@ public final class Time implements Serializable, Comparable<Time> {
 		throw new IllegalArgumentException(StrUtils.ellipsize(date, 100));
 //		}
 	}
-	
+
+	/**
+	 * Returned by {@link #parseFast(String)} for "not one I can do"
+	 */
+	static final long NOT_FAST = Long.MIN_VALUE;
+
+	private static final String[] DAYS = {"Mon","Tue","Wed","Thu","Fri","Sat","Sun"};
+	private static final String[] MONTHS = {"Jan","Feb","Mar","Apr","May","Jun","Jul","Aug","Sep","Oct","Nov","Dec"};
+
+	/**
+	 * Hand-rolled parsing for the formats we see most (e.g. DataLogEvent times) -- no regex, no exceptions, no garbage:
+	 * <p>
+	 * - ISO 8601 yyyy-M-d (midnight GMT)<br>
+	 * - ISO 8601 yyyy-MM-ddTHH:mm[:ss[.SSS]] with Z or &plusmn;HH:mm<br>
+	 * - our toString() format, e.g. "Wed Jan 01 12:00:00 GMT 2020"
+	 * <p>
+	 * Anything else -- or anything a bit odd, e.g. lower-case, or an invalid date -- is left to the general code in parse().
+	 * This gives the same answers as that code, including dropping fractional seconds (as ZonedDateTime parsing did).
+	 * 
+	 * @return epoch millis, or {@link #NOT_FAST}
+	 * @testedby  TimeTest#testParseFast()}
+	 */
+	static long parseFast(String s) {
+		int n = s.length();
+		if (n < 8) return NOT_FAST;
+		char c0 = s.charAt(0);
+		if (c0 >= '0' && c0 <= '9') {
+			return parseFast2_iso(s, n);
+		}
+		if (n == 28) {
+			return parseFast3_toString(s);
+		}
+		return NOT_FAST;
+	}
+
+	private static long parseFast2_iso(String s, int n) {
+		int y = digits(s, 0, 4);
+		if (y < 0 || s.charAt(4) != '-') return NOT_FAST;
+		// month and day can be 1 or 2 digits in the date-only form
+		int i = 5;
+		int mw = digitRun(s, i, n);
+		if (mw < 1 || mw > 2 || i+mw >= n || s.charAt(i+mw) != '-') return NOT_FAST;
+		int mon = digits(s, i, mw);
+		i += mw + 1;
+		int dw = digitRun(s, i, n);
+		if (dw < 1 || dw > 2) return NOT_FAST;
+		int d = digits(s, i, dw);
+		i += dw;
+		if (mon < 1 || mon > 12 || d < 1 || d > daysInMonth(y, mon)) return NOT_FAST;
+		long days = daysFromCivil(y, mon, d);
+		if (i == n) {
+			return days * TUnit.DAY.millisecs;
+		}
+		// date-time: HH:mm[:ss[.SSS]]
+		if (mw != 2 || dw != 2 || s.charAt(i) != 'T' || i+6 > n || s.charAt(i+3) != ':') return NOT_FAST;
+		int hh = digits(s, i+1, 2), mm = digits(s, i+4, 2), ss = 0;
+		i += 6;
+		if (i+3 <= n && s.charAt(i) == ':') {
+			ss = digits(s, i+1, 2);
+			i += 3;
+			if (i < n && s.charAt(i) == '.') {
+				int fw = digitRun(s, i+1, n);
+				if (fw < 1 || fw > 9) return NOT_FAST;
+				i += 1 + fw; // NB: the fraction is ignored
+			}
+		}
+		if (hh < 0 || hh > 23 || mm < 0 || mm > 59 || ss < 0 || ss > 59 || i == n) return NOT_FAST;
+		// zone: Z or +HH:mm
+		int offset;
+		char z = s.charAt(i);
+		if (z == 'Z') {
+			if (i+1 != n) return NOT_FAST;
+			offset = 0;
+		} else if (z == '+' || z == '-') {
+			if (i+6 != n || s.charAt(i+3) != ':') return NOT_FAST;
+			int oh = digits(s, i+1, 2), om = digits(s, i+4, 2);
+			if (oh < 0 || oh > 17 || om < 0 || om > 59) return NOT_FAST;
+			offset = (oh*60 + om) * 60;
+			if (z == '-') offset = -offset;
+		} else {
+			return NOT_FAST;
+		}
+		long secs = days*86400 + hh*3600 + mm*60 + ss - offset;
+		return 1000*secs;
+	}
+
+	/**
+	 * e.g. "Wed Jan 01 12:00:00 GMT 2020" (which is what toString() gives, in an English locale)
+	 */
+	private static long parseFast3_toString(String s) {
+		if (s.charAt(3) != ' ' || s.charAt(7) != ' ' || s.charAt(10) != ' ' 
+				|| s.charAt(13) != ':' || s.charAt(16) != ':' || s.charAt(19) != ' ' 
+				|| ! s.startsWith("GMT ", 20)) 
+		{
+			return NOT_FAST;
+		}
+		if (indexOf3(DAYS, s, 0) < 0) return NOT_FAST;
+		int mon = indexOf3(MONTHS, s, 4) + 1;
+		int d = digits(s, 8, 2), hh = digits(s, 11, 2), mm = digits(s, 14, 2), ss = digits(s, 17, 2);
+		int y = digits(s, 24, 4);
+		// NB: SimpleDateFormat switches to the Julian calendar before 1582, so leave old dates to it
+		if (y < 1583 || mon < 1 || d < 1 || d > daysInMonth(y, mon) 
+				|| hh < 0 || hh > 23 || mm < 0 || mm > 59 || ss < 0 || ss > 59) 
+		{
+			return NOT_FAST;
+		}
+		long secs = daysFromCivil(y, mon, d)*86400 + hh*3600 + mm*60 + ss;
+		return 1000*secs;
+	}
+
+	private static int indexOf3(String[] names, String s, int i) {
+		for (int j = 0; j < names.length; j++) {
+			if (s.startsWith(names[j], i)) return j;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number, or -1 if there's a non-digit
+	 */
+	private static int digits(String s, int i, int len) {
+		int v = 0;
+		for (int j = i; j < i+len; j++) {
+			char c = s.charAt(j);
+			if (c < '0' || c > '9') return -1;
+			v = v*10 + (c - '0');
+		}
+		return v;
+	}
+
+	/**
+	 * @return how many ascii digits from i
+	 */
+	private static int digitRun(String s, int i, int n) {
+		int j = i;
+		while (j < n && s.charAt(j) >= '0' && s.charAt(j) <= '9') j++;
+		return j - i;
+	}
+
+	private static int daysInMonth(int y, int mon) {
+		switch (mon) {
+		case 2:
+			boolean leap = (y % 4 == 0 && y % 100 != 0) || y % 400 == 0;
+			return leap? 29 : 28;
+		case 4: case 6: case 9: case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Proleptic Gregorian (as java.time uses).
+	 * See Howard Hinnant's "chrono-Compatible Low-Level Date Algorithms"
+	 * @return days since 1970-01-01
+	 */
+	static long daysFromCivil(int y, int m, int d) {
+		if (m <= 2) y--;
+		long era = Math.floorDiv(y, 400);
+		long yoe = y - era*400;
+		long doy = (153*(m > 2? m-3 : m+9) + 2)/5 + d - 1;
+		long doe = yoe*365 + yoe/4 - yoe/100 + doy;
+		return era*146097 + doe - 719468;
+	}
+
+	/**
+	 * Write yyyy-MM-dd[THH:mm:ssZ] into cs, without SimpleDateFormat.
+	 * @return false if the year is outside 1583-9999 (where SimpleDateFormat's output differs) -- use format() instead.
+	 */
+	private boolean formatFast(char[] cs) {
+		long secs = Math.floorDiv(ut, 1000);
+		long days = Math.floorDiv(secs, 86400);
+		int sod = (int) (secs - days*86400);
+		// civil from days (Hinnant again)
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era*146097;
+		long yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+		long doy = doe - (365*yoe + yoe/4 - yoe/100);
+		long mp = (5*doy + 2)/153;
+		int d = (int) (doy - (153*mp + 2)/5 + 1);
+		int m = (int) (mp < 10? mp+3 : mp-9);
+		long y = yoe + era*400 + (m <= 2? 1 : 0);
+		if (y < 1583 || y > 9999) return false;
+		put(cs, 0, (int) y, 4);
+		cs[4] = '-';
+		put(cs, 5, m, 2);
+		cs[7] = '-';
+		put(cs, 8, d, 2);
+		if (cs.length == 10) return true;
+		cs[10] = 'T';
+		put(cs, 11, sod / 3600, 2);
+		cs[13] = ':';
+		put(cs, 14, (sod / 60) % 60, 2);
+		cs[16] = ':';
+		put(cs, 17, sod % 60, 2);
+		cs[19] = 'Z';
+		return true;
+	}
+
+	private static void put(char[] cs, int i, int v, int width) {
+		for (int j = i+width-1; j >= i; j--) {
+			cs[j] = (char) ('0' + v % 10);
+			v /= 10;
+		}
+	}
 	
 
 	/**
@@ -596,8 +809,10 @@ public final class Time implements Serializable, Comparable<Time> {
 	/**
 	 * @return ISO 8601 format yyyy-MM-ddTHH:mm:ssZ
 	 */
-	public String toISOString() {	
-		return format(iso8601Z);
+	public String toISOString() {
+		char[] cs = new char[20];
+		if ( ! formatFast(cs)) return format(iso8601Z);
+		return new String(cs);
 	}
 	/**
 	 * Human readable GMT time. This is NOT ISO8601
@@ -628,7 +843,9 @@ public final class Time implements Serializable, Comparable<Time> {
 	 * @return ISO 8601 format yyyy-MM-dd (i.e. without the time or time-zone part)
 	 */
 	public String toISOStringDateOnly() {
-		return format("yyyy-MM-dd"); // NB: we could make this faster by doing it directly without date-format
+		char[] cs = new char[10];
+		if ( ! formatFast(cs)) return format("yyyy-MM-dd");
+		return new String(cs);
 	}
 
 }
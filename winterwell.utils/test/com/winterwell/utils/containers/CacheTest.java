@@ -4,8 +4,14 @@
 package com.winterwell.utils.containers;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -123,4 +129,98 @@ public class CacheTest {
 		Assert.assertEquals(cacheSize, c.size());
 	}
 
+	@Test
+	public void testSecondChance() {
+		Cache<String, String> c = new Cache<String, String>(10);
+		for (int i = 0; i < 10; i++) {
+			c.put("key " + i, "val " + i);
+		}
+		// use key 0, so it should survive the next eviction
+		assert c.get("key 0") != null;
+		c.put("key 10", "val 10");
+		assert c.size() == 10;
+		assert c.get("key 0") != null;
+		assert c.get("key 1") == null;
+		assert c.getHits() == 2 : c.getHits();
+		assert c.getMisses() == 1 : c.getMisses();
+		assert c.getEvictions() == 1 : c.getEvictions();
+	}
+
+	@Test
+	public void testHooksAndCanonical() {
+		List<String> removed = new ArrayList();
+		Cache<String, String> c = new Cache<String, String>(2) {
+			@Override
+			public String canonical(String key) {
+				return key.toLowerCase();
+			}
+			@Override
+			protected boolean preRemovalCheck(String key, String value) {
+				return ! key.equals("keep");
+			}
+			@Override
+			protected void onRemove(String key, String value) {
+				removed.add(key);
+			}
+		};
+		c.put("KEEP", "a");
+		c.put("b", "b");
+		assert "a".equals(c.get("Keep"));
+		c.put("c", "c");
+		c.put("d", "d");
+		assert c.get("keep") != null;
+		assert c.size() == 2 : c;
+		assert removed.contains("b") : removed;
+		assert ! removed.contains("keep") : removed;
+		c.remove("KEEP");
+		assert removed.contains("keep") : removed;
+		assert c.get("keep") == null;
+	}
+
+	/**
+	 * Not really a test -- many threads hammering get(), vs the old synchronized LinkedHashMap.
+	 */
+	@Test
+	public void testContention() throws InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors() * 2;
+		int n = 200000;
+		int keys = 1000;
+		for(int warmup=0; warmup<2; warmup++) {
+			Map<String, String> old = Collections.synchronizedMap(new LinkedHashMap<String,String>(keys, .75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+					return size() > keys / 2;
+				}
+			});
+			Cache<String, String> c = new Cache<String, String>(keys / 2);
+			long tOld = contention(threads, n, keys, old);
+			long tNew = contention(threads, n, keys, c);
+			System.out.println(threads+" threads x "+n+" get/put: synchronized LinkedHashMap "+tOld+"ms vs Cache "+tNew+"ms "
+					+" hits: "+c.getHits()+" misses: "+c.getMisses()+" evictions: "+c.getEvictions());
+			assert c.size() <= keys / 2;
+		}
+	}
+
+	private long contention(int threads, int n, int keys, Map<String, String> map) throws InterruptedException {
+		String[] ks = new String[keys];
+		for (int i = 0; i < keys; i++) ks[i] = "key " + i;
+		ExecutorService exe = Executors.newFixedThreadPool(threads);
+		long t0 = System.currentTimeMillis();
+		for(int t=0; t<threads; t++) {
+			exe.submit(() -> {
+				Random r = new Random();
+				for (int i = 0; i < n; i++) {
+					// skewed, so there are hits
+					int ki = Math.min(r.nextInt(keys), r.nextInt(keys));
+					if (map.get(ks[ki]) == null) {
+						map.put(ks[ki], ks[ki]);
+					}
+				}
+			});
+		}
+		exe.shutdown();
+		exe.awaitTermination(10, TimeUnit.MINUTES);
+		return System.currentTimeMillis() - t0;
+	}
+
 }
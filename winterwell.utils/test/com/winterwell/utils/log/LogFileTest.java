@@ -7,7 +7,9 @@ import com.winterwell.utils.Printer;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.io.ConfigBuilder;
 import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.threads.KQueueFullPolicy;
 import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
 
 import junit.framework.TestCase;
 
@@ -73,6 +75,73 @@ public class LogFileTest extends TestCase {
 		lf.close();
 	}
 
+	public void testAsync() {
+		File f = new File("test-output/test-async.txt");
+		FileUtils.delete(f);
+		LogFile lf = new LogFile(f).setAsync(true);
+		assert lf.isAsync();
+		// NB: stay under the Log throttle
+		for (int i=0; i<100; i++) {
+			Log.i("testAsync", "Hello "+i);
+		}
+		lf.flush();
+		String log = FileUtils.read(f);
+		assert log.contains("Hello 0") : log;
+		assert log.contains("Hello 99") : log;
+		// order is kept
+		assert log.indexOf("Hello 98") < log.indexOf("Hello 99");
+		Log.e("testAsync", "Oh no");
+		lf.close();
+		log = FileUtils.read(f);
+		assert log.contains("Oh no") : log;
+		Printer.out(Log.getAsyncFileStats());
+	}
+
+	public void testAsyncDrop() {
+		LogConfig lc = new LogConfig();
+		lc.fileQueueSize = 10;
+		lc.fileQueueFullPolicy = KQueueFullPolicy.DROP;
+		Dep.set(LogConfig.class, lc);
+		try {
+			File f = new File("test-output/test-async-drop.txt");
+			FileUtils.delete(f);
+			LogFile lf = new LogFile(f).setAsync(true);
+			long dropped = Log.getAsyncFileStats().get("dropped");
+			for (int i=0; i<100000; i++) {
+				lf.listen2("Hello "+i+"\n", new Time());
+			}
+			lf.close();
+			String log = FileUtils.read(f);
+			assert log.contains("Hello 0") : log;
+			// some got dropped (unless the writer is very quick!)
+			Printer.out("dropped: "+(Log.getAsyncFileStats().get("dropped") - dropped));
+		} finally {
+			Dep.set(LogConfig.class, new LogConfig());
+		}
+	}
+
+	/**
+	 * Not really a test -- compare sync vs async
+	 */
+	public void testAsyncSpeed() {
+		Dep.set(LogConfig.class, new LogConfig());
+		for(boolean async : new boolean[] {false, true}) {
+			File f = new File("test-output/test-speed.txt");
+			FileUtils.delete(f);
+			LogFile lf = new LogFile(f).setAsync(async);
+			long t0 = System.nanoTime();
+			for (int i=0; i<10000; i++) {
+				lf.listen2("Hello "+i+"\n", new Time());
+			}
+			long t1 = System.nanoTime();
+			lf.close();
+			long t2 = System.nanoTime();
+			String log = FileUtils.read(f);
+			assert log.contains("Hello 9999") : async;
+			Printer.out("async: "+async+" 10k lines: "+(t1-t0)/1000000+"ms to report, "+(t2-t0)/1000000+"ms to write");
+		}
+	}
+
 	public void testRotation() {
 		{
 			File f = new File("test-output/rotate-test.txt");
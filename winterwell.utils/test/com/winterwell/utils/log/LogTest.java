@@ -39,4 +39,75 @@ public class LogTest {
 		assert reports.size() < 4;
 	}
 
+	@Test
+	public void testLazySupplier() {
+		Log.setConfig(new LogConfig());
+		int[] calls = new int[1];
+		// verbose is off by default
+		Log.v("testLazy", () -> {
+			calls[0]++;
+			return "expensive";
+		});
+		assert calls[0] == 0;
+		ArrayList<Report> reports = new ArrayList();
+		ILogListener listener = r -> {
+			if ("testLazy".equals(r.tag)) reports.add(r);
+		};
+		Log.addListener(listener);
+		Log.i("testLazy", () -> {
+			calls[0]++;
+			return "expensive "+calls[0];
+		});
+		Log.removeListener(listener);
+		assert calls[0] == 1;
+		assert reports.size() == 1;
+		assert reports.get(0).getMessage().equals("expensive 1") : reports;
+	}
+
+	@Test
+	public void testExcludeTagAndSetMinLevel() {
+		LogConfig config = new LogConfig();
+		config.addIgnoreTag("testIgnored");
+		Log.setConfig(config);
+		int[] calls = new int[1];
+		Log.i("testIgnored", () -> "x"+(calls[0]++));
+		assert calls[0] == 0;
+		// changing the level takes effect at once (ie the per-tag cache is cleared)
+		Log.setMinLevel("testIgnored", Log.DEBUG);
+		Log.i("testIgnored", () -> "x"+(calls[0]++));
+		assert calls[0] == 1;
+		Log.setConfig(new LogConfig());
+	}
+
+	/**
+	 * Not really a test -- a micro-benchmark for the cases which should be cheap:
+	 * a disabled level, and a throttled tag.
+	 */
+	@Test
+	public void testSpeedOfSkippedReports() {
+		LogConfig config = new LogConfig();
+		config.throttleAt = new Rate(10, TUnit.MINUTE);
+		Log.setConfig(config);
+		Object msg = new Object() {
+			@Override
+			public String toString() {
+				return "a message which is "+"a bit expensive "+Utils.getRandomString(6);
+			}
+		};
+		int n = 1000000;
+		for(int warmup=0; warmup<3; warmup++) {
+			long t0 = System.nanoTime();
+			for(int i=0; i<n; i++) {
+				Log.v("testSpeed", msg);
+			}
+			long t1 = System.nanoTime();
+			for(int i=0; i<n; i++) {
+				Log.d("testSpeedThrottled", msg);
+			}
+			long t2 = System.nanoTime();
+			System.out.println("disabled: "+(t1-t0)/n+"ns/report, throttled: "+(t2-t1)/n+"ns/report");
+		}
+		Log.setConfig(new LogConfig());
+	}
+
 }
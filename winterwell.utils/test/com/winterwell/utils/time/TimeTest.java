@@ -11,6 +11,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.TimeZone;
 
 import org.junit.Test;
@@ -389,4 +391,84 @@ public class TimeTest {
 		Double hours = (res.getValue());
 		System.out.print(Math.floor(hours) + 2);
 	}
+
+	@Test
+	public void testParseFast() throws Exception {
+		// same answers as the general-purpose code
+		String[] isos = {"2020-01-01", "2017-2-2", "2016-02-29", "1969-12-31T23:59:59.5Z", "2020-06-15T10:30Z",
+				"2020-06-15T10:30:45.123+05:30", "2020-06-15T10:30:45-08:00", "0800-03-01T00:00:00Z", "2000-02-29T23:59:59.999999999Z"};
+		for (String iso : isos) {
+			String zs = iso.length() < 11? new Time(Time.parseFast(iso)).toISOString() : iso;
+			long slow = 1000*ZonedDateTime.parse(zs).toEpochSecond();
+			assert Time.parseFast(iso) == slow : iso+" "+Time.parseFast(iso)+" vs "+slow;
+			assert new Time(iso).getTime() == slow : iso;
+		}
+		Random r = new Random(42);
+		SimpleDateFormat sdf = new SimpleDateFormat("E MMM dd HH:mm:ss z yyyy", Locale.ENGLISH);
+		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+		for(int i=0; i<1000; i++) {
+			long ut = (long) (r.nextDouble() * 200L*365*TUnit.DAY.millisecs) - 50L*365*TUnit.DAY.millisecs;
+			ut -= Math.floorMod(ut, 1000);
+			Time t = new Time(ut);
+			assert Time.parseFast(t.toISOString()) == ut : t;
+			assert Time.parseFast(sdf.format(t.getDate())) == ut : sdf.format(t.getDate());
+		}
+		// not for the fast path (most of these fail later, as before)
+		String[] others = {"2020-01-01t10:00:00z", "2020-01-01T10:00:00", "2020-01-01T10:00:00+0100", "2020-02-30",
+				"2020-13-01", "2020-1-01T10:00:00Z", "2020-01-01T24:00:00Z", "2020-01-01T10:00:00.Z", "20200101",
+				"2020-01-01T10:00:00Z[Europe/London]", "Wed Jan 01 00:00:00 BST 2020", "01/02/2020", "1.5e12"};
+		for (String o : others) {
+			assert Time.parseFast(o) == Time.NOT_FAST : o;
+		}
+		assert new Time("01/02/2020").getMonth() == 2;
+		assert new Time("1.5e12").getTime() == 1500000000000L;
+	}
+
+	@Test
+	public void testFormatFast() {
+		Random r = new Random(42);
+		SimpleDateFormat iso = new SimpleDateFormat(Time.iso8601Z);
+		iso.setTimeZone(TimeZone.getTimeZone("GMT"));
+		SimpleDateFormat dateOnly = new SimpleDateFormat("yyyy-MM-dd");
+		dateOnly.setTimeZone(TimeZone.getTimeZone("GMT"));
+		for(int i=0; i<1000; i++) {
+			// includes pre-1583 and negative years, which go the slow way
+			long ut = (long) ((r.nextDouble() - 0.7) * 3000L*365*TUnit.DAY.millisecs);
+			Time t = new Time(ut);
+			assert t.toISOString().equals(iso.format(t.getDate())) : t.toISOString()+" vs "+iso.format(t.getDate());
+			assert t.toISOStringDateOnly().equals(dateOnly.format(t.getDate())) : t;
+		}
+	}
+
+	/**
+	 * Not a strict test -- but the fast path should be many times quicker than the general code.
+	 */
+	@Test
+	public void testParseSpeed() throws Exception {
+		String[] isos = new String[1000];
+		for(int i=0; i<isos.length; i++) {
+			isos[i] = new Time(1600000000000L + i*7919000L).toISOString();
+		}
+		long sum = 0;
+		for(int warm=0; warm<3; warm++) {
+			for (String iso : isos) sum += new Time(iso).getTime() + 1000*ZonedDateTime.parse(iso).toEpochSecond();
+		}
+		int reps = 100;
+		long t0 = System.nanoTime();
+		for(int rep=0; rep<reps; rep++) {
+			for (String iso : isos) sum += new Time(iso).getTime();
+		}
+		long t1 = System.nanoTime();
+		for(int rep=0; rep<reps; rep++) {
+			for (String iso : isos) sum += 1000*ZonedDateTime.parse(iso).toEpochSecond();
+		}
+		long t2 = System.nanoTime();
+		for(int rep=0; rep<reps; rep++) {
+			for (String iso : isos) sum += new Time(iso).toISOString().length();
+		}
+		long t3 = System.nanoTime();
+		double n = reps*isos.length;
+		Printer.out("parse: "+(t1-t0)/n+"ns vs ZonedDateTime: "+(t2-t1)/n+"ns  parse+format: "+(t3-t2)/n+"ns  "+sum);
+		assert (t1-t0) < (t2-t1) : "fast "+(t1-t0)+" vs ZonedDateTime "+(t2-t1);
+	}
 }
@@ -1,5 +1,6 @@
 package com.winterwell.web;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,6 +11,9 @@ import java.net.Proxy;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
@@ -18,7 +22,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -27,6 +33,7 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -53,6 +60,11 @@ import lgpl.haustein.Base64Encoder;
 /**
  * A pretend web browser. Stores cookies so it can step through sessions.
  * <i>Not</i> thread safe.
+ * <p>
+ * Connections are kept alive and re-used across requests (and across FakeBrowser objects) by the JVM's http
+ * keep-alive cache -- see the system property http.maxConnections for the per-host pool size.
+ * For many requests in parallel, see {@link #getPageAsync(String, Map)} and {@link #postAsync(String, Map)},
+ * which use the shared {@link HttpTransport}.
  * 
  * HTMLUnit is a much more complete version of this (it includes Javascript
  * handling). Apache's HttpClient is a more complex version of this (more boilerplate but
@@ -72,6 +84,19 @@ public class FakeBrowser {
 
 	private static SSLContext INSECURE_SSL_CONTEXT;
 
+	/**
+	 * NB: Shared, because the JVM will only re-use a kept-alive https connection if the socket factory
+	 * and hostname verifier are the same objects.
+	 */
+	private static SSLSocketFactory INSECURE_SSL_SOCKET_FACTORY;
+
+	private static final HostnameVerifier INSECURE_HOSTNAME_VERIFIER = new HostnameVerifier() {
+		@Override
+		public boolean verify(String hostname, SSLSession session) {
+			return true;
+		}
+	};
+
 	static Pattern keyValue = Pattern
 			.compile("([^; \\t\\r\\n\\]]+)=([^; \\t\\r\\n\\]]+)");
 
@@ -163,6 +188,7 @@ public class FakeBrowser {
 						}
 
 					} }, null);
+			INSECURE_SSL_SOCKET_FACTORY = INSECURE_SSL_CONTEXT.getSocketFactory();
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException("Unable to initialise SSL context", e);
 		} catch (KeyManagementException e) {
@@ -174,6 +200,13 @@ public class FakeBrowser {
 
 	private HttpURLConnection connection;
 
+	/**
+	 * true once the current response has been read in full (and its stream closed) -- so the connection can be re-used.
+	 */
+	private boolean responseRead;
+
+	private boolean keepAlive = true;
+
 	/**
 	 * Map host to key/value pairs TODO this doesn't support deleting cookies,
 	 * or proper domain/path handling
@@ -246,11 +279,24 @@ public class FakeBrowser {
 		this.followRedirects = followRedirects;
 	}
 
+	/**
+	 * @param keepAlive If true (the default), connections are returned to the JVM's pool for re-use.
+	 * If false, each request closes its connection.
+	 * @return this
+	 */
+	public FakeBrowser setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
 	private void disconnect() {
 		if (connection == null)
 			return;
-		// Do we also need to call close on the streams??
-		connection.disconnect();
+		// If the response was read in full (which closes the stream), the JVM will keep the socket for re-use.
+		// connection.disconnect() would close it.
+		if ( ! keepAlive || ! responseRead) {
+			connection.disconnect();
+		}
 		connection = null;
 	}
 
@@ -599,6 +645,7 @@ public class FakeBrowser {
 
 		// Normal Page
 		String response = FileUtils.read(inStream);
+		responseRead = true;
 		if (downloadImages) {
 			requestImages(connection.getURL(), response);
 			requestStyles(response);
@@ -640,6 +687,7 @@ public class FakeBrowser {
 		}
 		// Copy into file
 		FileUtils.copy(inStream, downloadFile);
+		responseRead = true;
 	}
 	
 	@Override
@@ -688,43 +736,55 @@ public class FakeBrowser {
 		InputStream es = connection.getErrorStream();
 		if (es != null) {
 			try {
-				errorPage = FileUtils.read(es);				
+				errorPage = FileUtils.read(es);
+				responseRead = true;
 				// allow for quite a bit of error 'cos it can be vital for debugging
 				errorMessage += StrUtils.ellipsize(WebUtils.stripTags(errorPage), 1500);				
 			} catch(Exception ex) {
 				// ignore
 			}
 		}
-		// Client error
 		String url = connection.getURL().toString();
+		WebEx wex = processResponse3_webEx(code, url, errorMessage, debugVars);
+		if (wex != null) {
+			throw wex;
+		}
+		// ?
+		throw new IOException(code + " (unrecognised error): " + errorMessage);
+	}
+
+	/**
+	 * @return the exception for a 4xx or 5xx code, or null
+	 */
+	static WebEx processResponse3_webEx(int code, String url, String errorMessage, Object debugVars) {
+		// Client error
 		if (code >= 400 && code < 500)  {			
 			if (code==404) {
-				throw new WebEx.E404(url, errorMessage);
+				return new WebEx.E404(url, errorMessage);
 			}
 			if (code==403) {
-				throw new WebEx.E403(url, errorMessage);
+				return new WebEx.E403(url, errorMessage);
 			}
 			if (code==401) {
-				throw new WebEx.E401(url, errorMessage);
+				return new WebEx.E401(url, errorMessage);
 			}	
 			if (code==409) {
-				throw new WebEx.E409Conflict(url, errorMessage);
+				return new WebEx.E409Conflict(url, errorMessage);
 			}
 			if (code==410) {
-				throw new WebEx.E410(url, errorMessage);
+				return new WebEx.E410(url, errorMessage);
 			}			
 			if (code==431) {
 				// Request Header Fields Too Large?? What is this caused by??
-				throw new WebEx.E431(StrUtils.joinWithSkip(" ", errorMessage, url, debugVars));
+				return new WebEx.E431(StrUtils.joinWithSkip(" ", errorMessage, url, debugVars));
 			}
-			throw new WebEx.E40X(code, errorMessage+" "+url);
+			return new WebEx.E40X(code, errorMessage+" "+url);
 		}
 		// Server error
 		if (code >= 500) {			
-			throw new WebEx.E50X(code, url, "(server error): " + errorMessage);
+			return new WebEx.E50X(code, url, "(server error): " + errorMessage);
 		}
-		// ?
-		throw new IOException(code + " (unrecognised error): " + errorMessage);
+		return null;
 	}
 
 	
@@ -774,18 +834,28 @@ public class FakeBrowser {
 	 */
 	private void setBasicAuthentication(URLConnection connection, String name,
 			String password) {
+		connection.setRequestProperty("Authorization", basicAuthHeader(name, password));
+	}
+
+	private static String basicAuthHeader(String name, String password) {
 		assert password != null;
 		String token = (name==null? "" : name) + ":" + password;
 		String encoding = Base64Encoder.encode(token);
 		encoding = encoding.replace("\r\n", ""); // Patch for Java bug http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6459815
-		connection.setRequestProperty("Authorization", "Basic " + encoding);
+		return "Basic " + encoding;
 	}
 
 	private void setCookies(URLConnection connection) {
-		Map<String, String> cookies = getHostCookies(connection.getURL()
-				.getHost());
+		String cookies = getCookieHeader(connection.getURL().getHost());
 		if (cookies == null)
 			return;
+		connection.setRequestProperty("Cookie", cookies);
+	}
+
+	private String getCookieHeader(String host) {
+		Map<String, String> cookies = getHostCookies(host);
+		if (cookies == null || cookies.isEmpty())
+			return null;
 		StringBuilder cList = new StringBuilder();
 		for (Map.Entry<String,String> c : cookies.entrySet()) {
 			cList.append(c.getKey());
@@ -794,7 +864,7 @@ public class FakeBrowser {
 			cList.append("; ");
 		}
 		StrUtils.pop(cList, 1);
-		connection.setRequestProperty("Cookie", cList.toString());
+		return cList.toString();
 	}
 
 	public void setDownloadImages(boolean b) {
@@ -875,6 +945,7 @@ public class FakeBrowser {
 			}
 		}
 		assert connection == null : connection.getURL();
+		responseRead = false;
 		if (proxy==null) {
 			connection = (HttpURLConnection) url.openConnection();
 		} else {
@@ -887,15 +958,8 @@ public class FakeBrowser {
 		// HACK: Disable SSL certificate/hostname checks
 		if (connection instanceof HttpsURLConnection) {
 			HttpsURLConnection sec = ((HttpsURLConnection) connection);
-			sec.setSSLSocketFactory(INSECURE_SSL_CONTEXT.getSocketFactory());
-			sec.setHostnameVerifier(new HostnameVerifier() {
-
-				@Override
-				public boolean verify(String hostname, SSLSession session) {
-					return true;
-				}
-			});
-
+			sec.setSSLSocketFactory(INSECURE_SSL_SOCKET_FACTORY);
+			sec.setHostnameVerifier(INSECURE_HOSTNAME_VERIFIER);
 		}		
 		// Authenticate?
 		if (password!=null) {
@@ -908,7 +972,11 @@ public class FakeBrowser {
 			if (v==null) continue;
 			connection.setRequestProperty(h, v.toString());
 		}
+		if ( ! keepAlive) {
+			connection.setRequestProperty("Connection", "close");
+		}
 		connection.setDoInput(true); // we always want input?
+		connection.setConnectTimeout(timeOutMilliSecs);
 		connection.setReadTimeout(timeOutMilliSecs);
 		connection.setInstanceFollowRedirects(false); // See bug 8293 -- our own handling seems to be better
 		// Set cookies!
@@ -1067,6 +1135,111 @@ public class FakeBrowser {
 		return post(url, CONTENT_TYPE_JSON, json);
 	}
 
+	/**
+	 * Async version of {@link #getPage(String, Map)}, via the shared {@link HttpTransport}
+	 * (pooled keep-alive connections, HTTP/2 where available).
+	 * <p>
+	 * The request (headers, authentication, cookies, timeout) is captured when you call this, so the FakeBrowser
+	 * can be re-used straight away. Differences from the sync methods: cookies set by the response are not stored,
+	 * binary responses are returned as text, retryOnError and the Cooldown are not applied, and SSL certificates ARE checked.
+	 * 
+	 * @param uri
+	 * @param vars Can be null
+	 * @return the page. Http errors complete the future exceptionally with the usual WebEx.
+	 */
+	public CompletableFuture<String> getPageAsync(String uri, Map<String, String> vars) {
+		String uri2 = WebUtils.addQueryParameters(uri, vars);
+		if (debug) Log.d("get", uri2);
+		return sendAsync(Utils.or(requestMethod, "GET"), uri2, null, null, followRedirects? MAX_REDIRECTS : 0);
+	}
+
+	/**
+	 * Async version of {@link #post(String, Map)} -- see {@link #getPageAsync(String, Map)} for details.
+	 */
+	public CompletableFuture<String> postAsync(String uri, Map<String, String> vars) {
+		return postAsync(uri, MIME_TYPE_URLENCODED_FORM, WebUtils.urlEncode(vars));
+	}
+
+	/**
+	 * Async version of {@link #post(String, String, String)} -- see {@link #getPageAsync(String, Map)} for details.
+	 * Like post(), this does not follow redirects.
+	 */
+	public CompletableFuture<String> postAsync(String uri, String contentType, String encodedPostBody) {
+		if (uri==null) throw new NullPointerException("target post uri is null");
+		if (debug) Log.d(LOGTAG, "post async "+uri);
+		return sendAsync(Utils.or(requestMethod, "POST"), uri, contentType, encodedPostBody, 0);
+	}
+
+	private CompletableFuture<String> sendAsync(String method, String uri, String contentType, String body, int redirects) {
+		URI u = URI.create(uri);
+		HttpRequest.Builder rb = HttpRequest.newBuilder(u)
+				.timeout(java.time.Duration.ofMillis(timeOutMilliSecs));
+		for(String h : reqHeaders.keySet()) {
+			Object v = reqHeaders.get(h);
+			if (v==null) continue;
+			try {
+				rb.header(h, v.toString());
+			} catch(IllegalArgumentException ex) {
+				// a header the http client sets itself, e.g. Content-Length or Host
+				Log.d(LOGTAG, "async: skip header "+h+" "+ex);
+			}
+		}
+		if (password!=null) {
+			rb.setHeader("Authorization", basicAuthHeader(name, password));
+		}
+		String cookies = getCookieHeader(u.getHost());
+		if (cookies!=null) {
+			rb.header("Cookie", cookies);
+		}
+		if (contentType!=null) {
+			rb.setHeader("Content-Type", contentType);
+		}
+		rb.method(method, body==null? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+		HttpRequest req = rb.build();
+		return HttpTransport.get().send(req).thenCompose(res -> {
+			int status = res.statusCode();
+			String url = res.uri().toString();
+			if (status >= 300 && status < 400) {
+				Optional<String> locn = res.headers().firstValue("Location");
+				if ( ! locn.isPresent()) {
+					throw new WebEx.E50X(status, url, "redirect without a location");
+				}
+				if (redirects <= 0) {
+					throw new WebEx.Redirect(status, url, locn.get());
+				}
+				String redirect = WebUtils.resolveUri(url, locn.get()).toString();
+				if (redirect.equals(url)) {
+					throw new WebEx.E50X(500, url, "Loopy redirect");
+				}
+				return sendAsync(method, redirect, contentType, body, redirects - 1);
+			}
+			String page = sendAsync2_body(res);
+			if (status >= 200 && status < 300) {
+				return CompletableFuture.completedFuture(page);
+			}
+			String errorMessage = status+" "+StrUtils.ellipsize(WebUtils.stripTags(page), 1500);
+			WebEx wex = processResponse3_webEx(status, url, errorMessage, null);
+			throw wex != null? wex : new WebEx.E50X(status, url, "(unrecognised code): "+errorMessage);
+		});
+	}
+
+	private String sendAsync2_body(HttpResponse<byte[]> res) {
+		byte[] bytes = res.body();
+		if (bytes==null) return "";
+		if (MAX_DOWNLOAD > 0 && bytes.length > MAX_DOWNLOAD) {
+			throw new WebEx.E50X(500, res.uri().toString(), "Response too big: "+bytes.length+" bytes");
+		}
+		Optional<String> enc = res.headers().firstValue("Content-Encoding");
+		if (enc.isPresent() && enc.get().equalsIgnoreCase("gzip")) {
+			try {
+				return FileUtils.read(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+			} catch (IOException e) {
+				throw Utils.runtime(e);
+			}
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
 	
 }
 
@@ -0,0 +1,168 @@
+package com.winterwell.web;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+/**
+ * A shared, thread-safe http transport for {@link FakeBrowser}'s async methods.
+ * This wraps java.net.http.HttpClient, which gives per-host connection pooling, keep-alive, and HTTP/2 where the server offers it
+ * (otherwise HTTP/1.1).
+ * <p>
+ * Concurrency is capped: while maxConcurrent requests are in flight, {@link #send(HttpRequest)} queues the request,
+ * and it goes out when another finishes. So a burst of work can't open thousands of sockets -- and the caller never blocks,
+ * even if a server stalls. NB: The wait-queue is not bounded, so callers should cap their own in-flight work 
+ * (as e.g. CallbackEndpoint does).
+ * <p>
+ * NB: Unlike FakeBrowser's sync methods, this does check SSL certificates.
+ *
+ * @author daniel
+ * @testedby  FakeBrowserTest}
+ */
+public final class HttpTransport {
+
+	private static volatile HttpTransport dflt;
+
+	/**
+	 * @return the shared transport. Created on first use with 64 concurrent requests and a 10 second connect timeout.
+	 */
+	public static HttpTransport get() {
+		if (dflt == null) {
+			synchronized (HttpTransport.class) {
+				if (dflt == null) {
+					dflt = new HttpTransport(64, new Dt(10, TUnit.SECOND));
+				}
+			}
+		}
+		return dflt;
+	}
+
+	/**
+	 * Replace the shared transport, e.g. to change the limits. Requests already in flight are not affected.
+	 */
+	public static void set(HttpTransport transport) {
+		dflt = transport;
+	}
+
+	private final HttpClient client;
+
+	private final Semaphore permits;
+
+	private final int maxConcurrent;
+
+	private final LongAdder sent = new LongAdder();
+
+	private final LongAdder failed = new LongAdder();
+
+	/**
+	 * Requests waiting for a permit
+	 */
+	private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue();
+
+	/**
+	 * @param maxConcurrent Max requests in flight (across all hosts)
+	 * @param connectTimeout
+	 */
+	public HttpTransport(int maxConcurrent, Dt connectTimeout) {
+		assert maxConcurrent > 0 : maxConcurrent;
+		this.maxConcurrent = maxConcurrent;
+		this.permits = new Semaphore(maxConcurrent);
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2) // falls back to 1.1
+				.connectTimeout(Duration.ofMillis(connectTimeout.getMillisecs()))
+				.followRedirects(HttpClient.Redirect.NEVER) // FakeBrowser does its own redirect handling
+				.build();
+	}
+
+	/**
+	 * Send a request. Never blocks: if maxConcurrent requests are already in flight, this is queued until one finishes.
+	 * @param req
+	 * @return the response, with the body read in full. Http error codes are NOT turned into exceptions here.
+	 */
+	public CompletableFuture<HttpResponse<byte[]>> send(HttpRequest req) {
+		CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture();
+		waiting.add(() -> send2(req, result));
+		send2_next();
+		return result;
+	}
+
+	/**
+	 * Start waiting requests while there are permits. Called after each send and each completion.
+	 */
+	private void send2_next() {
+		while( ! waiting.isEmpty() && permits.tryAcquire()) {
+			Runnable r = waiting.poll();
+			if (r == null) {
+				// another thread took it
+				permits.release();
+				continue;
+			}
+			r.run();
+		}
+	}
+
+	/**
+	 * Called holding a permit
+	 */
+	private void send2(HttpRequest req, CompletableFuture<HttpResponse<byte[]>> result) {
+		sent.increment();
+		CompletableFuture<HttpResponse<byte[]>> f;
+		try {
+			f = client.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray());
+		} catch (Throwable ex) {
+			failed.increment();
+			permits.release();
+			result.completeExceptionally(ex);
+			return;
+		}
+		f.whenComplete((res, ex) -> {
+			permits.release();
+			if (ex != null) {
+				failed.increment();
+				result.completeExceptionally(ex);
+			} else {
+				result.complete(res);
+			}
+			// start the next waiting request, if any
+			send2_next();
+		});
+	}
+
+	/**
+	 * @return number of requests waiting for a free slot
+	 */
+	public int getQueued() {
+		return waiting.size();
+	}
+
+	/**
+	 * @return number of requests currently in flight
+	 */
+	public int getInFlight() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	/**
+	 * @return number of requests which failed at the transport level (e.g. connection refused, timeout) -- not http error codes.
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "HttpTransport[inFlight=" + getInFlight() + "/" + maxConcurrent + ", queued=" + getQueued() + ", sent=" + getSent() + ", failed=" + getFailed() + "]";
+	}
+}
@@ -1,12 +1,27 @@
 package com.winterwell.web;
 
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
 
 public class FakeBrowserTest {
 
@@ -68,4 +83,144 @@ public class FakeBrowserTest {
 		}
 	}
 
+
+	/**
+	 * A local server: /ok, /slow (200ms), /redirect (to /ok), anything else 404.
+	 * Records the client ports (one per tcp connection) and the max concurrent requests.
+	 */
+	static class LocalServer {
+		final HttpServer server;
+		final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet());
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+
+		LocalServer() throws Exception {
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+			server.setExecutor(Executors.newCachedThreadPool());
+			server.createContext("/", this::handle);
+			server.start();
+		}
+
+		String url(String path) {
+			return "http://localhost:"+server.getAddress().getPort()+path;
+		}
+
+		void handle(HttpExchange ex) throws java.io.IOException {
+			clientPorts.add(ex.getRemoteAddress().getPort());
+			int n = inFlight.incrementAndGet();
+			maxInFlight.accumulateAndGet(n, Math::max);
+			try {
+				String path = ex.getRequestURI().getPath();
+				if (path.equals("/slow")) Utils.sleep(200);
+				if (path.equals("/redirect")) {
+					ex.getResponseHeaders().add("Location", "/ok");
+					ex.sendResponseHeaders(302, -1);
+					ex.close();
+					return;
+				}
+				int code = path.equals("/ok") || path.equals("/slow")? 200 : 404;
+				byte[] body = (code==200? "ok" : "not found").getBytes();
+				ex.sendResponseHeaders(code, body.length);
+				try (OutputStream out = ex.getResponseBody()) {
+					out.write(body);
+				}
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+		void stop() {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		LocalServer ls = new LocalServer();
+		try {
+			for(int i=0; i<20; i++) {
+				// a fresh browser each time, as in e.g. CallbackManager
+				String page = new FakeBrowser().getPage(ls.url("/ok"));
+				assert page.equals("ok") : page;
+			}
+			assert ls.clientPorts.size() == 1 : ls.clientPorts;
+			// an error page should not break re-use
+			try {
+				new FakeBrowser().getPage(ls.url("/nope"));
+				assert false;
+			} catch(WebEx.E404 ex) {
+				// expected
+			}
+			new FakeBrowser().getPage(ls.url("/ok"));
+			assert ls.clientPorts.size() == 1 : ls.clientPorts;
+			// switched off
+			ls.clientPorts.clear();
+			for(int i=0; i<5; i++) {
+				new FakeBrowser().setKeepAlive(false).getPage(ls.url("/ok"));
+			}
+			assert ls.clientPorts.size() == 5 : ls.clientPorts;
+		} finally {
+			ls.stop();
+		}
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		LocalServer ls = new LocalServer();
+		try {
+			FakeBrowser fb = new FakeBrowser();
+			List<CompletableFuture<String>> fs = new ArrayList();
+			for(int i=0; i<50; i++) {
+				fs.add(fb.getPageAsync(ls.url("/ok"), new ArrayMap("i", i)));
+			}
+			for (CompletableFuture<String> f : fs) {
+				assert f.get().equals("ok");
+			}
+			// pooled: more requests re-use those connections
+			int n = ls.clientPorts.size();
+			for(int i=0; i<20; i++) {
+				assert fb.getPageAsync(ls.url("/ok"), null).get().equals("ok");
+			}
+			assert ls.clientPorts.size() == n : n+" vs "+ls.clientPorts.size();
+			// redirect
+			assert fb.getPageAsync(ls.url("/redirect"), null).get().equals("ok");
+			// post
+			assert fb.postAsync(ls.url("/ok"), new ArrayMap("a", "b")).get().equals("ok");
+			// errors
+			try {
+				fb.getPageAsync(ls.url("/nope"), null).get();
+				assert false;
+			} catch(ExecutionException ex) {
+				assert ex.getCause() instanceof WebEx.E404 : ex.getCause();
+			}
+		} finally {
+			ls.stop();
+		}
+	}
+
+	@Test
+	public void testAsyncConcurrencyLimit() throws Exception {
+		LocalServer ls = new LocalServer();
+		HttpTransport.set(new HttpTransport(4, new Dt(5, TUnit.SECOND)));
+		try {
+			FakeBrowser fb = new FakeBrowser();
+			List<CompletableFuture<String>> fs = new ArrayList();
+			long t = System.currentTimeMillis();
+			for(int i=0; i<12; i++) {
+				fs.add(fb.getPageAsync(ls.url("/slow"), null));
+			}
+			// queued, not blocked
+			assert System.currentTimeMillis() - t < 200;
+			assert HttpTransport.get().getQueued() > 0 : HttpTransport.get();
+			for (CompletableFuture<String> f : fs) {
+				assert f.get().equals("ok");
+			}
+			assert ls.maxInFlight.get() <= 4 : ls.maxInFlight;
+			assert HttpTransport.get().getSent() == 12 : HttpTransport.get();
+			assert HttpTransport.get().getQueued() == 0 && HttpTransport.get().getInFlight() == 0 : HttpTransport.get();
+		} finally {
+			HttpTransport.set(null);
+			ls.stop();
+		}
+	}
 }
@@ -862,6 +862,18 @@ public class AppUtils {
 	 * @return
 	 */
 	public static BoolQueryBuilder makeESFilterFromSearchQuery(SearchQuery sq, Time start, Time end) {
+		return makeESFilterFromSearchQuery(sq, start, end, false);
+	}
+	
+	/**
+	 * @param sq never null
+	 * @param start Inclusive
+	 * @param end
+	 * @param endExclusive If true, filter start <= time < end. Otherwise start <= time <= end (the ES default).
+	 * Use this for searches which are split into back-to-back parts, so an event on a boundary is only counted once.
+	 * @return
+	 */
+	public static BoolQueryBuilder makeESFilterFromSearchQuery(SearchQuery sq, Time start, Time end, boolean endExclusive) {
 		assert sq != null;
 		
 		BoolQueryBuilder filter = ESQueryBuilders.boolQuery();
@@ -873,8 +885,17 @@ public class AppUtils {
 				}
 				throw new WebEx.E400("Bad date range: start: "+start+" end: "+end+" Search: "+sq);
 			}
-			ESQueryBuilder timeFilter = ESQueryBuilders.dateRangeQuery("time", start, end);
-			filter = filter.must(timeFilter);
+			if (endExclusive && end != null) {
+				// NB: dateRangeQuery is inclusive, so use a "lt" range for the end.
+				// Epoch milliseconds are safe there: ES date fields accept them by default, and there's no rounding to the second.
+				if (start != null) {
+					filter = filter.must(ESQueryBuilders.dateRangeQuery("time", start, null));
+				}
+				filter = filter.must(ESQueryBuilders.rangeQuery("time", null, end.getTime(), false));
+			} else {
+				ESQueryBuilder timeFilter = ESQueryBuilders.dateRangeQuery("time", start, end);
+				filter = filter.must(timeFilter);
+			}
 		}
 		
 		// filters TODO a true recursive SearchQuery -> ES query mapping
@@ -2,9 +2,9 @@ package com.winterwell.web.app;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -42,9 +42,9 @@ import com.winterwell.utils.ReflectionUtils;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.WrappedException;
+import com.winterwell.utils.containers.AbstractIterator;
 import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.containers.Containers;
-import com.winterwell.utils.io.CSVSpec;
 import com.winterwell.utils.io.CSVWriter;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
@@ -54,7 +54,6 @@ import com.winterwell.utils.time.Time;
 import com.winterwell.utils.web.JsonPatch;
 import com.winterwell.utils.web.JsonPatchOp;
 import com.winterwell.utils.web.SimpleJson;
-import com.winterwell.utils.web.WebUtils;
 import com.winterwell.utils.web.WebUtils2;
 import com.winterwell.web.WebEx;
 import com.winterwell.web.ajax.AjaxMsg;
@@ -66,6 +65,7 @@ import com.winterwell.web.data.IHasXId;
 import com.winterwell.web.data.XId;
 import com.winterwell.web.fields.Checkbox;
 import com.winterwell.web.fields.IntField;
+import com.winterwell.web.fields.ListField;
 import com.winterwell.web.fields.SField;
 import com.winterwell.youagain.client.AuthToken;
 import com.winterwell.youagain.client.NoAuthException;
@@ -503,6 +503,11 @@ public abstract class CrudServlet<T> implements IServlet {
 	}
 
 	protected ESHttpClient es = Dep.get(ESHttpClient.class);
+
+	/**
+	 * Page size when streaming a csv export
+	 */
+	private static final int CSV_PAGE_SIZE = 1000;
 	protected final Class<T> type;
 	protected JThing<T> jthing;
 
@@ -725,12 +730,79 @@ public abstract class CrudServlet<T> implements IServlet {
 		}
 		Period period = CommonFields.getPeriod(state);
 		
+		YouAgainClient yac = Dep.get(YouAgainClient.class);
+		List<AuthToken> tokens = yac.getAuthTokens(state);
+		
+		// csv? Stream it, paging through all the results
+		if (state.getResponseType() == KResponseType.csv) {
+			// all of them, unless size is set
+			int max = state.get(SIZE, Integer.MAX_VALUE);
+			SearchRequest s = doList2_prepare(q, prefix, status, sort, Math.min(max, CSV_PAGE_SIZE), 0, period, state);
+			ESScrollPages pages = new ESScrollPages(es, s);
+			Iterable<ESHit<T>> hits = () -> new AbstractIterator<ESHit<T>>() {
+				Iterator<ESHit<T>> page;
+				int cnt;
+				@Override
+				protected ESHit<T> next2() throws Exception {
+					if (cnt == max) return null;
+					cnt++;
+					while(page==null || ! page.hasNext()) {
+						if ( ! pages.hasNext()) return null;
+						List<ESHit<T>> _hits = pages.next().getHits(type);
+						// NB: dedupe is per page
+						page = doList3_process(_hits, status, now, state, tokens, yac).iterator();
+					}
+					return page.next();
+				}
+			};
+			try {
+				doSendCsv(state, hits);
+			} finally {
+				// release the scroll if we stopped early (hit max, or the client went away)
+				pages.close();
+			}
+			return new ArrayList(); // streamed, not kept
+		}
+		
 		SearchResponse sr = doList2(q, prefix, status, sort, size,from, period, state);
 		
 //		Map<String, Object> jobj = sr.getParsedJson();
 		// Let's deal with ESHit and JThings
 		List<ESHit<T>> _hits = sr.getHits(type);
-
+		List<ESHit<T>> hits2 = doList3_process(_hits, status, now, state, tokens, yac);
+		
+		// augment?
+		if (augmentFlag) {
+			for(int i=0; i<hits2.size(); i++) {
+				ESHit<T> h = hits2.get(i);
+				JThing<T> aug = augmentListItem(h.getJThing(), state);
+				if (aug==null) continue;
+				ESHit ah = new ESHit(aug);
+				hits2.set(i, ah);
+			}
+		}
+		// put together the json response	
+		long total = sr.getTotal();
+		List<Map> items = Containers.apply(hits2, h -> h.getJThing().map());
+		String json = gson().toJson(
+				new ArrayMap(
+					"hits", items, 
+					"total", total
+				));
+		JsonResponse output = new JsonResponse(state).setCargoJson(json);
+		// ...send
+		WebUtils2.sendJson(output, state);
+		return hits2;
+	}
+	
+	/**
+	 * init, dedupe, security filter, cleanse -- for one page of results
+	 * @param _hits Raw hits from ES
+	 * @return hits to send
+	 */
+	private List<ESHit<T>> doList3_process(List<ESHit<T>> _hits, KStatus status, Time now, 
+			WebRequest state, List<AuthToken> tokens, YouAgainClient yac) 
+	{
 		// init java objects (this acts as a safety check on bad data)
 		_hits = init(_hits);
 		
@@ -747,8 +819,6 @@ public abstract class CrudServlet<T> implements IServlet {
 		}
 		
 		// security filter
-		YouAgainClient yac = Dep.get(YouAgainClient.class);
-		List<AuthToken> tokens = yac.getAuthTokens(state);
 		hits2 = doList2_securityFilter(hits2, state, tokens, yac);
 		
 		// sanitise for privacy
@@ -773,38 +843,13 @@ public abstract class CrudServlet<T> implements IServlet {
 			}
 		}	
 		
-		// HACK: send back csv?
-		if (state.getResponseType() == KResponseType.csv) {
-			doSendCsv(state, hits2);
-			return hits2;
-		}
-		
-		// augment?
-		if (augmentFlag) {
-			for(int i=0; i<hits2.size(); i++) {
-				ESHit<T> h = hits2.get(i);
-				JThing<T> aug = augmentListItem(h.getJThing(), state);
-				if (aug==null) continue;
-				ESHit ah = new ESHit(aug);
-				hits2.set(i, ah);
-			}
-		}
-		// put together the json response	
-		long total = sr.getTotal();
-		List<Map> items = Containers.apply(hits2, h -> h.getJThing().map());
-		String json = gson().toJson(
-				new ArrayMap(
-					"hits", items, 
-					"total", total
-				));
-		JsonResponse output = new JsonResponse(state).setCargoJson(json);
-		// ...send
-		WebUtils2.sendJson(output, state);
 		return hits2;
 	}
-	
+
 	/**
-	 * Override to apply security filtering
+	 * Override to apply security filtering.
+	 * Tip: use {@link com.winterwell.youagain.client.ShareClient#filterSharedWith(List, java.util.Collection, String)}
+	 * to check a whole page in one (cached) call.
 	 * @param hits2
 	 * @param state 
 	 * @param tokens 
@@ -977,6 +1022,23 @@ public abstract class CrudServlet<T> implements IServlet {
 	 * @param num 
 	 */
 	public final SearchResponse doList2(String q, String prefix, KStatus status, String sort, int size, int from, Period period, WebRequest stateOrNull) {
+		SearchRequest s = doList2_prepare(q, prefix, status, sort, size, from, period, stateOrNull);
+		
+		// Call the DB
+		SearchResponse sr = s.get();
+		
+//		if (stateOrNull!=null && stateOrNull.debug) { TODO debug is quiet on the front end
+//			stateOrNull.addMessage(new AjaxMsg(KNoteType.debug, "ES", s.getCurl()));
+//		}
+		
+		return sr;
+	}
+
+	/**
+	 * Build (but don't run) the search for {@link #doList2(String, String, KStatus, String, int, int, Period, WebRequest)}
+	 */
+	protected final SearchRequest doList2_prepare(String q, String prefix, KStatus status, String sort, int size, int from, Period period, WebRequest stateOrNull) {
+
 		// copied from SoGive SearchServlet
 		SearchRequest s = new SearchRequest(es);
 		/// which index? draft (which should include copies of published) by default
@@ -1010,16 +1072,9 @@ public abstract class CrudServlet<T> implements IServlet {
 		s.setSize(size);
 		s.setFrom(from); // allows for paging within 10k of results
 		s.setDebug(true);
-//		s.setScroll(null) TODO support for big +10k data
+		// NB: for +10k results, see ESScrollPages (as used for csv)
 
-		// Call the DB
-		SearchResponse sr = s.get();
-		
-//		if (stateOrNull!=null && stateOrNull.debug) { TODO debug is quiet on the front end
-//			stateOrNull.addMessage(new AjaxMsg(KNoteType.debug, "ES", s.getCurl()));
-//		}
-		
-		return sr;
+		return s;
 	}
 
 
@@ -1286,17 +1341,24 @@ public abstract class CrudServlet<T> implements IServlet {
 
 
 
-	protected void doSendCsv(WebRequest state, List<ESHit<T>> hits2) {
-		StringWriter sout = new StringWriter();
-		CSVWriter w = new CSVWriter(sout, new CSVSpec());
-		
-		Json2Csv j2c = new Json2Csv(w);		
-		// TODO!
-		
-		// send
-		String csv = sout.toString();
-		state.getResponse().setContentType(WebUtils.MIME_TYPE_CSV); // + utf8??
-		WebUtils2.sendText(csv, state.getResponse());
+	/**
+	 * Stream the hits out as csv. Headers are inferred from the first rows, or set by the "headers" parameter.
+	 * @param hits2 Can be a lazy stream -- it is only iterated over once.
+	 */
+	protected void doSendCsv(WebRequest state, Iterable<ESHit<T>> hits2) throws IOException {
+		CSVWriter w = Json2Csv.openResponse(state);
+		try {
+			Json2Csv j2c = new Json2Csv(w);
+			// optionally have headers set
+			List<String> headers = state.get(new ListField<>("headers"));
+			if (headers != null) {
+				j2c.setHeaders(headers);
+			}
+			Iterable<Map> rows = Containers.applyLazy(hits2, h -> h.getJThing().map());
+			j2c.run(rows);
+		} finally {
+			FileUtils.close(w);
+		}
 	}
 	
 
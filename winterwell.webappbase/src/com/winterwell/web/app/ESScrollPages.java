@@ -0,0 +1,101 @@
+package com.winterwell.web.app;
+
+import java.io.Closeable;
+import java.util.List;
+
+import com.winterwell.es.client.ESHttpClient;
+import com.winterwell.es.client.SearchRequest;
+import com.winterwell.es.client.SearchResponse;
+import com.winterwell.es.client.SearchScrollRequest;
+import com.winterwell.utils.containers.AbstractIterator;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.web.WebUtils;
+import com.winterwell.web.FakeBrowser;
+
+/**
+ * Page through all the results of a search using the ES scroll api -- e.g. for exports beyond the 10k from/size limit.
+ * Pages are fetched on demand, so only one page is held at a time.
+ * <p>
+ * The scroll is cleared on the ES server once the last page has been read.
+ * If you stop early, call {@link #close()} (otherwise it's held until keepAlive runs out).
+ *
+ * @author daniel
+ * @testedby  ESScrollPagesTest}
+ */
+public class ESScrollPages extends AbstractIterator<SearchResponse> implements Closeable {
+
+	private static final String LOGTAG = "ESScrollPages";
+
+	private final ESHttpClient es;
+	private final SearchRequest search;
+	private final Dt keepAlive;
+	private String scrollId;
+	private boolean started;
+	private boolean done;
+
+	/**
+	 * @param es
+	 * @param search Not yet run. Its size is the page size.
+	 */
+	public ESScrollPages(ESHttpClient es, SearchRequest search) {
+		this(es, search, new Dt(1, TUnit.MINUTE));
+	}
+
+	/**
+	 * @param keepAlive How long ES should hold the scroll between pages
+	 */
+	public ESScrollPages(ESHttpClient es, SearchRequest search, Dt keepAlive) {
+		this.es = es;
+		this.search = search;
+		this.keepAlive = keepAlive;
+	}
+
+	@Override
+	protected SearchResponse next2() throws Exception {
+		if (done) return null;
+		SearchResponse sr;
+		if ( ! started) {
+			started = true;
+			search.setScroll(keepAlive);
+			sr = search.get();
+		} else {
+			SearchScrollRequest ssr = new SearchScrollRequest(es, scrollId);
+			ssr.setScroll(keepAlive);
+			sr = ssr.get();
+		}
+		sr.check();
+		// NB: ES can return a new scroll id with each page -- the latest one is the one to clear
+		String sid = sr.getScrollId();
+		if (sid != null) scrollId = sid;
+		List hits = sr.getHits();
+		if (hits==null || hits.isEmpty()) {
+			close();
+			return null;
+		}
+		// no scroll id => that was the only page
+		if (scrollId==null) done = true;
+		return sr;
+	}
+
+	/**
+	 * Stop, and release the scroll on the ES server. Safe to repeat.
+	 */
+	@Override
+	public void close() {
+		done = true;
+		if (scrollId==null) return;
+		String sid = scrollId;
+		scrollId = null;
+		try {
+			// the client has no clear-scroll request, so call the ES api directly
+			FakeBrowser fb = new FakeBrowser();
+			fb.delete(es.getConfig().esUrl+"/_search/scroll/"+WebUtils.urlEncode(sid), null);
+		} catch(Exception ex) {
+			// not a disaster -- it will expire after keepAlive
+			Log.w(LOGTAG, "Could not clear scroll: "+ex);
+		}
+	}
+
+}
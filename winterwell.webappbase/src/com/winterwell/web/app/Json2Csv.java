@@ -1,71 +1,129 @@
 package com.winterwell.web.app;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
 
 import com.winterwell.utils.Printer;
 import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.io.CSVSpec;
 import com.winterwell.utils.io.CSVWriter;
+import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.web.SimpleJson;
+import com.winterwell.utils.web.WebUtils;
 
+/**
+ * Write json objects out as csv rows. This streams: rows are written as they're read from the input,
+ * so memory use does not grow with the size of the export.
+ * If headers are not set, they're inferred from the first few rows (see {@link #setHeaderSample(int)}).
+ *
+ * @testedby  Json2CsvTest}
+ */
 public class Json2Csv {
 
 	private CSVWriter w;
 	private List<String> headers;
+	private int headerSample = 100;
 
 	public Json2Csv(CSVWriter w) {
 		this.w = w;
 	}
-	
+
+	/**
+	 * Set up a streaming csv http response -- gzipped if the client accepts that.
+	 * Close the returned writer when done (Json2Csv.run() does this).
+	 * @param state
+	 */
+	public static CSVWriter openResponse(WebRequest state) throws IOException {
+		HttpServletResponse response = state.getResponse();
+		response.setContentType(WebUtils.MIME_TYPE_CSV);
+		response.setCharacterEncoding("UTF-8");
+		OutputStream out = response.getOutputStream();
+		String accept = state.getRequest().getHeader("Accept-Encoding");
+		if (accept != null && accept.contains("gzip")) {
+			response.setHeader("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(out, 8192);
+		}
+		return new CSVWriter(FileUtils.getWriter(out), new CSVSpec());
+	}
+
 	public Json2Csv setHeaders(List<String> headers) {
 		this.headers = headers;
 		return this;
 	}
-	
-	public void run(Iterable<Map> hits2) {		
+
+	/**
+	 * @param n How many rows to look at when inferring headers. Default: 100
+	 */
+	public Json2Csv setHeaderSample(int n) {
+		assert n > 0 : n;
+		this.headerSample = n;
+		return this;
+	}
+
+	/**
+	 * Write the rows, then close the writer.
+	 * @param hits2 This is only iterated over once, so it can be a lazy stream (e.g. paging through a database).
+	 */
+	public void run(Iterable<Map> hits2) {
+		Iterator<Map> it = hits2.iterator();
 		// what headers??
+		List<Map> sample = new ArrayList();
 		if (headers==null) {
-			List<Map> list = Containers.getList(hits2);
-			hits2 = list;
-			headers = doSendCsv2_getHeaders(list);	
+			while(it.hasNext() && sample.size() < headerSample) {
+				sample.add(it.next());
+			}
+			headers = doSendCsv2_getHeaders(sample);
 		}
-		
+
 		// write
 		w.write(headers);
-		for (Map hit : hits2) {
-			List<Object> line = Containers.apply(headers, h -> {
-				String[] p = h.split("\\.");
-				Object v = SimpleJson.get(hit, p);
-				if (v==null) {
-					return null;
-				}
-				if (v.getClass().isArray()) {
-					v = Printer.toString(Containers.asList(v), " ");
-				}
-				return v;
-			});
-			w.write(line);
+		for (Map hit : sample) {
+			run2_writeRow(hit);
+		}
+		sample = null;
+		while(it.hasNext()) {
+			run2_writeRow(it.next());
 		}
 		w.close();
+	}
 
+	private void run2_writeRow(Map hit) {
+		List<Object> line = Containers.apply(headers, h -> {
+			String[] p = h.split("\\.");
+			Object v = SimpleJson.get(hit, p);
+			if (v==null) {
+				return null;
+			}
+			if (v.getClass().isArray()) {
+				v = Printer.toString(Containers.asList(v), " ");
+			}
+			return v;
+		});
+		w.write(line);
 	}
 
-	
+
 	/**
-	 * 
-	 * @param state
-	 * @param hits2 
-	 * @return
+	 *
+	 * @param hits2 A sample of the rows
+	 * @return the keys of the sample rows, in order of first appearance
 	 */
 	protected List<String> doSendCsv2_getHeaders(List<Map> hits2) {
-		if (hits2.isEmpty()) return new ArrayList();
-		Map hit = hits2.get(0);
-		ArrayList map = new ArrayList();
-		for(Object k : hit.keySet()) {
-			map.add(""+k);
+		LinkedHashSet<String> keys = new LinkedHashSet();
+		for (Map hit : hits2) {
+			for(Object k : hit.keySet()) {
+				keys.add(""+k);
+			}
 		}
-		return map;
+		return new ArrayList(keys);
 //		// TODO proper recursive
 //		ObjectDistribution<String> headers = new ObjectDistribution();
 //		for (Map<String,Object> hit : hits2) {
@@ -82,13 +140,13 @@ public class Json2Csv {
 //		List<String> level1 = Containers.filter(hs, h -> ! h.contains("."));
 //		hs.removeAll(level1);
 //		Collections.sort(hs);
-//		Collections.sort(level1);		
+//		Collections.sort(level1);
 //		// start with ID, name
 //		level1.remove("name");
 //		level1.remove("@id");
 //		Collections.reverse(level1);
 //		level1.add("name");
-//		level1.add("@id");		
+//		level1.add("@id");
 //		level1.forEach(h -> hs.add(0, h));
 //		hs.removeIf(h -> h.contains("@type") || h.contains("value100"));
 	}
@@ -0,0 +1,134 @@
+package com.winterwell.web.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.winterwell.es.client.ESConfig;
+import com.winterwell.es.client.ESHttpClient;
+import com.winterwell.es.client.SearchRequest;
+import com.winterwell.es.client.SearchResponse;
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * @tested {@link ESScrollPages}
+ * @author daniel
+ *
+ */
+public class ESScrollPagesTest {
+
+	/**
+	 * A fake ES which serves 5 docs, 2 per page, with a new scroll id per page.
+	 * Records the clear-scroll calls.
+	 */
+	static class FakeES {
+		static final int DOCS = 5, PAGE = 2;
+		final HttpServer server;
+		final List<String> cleared = Collections.synchronizedList(new ArrayList());
+		int page;
+
+		FakeES() throws IOException {
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext("/", this::handle);
+			server.start();
+		}
+
+		String getUrl() {
+			return "http://localhost:"+server.getAddress().getPort();
+		}
+
+		void handle(HttpExchange ex) throws IOException {
+			String path = ex.getRequestURI().getPath();
+			FileUtils.readRaw(ex.getRequestBody());
+			String json;
+			if (path.startsWith("/_search/scroll") && "DELETE".equals(ex.getRequestMethod())) {
+				cleared.add(path.substring("/_search/scroll/".length()));
+				json = "{\"succeeded\":true,\"num_freed\":1}";
+			} else if (path.contains("_search")) {
+				// 1st search, or next scroll
+				if ( ! path.startsWith("/_search/scroll")) page = 0;
+				json = page(page++);
+			} else {
+				json = "{\"version\":{\"number\":\"7.9.2\"},\"tagline\":\"You Know, for Search\"}";
+			}
+			byte[] bytes = json.getBytes("UTF-8");
+			ex.getResponseHeaders().set("Content-Type", "application/json");
+			ex.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = ex.getResponseBody()) {
+				out.write(bytes);
+			}
+		}
+
+		String page(int p) {
+			StringBuilder hits = new StringBuilder();
+			for(int i=p*PAGE; i<Math.min(DOCS, (p+1)*PAGE); i++) {
+				if (hits.length() != 0) hits.append(",");
+				hits.append("{\"_index\":\"test\",\"_id\":\"doc"+i+"\",\"_source\":{\"n\":"+i+"}}");
+			}
+			return "{\"_scroll_id\":\"sid"+p+"\",\"took\":1,\"timed_out\":false,"
+					+"\"hits\":{\"total\":{\"value\":"+DOCS+",\"relation\":\"eq\"},\"hits\":["+hits+"]}}";
+		}
+
+		void stop() {
+			server.stop(0);
+		}
+	}
+
+	private ESScrollPages pages(FakeES fake) {
+		ESConfig config = new ESConfig();
+		config.esUrl = fake.getUrl();
+		ESHttpClient esc = new ESHttpClient(config);
+		SearchRequest search = esc.prepareSearch("test");
+		search.setSize(FakeES.PAGE);
+		return new ESScrollPages(esc, search);
+	}
+
+	@Test
+	public void testAllPages() throws Exception {
+		FakeES fake = new FakeES();
+		try {
+			ESScrollPages pages = pages(fake);
+			int n = 0, np = 0;
+			while(pages.hasNext()) {
+				SearchResponse sr = pages.next();
+				n += sr.getHits().size();
+				np++;
+			}
+			assert np == 3 : np;
+			assert n == FakeES.DOCS : n;
+			// the end clears the scroll -- using the latest id
+			assert fake.cleared.equals(Collections.singletonList("sid3")) : fake.cleared;
+			// nothing more to do
+			pages.close();
+			assert fake.cleared.size() == 1 : fake.cleared;
+		} finally {
+			fake.stop();
+		}
+	}
+
+	@Test
+	public void testCloseEarly() throws Exception {
+		FakeES fake = new FakeES();
+		try {
+			ESScrollPages pages = pages(fake);
+			SearchResponse sr = pages.next();
+			assert sr.getHits().size() == FakeES.PAGE;
+			assert fake.cleared.isEmpty();
+			pages.close();
+			assert fake.cleared.equals(Collections.singletonList("sid0")) : fake.cleared;
+			assert ! pages.hasNext();
+			// safe to repeat
+			pages.close();
+			assert fake.cleared.size() == 1 : fake.cleared;
+		} finally {
+			fake.stop();
+		}
+	}
+}
@@ -1,13 +1,18 @@
 package com.winterwell.web.app;
 
 import java.io.File;
+import java.io.StringWriter;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.eclipse.jetty.util.ajax.JSON;
 import org.junit.Test;
 
+import com.winterwell.utils.containers.AbstractIterator;
+import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.io.CSVSpec;
 import com.winterwell.utils.io.CSVWriter;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.web.SimpleJson;
@@ -35,4 +40,35 @@ public class Json2CsvTest {
 		w.close();
 	}
 
+	/**
+	 * Rows are written as they're pulled, and headers come from a sample.
+	 */
+	@Test
+	public void testStreaming() {
+		StringWriter sout = new StringWriter();
+		CSVWriter w = new CSVWriter(sout, new CSVSpec());
+		Json2Csv j2c = new Json2Csv(w).setHeaderSample(3);
+		int[] pulled = new int[1];
+		Iterable<Map> rows = () -> new AbstractIterator<Map>() {
+			@Override
+			protected Map next2() {
+				int i = pulled[0]++;
+				if (i == 100000) return null;
+				// check the earlier rows have gone out, i.e. nothing is building up in memory
+				if (i == 50000) assert sout.getBuffer().length() > 0;
+				if (i == 1) return new ArrayMap("a", i, "b", "x"+i, "c", "late");
+				if (i == 10) return new ArrayMap("a", i, "d", "not-in-sample");
+				return new ArrayMap("a", i, "b", "x"+i);
+			}
+		};
+		j2c.run(rows);
+		String csv = sout.toString();
+		String[] lines = csv.split("\r?\n");
+		assert lines[0].equals("a,b,c") : lines[0];
+		assert lines.length == 100001 : lines.length;
+		assert lines[2].equals("1,x1,late") : lines[2];
+		assert ! csv.contains("not-in-sample");
+		assert lines[100000].startsWith("99999,") : lines[100000];
+	}
+
 }
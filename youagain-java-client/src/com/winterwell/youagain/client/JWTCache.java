@@ -0,0 +1,129 @@
+package com.winterwell.youagain.client;
+
+import java.util.Date;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.containers.Cache;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.web.WebEx;
+
+/**
+ * Remember which JWTs have been verified (or rejected), so the RSA signature check in
+ * {@link JWTDecoder#decryptJWT(String)} is done once per token, rather than once per request.
+ * <p>
+ * - Keyed by a hash of the token (so we don't hold lots of live tokens in memory).<br>
+ * - Bounded: a CLOCK {@link Cache}.<br>
+ * - Honours the JWT "exp" claim -- a verdict is never kept past the token's expiry.<br>
+ * - Bad tokens are remembered too (briefly), so a client hammering us with a broken token doesn't cost an RSA check each time.
+ *
+ * @author daniel
+ * @testedby  JWTCacheTest}
+ */
+public final class JWTCache {
+
+	private static final class Verdict {
+		/**
+		 * null for a bad token
+		 */
+		final String subject;
+		final String error;
+		final long expires;
+
+		Verdict(String subject, String error, long expires) {
+			this.subject = subject;
+			this.error = error;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Max time to trust a verified token for (even if it has a later expiry, or none)
+	 */
+	Dt maxTTL = TUnit.HOUR.dt;
+
+	/**
+	 * How long to remember a bad token for
+	 */
+	Dt badTTL = TUnit.MINUTE.dt;
+
+	private final Cache<String, Verdict> cache;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder rejects = new LongAdder();
+
+	public JWTCache(int capacity) {
+		cache = new Cache(capacity);
+	}
+
+	/**
+	 *
+	 * @param jwt
+	 * @param dec Used on a cache miss
+	 * @return the verified subject (an XId string)
+	 * @throws RuntimeException if the token is bad. For a remembered bad token, this is a {@link WebEx.E401}
+	 */
+	public String verify(String jwt, JWTDecoder dec) {
+		String key = StrUtils.hash("SHA256", jwt);
+		long now = System.currentTimeMillis();
+		Verdict v = cache.get(key);
+		if (v != null && v.expires < now) {
+			cache.remove(key);
+			v = null;
+		}
+		if (v != null) {
+			if (v.subject != null) {
+				hits.increment();
+				return v.subject;
+			}
+			rejects.increment();
+			throw new WebEx.E401(null, "JWT rejected (cached): "+v.error);
+		}
+		// verify it
+		misses.increment();
+		DecodedJWT decd;
+		try {
+			decd = dec.decryptJWT(jwt);
+		} catch(RuntimeException ex) {
+			cache.put(key, new Verdict(null, ex.getMessage(), now + badTTL.getMillisecs()));
+			throw ex;
+		}
+		long expires = now + maxTTL.getMillisecs();
+		Date exp = decd.getExpiresAt();
+		if (exp != null) {
+			expires = Math.min(expires, exp.getTime());
+		}
+		String subject = decd.getSubject();
+		if (subject != null) {
+			cache.put(key, new Verdict(subject, null, expires));
+		}
+		return subject;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of requests turned away by a remembered bad-token verdict
+	 */
+	public long getRejects() {
+		return rejects.sum();
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "JWTCache[hits=" + getHits() + ", misses=" + getMisses() + ", rejects=" + getRejects() + "]";
+	}
+}
@@ -1,17 +1,26 @@
 package com.winterwell.youagain.client;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import org.eclipse.jetty.util.ajax.JSON;
 
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.containers.Cache;
 import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.web.SimpleJson;
 import com.winterwell.utils.web.WebUtils2;
 import com.winterwell.web.FakeBrowser;
@@ -20,6 +29,15 @@ import com.winterwell.web.ajax.JSend;
 import com.winterwell.web.ajax.JThing;
 import com.winterwell.web.data.XId;
 
+/**
+ * Sharing via the YouAgain server.
+ * <p>
+ * Share lists are cached locally (per user, for {@link #ttl}), so permission checks on the request path
+ * don't each cost a remote call. Shares made or deleted via this client invalidate the cache straight away.
+ * Get via {@link YouAgainClient#sharing()}.
+ *
+ * @testedby  ShareClientTest}
+ */
 public final class ShareClient {
 
 	public static final String ACTION_SHARE = "share";
@@ -33,6 +51,89 @@ public final class ShareClient {
 
 	YouAgainClient yac;
 
+	private static final class Cached {
+		final Object value;
+		final long expires;
+
+		Cached(Object value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * How long to trust a cached share list. Shares made elsewhere (e.g. by another server) can take this long to show up.
+	 */
+	Dt ttl = new Dt(30, TUnit.SECOND);
+
+	/**
+	 * key: [action, shared-thing or prefix, user XIds...]
+	 */
+	private final Cache<List, Cached> cache = new Cache(10000);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @return cache key, or null if these auths shouldn't be cached (e.g. an unverified token)
+	 */
+	List cacheKey(String action, Object thing, List<AuthToken> auths) {
+		if (auths.isEmpty()) return null;
+		List key = new ArrayList(auths.size() + 2);
+		key.add(action);
+		key.add(thing);
+		List<String> xids = new ArrayList(auths.size());
+		for (AuthToken at : auths) {
+			if (at.xid==null || ! (at.isVerified() || at.isTemp())) {
+				return null;
+			}
+			xids.add(at.xid.toString());
+		}
+		// order doesn't matter
+		Collections.sort(xids);
+		key.addAll(xids);
+		return key;
+	}
+
+	Object cacheGet(List key) {
+		if (key==null) return null;
+		Cached c = cache.get(key);
+		if (c == null || c.expires < System.currentTimeMillis()) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return c.value;
+	}
+
+	void cachePut(List key, Object value) {
+		if (key==null || value==null) return;
+		cache.put(key, new Cached(value, System.currentTimeMillis() + ttl.getMillisecs()));
+	}
+
+	/**
+	 * Drop any cached share lists involving these users or this item.
+	 */
+	void invalidate(String item, XId... users) {
+		Iterator<Map.Entry<List, Cached>> it = cache.entrySet().iterator();
+		while(it.hasNext()) {
+			List key = it.next().getKey();
+			boolean hit = item != null && item.equals(key.get(1));
+			for (XId user : users) {
+				if (user != null && key.contains(user.toString())) hit = true;
+			}
+			if (hit) it.remove();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
 	/**
 	 * 
 	 * @param authToken TODO manage this better
@@ -43,7 +144,40 @@ public final class ShareClient {
 		return getSharedWith(Collections.singletonList(at), prefix);
 	}
 	
-	public List<String> getSharedWith(List<AuthToken> auths, String prefix) {		
+	/**
+	 * @param auths
+	 * @param prefix Optional
+	 * @return items shared with any of auths. Cached for {@link #ttl}.
+	 */
+	public List<String> getSharedWith(List<AuthToken> auths, String prefix) {
+		List key = cacheKey("shared-with", prefix, auths);
+		List<String> cached = (List) cacheGet(key);
+		if (cached != null) {
+			return new ArrayList(cached);
+		}
+		List<String> sw = getSharedWith2_remote(auths, prefix);
+		if (sw==null) return new ArrayList();
+		cachePut(key, sw);
+		return new ArrayList(sw);
+	}
+
+	/**
+	 * Bulk check, e.g. for security filtering a page of list results: one (cached) remote call however many items.
+	 * @param auths
+	 * @param items IDs to check
+	 * @param prefix Optional, passed to the server to limit the share list. All the items should have this prefix.
+	 * @return the subset of items which are shared with any of auths
+	 */
+	public Set<String> filterSharedWith(List<AuthToken> auths, Collection<String> items, String prefix) {
+		Set<String> shared = new HashSet(getSharedWith(auths, prefix));
+		Set<String> ok = new HashSet();
+		for (String item : items) {
+			if (shared.contains(item)) ok.add(item);
+		}
+		return ok;
+	}
+
+	private List<String> getSharedWith2_remote(List<AuthToken> auths, String prefix) {
 		try {
 			FakeBrowser fb = new FakeBrowser();
 			List<String> jwts = Containers.apply(auths, AuthToken::getToken);
@@ -61,7 +195,7 @@ public final class ShareClient {
 			}
 		} catch (WebEx.E401 e401) {
 			Log.d("ShareClient.getSharedWith", e401);
-			return Collections.emptyList();	
+			return null; // don't cache this
 		}
 		return Collections.emptyList();
 	}
@@ -75,6 +209,11 @@ public final class ShareClient {
 			Log.d(LOGTAG, "getShareList() aborted - No (non-temp) auths. "+share);
 			return Collections.EMPTY_LIST;
 		}
+		List key = cacheKey("share-list", share.toString(), auths);
+		List<ShareToken> cached = (List) cacheGet(key);
+		if (cached != null) {
+			return new ArrayList(cached);
+		}
 		FakeBrowser fb = yac.fb(auths);
 		String response = fb.getPage(yac.yac.endpoint, new ArrayMap(
 			"app", yac.iss,
@@ -88,7 +227,8 @@ public final class ShareClient {
 		if (shares==null) return null;
 		List<Map> lshares = Containers.asList(shares);
 		List<ShareToken> sts = Containers.apply(lshares, sm -> new ShareToken((Map)sm));
-		return sts;
+		cachePut(key, sts);
+		return new ArrayList(sts);
 	}
 	
 	/**
@@ -110,6 +250,7 @@ public final class ShareClient {
 		// call the server
 		System.out.println("");
 		String response = fb.getPage(yac.yac.endpoint, shareAction);
+		invalidate(item, authToken.getXId(), targetUser);
 		
 		JSend jsend = JSend.parse(response);		
 		JThing d = jsend.getData();
@@ -131,6 +272,7 @@ public final class ShareClient {
 		// call the server
 		System.out.println("");
 		fb.getPage(yac.yac.endpoint, shareAction);
+		invalidate(item, authToken.getXId(), targetUser);
 		
 		// No exception? It's done.
 		if (fb.getStatus() >= 200 && fb.getStatus() < 400) return true;
@@ -17,7 +17,6 @@ import javax.mail.internet.InternetAddress;
 
 import org.eclipse.jetty.util.ajax.JSON;
 
-import com.auth0.jwt.interfaces.DecodedJWT;
 import com.winterwell.utils.Dep;
 import com.winterwell.utils.FailureException;
 import com.winterwell.utils.Key;
@@ -135,6 +134,7 @@ public final class YouAgainClient {
 		this.iss = issuer;
 		this.product = product;
 		init();
+		jwtCache = new JWTCache(yac==null? 10000 : yac.jwtCacheSize);
 		setDebug(true); // FIXME
 	}
 	
@@ -317,8 +317,8 @@ public final class YouAgainClient {
 
 				// decode the token
 				JWTDecoder dec = getDecoder(); //"local".equals(state.get("login")));
-				DecodedJWT decd = dec.decryptJWT(jt);
-				token.xid = new XId(decd.getSubject(), false);
+				String subject = jwtCache.verify(jt, dec);
+				token.xid = new XId(subject, false);
 				token.verified = true;
 				list.add(token);
 			} catch (Throwable e) {
@@ -339,6 +339,18 @@ public final class YouAgainClient {
 
 
 	JWTDecoder dec;
+
+	/**
+	 * Verified (and rejected) tokens, so we don't do an RSA check on every request
+	 */
+	private final JWTCache jwtCache;
+
+	/**
+	 * @return the verified-token cache (e.g. for its hit/miss stats)
+	 */
+	public JWTCache getJWTCache() {
+		return jwtCache;
+	}
 	
 	/**
 	 * NB: the signing key is the youagain key, shared by all apps
@@ -545,8 +557,13 @@ public final class YouAgainClient {
 		return uxid;
 	}
 	
+	/**
+	 * One per client, as it holds the share-list cache
+	 */
+	private final ShareClient sharing = new ShareClient(this);
+
 	public ShareClient sharing () {
-		return new ShareClient(this);
+		return sharing;
 	}
 	
 	public void setDebug(boolean b) {
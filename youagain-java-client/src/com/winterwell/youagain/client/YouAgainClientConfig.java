@@ -12,6 +12,9 @@ public class YouAgainClientConfig {
 	@Option
 	public String endpoint = "https://youagain.good-loop.com/youagain.json";
 
+	@Option(description="How many verified JWTs to remember")
+	public int jwtCacheSize = 10000;
+
 	@Override
 	public String toString() {
 		return "YouAgainClientConfig[endpoint=" + endpoint + "]";
@@ -0,0 +1,164 @@
+package com.winterwell.youagain.client;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.web.WebEx;
+
+public class JWTCacheTest {
+
+	private static KeyPair kp;
+
+	static {
+		try {
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+			kpg.initialize(2048);
+			kp = kpg.generateKeyPair();
+		} catch (Exception e) {
+			throw Utils.runtime(e);
+		}
+	}
+
+	static String jwt(String subject, Date expires) {
+		Algorithm alg = Algorithm.RSA256((RSAPublicKey) kp.getPublic(), (RSAPrivateKey) kp.getPrivate());
+		return JWT.create().withIssuer("test").withSubject(subject).withIssuedAt(new Date())
+				.withExpiresAt(expires).withJWTId(Utils.getUID()).sign(alg);
+	}
+
+	/**
+	 * Counts the RSA checks
+	 */
+	static class CountingDecoder extends JWTDecoder {
+		final AtomicInteger calls = new AtomicInteger();
+
+		CountingDecoder() throws Exception {
+			super("test");
+			setPublicKey(kp.getPublic());
+		}
+
+		@Override
+		public DecodedJWT decryptJWT(String jwt) {
+			calls.incrementAndGet();
+			return super.decryptJWT(jwt);
+		}
+	}
+
+	@Test
+	public void testHitsAndMetrics() throws Exception {
+		JWTCache cache = new JWTCache(100);
+		CountingDecoder dec = new CountingDecoder();
+		String alice = jwt("alice@email", null);
+		String bob = jwt("bob@email", null);
+		for(int i=0; i<10; i++) {
+			assert cache.verify(alice, dec).equals("alice@email");
+			assert cache.verify(bob, dec).equals("bob@email");
+		}
+		assert dec.calls.get() == 2 : dec.calls;
+		assert cache.getMisses() == 2 && cache.getHits() == 18 : cache;
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		JWTCache cache = new JWTCache(100);
+		CountingDecoder dec = new CountingDecoder();
+		// NB: JWT exp is in seconds
+		long exp = (System.currentTimeMillis()/1000 + 2) * 1000;
+		String soon = jwt("alice@email", new Date(exp));
+		assert cache.verify(soon, dec).equals("alice@email");
+		assert cache.verify(soon, dec).equals("alice@email");
+		assert dec.calls.get() == 1;
+		// (auth0 compares at whole-second resolution, so wait past the next second)
+		Utils.sleep(exp - System.currentTimeMillis() + 1100);
+		try {
+			cache.verify(soon, dec);
+			assert false : "expired";
+		} catch (WebEx.E401 ex) {
+			assert false : "should be a fresh check, not a cached verdict";
+		} catch (RuntimeException ex) {
+			// good
+		}
+		assert dec.calls.get() == 2;
+	}
+
+	@Test
+	public void testBadTokenRemembered() throws Exception {
+		JWTCache cache = new JWTCache(100);
+		CountingDecoder dec = new CountingDecoder();
+		String good = jwt("alice@email", null);
+		// tamper with the payload
+		String[] parts = good.split("\\.");
+		String bad = parts[0]+"."+parts[1].substring(0, parts[1].length()-2)+"AA."+parts[2];
+		try {
+			cache.verify(bad, dec);
+			assert false;
+		} catch (RuntimeException ex) {
+			assert ! (ex instanceof WebEx.E401);
+		}
+		for(int i=0; i<5; i++) {
+			try {
+				cache.verify(bad, dec);
+				assert false;
+			} catch (WebEx.E401 ex) {
+				// good -- remembered
+			}
+		}
+		assert dec.calls.get() == 1;
+		assert cache.getRejects() == 5 : cache;
+		// after the bad-TTL, it gets checked again
+		cache.badTTL = new Dt(1, TUnit.MILLISECOND);
+		cache.clear();
+		try {
+			cache.verify(bad, dec);
+		} catch (RuntimeException ex) {
+			// expected
+		}
+		Utils.sleep(5);
+		try {
+			cache.verify(bad, dec);
+		} catch (RuntimeException ex) {
+			// expected
+		}
+		assert dec.calls.get() == 3 : dec.calls;
+	}
+
+	/**
+	 * Auth overhead per request, with and without the cache.
+	 */
+	@Test
+	public void testSpeed() throws Exception {
+		CountingDecoder dec = new CountingDecoder();
+		String[] tokens = new String[10];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = jwt("user"+i+"@email", null);
+		}
+		int n = 2000;
+		// warm up
+		for (int i = 0; i < 200; i++) dec.decryptJWT(tokens[i % tokens.length]);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			dec.decryptJWT(tokens[i % tokens.length]);
+		}
+		long t1 = System.nanoTime();
+		JWTCache cache = new JWTCache(100);
+		for (int i = 0; i < n; i++) {
+			cache.verify(tokens[i % tokens.length], dec);
+		}
+		long t2 = System.nanoTime();
+		Printer.out("per request: uncached "+(t1-t0)/n/1000+"us, cached "+(t2-t1)/n/1000+"us  "+cache);
+		assert cache.getMisses() == tokens.length : cache;
+		assert (t2-t1) * 5 < (t1-t0) : (t2-t1)+" vs "+(t1-t0);
+	}
+}
@@ -0,0 +1,76 @@
+package com.winterwell.youagain.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.web.data.XId;
+
+/**
+ * Local tests of the share-list cache (no YouAgain server needed).
+ */
+public class ShareClientTest {
+
+	static AuthToken auth(String xid, boolean verified) {
+		AuthToken at = new AuthToken("jwt-"+xid);
+		at.xid = new XId(xid);
+		at.verified = verified;
+		return at;
+	}
+
+	@Test
+	public void testBulkFilterFromCache() {
+		ShareClient sc = new YouAgainClient("test", null).sharing();
+		List<AuthToken> auths = Arrays.asList(auth("alice@email", true));
+		sc.cachePut(sc.cacheKey("shared-with", "Advert:", auths), Arrays.asList("Advert:1", "Advert:3"));
+		List<String> page = new ArrayList();
+		for(int i=0; i<1000; i++) page.add("Advert:"+i);
+		Set<String> ok = sc.filterSharedWith(auths, page, "Advert:");
+		assert ok.size() == 2 && ok.contains("Advert:3") : ok;
+		assert sc.getHits() == 1 && sc.getMisses() == 0;
+	}
+
+	@Test
+	public void testKeys() {
+		ShareClient sc = new YouAgainClient("test", null).sharing();
+		AuthToken a = auth("alice@email", true), b = auth("bob@email", true);
+		// order doesn't matter
+		assert sc.cacheKey("shared-with", null, Arrays.asList(a, b)).equals(sc.cacheKey("shared-with", null, Arrays.asList(b, a)));
+		// unverified tokens are not cached
+		assert sc.cacheKey("shared-with", null, Arrays.asList(a, auth("eve@email", false))) == null;
+		// temp ones are OK
+		assert sc.cacheKey("shared-with", null, Arrays.asList(auth("abc123@temp", false))) != null;
+	}
+
+	@Test
+	public void testInvalidateAndTTL() {
+		ShareClient sc = new YouAgainClient("test", null).sharing();
+		AuthToken a = auth("alice@email", true), b = auth("bob@email", true);
+		List ka = sc.cacheKey("shared-with", null, Arrays.asList(a));
+		List kb = sc.cacheKey("shared-with", null, Arrays.asList(b));
+		List kItem = sc.cacheKey("share-list", "Advert:7", Arrays.asList(b));
+		sc.cachePut(ka, Arrays.asList("x"));
+		sc.cachePut(kb, Arrays.asList("y"));
+		sc.cachePut(kItem, new ArrayList());
+		// alice shares Advert:1 with someone else: alice's lists go, bob's stay
+		sc.invalidate("Advert:1", a.getXId(), new XId("carol@email"));
+		assert sc.cacheGet(ka) == null;
+		assert sc.cacheGet(kb) != null;
+		assert sc.cacheGet(kItem) != null;
+		// by item
+		sc.invalidate("Advert:7", new XId("carol@email"));
+		assert sc.cacheGet(kItem) == null;
+		assert sc.cacheGet(kb) != null;
+		// TTL
+		sc.ttl = new Dt(10, TUnit.MILLISECOND);
+		sc.cachePut(ka, Arrays.asList("x"));
+		Utils.sleep(20);
+		assert sc.cacheGet(ka) == null;
+	}
+}